@@ -20,6 +20,7 @@ package ubic.gemma.core.analysis.expression.coexpression.links;
 
 import cern.colt.bitvector.BitMatrix;
 import cern.colt.list.DoubleArrayList;
+import cern.colt.list.IntArrayList;
 import cern.colt.list.ObjectArrayList;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.lang3.ArrayUtils;
@@ -36,6 +37,11 @@ import ubic.gemma.model.expression.designElement.CompositeSequence;
 import ubic.gemma.model.genome.Gene;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /**
  * @author paul
@@ -49,6 +55,17 @@ public abstract class AbstractMatrixRowPairAnalysis implements MatrixRowPairAnal
     public static final int HARD_LIMIT_MIN_NUM_USED = 8;
     static final Log log = LogFactory.getLog( PearsonMetrics.class );
     private static final int HALF_BIN = MatrixRowPairAnalysis.NUM_BINS / 2;
+    /**
+     * Target size, in doubles, of the pair of row blocks held in cache while computing one tile of the blocked
+     * correlation matrix (256kB, a typical L2 size).
+     */
+    private static final int TILE_CACHE_DOUBLES = 32768;
+    private static final int MIN_BLOCK_ROWS = 16;
+    private static final int MAX_BLOCK_ROWS = 512;
+    /**
+     * How many links to collect before passing them on, when there is a link consumer.
+     */
+    private static final int LINK_BATCH_SIZE = 10000;
     private final int[] fastHistogram = new int[MatrixRowPairAnalysis.NUM_BINS];
     private final Map<ExpressionDataMatrixRowElement, CompositeSequence> rowMapCache = new HashMap<>();
     ExpressionDataDoubleMatrix dataMatrix;
@@ -80,6 +97,16 @@ public abstract class AbstractMatrixRowPairAnalysis implements MatrixRowPairAnal
     private long crossHybridizationRejections = 0;
     private int numUniqueGenes = 0;
     private boolean omitNegativeCorrelationLinks = false;
+    private int numThreads = 1;
+    /**
+     * Number of rows per block for the multi-threaded computation; if zero, it is chosen based on the number of columns.
+     */
+    private int blockSize = 0;
+    /**
+     * If set, links are passed on as they are found instead of being added to the keepers.
+     */
+    private Consumer<List<Link>> linkConsumer = null;
+    private List<Link> pendingLinks = new ArrayList<>();
 
     /**
      * Read back the histogram as a DoubleArrayList of counts.
@@ -132,6 +159,17 @@ public abstract class AbstractMatrixRowPairAnalysis implements MatrixRowPairAnal
         this.init();
     }
 
+    /**
+     * Pass the links on in batches as they are found, instead of keeping them all until the analysis is done. The
+     * consumer may be called from several threads at once.
+     *
+     * @param linkConsumer receives each batch of links; null to keep them instead
+     */
+    @Override
+    public void setLinkConsumer( Consumer<List<Link>> linkConsumer ) {
+        this.linkConsumer = linkConsumer;
+    }
+
     /**
      * Set the threshold, below which correlations are kept (e.g., negative values)
      *
@@ -193,6 +231,20 @@ public abstract class AbstractMatrixRowPairAnalysis implements MatrixRowPairAnal
         useAbsoluteValue = k;
     }
 
+    /**
+     * Set the number of threads used to compute correlations. Values greater than one use the blocked parallel
+     * computation, which gives the same histogram and links as the single-threaded one.
+     *
+     * @param numThreads number of threads
+     */
+    @Override
+    public void setNumThreads( int numThreads ) {
+        if ( numThreads < 1 ) {
+            throw new IllegalArgumentException( "Number of threads must be at least 1" );
+        }
+        this.numThreads = numThreads;
+    }
+
     /**
      * @return baseCode.dataStructure.NamedMatrix
      */
@@ -338,6 +390,7 @@ public abstract class AbstractMatrixRowPairAnalysis implements MatrixRowPairAnal
     }
 
     void finishMetrics() {
+        this.flushLinks();
         this.histogramIsFilled = true;
         globalMean = globalTotal / numVals;
     }
@@ -364,31 +417,30 @@ public abstract class AbstractMatrixRowPairAnalysis implements MatrixRowPairAnal
             return;
         }
 
-        if ( Double.isNaN( correl ) )
+        if ( !this.isKeeper( i, j, correl, numused ) ) {
             return;
+        }
 
-        if ( omitNegativeCorrelationLinks && correl < 0.0 ) {
+        if ( linkConsumer == null ) {
+            keepers.add( new Link( i, j, correl ) );
             return;
         }
 
-        double acorrel = Math.abs( correl );
-
-        double c;
-        if ( useAbsoluteValue ) {
-            c = acorrel;
-        } else {
-            c = correl;
+        pendingLinks.add( new Link( i, j, correl ) );
+        if ( pendingLinks.size() >= AbstractMatrixRowPairAnalysis.LINK_BATCH_SIZE ) {
+            this.flushLinks();
         }
+    }
 
-        if ( upperTailThreshold != 0.0 && c >= upperTailThreshold && ( !this.usePvalueThreshold
-                || this.correctedPvalue( i, j, correl, numused ) <= this.pValueThreshold ) ) {
-
-            keepers.add( new Link( i, j, correl ) );
-        } else if ( !useAbsoluteValue && lowerTailThreshold != 0.0 && c <= lowerTailThreshold && (
-                !this.usePvalueThreshold || this.correctedPvalue( i, j, correl, numused ) <= this.pValueThreshold ) ) {
-            keepers.add( new Link( i, j, correl ) );
+    /**
+     * Pass on the links collected so far, if there is a link consumer.
+     */
+    private void flushLinks() {
+        if ( linkConsumer == null || pendingLinks.isEmpty() ) {
+            return;
         }
-
+        linkConsumer.accept( pendingLinks );
+        pendingLinks = new ArrayList<>();
     }
 
     /**
@@ -437,6 +489,10 @@ public abstract class AbstractMatrixRowPairAnalysis implements MatrixRowPairAnal
 
     int computeMetrics( int numrows, int numcols, boolean docalcs, StopWatch timer, int skipped, int numComputed,
             double[][] data ) {
+        if ( this.numThreads > 1 ) {
+            return this.computeMetricsBlocked( numrows, numcols, docalcs, data );
+        }
+        long start = System.currentTimeMillis();
         ExpressionDataMatrixRowElement itemA;
         double[] vectorA = null;
         for ( int i = 0; i < numrows; i++ ) {
@@ -451,6 +507,7 @@ public abstract class AbstractMatrixRowPairAnalysis implements MatrixRowPairAnal
 
             numComputed = this.getNumComputed( numrows, numcols, docalcs, data, timer, itemA, vectorA, numComputed, i );
         }
+        this.logThroughput( numComputed, System.currentTimeMillis() - start, 1 );
         return skipped;
     }
 
@@ -469,39 +526,15 @@ public abstract class AbstractMatrixRowPairAnalysis implements MatrixRowPairAnal
         if ( Double.isNaN( correl ) )
             return;
 
-        if ( correl < -1.00001 || correl > 1.00001 ) {
-            throw new IllegalArgumentException( "Correlation out of valid range: " + correl );
-        }
+        correl = this.checkRange( correl );
 
-        if ( correl < -1.0 ) {
-            correl = -1.0;
-        } else if ( correl > 1.0 ) {
-            correl = 1.0;
-        }
-
-        double acorrel = Math.abs( correl );
-
-        // it is possible, due to roundoff, to overflow the bins.
-        int lastBinIndex = fastHistogram.length - 1;
         if ( !histogramIsFilled ) {
-
-            if ( useAbsoluteValue ) {
-                int bin = Math
-                        .min( ( int ) ( ( 1.0 + acorrel ) * AbstractMatrixRowPairAnalysis.HALF_BIN ), lastBinIndex );
-                fastHistogram[bin]++;
-                globalTotal += acorrel;
-                // histogram.fill( acorrel ); // this is suprisingly slow due to zillions of calls to Math.floor.
-            } else {
-                globalTotal += correl;
-                int bin = Math
-                        .min( ( int ) ( ( 1.0 + correl ) * AbstractMatrixRowPairAnalysis.HALF_BIN ), lastBinIndex );
-                fastHistogram[bin]++;
-                // histogram.fill( correl );
-            }
+            fastHistogram[this.histogramBin( correl )]++;
+            globalTotal += useAbsoluteValue ? Math.abs( correl ) : correl;
             numVals++;
         }
 
-        if ( acorrel > storageThresholdValue && results != null ) {
+        if ( Math.abs( correl ) > storageThresholdValue && results != null ) {
             results.set( i, j, correl );
         }
 
@@ -509,6 +542,13 @@ public abstract class AbstractMatrixRowPairAnalysis implements MatrixRowPairAnal
 
     }
 
+    /**
+     * Override the number of rows per block used by the multi-threaded computation (mostly for testing).
+     */
+    void setBlockSize( int blockSize ) {
+        this.blockSize = blockSize;
+    }
+
     /**
      * Set an (absolute value) correlation, below which values are not maintained in the correlation matrix. They are
      * still kept in the histogram. (In some implementations this can greatly reduce the memory requirements for the
@@ -521,6 +561,208 @@ public abstract class AbstractMatrixRowPairAnalysis implements MatrixRowPairAnal
         storageThresholdValue = k;
     }
 
+    /**
+     * Decide whether the correlation passes the thresholds for being retained as a link.
+     */
+    private boolean isKeeper( int i, int j, double correl, int numused ) {
+        if ( Double.isNaN( correl ) )
+            return false;
+
+        if ( omitNegativeCorrelationLinks && correl < 0.0 ) {
+            return false;
+        }
+
+        double c;
+        if ( useAbsoluteValue ) {
+            c = Math.abs( correl );
+        } else {
+            c = correl;
+        }
+
+        if ( upperTailThreshold != 0.0 && c >= upperTailThreshold ) {
+            return !this.usePvalueThreshold || this.correctedPvalue( i, j, correl, numused ) <= this.pValueThreshold;
+        }
+        return !useAbsoluteValue && lowerTailThreshold != 0.0 && c <= lowerTailThreshold && (
+                !this.usePvalueThreshold || this.correctedPvalue( i, j, correl, numused ) <= this.pValueThreshold );
+    }
+
+    /**
+     * @return the correlation, clipped to [-1, 1] to guard against roundoff.
+     * @throws IllegalArgumentException if the value is too far out of range to be explained by roundoff.
+     */
+    private double checkRange( double correl ) {
+        if ( correl < -1.00001 || correl > 1.00001 ) {
+            throw new IllegalArgumentException( "Correlation out of valid range: " + correl );
+        }
+
+        if ( correl < -1.0 ) {
+            return -1.0;
+        } else if ( correl > 1.0 ) {
+            return 1.0;
+        }
+        return correl;
+    }
+
+    /**
+     * @return the histogram bin for the correlation; it is possible, due to roundoff, to overflow the bins so the last
+     * bin absorbs those.
+     */
+    private int histogramBin( double correl ) {
+        int lastBinIndex = fastHistogram.length - 1;
+        double c = useAbsoluteValue ? Math.abs( correl ) : correl;
+        // histogram.fill( c ) is suprisingly slow due to zillions of calls to Math.floor.
+        return Math.min( ( int ) ( ( 1.0 + c ) * AbstractMatrixRowPairAnalysis.HALF_BIN ), lastBinIndex );
+    }
+
+    /**
+     * Blocked, multi-threaded version of the pass over the upper triangle of the correlation matrix. Rows are split
+     * into blocks sized so that a pair of blocks fits in cache, and each task compares one block of rows to itself and
+     * to all the blocks after it, tile by tile. Tasks record their results in their own {@link CorrelationBlock}; these
+     * are merged into the histogram, results matrix and keepers once all the tasks are done, except that the links
+     * go to the link consumer, if there is one, as soon as their block is done.
+     *
+     * @return number of rows skipped because they are not associated with a gene.
+     */
+    private int computeMetricsBlocked( final int numrows, final int numcols, final boolean docalcs,
+            final double[][] data ) {
+        final int blockSize = this.blockSize > 0 ?
+                this.blockSize :
+                Math.max( AbstractMatrixRowPairAnalysis.MIN_BLOCK_ROWS, Math.min( AbstractMatrixRowPairAnalysis.MAX_BLOCK_ROWS,
+                        AbstractMatrixRowPairAnalysis.TILE_CACHE_DOUBLES / Math.max( 1, 2 * numcols ) ) );
+        final int numBlocks = ( numrows + blockSize - 1 ) / blockSize;
+        final CorrelationBlock[] blocks = new CorrelationBlock[numBlocks];
+        final AtomicInteger blocksDone = new AtomicInteger( 0 );
+        final int reportEvery = Math.max( 1, numBlocks / 10 );
+
+        AbstractMatrixRowPairAnalysis.log
+                .info( "Computing correlations in " + numBlocks + " blocks of " + blockSize + " rows using "
+                        + numThreads + " threads" );
+
+        // the row elements are created lazily; make sure that happens before the workers start.
+        this.dataMatrix.getRowElements();
+
+        long start = System.currentTimeMillis();
+        ForkJoinPool pool = new ForkJoinPool( numThreads );
+        try {
+            pool.invoke( new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    List<RecursiveAction> tasks = new ArrayList<>( numBlocks );
+                    for ( int b = 0; b < numBlocks; b++ ) {
+                        final int bi = b;
+                        tasks.add( new RecursiveAction() {
+                            private static final long serialVersionUID = 1L;
+
+                            @Override
+                            protected void compute() {
+                                CorrelationBlock block = AbstractMatrixRowPairAnalysis.this
+                                        .computeBlock( bi * blockSize, Math.min( numrows, ( bi + 1 ) * blockSize ),
+                                                blockSize, numrows, numcols, docalcs, data );
+                                if ( linkConsumer != null && !block.keep.isEmpty() ) {
+                                    linkConsumer.accept( block.keep );
+                                    block.keep = new ArrayList<>();
+                                }
+                                blocks[bi] = block;
+                                int done = blocksDone.incrementAndGet();
+                                if ( done % reportEvery == 0 ) {
+                                    AbstractMatrixRowPairAnalysis.log
+                                            .info( done + "/" + numBlocks + " row blocks done" );
+                                }
+                            }
+                        } );
+                    }
+                    ForkJoinTask.invokeAll( tasks );
+                }
+            } );
+        } finally {
+            pool.shutdown();
+        }
+
+        /*
+         * Merge. Tiles visit the pairs in a different order than the row-by-row pass, so the links are sorted to come
+         * out in the same order.
+         */
+        int numComputed = 0;
+        List<Link> kept = new ArrayList<>();
+        for ( CorrelationBlock block : blocks ) {
+            for ( int k = 0; k < fastHistogram.length; k++ ) {
+                fastHistogram[k] += block.histogram[k];
+            }
+            globalTotal += block.total;
+            numVals += block.numVals;
+            crossHybridizationRejections += block.crossHybridizationRejections;
+            if ( results != null ) {
+                for ( int k = 0, n = block.storedValues.size(); k < n; k++ ) {
+                    results.set( block.storedRows.getQuick( k ), block.storedCols.getQuick( k ),
+                            block.storedValues.getQuick( k ) );
+                }
+            }
+            kept.addAll( block.keep );
+            numComputed += block.numComputed;
+        }
+        Collections.sort( kept, new Comparator<Link>() {
+            @Override
+            public int compare( Link o1, Link o2 ) {
+                if ( o1.getx() != o2.getx() ) {
+                    return Integer.compare( o1.getx(), o2.getx() );
+                }
+                return Integer.compare( o1.gety(), o2.gety() );
+            }
+        } );
+        if ( keepers != null ) {
+            for ( Link l : kept ) {
+                keepers.add( l );
+            }
+        }
+
+        this.logThroughput( numComputed, System.currentTimeMillis() - start, numThreads );
+
+        int skipped = 0;
+        for ( int i = 0; i < numrows; i++ ) {
+            if ( !this.hasGene( this.dataMatrix.getRowElement( i ) ) ) {
+                skipped++;
+            }
+        }
+        return skipped;
+    }
+
+    /**
+     * Compare rows [iStart, iEnd) to themselves and to all the following rows, one tile of blockSize columns at a
+     * time so the rows being compared stay in cache. Must not modify any state of this object.
+     */
+    private CorrelationBlock computeBlock( int iStart, int iEnd, int blockSize, int numrows, int numcols,
+            boolean docalcs, double[][] data ) {
+        CorrelationBlock block = new CorrelationBlock();
+        for ( int jStart = iStart; jStart < numrows; jStart += blockSize ) {
+            int jEnd = Math.min( numrows, jStart + blockSize );
+            for ( int i = iStart; i < iEnd; i++ ) {
+                if ( !hasGenesCache[i] ) {
+                    continue;
+                }
+                for ( int j = Math.max( i + 1, jStart ); j < jEnd; j++ ) {
+                    if ( !hasGenesCache[j] )
+                        continue;
+                    if ( !docalcs || results.get( i, j ) != 0.0 ) { // second pass, value is already cached.
+                        block.keepCorrellation( i, j, results.get( i, j ), numcols );
+                        continue;
+                    }
+                    block.setCorrel( i, j, this.correlFast( data[i], data[j], i, j ), numcols );
+                    block.numComputed++;
+                }
+            }
+        }
+        return block;
+    }
+
+    private void logThroughput( int numComputed, long elapsedMs, int threads ) {
+        AbstractMatrixRowPairAnalysis.log.info( String
+                .format( "%d correlations computed in %.2fs using %d thread%s (%.0f correlations/s)", numComputed,
+                        elapsedMs / 1000.0, threads, threads > 1 ? "s" : "",
+                        elapsedMs > 0 ? numComputed / ( elapsedMs / 1000.0 ) : 0.0 ) );
+    }
+
     private int getNumComputed( int numrows, int numcols, boolean docalcs, double[][] data, StopWatch timer,
             ExpressionDataMatrixRowElement itemA, double[] vectorA, int numComputed, int i ) {
         ExpressionDataMatrixRowElement itemB;
@@ -649,4 +891,52 @@ public abstract class AbstractMatrixRowPairAnalysis implements MatrixRowPairAnal
         }
         return testCount;
     }
+
+    /**
+     * Results for one block of rows in the blocked computation. This does the same bookkeeping as
+     * {@link #setCorrel(int, int, double, int)}, but only to its own state, so blocks can be computed concurrently.
+     */
+    private class CorrelationBlock {
+        private final int[] histogram = new int[MatrixRowPairAnalysis.NUM_BINS];
+        private List<Link> keep = new ArrayList<>();
+        private final IntArrayList storedRows = new IntArrayList();
+        private final IntArrayList storedCols = new IntArrayList();
+        private final DoubleArrayList storedValues = new DoubleArrayList();
+        private double total = 0.0;
+        private int numVals = 0;
+        private long crossHybridizationRejections = 0;
+        private int numComputed = 0;
+
+        private void keepCorrellation( int i, int j, double correl, int numused ) {
+            if ( keepers != null && AbstractMatrixRowPairAnalysis.this.isKeeper( i, j, correl, numused ) ) {
+                keep.add( new Link( i, j, correl ) );
+            }
+        }
+
+        private void setCorrel( int i, int j, double correl, int numused ) {
+            if ( AbstractMatrixRowPairAnalysis.this.crossHybridizes( i, j ) ) {
+                crossHybridizationRejections++;
+                return;
+            }
+
+            if ( Double.isNaN( correl ) )
+                return;
+
+            correl = AbstractMatrixRowPairAnalysis.this.checkRange( correl );
+
+            if ( !histogramIsFilled ) {
+                histogram[AbstractMatrixRowPairAnalysis.this.histogramBin( correl )]++;
+                total += useAbsoluteValue ? Math.abs( correl ) : correl;
+                numVals++;
+            }
+
+            if ( Math.abs( correl ) > storageThresholdValue && results != null ) {
+                storedRows.add( i );
+                storedCols.add( j );
+                storedValues.add( correl );
+            }
+
+            this.keepCorrellation( i, j, correl, numused );
+        }
+    }
 }
@@ -40,6 +40,7 @@ import ubic.gemma.model.genome.Taxon;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.*;
+import java.util.function.Consumer;
 
 /**
  * Handles the actual coexpression analysis, once handed data that has been prepared. Results are made available at the
@@ -61,6 +62,8 @@ public class LinkAnalysis {
 
     private ObjectArrayList keep; // links that are retained.
 
+    private Consumer<List<Link>> linkConsumer = null;
+
     private MatrixRowPairAnalysis metricMatrix;
     private Map<Integer, Integer> probeDegreeMap = new HashMap<>();
 
@@ -229,6 +232,16 @@ public class LinkAnalysis {
         this.probeToGeneMap = Collections.unmodifiableMap( probeToGeneMap );
     }
 
+    /**
+     * Pass the retained links to the consumer, in batches, as they are found, instead of keeping them: getKeep() will
+     * then be empty. The probe degrees are still computed. Set before calling analyze().
+     *
+     * @param linkConsumer receives batches of links; it may be called from more than one thread.
+     */
+    public void setLinkConsumer( Consumer<List<Link>> linkConsumer ) {
+        this.linkConsumer = linkConsumer;
+    }
+
     public Taxon getTaxon() {
         return this.taxon;
     }
@@ -250,9 +263,24 @@ public class LinkAnalysis {
         }
 
         metricMatrix.setMinNumpresent( config.getMinNumPresent() );
+        metricMatrix.setNumThreads( config.getNumThreads() );
         metricMatrix.setOmitNegativeCorrelationLinks( config.isOmitNegLinks() );
         metricMatrix.setDuplicateMap( probeToGeneMap ); // populates numUniqueGenes
         metricMatrix.setUseAbsoluteValue( config.isAbsoluteValue() );
+        if ( linkConsumer != null ) {
+            metricMatrix.setLinkConsumer( new Consumer<List<Link>>() {
+                @Override
+                public void accept( List<Link> links ) {
+                    // links can come from several threads.
+                    synchronized ( LinkAnalysis.this ) {
+                        for ( Link l : links ) {
+                            LinkAnalysis.this.countProbeDegree( l );
+                        }
+                    }
+                    linkConsumer.accept( links );
+                }
+            } );
+        }
         this.init();
 
         metricMatrix.calculateMetrics();
@@ -375,25 +403,21 @@ public class LinkAnalysis {
     }
 
     /**
-     * Populates a map of probe index (in matrix) -> how many links. FIXME do at gene level
+     * Populates a map of probe index (in matrix) -> how many links, for the links that were kept (links that were
+     * passed to the link consumer are counted as they are found). FIXME do at gene level
      */
     private void computeProbeDegrees() {
-
-        this.probeDegreeMap = new HashMap<>();
-
-        for ( Integer i = 0; i < metricMatrix.size(); i++ ) {
-            probeDegreeMap.put( i, 0 );
-        }
-
         for ( int i = 0; i < keep.size(); i++ ) {
-            Link l = ( Link ) keep.get( i );
-            Integer x = l.getx();
-            Integer y = l.gety();
+            this.countProbeDegree( ( Link ) keep.get( i ) );
+        }
+    }
 
-            probeDegreeMap.put( x, probeDegreeMap.get( x ) + 1 );
-            probeDegreeMap.put( y, probeDegreeMap.get( y ) + 1 );
+    private void countProbeDegree( Link l ) {
+        Integer x = l.getx();
+        Integer y = l.gety();
 
-        }
+        probeDegreeMap.put( x, probeDegreeMap.get( x ) + 1 );
+        probeDegreeMap.put( y, probeDegreeMap.get( y ) + 1 );
     }
 
     /**
@@ -401,6 +425,12 @@ public class LinkAnalysis {
      */
     private void getLinks() {
         this.chooseCutPoints();
+
+        this.probeDegreeMap = new HashMap<>();
+        for ( Integer i = 0; i < metricMatrix.size(); i++ ) {
+            probeDegreeMap.put( i, 0 );
+        }
+
         metricMatrix.calculateMetrics();
 
         keep = metricMatrix.getKeepers();
@@ -67,6 +67,10 @@ public class LinkAnalysisConfig implements Serializable {
      */
     private int minNumPresent = AbstractMatrixRowPairAnalysis.HARD_LIMIT_MIN_NUM_USED;
     private NormalizationMethod normalizationMethod = NormalizationMethod.none;
+    /**
+     * How many threads to use for computing correlations. This does not affect the results.
+     */
+    private int numThreads = 1;
     /**
      * Remove negative correlated values at the end.
      */
@@ -75,6 +79,12 @@ public class LinkAnalysisConfig implements Serializable {
      * Only used if textOut = true; if null, just write to stdout.
      */
     private File outputFile = null;
+    /**
+     * Map links to genes and stage them in the database while the correlations are being computed, instead of once
+     * they are all found, so the links are not all held in memory. They replace the old analysis once it is done. This
+     * does not affect the results.
+     */
+    private boolean pipelined = false;
     /**
      * Probes with more than this many links are removed. Zero means no action is taken.
      */
@@ -175,6 +185,22 @@ public class LinkAnalysisConfig implements Serializable {
         this.normalizationMethod = normalizationMethod;
     }
 
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    public void setNumThreads( int numThreads ) {
+        this.numThreads = numThreads;
+    }
+
+    public boolean isPipelined() {
+        return pipelined;
+    }
+
+    public void setPipelined( boolean pipelined ) {
+        this.pipelined = pipelined;
+    }
+
     public File getOutputFile() {
         return outputFile;
     }
@@ -14,9 +14,12 @@
  */
 package ubic.gemma.core.analysis.expression.coexpression.links;
 
+import ubic.basecode.dataStructure.Link;
 import ubic.gemma.model.expression.experiment.BioAssaySet;
 import ubic.gemma.model.genome.Taxon;
 
+import java.util.List;
+
 /**
  * Handles the persistence phase of a Link analysis.
  *
@@ -46,4 +49,30 @@ public interface LinkAnalysisPersister {
      * @param la analysis
      */
     void saveLinksToDb( LinkAnalysis la );
+
+    /**
+     * Stage a batch of links while the analysis is running, for saving with saveStagedLinks. The experiment's saved
+     * links are left alone, so if the analysis fails the old one is kept. Links that are already staged, from other
+     * pairs of probes for the same genes, are kept once.
+     *
+     * @param la    analysis
+     * @param links probe-level links from the analysis
+     */
+    void stageLinkBatch( LinkAnalysis la, List<Link> links );
+
+    /**
+     * Once the analysis is done and all its links are staged: remove the old analyses and links for the experiment,
+     * save the analysis object, then move the staged links to the link tables in batches, with their flipped versions,
+     * and save the 'tested-in' information. If this fails part way, what was saved can be removed with
+     * deleteAnalyses; the staged links are left for deleteStagedLinks either way.
+     *
+     * @param la analysis, which is done and configured to use the db
+     * @return how many gene-level links were saved
+     */
+    int saveStagedLinks( LinkAnalysis la );
+
+    /**
+     * @param ee the experiment whose staged links are removed
+     */
+    void deleteStagedLinks( BioAssaySet ee );
 }
@@ -34,6 +34,11 @@ public class LinkAnalysisPersisterImpl implements LinkAnalysisPersister {
 
     private static final Logger log = LoggerFactory.getLogger( LinkAnalysisPersisterImpl.class );
 
+    /**
+     * How many gene-level links saveStagedLinks saves in each transaction.
+     */
+    private static final int SAVE_BATCH_SIZE = 10000;
+
     @Autowired
     private CoexpressionAnalysisService coexpressionAnalysisService;
 
@@ -136,22 +141,12 @@ public class LinkAnalysisPersisterImpl implements LinkAnalysisPersister {
     @Override
     public void saveLinksToDb( LinkAnalysis la ) {
 
-        if ( !la.getConfig().isUseDb() ) {
-            throw new IllegalArgumentException( "Analysis is not configured to use the db to persist" );
-        }
-        this.deleteAnalyses( la.getExpressionExperiment() );
-
-        // the analysis object will get updated.
-        CoexpressionAnalysis analysisObj = la.getAnalysisObj();
-        analysisObj.setCoexpCorrelationDistribution( la.getCorrelationDistribution() );
-        analysisObj = ( CoexpressionAnalysis ) persisterHelper.persist( analysisObj );
+        this.startSavingLinksToDb( la );
 
         /*
          * At this point we have the populated analysis object, but no links.
          */
 
-        la.setAnalysisObj( analysisObj );
-
         StopWatch watch = new StopWatch();
         watch.start();
 
@@ -165,6 +160,96 @@ public class LinkAnalysisPersisterImpl implements LinkAnalysisPersister {
 
     }
 
+    @Override
+    public void stageLinkBatch( LinkAnalysis la, List<Link> links ) {
+        Set<NonPersistentNonOrderedCoexpLink> linksToStage = new HashSet<>();
+        for ( Link m : links ) {
+            CompositeSequence p1 = la.getProbe( m.getx() );
+            CompositeSequence p2 = la.getProbe( m.gety() );
+
+            // as in saveLinks: every pair of genes, skipping self-links.
+            for ( Gene g1 : la.getProbeToGeneMap().get( p1 ) ) {
+                for ( Gene g2 : la.getProbeToGeneMap().get( p2 ) ) {
+                    if ( g1.equals( g2 ) ) {
+                        continue;
+                    }
+                    if ( !la.getGenesTested().contains( g1 ) || !la.getGenesTested().contains( g2 ) )
+                        throw new AssertionError();
+
+                    /*
+                     * Only the genes and the sign are saved, so it doesn't matter which pair of probes a link that
+                     * shows up more than once comes from.
+                     */
+                    linksToStage.add( new NonPersistentNonOrderedCoexpLink( g1, g2, m.getWeight() > 0 ) );
+                }
+            }
+        }
+        this.gene2GeneCoexpressionService.stageLinks( la.getExpressionExperiment(), linksToStage );
+    }
+
+    @Override
+    public int saveStagedLinks( LinkAnalysis la ) {
+        BioAssaySet ee = la.getExpressionExperiment();
+        List<NonPersistentNonOrderedCoexpLink> staged = this.gene2GeneCoexpressionService
+                .getStagedLinks( ee, null, LinkAnalysisPersisterImpl.SAVE_BATCH_SIZE );
+        if ( staged.isEmpty() ) {
+            throw new RuntimeException( "No links left!" );
+        }
+
+        // nothing is removed until now, so a failed analysis leaves the old one in place.
+        this.startSavingLinksToDb( la );
+
+        LinkCreator c = this.getLinkCreator( la );
+        int numLinks = 0;
+        while ( !staged.isEmpty() ) {
+            List<NonPersistentNonOrderedCoexpLink> linksForDb = new ArrayList<>( staged.size() );
+            for ( NonPersistentNonOrderedCoexpLink link : staged ) {
+                linksForDb.add( new NonPersistentNonOrderedCoexpLink(
+                        c.create( link.isPositiveCorrelation() ? 1 : -1, link.getFirstGene(),
+                                link.getSecondGene() ) ) );
+            }
+            this.gene2GeneCoexpressionService.createOrUpdateBatch( ee, linksForDb, c );
+            numLinks += linksForDb.size();
+            LinkAnalysisPersisterImpl.log.info( numLinks + " links saved so far for " + ee );
+
+            staged = this.gene2GeneCoexpressionService
+                    .getStagedLinks( ee, staged.get( staged.size() - 1 ), LinkAnalysisPersisterImpl.SAVE_BATCH_SIZE );
+        }
+
+        this.gene2GeneCoexpressionService.updateTestedIn( ee, la.getGenesTested() );
+
+        // as in saveLinks
+        CoexpressionAnalysis analysisObj = la.getAnalysisObj();
+        assert analysisObj.getId() != null;
+        analysisObj.setNumberOfElementsAnalyzed( la.getGenesTested().size() );
+        analysisObj.setNumberOfLinks( numLinks );
+        coexpressionAnalysisService.update( analysisObj );
+
+        LinkAnalysisPersisterImpl.log.info( numLinks + " links saved for " + ee );
+        return numLinks;
+    }
+
+    @Override
+    public void deleteStagedLinks( BioAssaySet ee ) {
+        this.gene2GeneCoexpressionService.deleteStagedLinks( ee );
+    }
+
+    /**
+     * Remove old analyses and links for the experiment, and save the analysis object.
+     */
+    private void startSavingLinksToDb( LinkAnalysis la ) {
+        if ( !la.getConfig().isUseDb() ) {
+            throw new IllegalArgumentException( "Analysis is not configured to use the db to persist" );
+        }
+        this.deleteAnalyses( la.getExpressionExperiment() );
+
+        // the analysis object will get updated.
+        CoexpressionAnalysis analysisObj = la.getAnalysisObj();
+        analysisObj.setCoexpCorrelationDistribution( la.getCorrelationDistribution() );
+        analysisObj = ( CoexpressionAnalysis ) persisterHelper.persist( analysisObj );
+        la.setAnalysisObj( analysisObj );
+    }
+
     private LinkCreator getLinkCreator( LinkAnalysis la ) {
         Taxon taxon = la.getTaxon();
         LinkCreator c;
@@ -22,11 +22,14 @@ import cern.colt.list.ObjectArrayList;
 import cern.colt.matrix.DoubleMatrix1D;
 import cern.colt.matrix.impl.DenseDoubleMatrix1D;
 import cern.jet.math.Functions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Component;
 import ubic.basecode.dataStructure.Link;
 import ubic.basecode.io.ByteArrayConverter;
@@ -63,6 +66,8 @@ import java.io.PrintWriter;
 import java.io.Writer;
 import java.text.NumberFormat;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
 
 /**
  * Running link analyses through the spring context; will persist the results if the configuration says so. See
@@ -75,6 +80,16 @@ public class LinkAnalysisServiceImpl implements LinkAnalysisService {
 
     private static final Log log = LogFactory.getLog( LinkAnalysisServiceImpl.class );
 
+    /**
+     * In pipelined mode, how many batches of links can be waiting to be saved before the computation has to wait.
+     */
+    private static final int PIPELINE_QUEUE_SIZE = 4;
+
+    /**
+     * In pipelined mode, marks the end of the links.
+     */
+    private static final List<Link> END_OF_LINKS = Collections.unmodifiableList( new ArrayList<Link>() );
+
     @Autowired
     private AuditTrailService auditTrailService;
 
@@ -114,6 +129,13 @@ public class LinkAnalysisServiceImpl implements LinkAnalysisService {
             processedExpressionDataVectorService.thaw( dataVectors );
 
             LinkAnalysisServiceImpl.log.info( "Starting analysis" );
+            if ( linkAnalysisConfig.isPipelined() && linkAnalysisConfig.isUseDb() && !linkAnalysisConfig
+                    .isTextOut() ) {
+                this.analyzeAndSaveLinks( ee, filterConfig, linkAnalysisConfig, la, dataVectors );
+                LinkAnalysisServiceImpl.log.info( "Done with saving results for " + ee );
+                return la;
+            }
+
             this.analyze( ee, filterConfig, linkAnalysisConfig, la, dataVectors );
 
             LinkAnalysisServiceImpl.log.info( "Done with analysis phase, starting persistence" );
@@ -221,6 +243,119 @@ public class LinkAnalysisServiceImpl implements LinkAnalysisService {
         }
     }
 
+    /**
+     * Pipelined version of analyze followed by saveResults: the links are saved while the correlations are being
+     * computed. The links retained are passed, a block of rows at a time, through a bounded queue to a separate thread
+     * which maps them to genes and stages them in the database, so the links never have to be all in memory; if the
+     * queue is full, the computation waits. The staged links are moved to the link tables, and the 'tested-in'
+     * information updated, only once both are done, so the old analysis is kept if anything fails before then; if
+     * saving fails part way, what was saved is removed. The staged links are removed in any case.
+     */
+    private void analyzeAndSaveLinks( ExpressionExperiment ee, FilterConfig filterConfig,
+            LinkAnalysisConfig linkAnalysisConfig, final LinkAnalysis la,
+            Collection<ProcessedExpressionDataVector> dataVectors ) {
+        final BlockingQueue<List<Link>> queue = new ArrayBlockingQueue<>(
+                LinkAnalysisServiceImpl.PIPELINE_QUEUE_SIZE );
+
+        // left over if an earlier run was killed.
+        persister.deleteStagedLinks( ee );
+
+        // staging is a secured call, so the thread needs our credentials.
+        final SecurityContext context = SecurityContextHolder.getContext();
+        ExecutorService executor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat( "link-stager-%d" ).setDaemon( true ).build() );
+        final Future<Integer> staging = executor.submit( new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                SecurityContextHolder.setContext( context );
+                try {
+                    int numBatches = 0;
+                    List<Link> links = queue.take();
+                    while ( links != LinkAnalysisServiceImpl.END_OF_LINKS ) {
+                        persister.stageLinkBatch( la, links );
+                        numBatches++;
+                        links = queue.take();
+                    }
+                    return numBatches;
+                } catch ( InterruptedException e ) {
+                    throw new RuntimeException( "Interrupted while staging links", e );
+                } finally {
+                    SecurityContextHolder.clearContext();
+                }
+            }
+        } );
+
+        boolean saving = false;
+        boolean succeeded = false;
+        try {
+            la.setLinkConsumer( new Consumer<List<Link>>() {
+                @Override
+                public void accept( List<Link> links ) {
+                    LinkAnalysisServiceImpl.this.enqueueLinks( queue, links, staging );
+                }
+            } );
+
+            this.analyze( ee, filterConfig, linkAnalysisConfig, la, dataVectors );
+            this.enqueueLinks( queue, LinkAnalysisServiceImpl.END_OF_LINKS, staging );
+
+            int numBatches = staging.get();
+            LinkAnalysisServiceImpl.log.info( "Done with analysis, " + numBatches + " batches of links staged" );
+            saving = true;
+            persister.saveStagedLinks( la );
+            this.audit( ee, "", LinkAnalysisEvent.Factory.newInstance() );
+            succeeded = true;
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( e );
+        } catch ( ExecutionException e ) {
+            throw new RuntimeException( "Staging links failed", e.getCause() );
+        } finally {
+            executor.shutdownNow();
+            this.cleanUpStaging( ee, executor, saving && !succeeded );
+        }
+    }
+
+    /**
+     * Remove the staged links, once the staging thread has stopped, and the analysis and links saved so far if asked
+     * to. Failures are only logged, so they don't hide the reason the analysis stopped.
+     */
+    private void cleanUpStaging( ExpressionExperiment ee, ExecutorService executor, boolean removeSaved ) {
+        try {
+            if ( !executor.awaitTermination( 1, TimeUnit.MINUTES ) ) {
+                LinkAnalysisServiceImpl.log.warn( "Link staging did not stop; some staged links may be left" );
+            }
+            if ( removeSaved ) {
+                LinkAnalysisServiceImpl.log.info( "Removing the analysis and links saved so far for " + ee );
+                persister.deleteAnalyses( ee );
+            }
+            persister.deleteStagedLinks( ee );
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            LinkAnalysisServiceImpl.log.warn( "Interrupted while cleaning up staged links for " + ee );
+        } catch ( RuntimeException e ) {
+            LinkAnalysisServiceImpl.log.error( "Failed to clean up after link analysis of " + ee, e );
+        }
+    }
+
+    /**
+     * Wait for room in the queue, unless the links are no longer being staged.
+     */
+    private void enqueueLinks( BlockingQueue<List<Link>> queue, List<Link> links, Future<?> staging ) {
+        try {
+            while ( !queue.offer( links, 1, TimeUnit.SECONDS ) ) {
+                if ( staging.isDone() ) {
+                    staging.get(); // throws if staging failed
+                    throw new IllegalStateException( "Links are no longer being staged" );
+                }
+            }
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( e );
+        } catch ( ExecutionException e ) {
+            throw new RuntimeException( "Staging links failed", e.getCause() );
+        }
+    }
+
     private void audit( ExpressionExperiment ee, String note, AuditEventType eventType ) {
         expressionExperimentReportService.generateSummary( ee.getId() );
         ee = this.eeService.thawLite( ee );
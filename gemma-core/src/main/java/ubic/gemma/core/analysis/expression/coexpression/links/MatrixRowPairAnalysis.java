@@ -20,13 +20,16 @@ package ubic.gemma.core.analysis.expression.coexpression.links;
 
 import cern.colt.list.DoubleArrayList;
 import cern.colt.list.ObjectArrayList;
+import ubic.basecode.dataStructure.Link;
 import ubic.gemma.core.datastructure.matrix.ExpressionDataMatrixRowElement;
 import ubic.gemma.model.common.quantitationtype.QuantitationType;
 import ubic.gemma.model.expression.designElement.CompositeSequence;
 import ubic.gemma.model.genome.Gene;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Consumer;
 
 /**
  * @author Paul Pavlidis
@@ -42,8 +45,21 @@ public interface MatrixRowPairAnalysis {
     double getScoreInBin( int i );
     int numCached();
     void setDuplicateMap( Map<CompositeSequence, Set<Gene>> probeToGeneMap );
+    /**
+     * Pass the links that are retained to the consumer as they are found, in batches, instead of keeping them; the
+     * keepers will then be empty. With more than one thread, the consumer is called from the worker threads, with the
+     * links of one block of rows at a time, in no particular order.
+     *
+     * @param linkConsumer receives batches of links; must be thread-safe if more than one thread is used.
+     */
+    void setLinkConsumer( Consumer<List<Link>> linkConsumer );
     void setLowerTailThreshold( double k );
     void setMinNumpresent( int minSamplesToKeepCorrelation );
+
+    /**
+     * @param numThreads how many threads to use when computing the correlations; the default is 1.
+     */
+    void setNumThreads( int numThreads );
     void setOmitNegativeCorrelationLinks( boolean omitNegativeCorrelationLinks );
     void setPValueThreshold( double k );
     void setUpperTailThreshold( double k );
@@ -240,6 +240,9 @@ public class DifferentialExpressionAnalyzerServiceImpl implements DifferentialEx
         DifferentialExpressionAnalyzerServiceImpl.log.info( "Saving results" );
         helperService.addResults( persistentAnalysis, resultSets );
 
+        // fourth transaction - index the results by gene, if enabled.
+        differentialExpressionResultService.updateGeneIndex( analysis.getResultSets() );
+
         // get a clean copy of the analysis object from the DB.
         analysis = differentialExpressionAnalysisService.load( analysis.getId() );
         // we do this here because now we have IDs for everything.
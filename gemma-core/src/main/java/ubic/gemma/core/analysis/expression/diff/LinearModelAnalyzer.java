@@ -49,6 +49,8 @@ import ubic.gemma.model.expression.biomaterial.BioMaterial;
 import ubic.gemma.model.expression.designElement.CompositeSequence;
 import ubic.gemma.model.expression.experiment.*;
 import ubic.gemma.model.genome.Gene;
+import ubic.gemma.persistence.util.Settings;
+import ubic.gemma.persistence.util.SharedExecutors;
 
 import java.io.File;
 import java.io.FileWriter;
@@ -89,6 +91,11 @@ public class LinearModelAnalyzer extends AbstractDifferentialExpressionAnalyzer
 
     private static final String EXCLUDE_WARNING = "Found Factor Value with DE_Exclude characteristic. Skipping current subset.";
 
+    /**
+     * Matrices with more rows than this are fitted in blocks, which are run concurrently.
+     */
+    private static final int FIT_BLOCK_SIZE = Settings.getInt( "gemma.linearmodels.blocksize", 10000 );
+
     public static void populateFactorValuesFromBASet( BioAssaySet ee, ExperimentalFactor f,
             Collection<FactorValue> fvs ) {
         for ( BioAssay ba : ee.getBioAssays() ) {
@@ -114,6 +121,28 @@ public class LinearModelAnalyzer extends AbstractDifferentialExpressionAnalyzer
         return sNamedMatrix;
     }
 
+    /**
+     * Like {@link #makeDataMatrix(ObjectMatrix, DoubleMatrix)}, but reads the rows straight from the expression data
+     * matrix, so it does not need its baseCode matrix.
+     *
+     * @param  designMatrix design matrix
+     * @param  dmatrix      data
+     * @return string-keyed data matrix
+     */
+    public static DoubleMatrix<String, String> makeDataMatrix( ObjectMatrix<String, String, Object> designMatrix,
+            ExpressionDataDoubleMatrix dmatrix ) {
+        DoubleMatrix<String, String> sNamedMatrix = new DenseDoubleMatrix<>( dmatrix.rows(), dmatrix.columns() );
+        for ( int i = 0; i < dmatrix.rows(); i++ ) {
+            double[] row = dmatrix.getRawRow( i );
+            for ( int j = 0; j < row.length; j++ ) {
+                sNamedMatrix.set( i, j, row[j] );
+            }
+            sNamedMatrix.addRowName( dmatrix.getDesignElementForRow( i ).getId().toString() );
+        }
+        sNamedMatrix.setColumnNames( designMatrix.getRowNames() );
+        return sNamedMatrix;
+    }
+
     /**
      * This bioAssayDimension shouldn't get persisted; it is only for dealing with subset diff ex. analyses.
      *
@@ -432,8 +461,10 @@ public class LinearModelAnalyzer extends AbstractDifferentialExpressionAnalyzer
             LinearModelAnalyzer.log.info( "Total number of subsets: " + subsets.size() );
 
             /*
-             * Now analyze each subset
+             * Now analyze each subset. The models for several subsets are fitted concurrently; the number of subsets
+             * in flight is limited to avoid holding too many copies of the data at once.
              */
+            Deque<PreparedAnalysis> pending = new ArrayDeque<>();
             for ( FactorValue subsetFactorValue : subsets.keySet() ) {
 
                 LinearModelAnalyzer.log.info( "Analyzing subset: " + subsetFactorValue );
@@ -482,20 +513,27 @@ public class LinearModelAnalyzer extends AbstractDifferentialExpressionAnalyzer
                 }
 
                 /*
-                 * Run analysis on the subset.
+                 * Start the analysis on the subset.
                  */
-                DifferentialExpressionAnalysis analysis = this
-                        .doAnalysis( eeSubSet, subsetConfig, subsets.get( subsetFactorValue ), bioMaterials,
+                PreparedAnalysis prepared = this
+                        .prepareAnalysis( eeSubSet, subsetConfig, subsets.get( subsetFactorValue ), bioMaterials,
                                 new ArrayList<>( subsetFactors ), subsetFactorValue );
 
-                if ( analysis == null ) {
+                if ( prepared == null ) {
                     LinearModelAnalyzer.log
                             .warn( "No analysis results were obtained for subset: " + subsetFactorValue );
                     continue;
                 }
 
-                results.add( analysis );
+                pending.add( prepared );
+                // keep no more subsets in flight than there are threads to fit them
+                while ( pending.size() > SharedExecutors.getComputePool().getParallelism() ) {
+                    this.finishSubsetAnalysis( pending.poll(), results );
+                }
+            }
 
+            while ( !pending.isEmpty() ) {
+                this.finishSubsetAnalysis( pending.poll(), results );
             }
 
         } else {
@@ -641,6 +679,22 @@ public class LinearModelAnalyzer extends AbstractDifferentialExpressionAnalyzer
     private DifferentialExpressionAnalysis doAnalysis( BioAssaySet bioAssaySet,
             DifferentialExpressionAnalysisConfig config, ExpressionDataDoubleMatrix dmatrix,
             List<BioMaterial> samplesUsed, List<ExperimentalFactor> factors, FactorValue subsetFactorValue ) {
+        PreparedAnalysis prepared = this
+                .prepareAnalysis( bioAssaySet, config, dmatrix, samplesUsed, factors, subsetFactorValue );
+        if ( prepared == null ) {
+            return null;
+        }
+        return this.finishAnalysis( prepared );
+    }
+
+    /**
+     * Set up the model and start fitting it in the background; see {@link #finishAnalysis(PreparedAnalysis)}.
+     *
+     * @return the analysis in progress, or null if there was a problem.
+     */
+    private PreparedAnalysis prepareAnalysis( BioAssaySet bioAssaySet, DifferentialExpressionAnalysisConfig config,
+            ExpressionDataDoubleMatrix dmatrix, List<BioMaterial> samplesUsed, List<ExperimentalFactor> factors,
+            FactorValue subsetFactorValue ) {
 
         // We may want to change this to fall back to running normally, though the real fix is to just finish the ebayes implementation.
         if ( config.getModerateStatistics() && dmatrix.hasMissingValues() ) {
@@ -693,7 +747,6 @@ public class LinearModelAnalyzer extends AbstractDifferentialExpressionAnalyzer
          * FIXME: remove columns that are marked as outliers.
          */
         dmatrix = ExpressionDataDoubleMatrixUtil.filterAndLog2Transform( quantitationType, dmatrix );
-        DoubleMatrix<CompositeSequence, BioMaterial> namedMatrix = dmatrix.getMatrix();
 
         DoubleMatrix1D librarySize = getLibrarySizes( config, dmatrix );
 
@@ -703,15 +756,51 @@ public class LinearModelAnalyzer extends AbstractDifferentialExpressionAnalyzer
         /*
          * PREPARATION FOR 'NATIVE' FITTING
          */
-        DoubleMatrix<String, String> sNamedMatrix = LinearModelAnalyzer.makeDataMatrix( designMatrix, namedMatrix );
+        DoubleMatrix<String, String> sNamedMatrix = LinearModelAnalyzer.makeDataMatrix( designMatrix, dmatrix );
         DesignMatrix properDesignMatrix = this
                 .makeDesignMatrix( designMatrix, interactionFactorLists, baselineConditions );
 
         /*
-         * Run the analysis NOTE this can be simplified if we strip out R code.
+         * Start the analysis
          */
-        final Map<String, LinearModelSummary> rawResults = this
-                .runAnalysis( namedMatrix, sNamedMatrix, properDesignMatrix, librarySize, config );
+        PreparedAnalysis prepared = new PreparedAnalysis();
+        prepared.bioAssaySet = bioAssaySet;
+        prepared.config = config;
+        prepared.rowNames = dmatrix.getRowNames();
+        prepared.properDesignMatrix = properDesignMatrix;
+        prepared.label2Factors = label2Factors;
+        prepared.baselineConditions = baselineConditions;
+        prepared.interceptFactor = interceptFactor;
+        prepared.interactionFactorLists = interactionFactorLists;
+        prepared.oneSampleTTest = oneSampleTTest;
+        prepared.subsetFactorValue = subsetFactorValue;
+        prepared.fits = this
+                .submitFits( designMatrix, interactionFactorLists, baselineConditions, properDesignMatrix,
+                        sNamedMatrix, librarySize, config );
+        return prepared;
+    }
+
+    /**
+     * Wait for the model fit to complete and create the analysis from the results.
+     *
+     * @return analysis, or null if there was a problem.
+     */
+    private DifferentialExpressionAnalysis finishAnalysis( PreparedAnalysis prepared ) {
+        BioAssaySet bioAssaySet = prepared.bioAssaySet;
+        DifferentialExpressionAnalysisConfig config = prepared.config;
+        List<CompositeSequence> rowNames = prepared.rowNames;
+        DesignMatrix properDesignMatrix = prepared.properDesignMatrix;
+        final Map<String, Collection<ExperimentalFactor>> label2Factors = prepared.label2Factors;
+        Map<ExperimentalFactor, FactorValue> baselineConditions = prepared.baselineConditions;
+        ExperimentalFactor interceptFactor = prepared.interceptFactor;
+        List<String[]> interactionFactorLists = prepared.interactionFactorLists;
+        boolean oneSampleTTest = prepared.oneSampleTTest;
+        FactorValue subsetFactorValue = prepared.subsetFactorValue;
+
+        /*
+         * Get the results of the analysis NOTE this can be simplified if we strip out R code.
+         */
+        final Map<String, LinearModelSummary> rawResults = this.runAnalysis( rowNames.size(), prepared.fits );
 
         if ( rawResults.size() == 0 ) {
             LinearModelAnalyzer.log.error( "Got no results from the analysis" );
@@ -757,7 +846,7 @@ public class LinearModelAnalyzer extends AbstractDifferentialExpressionAnalyzer
         boolean warned = false;
         //  int notUsable = 0;
         int processed = 0;
-        for ( CompositeSequence el : namedMatrix.getRowNames() ) {
+        for ( CompositeSequence el : rowNames ) {
 
             if ( ++processed % 15000 == 0 ) {
                 LinearModelAnalyzer.log.info( "Processed results for " + processed + " elements ..." );
@@ -911,6 +1000,17 @@ public class LinearModelAnalyzer extends AbstractDifferentialExpressionAnalyzer
         return expressionAnalysis;
     }
 
+    private void finishSubsetAnalysis( PreparedAnalysis prepared,
+            Collection<DifferentialExpressionAnalysis> results ) {
+        DifferentialExpressionAnalysis analysis = this.finishAnalysis( prepared );
+        if ( analysis == null ) {
+            LinearModelAnalyzer.log
+                    .warn( "No analysis results were obtained for subset: " + prepared.subsetFactorValue );
+            return;
+        }
+        results.add( analysis );
+    }
+
     private void dropIncompleteFactors( List<BioMaterial> samplesUsed, List<ExperimentalFactor> factors,
             Map<ExperimentalFactor, FactorValue> baselineConditions ) {
         Collection<ExperimentalFactor> toDrop = new HashSet<>();
@@ -1366,26 +1466,25 @@ public class LinearModelAnalyzer extends AbstractDifferentialExpressionAnalyzer
     }
 
     /**
-     * Important bit. Run the analysis
+     * Important bit. Wait for the analysis to finish.
      *
-     * @return results
+     * @param  rows number of rows in the data, for checking the results
+     * @param  fits the model fits that are running, one per block of rows.
+     * @return      results
      */
-    private Map<String, LinearModelSummary> runAnalysis( final DoubleMatrix<CompositeSequence, BioMaterial> namedMatrix,
-            final DoubleMatrix<String, String> sNamedMatrix, DesignMatrix designMatrix,
-            final DoubleMatrix1D librarySize, final DifferentialExpressionAnalysisConfig config ) {
+    private Map<String, LinearModelSummary> runAnalysis( int rows, List<ModelFit> fits ) {
 
-        final Map<String, LinearModelSummary> rawResults = new ConcurrentHashMap<>();
-
-        Future<?> f = this.runAnalysisFuture( designMatrix, sNamedMatrix, rawResults, librarySize, config );
+        final Map<String, LinearModelSummary> rawResults = new HashMap<>();
 
         StopWatch timer = new StopWatch();
         timer.start();
         long lastTime = 0;
 
-        // this analysis should take just 10 or 20 seconds for most data sets.
-        double MAX_ANALYSIS_TIME = 60 * 1000 * 30; // 30 minutes.
+        // this analysis should take just 10 or 20 seconds for most data sets. The limit is for each fit once it is
+        // running, as the time spent waiting for the shared pool depends on what else is being analyzed.
+        long MAX_FIT_TIME = 60 * 1000 * 30; // 30 minutes.
         double updateIntervalMillis = 60 * 1000;// 1 minute
-        while ( !f.isDone() ) {
+        while ( !this.allDone( fits ) ) {
             try {
                 Thread.sleep( 1000 );
 
@@ -1397,14 +1496,17 @@ public class LinearModelAnalyzer extends AbstractDifferentialExpressionAnalyzer
 
             } catch ( InterruptedException e ) {
                 LinearModelAnalyzer.log.warn( "Analysis interrupted!" );
+                this.cancelAll( fits );
                 return rawResults;
             }
 
-            if ( timer.getTime() > MAX_ANALYSIS_TIME ) {
-                LinearModelAnalyzer.log
-                        .error( "Analysis is taking too long, something bad must have happened; cancelling" );
-                f.cancel( true );
-                throw new RuntimeException( "Analysis was taking too long, it was cancelled" );
+            for ( ModelFit f : fits ) {
+                if ( !f.isDone() && f.getRunningTime() > MAX_FIT_TIME ) {
+                    LinearModelAnalyzer.log
+                            .error( "Analysis is taking too long, something bad must have happened; cancelling" );
+                    this.cancelAll( fits );
+                    throw new RuntimeException( "Analysis was taking too long, it was cancelled" );
+                }
             }
         }
 
@@ -1414,7 +1516,9 @@ public class LinearModelAnalyzer extends AbstractDifferentialExpressionAnalyzer
         }
 
         try {
-            f.get();
+            for ( ModelFit f : fits ) {
+                rawResults.putAll( f.get() );
+            }
         } catch ( InterruptedException e ) {
             LinearModelAnalyzer.log.warn( "Job was interrupted" );
             return rawResults;
@@ -1422,21 +1526,72 @@ public class LinearModelAnalyzer extends AbstractDifferentialExpressionAnalyzer
             throw new RuntimeException( e );
         }
 
-        assert rawResults.size() == namedMatrix.rows() : "expected " + namedMatrix.rows() + " results, got " + rawResults.size();
+        assert rawResults.size() == rows : "expected " + rows + " results, got " + rawResults.size();
         return rawResults;
     }
 
+    private boolean allDone( List<ModelFit> fits ) {
+        for ( Future<?> f : fits ) {
+            if ( !f.isDone() )
+                return false;
+        }
+        return true;
+    }
+
+    private void cancelAll( List<ModelFit> fits ) {
+        for ( Future<?> f : fits ) {
+            f.cancel( true );
+        }
+    }
+
+    /**
+     * Start fitting the linear models. Rows are fitted independently, so large matrices are split into blocks of rows
+     * which are fitted concurrently, and the results are the same as for a single fit. This isn't done if weights are
+     * used or the statistics are moderated, as those depend on all the rows at once.
+     *
+     * @return one future per block of rows
+     */
+    private List<ModelFit> submitFits(
+            ObjectMatrix<String, String, Object> designMatrix, List<String[]> interactionFactorLists,
+            Map<ExperimentalFactor, FactorValue> baselineConditions, DesignMatrix properDesignMatrix,
+            DoubleMatrix<String, String> data, DoubleMatrix1D librarySize,
+            DifferentialExpressionAnalysisConfig config ) {
+
+        List<ModelFit> fits = new ArrayList<>();
+        if ( config.getUseWeights() || config.getModerateStatistics()
+                || data.rows() <= LinearModelAnalyzer.FIT_BLOCK_SIZE ) {
+            fits.add( this.runAnalysisFuture( properDesignMatrix, data, librarySize, config ) );
+            return fits;
+        }
+
+        List<String> rowNames = data.getRowNames();
+        for ( int start = 0; start < rowNames.size(); start += LinearModelAnalyzer.FIT_BLOCK_SIZE ) {
+            List<String> blockRows = rowNames
+                    .subList( start, Math.min( start + LinearModelAnalyzer.FIT_BLOCK_SIZE, rowNames.size() ) );
+
+            // each fit gets its own design matrix, as they are not meant to be shared.
+            DesignMatrix blockDesignMatrix = start == 0 ?
+                    properDesignMatrix :
+                    this.makeDesignMatrix( designMatrix, interactionFactorLists, baselineConditions );
+
+            fits.add( this.runAnalysisFuture( blockDesignMatrix, data.subsetRows( blockRows ), librarySize, config ) );
+        }
+        LinearModelAnalyzer.log
+                .info( "Fitting " + data.rows() + " rows in " + fits.size() + " blocks of up to "
+                        + LinearModelAnalyzer.FIT_BLOCK_SIZE );
+        return fits;
+    }
+
     /**
      * Linear models solved
      */
-    private Future<?> runAnalysisFuture( final DesignMatrix designMatrix, final DoubleMatrix<String, String> data,
-            final Map<String, LinearModelSummary> rawResults, final DoubleMatrix1D librarySize,
+    private ModelFit runAnalysisFuture( final DesignMatrix designMatrix,
+            final DoubleMatrix<String, String> data, final DoubleMatrix1D librarySize,
             final DifferentialExpressionAnalysisConfig config ) {
-        ExecutorService service = Executors.newSingleThreadExecutor();
 
-        Future<?> f = service.submit( new Runnable() {
+        ModelFit modelFit = new ModelFit( new Callable<Map<String, LinearModelSummary>>() {
             @Override
-            public void run() {
+            public Map<String, LinearModelSummary> call() {
                 StopWatch timer = new StopWatch();
                 timer.start();
                 LeastSquaresFit fit;
@@ -1471,12 +1626,55 @@ public class LinearModelAnalyzer extends AbstractDifferentialExpressionAnalyzer
                 timer.start();
                 Map<String, LinearModelSummary> res = fit.summarizeByKeys( true );
                 LinearModelAnalyzer.log.info( "Model summarize/ANOVA: " + timer.getTime() + "ms" );
-                rawResults.putAll( res );
                 LinearModelAnalyzer.log.info( "Analysis phase done ..." );
+                return res;
             }
         } );
+        // fits of other analyses and subsets share the compute pool, so this may wait before it starts running
+        SharedExecutors.getComputePool().execute( modelFit );
+        return modelFit;
+    }
 
-        service.shutdown();
-        return f;
+    /**
+     * A model fit, which knows how long it has been running, as opposed to waiting for a thread.
+     */
+    private static class ModelFit extends FutureTask<Map<String, LinearModelSummary>> {
+
+        private volatile long startTime = 0;
+
+        private ModelFit( Callable<Map<String, LinearModelSummary>> callable ) {
+            super( callable );
+        }
+
+        @Override
+        public void run() {
+            startTime = System.currentTimeMillis();
+            super.run();
+        }
+
+        /**
+         * @return milliseconds since the fit started running, or 0 if it has not started
+         */
+        private long getRunningTime() {
+            long start = startTime;
+            return start == 0 ? 0 : System.currentTimeMillis() - start;
+        }
+    }
+
+    /**
+     * An analysis for which the model is being fitted.
+     */
+    private static class PreparedAnalysis {
+        private BioAssaySet bioAssaySet;
+        private DifferentialExpressionAnalysisConfig config;
+        private List<CompositeSequence> rowNames;
+        private DesignMatrix properDesignMatrix;
+        private Map<String, Collection<ExperimentalFactor>> label2Factors;
+        private Map<ExperimentalFactor, FactorValue> baselineConditions;
+        private ExperimentalFactor interceptFactor;
+        private List<String[]> interactionFactorLists;
+        private boolean oneSampleTTest;
+        private FactorValue subsetFactorValue;
+        private List<ModelFit> fits;
     }
 }
@@ -14,7 +14,6 @@
  */
 package ubic.gemma.core.analysis.preprocess;
 
-import cern.colt.list.DoubleArrayList;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -57,16 +56,16 @@ public class OutlierDetectionServiceImpl implements OutlierDetectionService {
         OutlierDetails sample;
 
         /* Find the 1st, 2nd, and 3rd quartiles of each sample */
+        double[] cors = new double[Math.max( 0, cormat.columns() - 1 )];
         for ( int i = 0; i < cormat.rows(); i++ ) {
-            DoubleArrayList cors = new DoubleArrayList();
             sample = new OutlierDetails( cormat.getRowName( i ) );
+            int k = 0;
             for ( int j = 0; j < cormat.columns(); j++ ) {
                 if ( j != i ) { // get all sample correlations except correlation with self
-                    double d = cormat.get( i, j );
-                    cors.add( d );
+                    cors[k++] = cormat.get( i, j );
                 }
             }
-            assert ( cors.size() == cormat.rows() - 1 );
+            assert ( k == cormat.rows() - 1 );
 
             sample.setFirstQuartile( this.findValueAtDesiredQuantile( cors, 25 ) );
             sample.setMedianCorrelation( this.findValueAtDesiredQuantile( cors, 50 ) );
@@ -140,35 +139,90 @@ public class OutlierDetectionServiceImpl implements OutlierDetectionService {
     }
 
     /**
-     * Jenni's (almost) fool proof method for finding quantiles using R's method #8
+     * Jenni's (almost) fool proof method for finding quantiles using R's method #8. The values needed are found by
+     * selection rather than by sorting.
+     *
+     * @param cors correlations; they are reordered
      */
-    private double findValueAtDesiredQuantile( DoubleArrayList cors, int quantileThreshold ) {
+    private double findValueAtDesiredQuantile( double[] cors, int quantileThreshold ) {
 
         double lowerQuantileValue;
         double upperQuantileValue;
 
-        double desiredQuantileIndex = this.findDesiredQuantileIndex( cors.size(), quantileThreshold );
-
-        double[] sortedCors = new double[cors.size()];
-
-        /*
-         * Get all sample correlations
-         */
-        for ( int i = 0; i < cors.size(); i++ ) {
-            sortedCors[i] = cors.get( i );
-        }
-
-        Arrays.sort( sortedCors );
+        double desiredQuantileIndex = this.findDesiredQuantileIndex( cors.length, quantileThreshold );
 
-        // Get the correlations from the sorted array. Use -1 b/c rank indices start at 1 but array entries start at 0
+        // Use -1 b/c rank indices start at 1 but array entries start at 0
         int up = ( int ) ( Math.floor( desiredQuantileIndex ) );
-        lowerQuantileValue = sortedCors[up - 1];
-        upperQuantileValue = sortedCors[up < sortedCors.length ? up : up - 1];
+        lowerQuantileValue = OutlierDetectionServiceImpl.select( cors, up - 1 );
+        if ( up < cors.length ) {
+            // the values after the selected one are all at least as large; we want the smallest.
+            upperQuantileValue = cors[up];
+            for ( int i = up + 1; i < cors.length; i++ ) {
+                if ( Double.compare( cors[i], upperQuantileValue ) < 0 ) {
+                    upperQuantileValue = cors[i];
+                }
+            }
+        } else {
+            upperQuantileValue = lowerQuantileValue;
+        }
 
         return ( lowerQuantileValue + ( ( desiredQuantileIndex - Math.floor( desiredQuantileIndex ) ) * (
                 upperQuantileValue - lowerQuantileValue ) ) );
     }
 
+    /**
+     * Quickselect: reorder the values so the one at k is the one that would be there if they were sorted (in the order
+     * used by {@link Arrays#sort(double[])}), with smaller values before it and larger ones after. Values equal to the
+     * pivot are gathered in the middle of each partition, so many ties (e.g. NaNs or a constant row) cost linear time.
+     *
+     * @return the k-th smallest value (from 0)
+     */
+    static double select( double[] values, int k ) {
+        int lo = 0;
+        int hi = values.length - 1;
+        while ( hi > lo ) {
+            // median of three as the pivot
+            int mid = ( lo + hi ) >>> 1;
+            if ( Double.compare( values[mid], values[lo] ) < 0 )
+                OutlierDetectionServiceImpl.swap( values, lo, mid );
+            if ( Double.compare( values[hi], values[lo] ) < 0 )
+                OutlierDetectionServiceImpl.swap( values, lo, hi );
+            if ( Double.compare( values[mid], values[hi] ) < 0 )
+                OutlierDetectionServiceImpl.swap( values, mid, hi );
+            double pivot = values[hi];
+
+            // three-way partition: [lo, lt) smaller than the pivot, [lt, gt] equal to it, (gt, hi] larger
+            int lt = lo;
+            int gt = hi;
+            int i = lo;
+            while ( i <= gt ) {
+                int c = Double.compare( values[i], pivot );
+                if ( c < 0 ) {
+                    OutlierDetectionServiceImpl.swap( values, i++, lt++ );
+                } else if ( c > 0 ) {
+                    OutlierDetectionServiceImpl.swap( values, i, gt-- );
+                } else {
+                    i++;
+                }
+            }
+
+            if ( k < lt ) {
+                hi = lt - 1;
+            } else if ( k > gt ) {
+                lo = gt + 1;
+            } else {
+                return values[k];
+            }
+        }
+        return values[k];
+    }
+
+    private static void swap( double[] values, int i, int j ) {
+        double t = values[i];
+        values[i] = values[j];
+        values[j] = t;
+    }
+
     private List<OutlierDetails> removeFalsePositives( List<OutlierDetails> outliers, double threshold ) {
 
         OutlierDetectionServiceImpl.log.info( "outliers.size() = " + outliers.size() + "; threshold = " + threshold );
@@ -0,0 +1,301 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2021 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.gemma.core.analysis.preprocess;
+
+import ubic.gemma.core.datastructure.matrix.ExpressionDataDoubleMatrix;
+import ubic.gemma.model.expression.bioAssay.BioAssay;
+import ubic.gemma.persistence.util.SharedExecutors;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Pearson correlations between the samples of a data set, using the values present in both samples of each pair (as
+ * {@link ubic.basecode.math.MatrixStats#correlationMatrix} does). Only the upper triangle is kept, as doubles; the
+ * full matrix is only made by {@link #toBytes()}, directly in the stored format.
+ * <p>
+ * The data are read a block of rows at a time, so there is no transposed copy of the whole data set: each block is laid
+ * out by sample and the sums for each pair of samples are updated in parallel, one task per pair of sample blocks.
+ * Besides the block, this uses about 44 bytes per pair of samples for the sums while computing, and 8 bytes per pair
+ * for the result.
+ * </p>
+ */
+public class SampleCorrelationMatrix {
+
+    /**
+     * Number of samples in a block; each task updates the sums for the pairs of samples from two blocks.
+     */
+    private static final int SAMPLE_BLOCK_SIZE = 64;
+
+    /**
+     * Number of rows of data read at a time, so the values for two sample blocks stay in the cache.
+     */
+    private static final int ROW_BLOCK_SIZE = 1024;
+
+    private final List<BioAssay> bioAssays;
+    private final int size;
+    private final double[] values;
+
+    SampleCorrelationMatrix( List<BioAssay> bioAssays, int size, double[] values ) {
+        this.bioAssays = bioAssays;
+        this.size = size;
+        this.values = values;
+    }
+
+    /**
+     * @param  data      data
+     * @param  bioAssays the bioassay for each column of the data
+     * @return correlations between the columns of the data
+     */
+    public static SampleCorrelationMatrix compute( final ExpressionDataDoubleMatrix data, List<BioAssay> bioAssays ) {
+        if ( bioAssays.size() != data.columns() ) {
+            throw new IllegalArgumentException(
+                    "Need a bioassay for each of the " + data.columns() + " columns, got " + bioAssays.size() );
+        }
+        // the pair tasks only compute, and this thread just waits for each row block's tasks, so use the compute pool
+        double[] values = SampleCorrelationMatrix.correlate( data.columns(), data.rows(), new Rows() {
+            @Override
+            public double[] getRow( int i ) {
+                return data.getRawRow( i );
+            }
+        }, SharedExecutors.getComputePool() );
+        return new SampleCorrelationMatrix( bioAssays, data.columns(), values );
+    }
+
+    /**
+     * @param  n        number of samples
+     * @param  m        number of rows
+     * @param  rows     the values for each row, one per sample; missing values are NaN. Each row is read twice.
+     * @param  executor used to run the tasks
+     * @return the packed upper triangle of the correlation matrix
+     */
+    static double[] correlate( int n, int m, Rows rows, ExecutorService executor ) {
+        if ( ( long ) n * n * Double.BYTES > Integer.MAX_VALUE ) {
+            throw new IllegalArgumentException( "Too many samples: " + n );
+        }
+
+        /*
+         * Center the values on the sample means; this does not change the correlations but makes the sums used to
+         * compute them more accurate.
+         */
+        double[] means = new double[n];
+        int[] counts = new int[n];
+        for ( int i = 0; i < m; i++ ) {
+            double[] row = rows.getRow( i );
+            for ( int j = 0; j < n; j++ ) {
+                if ( !Double.isNaN( row[j] ) ) {
+                    means[j] += row[j];
+                    counts[j]++;
+                }
+            }
+        }
+        for ( int j = 0; j < n; j++ ) {
+            means[j] = counts[j] == 0 ? 0.0 : means[j] / counts[j];
+        }
+
+        List<BlockPair> blockPairs = new ArrayList<>();
+        for ( int from1 = 0; from1 < n; from1 += SampleCorrelationMatrix.SAMPLE_BLOCK_SIZE ) {
+            for ( int from2 = from1; from2 < n; from2 += SampleCorrelationMatrix.SAMPLE_BLOCK_SIZE ) {
+                blockPairs.add( new BlockPair( n, from1, from2 ) );
+            }
+        }
+
+        final double[][] block = new double[n][SampleCorrelationMatrix.ROW_BLOCK_SIZE];
+        for ( int rowStart = 0; rowStart < m; rowStart += SampleCorrelationMatrix.ROW_BLOCK_SIZE ) {
+            final int length = Math.min( m, rowStart + SampleCorrelationMatrix.ROW_BLOCK_SIZE ) - rowStart;
+            for ( int i = 0; i < length; i++ ) {
+                double[] row = rows.getRow( rowStart + i );
+                for ( int j = 0; j < n; j++ ) {
+                    block[j][i] = row[j] - means[j];
+                }
+            }
+
+            List<Future<?>> tasks = new ArrayList<>( blockPairs.size() );
+            for ( final BlockPair blockPair : blockPairs ) {
+                tasks.add( executor.submit( new Runnable() {
+                    @Override
+                    public void run() {
+                        blockPair.add( block, length );
+                    }
+                } ) );
+            }
+            SampleCorrelationMatrix.waitFor( tasks ); // before the block is overwritten
+        }
+
+        double[] result = new double[n * ( n + 1 ) / 2];
+        for ( BlockPair blockPair : blockPairs ) {
+            blockPair.finish( result );
+        }
+        return result;
+    }
+
+    private static void waitFor( List<Future<?>> tasks ) {
+        try {
+            for ( Future<?> task : tasks ) {
+                task.get();
+            }
+        } catch ( InterruptedException e ) {
+            for ( Future<?> task : tasks ) {
+                task.cancel( true );
+            }
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( "Sample correlation was interrupted", e );
+        } catch ( ExecutionException e ) {
+            for ( Future<?> task : tasks ) {
+                task.cancel( true );
+            }
+            if ( e.getCause() instanceof RuntimeException ) {
+                throw ( RuntimeException ) e.getCause();
+            }
+            throw new RuntimeException( e.getCause() );
+        }
+    }
+
+    /**
+     * @return position of (i, j), with i &lt;= j, in the packed upper triangle
+     */
+    private static int index( int n, int i, int j ) {
+        return ( int ) ( ( long ) i * n - ( long ) i * ( i - 1 ) / 2 + ( j - i ) );
+    }
+
+    public List<BioAssay> getBioAssays() {
+        return bioAssays;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public double get( int i, int j ) {
+        if ( i < 0 || j < 0 || i >= size || j >= size ) {
+            throw new IndexOutOfBoundsException( "(" + i + ", " + j + ") out of range for " + size + " samples" );
+        }
+        return i <= j ? values[SampleCorrelationMatrix.index( size, i, j )]
+                : values[SampleCorrelationMatrix.index( size, j, i )];
+    }
+
+    /**
+     * @return the full matrix, row by row, as big-endian doubles (the format of
+     *         {@link ubic.basecode.io.ByteArrayConverter#doubleArrayToBytes}), as stored in a
+     *         {@link ubic.gemma.model.analysis.expression.coexpression.SampleCoexpressionMatrix}
+     */
+    public byte[] toBytes() {
+        ByteBuffer buf = ByteBuffer.allocate( size * size * Double.BYTES );
+        for ( int i = 0; i < size; i++ ) {
+            for ( int j = 0; j < size; j++ ) {
+                buf.putDouble( this.get( i, j ) );
+            }
+        }
+        return buf.array();
+    }
+
+    /**
+     * Access to the rows of the data.
+     */
+    interface Rows {
+        double[] getRow( int i );
+    }
+
+    /**
+     * Sums for the pairs of samples from two blocks, over the rows where both values are present.
+     */
+    private static class BlockPair {
+        private final int n;
+        private final int from1;
+        private final int to1;
+        private final int from2;
+        private final int to2;
+        private final int[] count;
+        private final double[] sx;
+        private final double[] sy;
+        private final double[] sxx;
+        private final double[] syy;
+        private final double[] sxy;
+
+        private BlockPair( int n, int from1, int from2 ) {
+            this.n = n;
+            this.from1 = from1;
+            this.to1 = Math.min( n, from1 + SampleCorrelationMatrix.SAMPLE_BLOCK_SIZE );
+            this.from2 = from2;
+            this.to2 = Math.min( n, from2 + SampleCorrelationMatrix.SAMPLE_BLOCK_SIZE );
+            int pairs = ( to1 - from1 ) * ( to2 - from2 );
+            this.count = new int[pairs];
+            this.sx = new double[pairs];
+            this.sy = new double[pairs];
+            this.sxx = new double[pairs];
+            this.syy = new double[pairs];
+            this.sxy = new double[pairs];
+        }
+
+        private int pair( int a, int b ) {
+            return ( a - from1 ) * ( to2 - from2 ) + ( b - from2 );
+        }
+
+        /**
+         * @param block  the values for the rows in the block, by sample
+         * @param length the number of rows in the block
+         */
+        private void add( double[][] block, int length ) {
+            for ( int a = from1; a < to1; a++ ) {
+                double[] x = block[a];
+                for ( int b = Math.max( a + 1, from2 ); b < to2; b++ ) {
+                    double[] y = block[b];
+                    int p = this.pair( a, b );
+                    for ( int i = 0; i < length; i++ ) {
+                        double xi = x[i];
+                        double yi = y[i];
+                        if ( Double.isNaN( xi ) || Double.isNaN( yi ) )
+                            continue;
+                        count[p]++;
+                        sx[p] += xi;
+                        sy[p] += yi;
+                        sxx[p] += xi * xi;
+                        syy[p] += yi * yi;
+                        sxy[p] += xi * yi;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Fill in the correlations for the pairs in the packed upper triangle.
+         */
+        private void finish( double[] result ) {
+            for ( int a = from1; a < to1; a++ ) {
+                for ( int b = Math.max( a, from2 ); b < to2; b++ ) {
+                    int index = SampleCorrelationMatrix.index( n, a, b );
+                    if ( a == b ) {
+                        result[index] = 1.0;
+                        continue;
+                    }
+                    int p = this.pair( a, b );
+                    int c = count[p];
+                    double covariance = sxy[p] - sx[p] * sy[p] / c;
+                    double varX = sxx[p] - sx[p] * sx[p] / c;
+                    double varY = syy[p] - sy[p] * sy[p] / c;
+                    if ( c < 2 || varX <= 0 || varY <= 0 ) {
+                        result[index] = Double.NaN;
+                    } else {
+                        result[index] = Math.max( -1.0, Math.min( 1.0, covariance / Math.sqrt( varX * varY ) ) );
+                    }
+                }
+            }
+        }
+    }
+}
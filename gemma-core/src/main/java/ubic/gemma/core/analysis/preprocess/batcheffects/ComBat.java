@@ -42,6 +42,8 @@ import ubic.basecode.math.DescriptiveWithMissing;
 import ubic.basecode.math.distribution.Histogram;
 import ubic.basecode.math.linearmodels.DesignMatrix;
 import ubic.basecode.math.linearmodels.LeastSquaresFit;
+import ubic.gemma.persistence.util.Settings;
+import ubic.gemma.persistence.util.SharedExecutors;
 
 import java.awt.*;
 import java.io.File;
@@ -49,10 +51,12 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * An implementation of the <a href="http://jlab.byu.edu/ComBat/Download.html">ComBat algorithm described by Johson et al</a>
@@ -61,6 +65,8 @@ import java.util.concurrent.Future;
  * Johnson, WE, Rabinovic, A, and Li, C (2007). Adjusting batch effects in microarray expression data using Empirical
  * Bayes methods. Biostatistics 8(1):118-127.
  * </p>
+ * In parallel mode (see {@link #setParallel(boolean)}), the per-gene work is done in blocks of rows on a fork-join
+ * pool shared with other computations; the results are the same as when run serially.
  */
 @SuppressWarnings({ "unused", "WeakerAccess" }) // Possible external use
 public class ComBat<R, C> {
@@ -79,6 +85,9 @@ public class ComBat<R, C> {
     private LinkedHashMap<String, Collection<C>> batches;
     private Map<String, Map<C, Integer>> originalLocationsInMatrix;
 
+    private boolean parallel = Settings.getBoolean( "gemma.combat.parallel", false );
+    private int rowBlockSize = Settings.getInt( "gemma.combat.rowblocks.size", 1000 );
+
     private Algebra solver;
     private DoubleMatrix2D varpooled;
     private DoubleMatrix2D standMean;
@@ -123,6 +132,24 @@ public class ComBat<R, C> {
         return this.x;
     }
 
+    /**
+     * @param parallel if true, the per-gene work is split into blocks of rows that are processed concurrently. The
+     *                 default is set by <code>gemma.combat.parallel</code>.
+     */
+    public void setParallel( boolean parallel ) {
+        this.parallel = parallel;
+    }
+
+    /**
+     * @param rowBlockSize number of rows processed in each block, in parallel mode.
+     */
+    void setRowBlockSize( int rowBlockSize ) {
+        if ( rowBlockSize < 1 ) {
+            throw new IllegalArgumentException( "Block size must be at least 1" );
+        }
+        this.rowBlockSize = rowBlockSize;
+    }
+
     /**
      * Make diagnostic plots.
      * FIXME: As in the original ComBat, this only graphs the first batch's statistics. In principle we can (and perhaps
@@ -297,14 +324,19 @@ public class ComBat<R, C> {
         // assertEquals( 5.8134, grandMeanM.get( 0, 1 ), 0.001 );
 
         if ( hasMissing ) {
-            varpooled = y.copy().assign( solver.transpose( solver.mult( x, beta ) ), Functions.minus );
-            DoubleMatrix2D var = new DenseDoubleMatrix2D( varpooled.rows(), 1 );
-            for ( int i = 0; i < varpooled.rows(); i++ ) {
-                DoubleMatrix1D row = varpooled.viewRow( i );
-                double m = DescriptiveWithMissing.mean( new DoubleArrayList( row.toArray() ) );
-                double v = DescriptiveWithMissing.sampleVariance( new DoubleArrayList( row.toArray() ), m );
-                var.set( i, 0, v );
-            }
+            final DoubleMatrix2D residuals = y.copy()
+                    .assign( solver.transpose( solver.mult( x, beta ) ), Functions.minus );
+            final DoubleMatrix2D var = new DenseDoubleMatrix2D( residuals.rows(), 1 );
+            this.forEachRowBlock( residuals.rows(), new RowBlockTask() {
+                @Override
+                public void run( int from, int to ) {
+                    for ( int i = from; i < to; i++ ) {
+                        DoubleArrayList row = new DoubleArrayList( residuals.viewRow( i ).toArray() );
+                        double m = DescriptiveWithMissing.mean( row );
+                        var.setQuick( i, 0, DescriptiveWithMissing.sampleVariance( row, m ) );
+                    }
+                }
+            } );
             varpooled = var;
         } else {
             varpooled = y.copy().assign( solver.transpose( solver.mult( x, beta ) ), Functions.minus )
@@ -337,13 +369,22 @@ public class ComBat<R, C> {
          */
         standMean = standMean.assign( solver.transpose( solver.mult( tmpX, beta ) ), Functions.plus );
 
-        DoubleMatrix2D varsq = solver.mult( varpooled.copy().assign( Functions.sqrt ), solver.transpose( size ) );
-
         /*
          * Subtract the mean and divide by the standard deviations.
          */
-        DoubleMatrix2D meansubtracted = y.copy().assign( standMean, Functions.minus );
-        return meansubtracted.assign( varsq, Functions.div );
+        final DoubleMatrix2D result = new DenseDoubleMatrix2D( y.rows(), y.columns() );
+        this.forEachRowBlock( y.rows(), new RowBlockTask() {
+            @Override
+            public void run( int from, int to ) {
+                for ( int i = from; i < to; i++ ) {
+                    double sd = Math.sqrt( varpooled.getQuick( i, 0 ) );
+                    for ( int j = 0; j < result.columns(); j++ ) {
+                        result.setQuick( i, j, ( y.getQuick( i, j ) - standMean.getQuick( i, j ) ) / sd );
+                    }
+                }
+            }
+        } );
+        return result;
     }
 
     private void writePlot( OutputStream os, XYSeries empirical, XYSeries theory ) {
@@ -391,57 +432,42 @@ public class ComBat<R, C> {
     }
 
     private void runNonParametric( final DoubleMatrix2D sdata, DoubleMatrix2D gammastar, DoubleMatrix2D deltastar ) {
-        final ConcurrentHashMap<String, DoubleMatrix1D[]> results = new ConcurrentHashMap<>();
-        int numThreads = Math.min( batches.size(), Runtime.getRuntime().availableProcessors() );
-
-        ComBat.log.info( "Runing nonparametric estimation on " + numThreads + " threads" );
-
-        Future<?>[] futures = new Future[numThreads];
-        ExecutorService service = Executors.newCachedThreadPool();
-
-        /*
-         * Divvy up batches over threads.
-         */
-
-        int batchesPerThread = batches.size() / numThreads;
-
         final String[] batchIds = batches.keySet().toArray( new String[] {} );
+        final DoubleMatrix1D[][] results = new DoubleMatrix1D[batchIds.length][];
 
-        for ( int i = 0; i < numThreads; i++ ) {
-
-            final int firstBatch = i * batchesPerThread;
-            final int lastBatch = i == ( numThreads - 1 ) ? batches.size() : firstBatch + batchesPerThread;
-
-            futures[i] = service.submit( new Runnable() {
-                @Override
-                public void run() {
-                    for ( int k = firstBatch; k < lastBatch; k++ ) {
-                        String batchId = batchIds[k];
-                        DoubleMatrix2D batchData = ComBat.this.getBatchData( sdata, batchId );
-                        DoubleMatrix1D[] batchResults = ComBat.this
-                                .nonParametricFit( batchData, gammaHat.viewRow( k ), deltaHat.viewRow( k ) );
-                        results.put( batchId, batchResults );
+        if ( parallel ) {
+            /*
+             * Rows of each batch are split up, so do the batches one at a time.
+             */
+            ComBat.log.info( "Running nonparametric estimation in blocks of " + rowBlockSize + " rows" );
+            for ( int k = 0; k < batchIds.length; k++ ) {
+                results[k] = this.nonParametricFit( this.getBatchData( sdata, batchIds[k] ), gammaHat.viewRow( k ),
+                        deltaHat.viewRow( k ) );
+            }
+        } else {
+            /*
+             * One task per batch; each writes only its own results, and the compute pool bounds how many run at once.
+             */
+            ComBat.log.info( "Running nonparametric estimation for " + batchIds.length + " batches concurrently" );
+            List<Future<?>> futures = new ArrayList<>( batchIds.length );
+            for ( int k = 0; k < batchIds.length; k++ ) {
+                final int batchIndex = k;
+                futures.add( SharedExecutors.getComputePool().submit( new Runnable() {
+                    @Override
+                    public void run() {
+                        DoubleMatrix2D batchData = ComBat.this.getBatchData( sdata, batchIds[batchIndex] );
+                        results[batchIndex] = ComBat.this.nonParametricFit( batchData, gammaHat.viewRow( batchIndex ),
+                                deltaHat.viewRow( batchIndex ) );
                     }
-                }
-            } );
-        }
-
-        service.shutdown();
-
-        boolean allDone = false;
-        do {
-            for ( Future<?> f : futures ) {
-                allDone = true;
-                if ( !f.isDone() && !f.isCancelled() ) {
-                    allDone = false;
-                    break;
-                }
+                } ) );
             }
-        } while ( !allDone );
+            for ( Future<?> future : futures ) {
+                ComBat.waitFor( future );
+            }
+        }
 
         for ( int i = 0; i < batchIds.length; i++ ) {
-            String batchId = batchIds[i];
-            DoubleMatrix1D[] batchResults = results.get( batchId );
+            DoubleMatrix1D[] batchResults = results[i];
             for ( int j = 0; j < batchResults[0].size(); j++ ) {
                 gammastar.set( i, j, batchResults[0].get( j ) );
             }
@@ -451,6 +477,23 @@ public class ComBat<R, C> {
         }
     }
 
+    /**
+     * Block until the task is done, rethrowing any failure.
+     */
+    private static void waitFor( Future<?> future ) {
+        try {
+            future.get();
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( "Interrupted while waiting for batch correction", e );
+        } catch ( ExecutionException e ) {
+            if ( e.getCause() instanceof RuntimeException ) {
+                throw ( RuntimeException ) e.getCause();
+            }
+            throw new RuntimeException( e.getCause() );
+        }
+    }
+
     private DoubleArrayList aPrior( DoubleMatrix2D d ) {
         DoubleArrayList result = new DoubleArrayList();
         for ( int i = 0; i < d.rows(); i++ ) {
@@ -541,19 +584,26 @@ public class ComBat<R, C> {
      * @param sdata   data to be sliced
      * @param batchId which batch
      */
-    private DoubleMatrix2D getBatchData( DoubleMatrix2D sdata, String batchId ) {
+    private DoubleMatrix2D getBatchData( final DoubleMatrix2D sdata, String batchId ) {
         Collection<C> sampleNames = batches.get( batchId );
 
-        DoubleMatrix2D result = new DenseDoubleMatrix2D( sdata.rows(), sampleNames.size() );
-
+        final int[] columns = new int[sampleNames.size()];
         int i = 0;
         for ( C sname : sampleNames ) {
-            DoubleMatrix1D colInBatch = sdata.viewColumn( data.getColIndexByName( sname ) );
-            for ( int k = 0; k < colInBatch.size(); k++ ) {
-                result.set( k, i, colInBatch.get( k ) );
-            }
-            i++;
+            columns[i++] = data.getColIndexByName( sname );
         }
+
+        final DoubleMatrix2D result = new DenseDoubleMatrix2D( sdata.rows(), columns.length );
+        this.forEachRowBlock( sdata.rows(), new RowBlockTask() {
+            @Override
+            public void run( int from, int to ) {
+                for ( int k = from; k < to; k++ ) {
+                    for ( int j = 0; j < columns.length; j++ ) {
+                        result.setQuick( k, j, sdata.getQuick( k, columns[j] ) );
+                    }
+                }
+            }
+        } );
         // log.info( result );
         return result;
     }
@@ -642,12 +692,23 @@ public class ComBat<R, C> {
         numProbes = y.rows();
     }
 
-    private DoubleMatrix1D[] itSol( DoubleMatrix2D matrix, DoubleMatrix1D gHat, DoubleMatrix1D dHat, double gbar,
-            double t2b, double a, double b ) throws ComBatException {
+    private DoubleMatrix1D[] itSol( final DoubleMatrix2D matrix, DoubleMatrix1D gHat, DoubleMatrix1D dHat,
+            final double gbar, final double t2b, final double a, final double b ) throws ComBatException {
+
+        final int rows = matrix.rows();
+        final double[] ghat = gHat.toArray();
+        final double[] n = new double[rows];
+        this.forEachRowBlock( rows, new RowBlockTask() {
+            @Override
+            public void run( int from, int to ) {
+                for ( int i = from; i < to; i++ ) {
+                    n[i] = ComBat.nonMissingCount( matrix.viewRow( i ) );
+                }
+            }
+        } );
 
-        DoubleMatrix1D n = this.rowNonMissingCounts( matrix );
-        DoubleMatrix1D gold = gHat;
-        DoubleMatrix1D dold = dHat;
+        double[] gold = ghat;
+        double[] dold = dHat.toArray();
         final double conv = 0.0001;
         double change = 1.0;
         int count = 0;
@@ -655,26 +716,32 @@ public class ComBat<R, C> {
         int MAXITERS = 500;
 
         while ( change > conv ) {
-            DoubleMatrix1D gnew = this.postMean( gHat, gbar, n, dold, t2b );
-            DoubleMatrix1D sum2 = this.stepSum( matrix, gnew );
-            DoubleMatrix1D dnew = this.postVar( sum2, n, a, b );
-
-            DoubleMatrix1D gnewtmp = gnew.copy().assign( gold, Functions.minus ).assign( Functions.abs )
-                    .assign( gold, Functions.div );
-
-            DoubleMatrix1D dnewtmp = dnew.copy().assign( dold, Functions.minus ).assign( Functions.abs )
-                    .assign( dold, Functions.div );
-            double gnewmax;
-            double dnewmax;
-            if ( hasMissing ) {
-                gnewmax = DescriptiveWithMissing.max( new DoubleArrayList( gnewtmp.toArray() ) );
-                dnewmax = DescriptiveWithMissing.max( new DoubleArrayList( dnewtmp.toArray() ) );
-            } else {
-                gnewmax = gnewtmp.aggregate( Functions.max, Functions.identity );
-                dnewmax = dnewtmp.aggregate( Functions.max, Functions.identity );
-            }
+            final double[] gnew = new double[rows];
+            final double[] dnew = new double[rows];
+            final double[] dprev = dold;
 
-            change = Math.max( gnewmax, dnewmax );
+            /*
+             * Posterior mean and variance of each row; the variance uses the sum of squared deviations of the row from
+             * its new mean.
+             */
+            this.forEachRowBlock( rows, new RowBlockTask() {
+                @Override
+                public void run( int from, int to ) {
+                    for ( int i = from; i < to; i++ ) {
+                        gnew[i] = ( t2b * n[i] * ghat[i] + dprev[i] * gbar ) / ( t2b * n[i] + dprev[i] );
+                        double sum2 = 0.0;
+                        for ( int j = 0; j < matrix.columns(); j++ ) {
+                            double d = matrix.getQuick( i, j ) - gnew[i];
+                            if ( !Double.isNaN( d ) ) {
+                                sum2 += d * d;
+                            }
+                        }
+                        dnew[i] = ( 0.5 * sum2 + b ) / ( n[i] / 2.0 + a - 1.0 );
+                    }
+                }
+            } );
+
+            change = Math.max( this.maxRelativeChange( gnew, gold ), this.maxRelativeChange( dnew, dold ) );
 
             gold = gnew;
             dold = dnew;
@@ -690,15 +757,35 @@ public class ComBat<R, C> {
             }
         }
 
-        return new DoubleMatrix1D[] { gold, dold };
+        return new DoubleMatrix1D[] { new DenseDoubleMatrix1D( gold ), new DenseDoubleMatrix1D( dold ) };
     }
 
-    private DoubleMatrix1D[] nonParametricFit( DoubleMatrix2D matrix, DoubleMatrix1D gHat, DoubleMatrix1D dHat ) {
-        DoubleMatrix1D gstar = new DenseDoubleMatrix1D( matrix.rows() );
-        DoubleMatrix1D dstar = new DenseDoubleMatrix1D( matrix.rows() );
-        double twopi = 2.0 * Math.PI;
+    /**
+     * @return the largest of |now - before| / before. If there are no missing values, NaN is returned if any of the
+     * changes is NaN, so iteration stops.
+     */
+    private double maxRelativeChange( double[] now, double[] before ) {
+        double max = Double.NEGATIVE_INFINITY;
+        for ( int i = 0; i < now.length; i++ ) {
+            double c = Math.abs( now[i] - before[i] ) / before[i];
+            if ( Double.isNaN( c ) ) {
+                if ( hasMissing ) {
+                    continue;
+                }
+                return Double.NaN;
+            }
+            max = Math.max( max, c );
+        }
+        return max;
+    }
 
-        StopWatch timer = new StopWatch();
+    private DoubleMatrix1D[] nonParametricFit( final DoubleMatrix2D matrix, final DoubleMatrix1D gHat,
+            final DoubleMatrix1D dHat ) {
+        final DoubleMatrix1D gstar = new DenseDoubleMatrix1D( matrix.rows() );
+        final DoubleMatrix1D dstar = new DenseDoubleMatrix1D( matrix.rows() );
+        final double twopi = 2.0 * Math.PI;
+
+        final StopWatch timer = new StopWatch();
         timer.start();
 
         /*
@@ -706,172 +793,206 @@ public class ComBat<R, C> {
          * horrible. 1000 rows of a 10k probe data set with 10 samples takes about 7.5 seconds on my laptop -- but this
          * has to be done for each batch. It's O( M*N^2 )
          */
-        int c = 1;
-        for ( int i = 0; i < matrix.rows(); i++ ) {
-
-            double[] x = MatrixUtil.removeMissing( matrix.viewRow( i ) ).toArray();
-            int n = x.length;
-            double no2 = n / 2.0;
-
-            double sumLH = 0.0;
-            double sumgLH = 0.0;
-            double sumdLH = 0.0;
-            for ( int j = 0; j < matrix.rows(); j++ ) {
-
-                if ( j == i )
-                    continue;
-                double g = gHat.getQuick( j );
-                double d = dHat.getQuick( j );
+        final AtomicInteger done = new AtomicInteger( 0 );
+        this.forEachRowBlock( matrix.rows(), new RowBlockTask() {
+            @Override
+            public void run( int from, int to ) {
+                for ( int i = from; i < to; i++ ) {
+
+                    double[] x = MatrixUtil.removeMissing( matrix.viewRow( i ) ).toArray();
+                    int n = x.length;
+                    double no2 = n / 2.0;
+
+                    double sumLH = 0.0;
+                    double sumgLH = 0.0;
+                    double sumdLH = 0.0;
+                    for ( int j = 0; j < matrix.rows(); j++ ) {
+
+                        if ( j == i )
+                            continue;
+                        double g = gHat.getQuick( j );
+                        double d = dHat.getQuick( j );
+
+                        // compute the sum of squares of the difference between gHat[j] and the current data row.
+                        double sum2 = 0.0;
+                        for ( double aX : x ) {
+                            sum2 += Math.pow( aX - g, 2 );
+                        }
+
+                        double LH = ( 1.0 / Math.pow( twopi * d, no2 ) ) * Math.exp( -sum2 / ( 2 * d ) );
+
+                        if ( Double.isNaN( LH ) )
+                            continue;
+
+                        double gLH = g * LH;
+                        double dLH = d * LH;
+
+                        sumLH += LH;
+                        sumgLH += gLH;
+                        sumdLH += dLH;
+                    }
 
-                // compute the sum of squares of the difference between gHat[j] and the current data row.
-                // this is slower, though it's the "colt api" way.
-                // double sum2 = x.copy().assign( Functions.minus( g ) ).aggregate( Functions.plus, Functions.square );
+                    gstar.setQuick( i, sumgLH / sumLH );
+                    dstar.setQuick( i, sumdLH / sumLH );
 
-                double sum2 = 0.0;
-                for ( double aX : x ) {
-                    sum2 += Math.pow( aX - g, 2 );
+                    int c = done.incrementAndGet();
+                    if ( c % 1000 == 0 ) {
+                        ComBat.log
+                                .info( c + String.format( " rows done, %.1fs elapsed", timer.getTime() / 1000.00 ) );
+                    }
                 }
-
-                double LH = ( 1.0 / Math.pow( twopi * d, no2 ) ) * Math.exp( -sum2 / ( 2 * d ) );
-
-                if ( Double.isNaN( LH ) )
-                    continue;
-
-                double gLH = g * LH;
-                double dLH = d * LH;
-
-                sumLH += LH;
-                sumgLH += gLH;
-                sumdLH += dLH;
             }
-
-            gstar.set( i, sumgLH / sumLH );
-            dstar.set( i, sumdLH / sumLH );
-
-            if ( c++ % 1000 == 0 ) {
-                ComBat.log.info( i + String.format( " rows done, %.1fs elapsed", timer.getTime() / 1000.00 ) );
-            }
-        }
+        } );
 
         return new DoubleMatrix1D[] { gstar, dstar };
     }
 
-    private DoubleMatrix1D postMean( DoubleMatrix1D ghat, double gbar, DoubleMatrix1D n, DoubleMatrix1D dstar,
-            double t2b ) {
-        DoubleMatrix1D result = new DenseDoubleMatrix1D( ghat.size() );
-        for ( int i = 0; i < ghat.size(); i++ ) {
-            result.set( i, ( t2b * n.get( i ) * ghat.get( i ) + dstar.get( i ) * gbar ) / ( t2b * n.get( i ) + dstar
-                    .get( i ) ) );
-        }
-        return result;
-    }
-
-    private DoubleMatrix1D postVar( DoubleMatrix1D sum2, DoubleMatrix1D n, double a, double b ) {
-        DoubleMatrix1D result = new DenseDoubleMatrix1D( sum2.size() );
-        for ( int i = 0; i < sum2.size(); i++ ) {
-            result.set( i, ( 0.5 * sum2.get( i ) + b ) / ( n.get( i ) / 2.0 + a - 1.0 ) );
-        }
-        return result;
-    }
-
-    private DoubleMatrix2D rawAdjust( DoubleMatrix2D sdata, DoubleMatrix2D gammastar, DoubleMatrix2D deltastar ) {
-        int batchIndex;
+    private DoubleMatrix2D rawAdjust( final DoubleMatrix2D sdata, final DoubleMatrix2D gammastar,
+            final DoubleMatrix2D deltastar ) {
         int batchNum = 0;
 
-        DoubleMatrix2D adjustedData = new DenseDoubleMatrix2D( sdata.rows(), sdata.columns() );
+        final DoubleMatrix2D adjustedData = new DenseDoubleMatrix2D( sdata.rows(), sdata.columns() );
 
         for ( String batchId : batches.keySet() ) {
-            DoubleMatrix2D batchData = this.getBatchData( sdata, batchId );
-
-            DoubleMatrix2D Xbb = this.getBatchDesign( batchId );
-
-            DoubleMatrix2D adjustedBatch = batchData.copy()
-                    .assign( solver.transpose( solver.mult( Xbb, gammastar ) ), Functions.minus );
-
-            DoubleMatrix1D deltaStarRow = deltastar.viewRow( batchNum );
-            deltaStarRow.assign( Functions.sqrt );
-
-            DoubleMatrix1D ones = new DenseDoubleMatrix1D( batchData.columns() );
-            ones.assign( 1.0 );
-            DoubleMatrix2D divisor = solver.multOuter( deltaStarRow, ones, null );
-
-            adjustedBatch.assign( divisor, Functions.div );
+            final DoubleMatrix2D Xbb = this.getBatchDesign( batchId );
 
             /*
-             * Now we have to put the data back in the right order -- the batches are all together.
+             * Read each sample from its column in the data and put the result back in its original location (the
+             * batches are all together).
              */
-
+            Collection<C> sampleNames = batches.get( batchId );
             Map<C, Integer> locations = originalLocationsInMatrix.get( batchId );
-            for ( batchIndex = 0; batchIndex < adjustedBatch.rows(); batchIndex++ ) {
-                int j = 0;
-                for ( Integer index : locations.values() ) {
-                    adjustedData.set( batchIndex, index, adjustedBatch.get( batchIndex, j ) );
-                    j++;
-                }
+            final int[] sourceColumns = new int[sampleNames.size()];
+            final int[] targetColumns = new int[sampleNames.size()];
+            int j = 0;
+            for ( C sname : sampleNames ) {
+                sourceColumns[j] = data.getColIndexByName( sname );
+                targetColumns[j] = locations.get( sname );
+                j++;
             }
 
+            final int batch = batchNum;
+            this.forEachRowBlock( sdata.rows(), new RowBlockTask() {
+                @Override
+                public void run( int from, int to ) {
+                    for ( int i = from; i < to; i++ ) {
+                        double sd = Math.sqrt( deltastar.getQuick( batch, i ) );
+                        for ( int s = 0; s < sourceColumns.length; s++ ) {
+                            double batchEffect = 0.0;
+                            for ( int k = 0; k < Xbb.columns(); k++ ) {
+                                batchEffect += Xbb.getQuick( s, k ) * gammastar.getQuick( k, i );
+                            }
+                            adjustedData.setQuick( i, targetColumns[s],
+                                    ( sdata.getQuick( i, sourceColumns[s] ) - batchEffect ) / sd );
+                        }
+                    }
+                }
+            } );
+
             batchNum++;
         }
         return adjustedData;
     }
 
-    private DoubleMatrix2D restoreScale( DoubleMatrix2D adjustedData ) {
-        DoubleMatrix2D ones = new DenseDoubleMatrix2D( 1, numSamples );
-        ones.assign( 1.0 );
-        DoubleMatrix2D adj = solver.mult( varpooled.copy().assign( Functions.sqrt ), ones );
-        DoubleMatrix2D varRestore = adjustedData.assign( adj, Functions.mult );
-        // log.info( varRestore );
-        return varRestore.assign( standMean, Functions.plus );
+    private DoubleMatrix2D restoreScale( final DoubleMatrix2D adjustedData ) {
+        this.forEachRowBlock( adjustedData.rows(), new RowBlockTask() {
+            @Override
+            public void run( int from, int to ) {
+                for ( int i = from; i < to; i++ ) {
+                    double sd = Math.sqrt( varpooled.getQuick( i, 0 ) );
+                    for ( int j = 0; j < adjustedData.columns(); j++ ) {
+                        adjustedData.setQuick( i, j, adjustedData.getQuick( i, j ) * sd + standMean.getQuick( i, j ) );
+                    }
+                }
+            }
+        } );
+        // log.info( adjustedData );
+        return adjustedData;
     }
 
-    private DoubleMatrix1D rowNonMissingCounts( DoubleMatrix2D matrix ) {
-        DoubleMatrix1D result = new DenseDoubleMatrix1D( matrix.rows() );
-        for ( int i = 0; i < matrix.rows(); i++ ) {
-            result.set( i, DescriptiveWithMissing
-                    .sizeWithoutMissingValues( new DoubleArrayList( matrix.viewRow( i ).toArray() ) ) );
+    private static int nonMissingCount( DoubleMatrix1D row ) {
+        int count = 0;
+        for ( int j = 0; j < row.size(); j++ ) {
+            if ( !Double.isNaN( row.getQuick( j ) ) ) {
+                count++;
+            }
         }
-        return result;
+        return count;
     }
 
-    private DoubleMatrix1D stepSum( DoubleMatrix2D matrix, DoubleMatrix1D gnew ) {
-
-        Algebra s = new Algebra();
-
-        DoubleMatrix2D g = new DenseDoubleMatrix2D( 1, gnew.size() );
-        for ( int i = 0; i < gnew.size(); i++ ) {
-            g.set( 0, i, gnew.get( i ) );
+    private void deltaHat( DoubleMatrix2D sdata ) {
+        deltaHat = new DenseDoubleMatrix2D( numBatches, numProbes );
+        int batchIndex = 0;
+        for ( String batchId : batches.keySet() ) {
+            final DoubleMatrix2D batchData = this.getBatchData( sdata, batchId );
+            final DoubleMatrix1D batchDeltaHat = deltaHat.viewRow( batchIndex );
+            this.forEachRowBlock( batchData.rows(), new RowBlockTask() {
+                @Override
+                public void run( int from, int to ) {
+                    for ( int j = from; j < to; j++ ) {
+                        DoubleArrayList row = new DoubleArrayList( batchData.viewRow( j ).toArray() );
+                        double variance = DescriptiveWithMissing
+                                .sampleVariance( row, DescriptiveWithMissing.mean( row ) );
+                        batchDeltaHat.setQuick( j, variance );
+                    }
+                }
+            } );
+            batchIndex++;
         }
+    }
 
-        DoubleMatrix2D a = new DenseDoubleMatrix2D( 1, matrix.columns() );
-        a.assign( 1.0 );
+    /**
+     * Run the task over all the rows: in blocks on the shared pool if in parallel mode, otherwise in one go on this
+     * thread. Returns once all rows are done.
+     *
+     * @param numRows number of rows
+     * @param task    the work for a range of rows; blocks may run concurrently, so it must only write to its own rows.
+     */
+    private void forEachRowBlock( int numRows, RowBlockTask task ) {
+        if ( !parallel || numRows <= rowBlockSize ) {
+            task.run( 0, numRows );
+            return;
+        }
+        // the halves are forked and joined, so the blocks need the fork-join compute pool
+        SharedExecutors.getComputePool().invoke( new RowBlockAction( task, 0, numRows, rowBlockSize ) );
+    }
 
-        /*
-         * subtract column gnew from each column of data; square; then sum over each row.
+    private interface RowBlockTask {
+        /**
+         * @param from first row, inclusive
+         * @param to   last row, exclusive
          */
+        void run( int from, int to );
+    }
+
+    /**
+     * Splits a range of rows in half until it is no larger than the block size.
+     */
+    private static class RowBlockAction extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
 
-        DoubleMatrix2D deltas = matrix.copy().assign( ( s.mult( s.transpose( g ), a ) ), Functions.minus )
-                .assign( Functions.square );
-        DoubleMatrix1D sumsq = new DenseDoubleMatrix1D( deltas.rows() );
-        sumsq.assign( 0.0 );
+        private final RowBlockTask task;
+        private final int from;
+        private final int to;
+        private final int blockSize;
 
-        for ( int i = 0; i < deltas.rows(); i++ ) {
-            sumsq.set( i, DescriptiveWithMissing.sum( new DoubleArrayList( deltas.viewRow( i ).toArray() ) ) );
+        RowBlockAction( RowBlockTask task, int from, int to, int blockSize ) {
+            this.task = task;
+            this.from = from;
+            this.to = to;
+            this.blockSize = blockSize;
         }
-        return sumsq;
-    }
 
-    private void deltaHat( DoubleMatrix2D sdata ) {
-        int batchIndex;
-        deltaHat = new DenseDoubleMatrix2D( numBatches, numProbes );
-        batchIndex = 0;
-        for ( String batchId : batches.keySet() ) {
-            DoubleMatrix2D batchData = this.getBatchData( sdata, batchId );
-            for ( int j = 0; j < batchData.rows(); j++ ) {
-                DoubleArrayList row = new DoubleArrayList( batchData.viewRow( j ).toArray() );
-                double variance = DescriptiveWithMissing.sampleVariance( row, DescriptiveWithMissing.mean( row ) );
-                deltaHat.set( batchIndex, j, variance );
+        @Override
+        protected void compute() {
+            if ( to - from <= blockSize ) {
+                task.run( from, to );
+                return;
             }
-            batchIndex++;
+            int mid = ( from + to ) >>> 1;
+            ForkJoinTask.invokeAll( new RowBlockAction( task, from, mid, blockSize ),
+                    new RowBlockAction( task, mid, to, blockSize ) );
         }
     }
 
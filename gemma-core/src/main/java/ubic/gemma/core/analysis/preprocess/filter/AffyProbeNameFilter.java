@@ -57,43 +57,49 @@ public class AffyProbeNameFilter implements Filter<ExpressionDataDoubleMatrix> {
             CompositeSequence d = data.getDesignElementForRow( i );
             assert d != null;
 
-            BioSequence sequence = d.getBiologicalCharacteristic();
-
-            String name;
-            if ( sequence != null ) {
-                name = sequence.getName();
-            } else {
-                name = d.getName();
+            if ( this.accept( d ) ) {
+                kept.add( d );
             }
+        }
 
-            // apply the rules.
-            if ( skip_ST && name.contains( "_st" ) ) { // 'st' means sense strand.
-                continue;
-            }
+        AffyProbeNameFilter.log.info( "There are " + kept.size() + " rows left after Affy probe name filtering." );
 
-            // control probes.
-            if ( skip_AFFX && name.contains( "AFFX" ) ) {
-                continue;
-            }
+        return new ExpressionDataDoubleMatrix( data, kept );
+    }
 
-            // gene family.
-            if ( skip_F && name.contains( "_f_at" ) ) {
-                continue;
-            }
+    /**
+     * @param d the element for a row
+     * @return true if the row passes the filter
+     */
+    boolean accept( CompositeSequence d ) {
+        BioSequence sequence = d.getBiologicalCharacteristic();
+
+        String name;
+        if ( sequence != null ) {
+            name = sequence.getName();
+        } else {
+            name = d.getName();
+        }
 
-            if ( skip_X && name.contains( "_x_at" ) ) {
-                continue;
-            }
-            if ( skip_G && name.contains( "_g_at" ) ) {
-                continue;
-            }
+        // apply the rules.
+        if ( skip_ST && name.contains( "_st" ) ) { // 'st' means sense strand.
+            return false;
+        }
 
-            kept.add( d );
+        // control probes.
+        if ( skip_AFFX && name.contains( "AFFX" ) ) {
+            return false;
         }
 
-        AffyProbeNameFilter.log.info( "There are " + kept.size() + " rows left after Affy probe name filtering." );
+        // gene family.
+        if ( skip_F && name.contains( "_f_at" ) ) {
+            return false;
+        }
 
-        return new ExpressionDataDoubleMatrix( data, kept );
+        if ( skip_X && name.contains( "_x_at" ) ) {
+            return false;
+        }
+        return !( skip_G && name.contains( "_g_at" ) );
     }
 
     private void setCriteria( Pattern[] criteria ) {
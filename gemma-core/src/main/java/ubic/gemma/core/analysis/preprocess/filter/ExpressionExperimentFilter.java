@@ -18,6 +18,8 @@
  */
 package ubic.gemma.core.analysis.preprocess.filter;
 
+import cern.colt.list.DoubleArrayList;
+import cern.colt.list.IntArrayList;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -33,9 +35,17 @@ import ubic.gemma.model.expression.arrayDesign.ArrayDesign;
 import ubic.gemma.model.expression.arrayDesign.TechnologyType;
 import ubic.gemma.model.expression.bioAssayData.ProcessedExpressionDataVector;
 import ubic.gemma.model.expression.designElement.CompositeSequence;
+import ubic.gemma.persistence.util.Settings;
+import ubic.gemma.persistence.util.SharedExecutors;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Methods to handle filtering expression experiments for analysis.
@@ -52,6 +62,15 @@ public class ExpressionExperimentFilter {
     private static final int MIN_NUMBER_OF_SAMPLES_PRESENT = 7;
 
     private static final Log log = LogFactory.getLog( ExpressionExperimentFilter.class.getName() );
+
+    /**
+     * If true, the filters are applied together in one pass over the data, with the statistics computed for blocks of
+     * rows in parallel, rather than one after the other on a new matrix each time.
+     */
+    private static final boolean FILTER_BY_ROW_BLOCKS = Settings.getBoolean( "gemma.filter.rowblocks", false );
+
+    private static final int ROW_BLOCK_SIZE = Settings.getInt( "gemma.filter.rowblocks.size", 2000 );
+
     private final FilterConfig config;
     private final Collection<ArrayDesign> arrayDesignsUsed;
 
@@ -123,12 +142,68 @@ public class ExpressionExperimentFilter {
      * @return filtered matrix
      */
     public static ExpressionDataDoubleMatrix zeroVarianceFilter( ExpressionDataDoubleMatrix matrix ) {
+        return ExpressionExperimentFilter.getZeroVarianceFilter().filter( matrix );
+    }
+
+    private static RowLevelFilter getZeroVarianceFilter() {
         RowLevelFilter rowLevelFilter = new RowLevelFilter();
         rowLevelFilter.setMethod( Method.VAR );
         rowLevelFilter.setLowCut( Constants.SMALLISH );
         rowLevelFilter.setRemoveAllNegative( false );
         rowLevelFilter.setUseAsFraction( false );
-        return rowLevelFilter.filter( matrix );
+        return rowLevelFilter;
+    }
+
+    /**
+     * @param keep   which rows have been kept so far
+     * @param values a value for each row
+     * @return the values for the rows that have been kept
+     */
+    private static DoubleArrayList keptValues( boolean[] keep, double[] values ) {
+        DoubleArrayList result = new DoubleArrayList();
+        for ( int i = 0; i < keep.length; i++ ) {
+            if ( keep[i] ) {
+                result.add( values[i] );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param keep  which rows have been kept so far
+     * @param flags a flag for each row
+     * @return how many of the rows that have been kept are flagged
+     */
+    private static int countKept( boolean[] keep, boolean[] flags ) {
+        int count = 0;
+        for ( int i = 0; i < keep.length; i++ ) {
+            if ( keep[i] && flags[i] ) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Apply the result of a filter, which was run on the rows that have been kept so far.
+     *
+     * @param keep   which rows have been kept so far; updated
+     * @param passed for each row that was kept so far, in order, whether it passed the filter
+     * @return number of rows kept
+     */
+    private static int applyFilter( boolean[] keep, boolean[] passed ) {
+        int k = 0;
+        int numKept = 0;
+        for ( int i = 0; i < keep.length; i++ ) {
+            if ( keep[i] ) {
+                keep[i] = passed[k++];
+                if ( keep[i] ) {
+                    numKept++;
+                }
+            }
+        }
+        assert k == passed.length;
+        return numKept;
     }
 
     /**
@@ -172,7 +247,7 @@ public class ExpressionExperimentFilter {
      * @return A data matrix in which filters have been applied and missing values (in the PRESENTABSENT quantitation
      * type, if present) are masked
      */
-    private ExpressionDataDoubleMatrix doFilter( ExpressionDataDoubleMatrix eeDoubleMatrix ) {
+    ExpressionDataDoubleMatrix doFilter( ExpressionDataDoubleMatrix eeDoubleMatrix ) {
 
         ExpressionDataDoubleMatrix filteredMatrix = eeDoubleMatrix;
 
@@ -265,29 +340,216 @@ public class ExpressionExperimentFilter {
             }
         }
 
-        if ( ExpressionExperimentFilter.log.isInfoEnabled() ) {
-            StringBuilder buf = new StringBuilder();
+        this.logFilterSummary( eeDoubleMatrix, startingRows, afterSequenceRemovalRows, afterAffyControlsFilter,
+                afterMinPresentFilter, afterZeroVarianceCut, afterLowExpressionCut, afterLowVarianceCut );
 
-            buf.append( "Filter summary:\n" );
-            buf.append( "Filter summary for " ).append( eeDoubleMatrix.getExpressionExperiment() ).append( ":\n" );
-            buf.append( "Started with\t" ).append( startingRows ).append( " (" ).append( eeDoubleMatrix.columns() )
-                    .append( " columns) " ).append( "\n" );
-            if ( config.isRequireSequences() )
-                buf.append( "After Seq\t" ).append( afterSequenceRemovalRows ).append( "\n" );
-            if ( this.usesAffymetrix() )
-                buf.append( "After removing Affy controls\t" ).append( afterAffyControlsFilter ).append( "\n" );
-            if ( config.isMinPresentFractionIsSet() && !config.isIgnoreMinimumSampleThreshold() )
-                buf.append( "After MinPresent\t" ).append( afterMinPresentFilter ).append( "\n" );
-            buf.append( "After ZeroVar\t" ).append( afterZeroVarianceCut ).append( "\n" );
-            if ( config.isLowExpressionCutIsSet() )
-                buf.append( "After LowExpr\t" ).append( afterLowExpressionCut ).append( "\n" );
-            if ( config.isLowVarianceCutIsSet() )
-                buf.append( "After LowVar\t" ).append( afterLowVarianceCut ).append( "\n" );
-            buf.append( "================================================================\n" );
-            ExpressionExperimentFilter.log.info( buf.toString() );
+        return filteredMatrix;
+    }
+
+    /**
+     * Apply the same filters as {@link #doFilter(ExpressionDataDoubleMatrix)}, with the same result, in a single pass.
+     * The statistics the filters need are computed once for each row, for blocks of rows in parallel; the filters are
+     * then applied in turn to one mask of the rows to keep, and the filtered matrix is only created at the end.
+     *
+     * @param eeDoubleMatrix , already masked for missing values.
+     * @return filtered matrix
+     */
+    ExpressionDataDoubleMatrix doFilterByRowBlocks( ExpressionDataDoubleMatrix eeDoubleMatrix ) {
+
+        int startingRows = eeDoubleMatrix.rows();
+        config.setStartingRows( startingRows );
+
+        boolean doMinPresent = config.isMinPresentFractionIsSet() && !config.isIgnoreMinimumSampleThreshold();
+        RowMissingValueFilter minPresentFilter = doMinPresent ? this.getMinPresentFilter() : null;
+
+        /*
+         * The variance is used both for the zero variance filter and the low variance filter.
+         */
+        RowLevelFilter zeroVarianceFilter = ExpressionExperimentFilter.getZeroVarianceFilter();
+        int[] present = new int[startingRows];
+        boolean[] allNegative = new boolean[startingRows];
+        double[] variances = new double[startingRows];
+        this.computeRowStatistics( eeDoubleMatrix, minPresentFilter, zeroVarianceFilter, present, allNegative,
+                variances );
+
+        /*
+         * The filters on the design elements are applied here, not in parallel, as they may need to load sequences.
+         */
+        boolean[] keep = new boolean[startingRows];
+        int numKept = 0;
+        if ( config.isRequireSequences() ) {
+            RowsWithSequencesFilter sequencesFilter = new RowsWithSequencesFilter();
+            for ( int i = 0; i < startingRows; i++ ) {
+                keep[i] = sequencesFilter.accept( eeDoubleMatrix.getDesignElementForRow( i ) );
+                if ( keep[i] )
+                    numKept++;
+            }
+            ExpressionExperimentFilter.log
+                    .info( "Retaining " + numKept + "/" + startingRows + " rows that have associated BioSequences" );
+        }
+        if ( numKept == 0 ) {
+            if ( config.isRequireSequences() ) {
+                // This can happen if the array design is not populated. To avoid problems with useless failures, just
+                // skip this step.
+                ExpressionExperimentFilter.log
+                        .warn( "There were no sequences for the platform(s), but allowing filtering to go forward anyway despite config settings." );
+            }
+            Arrays.fill( keep, true );
+            numKept = startingRows;
         }
 
-        return filteredMatrix;
+        int afterSequenceRemovalRows = numKept;
+
+        int afterAffyControlsFilter = afterSequenceRemovalRows;
+        int afterMinPresentFilter = afterSequenceRemovalRows;
+        int afterLowVarianceCut = afterSequenceRemovalRows;
+        int afterLowExpressionCut = afterSequenceRemovalRows;
+        int afterZeroVarianceCut;
+
+        if ( this.usesAffymetrix() ) {
+            ExpressionExperimentFilter.log.debug( "Filtering Affymetrix controls" );
+            AffyProbeNameFilter affyProbeNameFilter = new AffyProbeNameFilter( new Pattern[] { Pattern.AFFX } );
+            numKept = 0;
+            for ( int i = 0; i < startingRows; i++ ) {
+                if ( keep[i] ) {
+                    keep[i] = affyProbeNameFilter.accept( eeDoubleMatrix.getDesignElementForRow( i ) );
+                    if ( keep[i] )
+                        numKept++;
+                }
+            }
+            ExpressionExperimentFilter.log
+                    .info( "There are " + numKept + " rows left after Affy probe name filtering." );
+            afterAffyControlsFilter = numKept;
+        }
+        config.setAfterInitialFilter( afterAffyControlsFilter );
+
+        if ( minPresentFilter != null ) {
+            ExpressionExperimentFilter.log.info( "Filtering out genes that are missing too many values" );
+            if ( minPresentFilter.initMinPresentCount( eeDoubleMatrix.columns() ) ) {
+                IntArrayList keptPresent = new IntArrayList( numKept );
+                for ( int i = 0; i < startingRows; i++ ) {
+                    if ( keep[i] )
+                        keptPresent.add( present[i] );
+                }
+                numKept = ExpressionExperimentFilter.applyFilter( keep, minPresentFilter.filterCounts( keptPresent ) );
+            }
+            afterMinPresentFilter = numKept;
+            config.setAfterMinPresentFilter( afterMinPresentFilter );
+
+            if ( numKept == 0 ) {
+                throw new IllegalStateException( "No rows left after minimum non-missing data filtering" );
+            }
+        }
+
+        ExpressionExperimentFilter.log.debug( "Filtering rows with zero variance" );
+        numKept = ExpressionExperimentFilter.applyFilter( keep, zeroVarianceFilter
+                .filterCriteria( ExpressionExperimentFilter.keptValues( keep, variances ),
+                        ExpressionExperimentFilter.countKept( keep, allNegative ) ) );
+        afterZeroVarianceCut = numKept;
+        config.setAfterZeroVarianceCut( afterZeroVarianceCut );
+        if ( numKept == 0 ) {
+            throw new IllegalStateException( "No rows left after filtering rows with zero variance" );
+        }
+
+        if ( config.isLowExpressionCutIsSet() ) {
+            ExpressionExperimentFilter.log.debug( "Filtering for low or too high expression" );
+            RowLevelFilter lowExpressionFilter = this.getLowExpressionFilter( eeDoubleMatrix.getRanks() );
+            if ( lowExpressionFilter != null ) {
+                DoubleArrayList ranks = new DoubleArrayList( numKept );
+                for ( int i = 0; i < startingRows; i++ ) {
+                    if ( keep[i] )
+                        ranks.add( lowExpressionFilter
+                                .computeCriterion( null, eeDoubleMatrix.getDesignElementForRow( i ) ) );
+                }
+                numKept = ExpressionExperimentFilter.applyFilter( keep, lowExpressionFilter
+                        .filterCriteria( ranks, ExpressionExperimentFilter.countKept( keep, allNegative ) ) );
+            }
+            afterLowExpressionCut = numKept;
+            config.setAfterLowExpressionCut( afterLowExpressionCut );
+
+            if ( numKept == 0 ) {
+                throw new IllegalStateException( "No rows left after expression level filtering" );
+            }
+        }
+
+        if ( config.isLowVarianceCutIsSet() ) {
+            ExpressionExperimentFilter.log.debug( "Filtering for low variance " );
+            numKept = ExpressionExperimentFilter.applyFilter( keep, this.getLowVarianceFilter()
+                    .filterCriteria( ExpressionExperimentFilter.keptValues( keep, variances ),
+                            ExpressionExperimentFilter.countKept( keep, allNegative ) ) );
+            afterLowVarianceCut = numKept;
+            config.setAfterLowVarianceCut( afterLowVarianceCut );
+
+            if ( numKept == 0 ) {
+                throw new IllegalStateException( "No rows left after variance filtering" );
+            }
+        }
+
+        this.logFilterSummary( eeDoubleMatrix, startingRows, afterSequenceRemovalRows, afterAffyControlsFilter,
+                afterMinPresentFilter, afterZeroVarianceCut, afterLowExpressionCut, afterLowVarianceCut );
+
+        List<CompositeSequence> kept = new ArrayList<>( numKept );
+        for ( int i = 0; i < startingRows; i++ ) {
+            if ( keep[i] )
+                kept.add( eeDoubleMatrix.getDesignElementForRow( i ) );
+        }
+        return new ExpressionDataDoubleMatrix( eeDoubleMatrix, kept );
+    }
+
+    /**
+     * Compute the statistics used by the filters for each row. Blocks of rows are done in parallel.
+     *
+     * @param matrix           the data
+     * @param minPresentFilter used to count the present values, or null if they are not needed
+     * @param varianceFilter   used to compute the variance
+     * @param present          filled in with the number of present values in each row
+     * @param allNegative      filled in with whether each row has only negative or missing values
+     * @param variances        filled in with the variance of each row
+     */
+    private void computeRowStatistics( final ExpressionDataDoubleMatrix matrix,
+            final RowMissingValueFilter minPresentFilter, final RowLevelFilter varianceFilter, final int[] present,
+            final boolean[] allNegative, final double[] variances ) {
+        final int numCols = matrix.columns();
+        // the blocks only read the matrix, so analyses being filtered at the same time can share the compute threads
+        ExecutorService executor = SharedExecutors.getComputePool();
+        List<Future<?>> blocks = new ArrayList<>();
+        for ( int start = 0; start < matrix.rows(); start += ExpressionExperimentFilter.ROW_BLOCK_SIZE ) {
+            final int from = start;
+            final int to = Math.min( matrix.rows(), start + ExpressionExperimentFilter.ROW_BLOCK_SIZE );
+            blocks.add( executor.submit( new Runnable() {
+                @Override
+                public void run() {
+                    DoubleArrayList rowAsList = new DoubleArrayList( new double[numCols] );
+                    for ( int i = from; i < to; i++ ) {
+                        if ( minPresentFilter != null ) {
+                            present[i] = minPresentFilter.countPresent( matrix, i );
+                        }
+                        allNegative[i] = RowLevelFilter.copyRow( matrix.getRawRow( i ), rowAsList );
+                        variances[i] = varianceFilter.computeCriterion( rowAsList, matrix.getDesignElementForRow( i ) );
+                    }
+                }
+            } ) );
+        }
+
+        try {
+            for ( Future<?> block : blocks ) {
+                block.get();
+            }
+        } catch ( InterruptedException e ) {
+            for ( Future<?> block : blocks ) {
+                block.cancel( true );
+            }
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( "Filtering was interrupted", e );
+        } catch ( ExecutionException e ) {
+            for ( Future<?> block : blocks ) {
+                block.cancel( true );
+            }
+            if ( e.getCause() instanceof RuntimeException ) {
+                throw ( RuntimeException ) e.getCause();
+            }
+            throw new RuntimeException( e.getCause() );
+        }
     }
 
     /**
@@ -311,7 +573,11 @@ public class ExpressionExperimentFilter {
             }
         }
 
-        eeDoubleMatrix = this.doFilter( eeDoubleMatrix );
+        if ( ExpressionExperimentFilter.FILTER_BY_ROW_BLOCKS ) {
+            eeDoubleMatrix = this.doFilterByRowBlocks( eeDoubleMatrix );
+        } else {
+            eeDoubleMatrix = this.doFilter( eeDoubleMatrix );
+        }
 
         if ( eeDoubleMatrix == null )
             throw new IllegalStateException( "Failed to get filtered data matrix, it was null" );
@@ -394,30 +660,71 @@ public class ExpressionExperimentFilter {
         return answer;
     }
 
+    private void logFilterSummary( ExpressionDataDoubleMatrix eeDoubleMatrix, int startingRows,
+            int afterSequenceRemovalRows, int afterAffyControlsFilter, int afterMinPresentFilter,
+            int afterZeroVarianceCut, int afterLowExpressionCut, int afterLowVarianceCut ) {
+        if ( ExpressionExperimentFilter.log.isInfoEnabled() ) {
+            StringBuilder buf = new StringBuilder();
+
+            buf.append( "Filter summary:\n" );
+            buf.append( "Filter summary for " ).append( eeDoubleMatrix.getExpressionExperiment() ).append( ":\n" );
+            buf.append( "Started with\t" ).append( startingRows ).append( " (" ).append( eeDoubleMatrix.columns() )
+                    .append( " columns) " ).append( "\n" );
+            if ( config.isRequireSequences() )
+                buf.append( "After Seq\t" ).append( afterSequenceRemovalRows ).append( "\n" );
+            if ( this.usesAffymetrix() )
+                buf.append( "After removing Affy controls\t" ).append( afterAffyControlsFilter ).append( "\n" );
+            if ( config.isMinPresentFractionIsSet() && !config.isIgnoreMinimumSampleThreshold() )
+                buf.append( "After MinPresent\t" ).append( afterMinPresentFilter ).append( "\n" );
+            buf.append( "After ZeroVar\t" ).append( afterZeroVarianceCut ).append( "\n" );
+            if ( config.isLowExpressionCutIsSet() )
+                buf.append( "After LowExpr\t" ).append( afterLowExpressionCut ).append( "\n" );
+            if ( config.isLowVarianceCutIsSet() )
+                buf.append( "After LowVar\t" ).append( afterLowVarianceCut ).append( "\n" );
+            buf.append( "================================================================\n" );
+            ExpressionExperimentFilter.log.info( buf.toString() );
+        }
+    }
+
     private ExpressionDataDoubleMatrix lowExpressionFilter( ExpressionDataDoubleMatrix matrix,
             Map<CompositeSequence, Double> ranks ) {
+        RowLevelFilter rowLevelFilter = this.getLowExpressionFilter( ranks );
+        if ( rowLevelFilter == null ) {
+            return matrix;
+        }
+        return rowLevelFilter.filter( matrix );
+    }
+
+    /**
+     * @return the filter, or null if the ranks are not available.
+     */
+    private RowLevelFilter getLowExpressionFilter( Map<CompositeSequence, Double> ranks ) {
         // check for null ranks, in which case we can't use this.
         for ( Double d : ranks.values() ) {
             if ( d == null ) {
                 ExpressionExperimentFilter.log.info( "Ranks are null -- skipping expression level"
                         + " filtering (This is okay if ranks cannot be computed)" );
-                return matrix;
+                return null;
             }
         }
 
         RowLevelFilter rowLevelFilter = new RowLevelFilter( ranks );
         rowLevelFilter.setLowCut( config.getLowExpressionCut() );
         rowLevelFilter.setHighCut( config.getHighExpressionCut() );
-        return rowLevelFilter.filter( matrix );
+        return rowLevelFilter;
     }
 
     private ExpressionDataDoubleMatrix lowVarianceFilter( ExpressionDataDoubleMatrix matrix ) {
+        return this.getLowVarianceFilter().filter( matrix );
+    }
+
+    private RowLevelFilter getLowVarianceFilter() {
         RowLevelFilter rowLevelFilter = new RowLevelFilter();
         rowLevelFilter.setMethod( Method.VAR );
         rowLevelFilter.setLowCut( config.getLowVarianceCut() );
         rowLevelFilter.setRemoveAllNegative( false );
         rowLevelFilter.setUseAsFraction( true );
-        return rowLevelFilter.filter( matrix );
+        return rowLevelFilter;
     }
 
     /**
@@ -428,7 +735,10 @@ public class ExpressionExperimentFilter {
      */
     private ExpressionDataDoubleMatrix minPresentFilter( ExpressionDataDoubleMatrix matrix ) {
         ExpressionExperimentFilter.log.info( "Filtering out genes that are missing too many values" );
+        return this.getMinPresentFilter().filter( matrix );
+    }
 
+    private RowMissingValueFilter getMinPresentFilter() {
         RowMissingValueFilter rowMissingFilter = new RowMissingValueFilter();
         rowMissingFilter.setMinPresentFraction( config.getMinPresentFraction() );
 
@@ -437,7 +747,7 @@ public class ExpressionExperimentFilter {
          */
         rowMissingFilter.setMinPresentCount( ExpressionExperimentFilter.MIN_NUMBER_OF_SAMPLES_PRESENT );
 
-        return rowMissingFilter.filter( matrix );
+        return rowMissingFilter;
     }
 
     /**
@@ -29,6 +29,7 @@ import ubic.gemma.model.expression.designElement.CompositeSequence;
 
 import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -75,6 +76,36 @@ public class RowLevelFilter implements Filter<ExpressionDataDoubleMatrix> {
 
         int numAllNeg = this.computeCriteria( data, criteria );
 
+        boolean[] keep = this.filterCriteria( criteria, numAllNeg );
+
+        List<CompositeSequence> kept = new ArrayList<>();
+        for ( int i = 0; i < numRows; i++ ) {
+            if ( keep[i] ) {
+                kept.add( data.getDesignElementForRow( i ) );
+            }
+        }
+
+        return new ExpressionDataDoubleMatrix( data, kept );
+    }
+
+    /**
+     * Decide which rows pass the filter, given the criterion for each row.
+     *
+     * @param criteria  the criterion for each row, as computed by {@link #computeCriterion(DoubleArrayList,
+     *                  CompositeSequence)}
+     * @param numAllNeg how many of the rows have only negative or missing values; only used if all-negative rows are
+     *                  to be removed.
+     * @return for each row, whether it is kept
+     */
+    boolean[] filterCriteria( DoubleArrayList criteria, int numAllNeg ) {
+        int numRows = criteria.size();
+        boolean[] keep = new boolean[numRows];
+
+        if ( lowCut == -Double.MAX_VALUE && highCut == Double.MAX_VALUE ) {
+            Arrays.fill( keep, true );
+            return keep;
+        }
+
         DoubleArrayList sortedCriteria = criteria.copy();
         sortedCriteria.sort();
 
@@ -99,19 +130,19 @@ public class RowLevelFilter implements Filter<ExpressionDataDoubleMatrix> {
             throw new RuntimeException( "High cut " + realHighCut + " is lower or same as low cut " + realLowCut );
         }
 
-        List<CompositeSequence> kept = new ArrayList<>();
-
+        int numKept = 0;
         for ( int i = 0; i < numRows; i++ ) {
             // greater than but not equal to realLowCut to account for case when realLowCut = 0 with many ties in
             // values, zeros should always be removed
-            if ( criteria.get( i ) > realLowCut && criteria.get( i ) <= realHighCut ) {
-                kept.add( data.getDesignElementForRow( i ) );
+            keep[i] = criteria.get( i ) > realLowCut && criteria.get( i ) <= realHighCut;
+            if ( keep[i] ) {
+                numKept++;
             }
         }
 
-        this.logInfo( numRows, kept );
+        this.logInfo( numRows, numKept );
 
-        return new ExpressionDataDoubleMatrix( data, kept );
+        return keep;
     }
 
     /**
@@ -200,54 +231,66 @@ public class RowLevelFilter implements Filter<ExpressionDataDoubleMatrix> {
         this.tolerance = Math.abs( tolerance );
     }
 
-    private void addCriterion( DoubleArrayList criteria, DoubleArrayList rowAsList, CompositeSequence designElement,
-            int i ) {
+    /**
+     * Copy a row of data so the criterion can be computed for it.
+     *
+     * @param row       the data
+     * @param rowAsList to copy into, of the same size as the row
+     * @return true if the values are all negative or missing
+     */
+    static boolean copyRow( double[] row, DoubleArrayList rowAsList ) {
+        int numNeg = 0;
+        for ( int j = 0; j < row.length; j++ ) {
+            double item = row[j];
+            rowAsList.set( j, item ); // missing values are left as NaN; we use "stats with missing" classes.
+            if ( item < 0.0 || Double.isNaN( item ) ) {
+                numNeg++;
+            }
+        }
+        return numNeg == row.length;
+    }
+
+    /**
+     * @param rowAsList     the data for the row (not used for RANK)
+     * @param designElement the element for the row
+     * @return the value of the filtering criterion for the row
+     */
+    double computeCriterion( DoubleArrayList rowAsList, CompositeSequence designElement ) {
         switch ( method ) {
             case RANK: {
                 assert ranks != null;
                 if ( ranks.containsKey( designElement ) ) {
-                    criteria.set( i, ranks.get( designElement ) );
-                } else {
-                    throw new IllegalStateException( "No rank was provided for " + designElement
-                            + "; only ProcessedDataVectors have ranks, are you sure you are using the right data?" );
+                    return ranks.get( designElement );
                 }
-                break;
+                throw new IllegalStateException( "No rank was provided for " + designElement
+                        + "; only ProcessedDataVectors have ranks, are you sure you are using the right data?" );
             }
             case MIN: {
-                criteria.set( i, DescriptiveWithMissing.min( rowAsList ) );
-                break;
+                return DescriptiveWithMissing.min( rowAsList );
             }
             case MAX: {
-                criteria.set( i, DescriptiveWithMissing.max( rowAsList ) );
-                break;
+                return DescriptiveWithMissing.max( rowAsList );
             }
             case MEAN: {
-                criteria.set( i, DescriptiveWithMissing.mean( rowAsList ) );
-                break;
+                return DescriptiveWithMissing.mean( rowAsList );
             }
             case MEDIAN: {
-                criteria.set( i, DescriptiveWithMissing.median( rowAsList ) );
-                break;
+                return DescriptiveWithMissing.median( rowAsList );
             }
             case RANGE: {
-                criteria.set( i, Stats.range( rowAsList ) );
-                break;
+                return Stats.range( rowAsList );
             }
             case CV: {
-                criteria.set( i, Stats.cv( rowAsList ) );
-                break;
+                return Stats.cv( rowAsList );
             }
             case VAR: {
-                criteria.set( i, DescriptiveWithMissing.variance( rowAsList ) );
-                break;
+                return DescriptiveWithMissing.variance( rowAsList );
             }
             case DISTINCTVALUES: {
-                criteria.set( i,
-                        Stats.numberofDistinctValues( rowAsList, this.tolerance ) / ( double ) rowAsList.size() );
-                break;
+                return Stats.numberofDistinctValues( rowAsList, this.tolerance ) / ( double ) rowAsList.size();
             }
             default: {
-                break;
+                return 0.0;
             }
         }
     }
@@ -262,25 +305,10 @@ public class RowLevelFilter implements Filter<ExpressionDataDoubleMatrix> {
         DoubleArrayList rowAsList = new DoubleArrayList( new double[numCols] );
         int numAllNeg = 0;
         for ( int i = 0; i < numRows; i++ ) {
-            Double[] row = data.getRow( i );
-            int numNeg = 0;
-            /* stupid, copy into a DoubleArrayList so we can do stats */
-            for ( int j = 0; j < numCols; j++ ) {
-                Double item = row[j];
-                if ( Double.isNaN( item ) )
-                    rowAsList.set( j, Double.NaN ); // previously: we set to zero! Just leave it and use "stats with missing" classes.
-                else
-                    rowAsList.set( j, item );
-
-                if ( item < 0.0 || Double.isNaN( item ) ) {
-                    numNeg++;
-                }
-            }
-            if ( numNeg == numCols ) {
+            if ( RowLevelFilter.copyRow( data.getRawRow( i ), rowAsList ) ) {
                 numAllNeg++;
             }
-
-            this.addCriterion( criteria, rowAsList, data.getDesignElementForRow( i ), i );
+            criteria.set( i, this.computeCriterion( rowAsList, data.getDesignElementForRow( i ) ) );
         }
         return numAllNeg;
     }
@@ -319,8 +347,8 @@ public class RowLevelFilter implements Filter<ExpressionDataDoubleMatrix> {
         return realLowCut;
     }
 
-    private void logInfo( int numRows, List<CompositeSequence> kept ) {
-        if ( kept.size() == 0 ) {
+    private void logInfo( int numRows, int numKept ) {
+        if ( numKept == 0 ) {
             RowLevelFilter.log.warn( "All rows filtered out!" );
             return;
         }
@@ -329,11 +357,11 @@ public class RowLevelFilter implements Filter<ExpressionDataDoubleMatrix> {
             NumberFormat nf = NumberFormat.getNumberInstance();
             nf.setMaximumFractionDigits( 2 );
 
-            double fracFiltered = ( double ) ( numRows - kept.size() ) / numRows;
+            double fracFiltered = ( double ) ( numRows - numKept ) / numRows;
 
             RowLevelFilter.log
-                    .debug( "There are " + kept.size() + " rows left after " + this.method + " filtering. Filtered out "
-                            + ( numRows - kept.size() ) + " rows " + nf.format( 100 * fracFiltered ) + "%" );
+                    .debug( "There are " + numKept + " rows left after " + this.method + " filtering. Filtered out "
+                            + ( numRows - numKept ) + " rows " + nf.format( 100 * fracFiltered ) + "%" );
         }
     }
 
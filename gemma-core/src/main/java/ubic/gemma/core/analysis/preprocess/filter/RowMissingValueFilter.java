@@ -48,11 +48,39 @@ public class RowMissingValueFilter implements Filter<ExpressionDataDoubleMatrix>
     @Override
     public ExpressionDataDoubleMatrix filter( ExpressionDataDoubleMatrix data ) {
         int numRows = data.rows();
-        int numCols = data.columns();
+
+        if ( !this.initMinPresentCount( data.columns() ) ) {
+            RowMissingValueFilter.log.info( "No filtering was requested" );
+            return data;
+        }
+
+        /* first pass - determine how many missing values there are per row */
         IntArrayList present = new IntArrayList( numRows );
+        for ( int i = 0; i < numRows; i++ ) {
+            present.add( this.countPresent( data, i ) );
+        }
+
+        boolean[] keep = this.filterCounts( present );
 
         List<CompositeSequence> kept = new ArrayList<>();
+        for ( int i = 0; i < numRows; i++ ) {
+            if ( keep[i] ) {
+                kept.add( data.getDesignElementForRow( i ) );
+            }
+        }
+
+        return new ExpressionDataDoubleMatrix( data, kept );
+
+    }
 
+    /**
+     * Work out the minimum number of present values from the settings and the number of samples. This must be called
+     * before {@link #filterCounts(IntArrayList)}.
+     *
+     * @param numCols number of columns in the data
+     * @return true if there is filtering to be done
+     */
+    boolean initMinPresentCount( int numCols ) {
         /*
          * Do not allow minPresentFraction to override minPresent if minPresent is higher.
          */
@@ -80,43 +108,60 @@ public class RowMissingValueFilter implements Filter<ExpressionDataDoubleMatrix>
                             + " columns in the matrix." );
         }
 
-        if ( !minPresentIsSet ) {
-            RowMissingValueFilter.log.info( "No filtering was requested" );
-            return data;
+        return minPresentIsSet;
+    }
+
+    /**
+     * @param data the data
+     * @param row  row index
+     * @return how many values in the row are present: not missing, and not called absent if calls were provided.
+     */
+    int countPresent( ExpressionDataDoubleMatrix data, int row ) {
+        /* allow for the possibility that the absent/present matrix is not in the same order, etc. */
+        int absentPresentRow =
+                absentPresentCalls == null ? -1 : absentPresentCalls.getRowIndex( data.getDesignElementForRow( row ) );
+
+        double[] values = data.getRawRow( row );
+        int presentCount = 0;
+        for ( int j = 0; j < values.length; j++ ) {
+            boolean callIsPresent = true;
+            if ( absentPresentRow >= 0 ) {
+                callIsPresent = absentPresentCalls.get( absentPresentRow, j );
+            }
+            if ( !Double.isNaN( values[j] ) && callIsPresent ) {
+                presentCount++;
+            }
         }
+        return presentCount;
+    }
 
-        /* first pass - determine how many missing values there are per row */
+    /**
+     * Decide which rows pass the filter.
+     *
+     * @param present for each row, the number of present values, as computed by
+     *                {@link #countPresent(ExpressionDataDoubleMatrix, int)}
+     * @return for each row, whether it is kept
+     */
+    boolean[] filterCounts( IntArrayList present ) {
+        int numRows = present.size();
+        boolean[] keep = new boolean[numRows];
+        int numKept = 0;
         for ( int i = 0; i < numRows; i++ ) {
-            CompositeSequence designElementForRow = data.getDesignElementForRow( i );
-
-            /* allow for the possibility that the absent/present matrix is not in the same order, etc. */
-            int absentPresentRow =
-                    absentPresentCalls == null ? -1 : absentPresentCalls.getRowIndex( designElementForRow );
-
-            int presentCount = 0;
-            for ( int j = 0; j < numCols; j++ ) {
-                boolean callIsPresent = true;
-                if ( absentPresentRow >= 0 ) {
-                    callIsPresent = absentPresentCalls.get( absentPresentRow, j );
-                }
-                if ( !Double.isNaN( data.get( i, j ) ) && callIsPresent ) {
-                    presentCount++;
-                }
-            }
-            present.add( presentCount );
-            if ( presentCount >= RowMissingValueFilter.ABSOLUTE_MIN_PRESENT && presentCount >= minPresentCount ) {
-                kept.add( designElementForRow );
+            if ( present.get( i ) >= RowMissingValueFilter.ABSOLUTE_MIN_PRESENT
+                    && present.get( i ) >= minPresentCount ) {
+                keep[i] = true;
+                numKept++;
             }
         }
 
         /* decide whether we need to invoke the 'too many removed' clause, to avoid removing too many rows. */
-        if ( maxFractionRemoved != 0.0 && kept.size() < numRows * ( 1.0 - maxFractionRemoved ) ) {
+        if ( maxFractionRemoved != 0.0 && numKept < numRows * ( 1.0 - maxFractionRemoved ) ) {
             IntArrayList sortedPresent = present.copy();
             sortedPresent.sort();
             sortedPresent.reverse();
 
             RowMissingValueFilter.log
-                    .info( "There are " + kept.size() + " rows that meet criterion of at least " + minPresentCount
+                    .info( "There are " + numKept + " rows that meet criterion of at least " + minPresentCount
                             + " non-missing values, but that's too many given the max fraction of " + maxFractionRemoved
                             + "; minPresent adjusted to " + sortedPresent
                             .get( ( int ) ( numRows * ( maxFractionRemoved ) ) ) );
@@ -125,23 +170,20 @@ public class RowMissingValueFilter implements Filter<ExpressionDataDoubleMatrix>
 
             // Do another pass to add rows we missed before.
             for ( int i = 0; i < numRows; i++ ) {
-                if ( present.get( i ) >= minPresentCount
+                if ( !keep[i] && present.get( i ) >= minPresentCount
                         && present.get( i ) >= RowMissingValueFilter.ABSOLUTE_MIN_PRESENT ) {
-                    CompositeSequence designElementForRow = data.getDesignElementForRow( i );
-                    if ( kept.contains( designElementForRow ) )
-                        continue;
-                    kept.add( designElementForRow );
+                    keep[i] = true;
+                    numKept++;
                 }
             }
 
         }
 
         RowMissingValueFilter.log
-                .info( "Retaining " + kept.size() + " rows that meet criterion of at least " + minPresentCount
+                .info( "Retaining " + numKept + " rows that meet criterion of at least " + minPresentCount
                         + " non-missing values" );
 
-        return new ExpressionDataDoubleMatrix( data, kept );
-
+        return keep;
     }
 
     /**
@@ -42,7 +42,7 @@ public class RowsWithSequencesFilter implements Filter<ExpressionDataDoubleMatri
         int numRows = dataMatrix.rows();
         for ( int i = 0; i < numRows; i++ ) {
             CompositeSequence cs = dataMatrix.getDesignElementForRow( i );
-            if ( cs.getBiologicalCharacteristic() != null ) {
+            if ( this.accept( cs ) ) {
                 kept.add( cs );
             }
         }
@@ -53,4 +53,12 @@ public class RowsWithSequencesFilter implements Filter<ExpressionDataDoubleMatri
         return new ExpressionDataDoubleMatrix( dataMatrix, kept );
     }
 
+    /**
+     * @param cs the element for a row
+     * @return true if the row passes the filter
+     */
+    boolean accept( CompositeSequence cs ) {
+        return cs.getBiologicalCharacteristic() != null;
+    }
+
 }
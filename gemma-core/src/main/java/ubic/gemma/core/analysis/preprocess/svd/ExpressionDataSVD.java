@@ -50,6 +50,9 @@ import java.util.List;
  * V matrix columns are the <em>eigengenes</em>. See also http://genome-www.stanford.edu/SVD/.
  * Because SVD can't be done on a matrix with missing values, values are imputed. Rows with no variance are removed, and
  * rows with too many missing values are also removed (MIN_PRESENT_FRACTION_FOR_ROW)
+ * If only the leading components are needed, the decomposition can be truncated (see
+ * {@link #ExpressionDataSVD(ExpressionDataDoubleMatrix, boolean, int)}): this is much faster and uses much less memory
+ * for data with many rows, but the methods that reconstruct the data are then not available.
  *
  * @author paul
  */
@@ -58,7 +61,11 @@ public class ExpressionDataSVD {
 
     private static final double MIN_PRESENT_FRACTION_FOR_ROW = 0.75;
     DenseDoubleMatrix2D missingValueInfo;
-    SingularValueDecomposition<CompositeSequence, BioMaterial> svd;
+    private DoubleMatrix<CompositeSequence, Integer> u;
+    private DoubleMatrix<Integer, BioMaterial> v;
+    private DoubleMatrix<Integer, Integer> s;
+    private double[] singularValues;
+    private boolean truncated = false;
     private ExpressionDataDoubleMatrix expressionData;
     private boolean normalized = false;
 
@@ -77,6 +84,19 @@ public class ExpressionDataSVD {
      *                        rows and columns ("double-standardized")
      */
     public ExpressionDataSVD( ExpressionDataDoubleMatrix expressionData, boolean normalizeMatrix ) {
+        this( expressionData, normalizeMatrix, 0 );
+    }
+
+    /**
+     * @param expressionData  Note that this may be modified!
+     * @param normalizeMatrix If true, the data matrix will be rescaled and centred to mean zero, variance one, for both
+     *                        rows and columns ("double-standardized")
+     * @param numComponents   If greater than zero, only this many eigensamples (columns of U) are computed; the
+     *                        singular values and eigengenes are still all available. Otherwise the full decomposition
+     *                        is done.
+     */
+    public ExpressionDataSVD( ExpressionDataDoubleMatrix expressionData, boolean normalizeMatrix,
+            int numComponents ) {
         this.expressionData = expressionData;
 
         ArrayDesign arrayDesign = expressionData.getRowElement( 0 ).getDesignElement().getArrayDesign();
@@ -124,18 +144,31 @@ public class ExpressionDataSVD {
         //        }
 
         this.normalized = normalizeMatrix;
-        DoubleMatrix<CompositeSequence, BioMaterial> matrix = this.expressionData.getMatrix();
+        DoubleMatrix<CompositeSequence, BioMaterial> matrix = this.imputeMissing();
 
         assert matrix.getRowNames().size() > 0;
         assert matrix.getColNames().size() > 0;
 
-        this.imputeMissing( matrix );
-
         if ( normalizeMatrix ) {
             matrix = MatrixStats.doubleStandardize( matrix );
         }
 
-        this.svd = new SingularValueDecomposition<>( matrix );
+        if ( numComponents > 0 ) {
+            TruncatedSingularValueDecomposition<CompositeSequence, BioMaterial> svd =
+                    new TruncatedSingularValueDecomposition<>( matrix, numComponents );
+            this.u = svd.getU();
+            this.v = svd.getV();
+            this.s = svd.getS();
+            this.singularValues = svd.getSingularValues();
+            this.truncated = true;
+        } else {
+            SingularValueDecomposition<CompositeSequence, BioMaterial> svd = new SingularValueDecomposition<>(
+                    matrix );
+            this.u = svd.getU();
+            this.v = svd.getV();
+            this.s = svd.getS();
+            this.singularValues = svd.getSingularValues();
+        }
     }
 
     /**
@@ -145,26 +178,23 @@ public class ExpressionDataSVD {
      * @return the reconstructed matrix; values that were missing before are re-masked.
      */
     public ExpressionDataDoubleMatrix equalize() {
-        DoubleMatrix<Integer, Integer> copy = svd.getS().copy();
+        this.checkNotTruncated();
+        DoubleMatrix<Integer, Integer> copy = s.copy();
 
         for ( int i = 0; i < copy.columns(); i++ ) {
             copy.set( i, i, 1.0 );
         }
 
-        double[][] rawU = svd.getU().getRawMatrix();
-        double[][] rawS = copy.getRawMatrix();
-        double[][] rawV = svd.getV().getRawMatrix();
-
-        DoubleMatrix2D u = new DenseDoubleMatrix2D( rawU );
-        DoubleMatrix2D s = new DenseDoubleMatrix2D( rawS );
-        DoubleMatrix2D v = new DenseDoubleMatrix2D( rawV );
+        DoubleMatrix2D uc = new DenseDoubleMatrix2D( u.getRawMatrix() );
+        DoubleMatrix2D sc = new DenseDoubleMatrix2D( copy.getRawMatrix() );
+        DoubleMatrix2D vc = new DenseDoubleMatrix2D( v.getRawMatrix() );
 
         Algebra a = new Algebra();
         DoubleMatrix<CompositeSequence, BioMaterial> reconstructed = new DenseDoubleMatrix<>(
-                a.mult( a.mult( u, s ), a.transpose( v ) ).toArray() );
+                a.mult( a.mult( uc, sc ), a.transpose( vc ) ).toArray() );
 
-        reconstructed.setRowNames( this.expressionData.getMatrix().getRowNames() );
-        reconstructed.setColumnNames( this.expressionData.getMatrix().getColNames() );
+        reconstructed.setRowNames( this.expressionData.getRowNames() );
+        reconstructed.setColumnNames( this.expressionData.getColumnNames() );
 
         // re-mask the missing values.
         for ( int i = 0; i < reconstructed.rows(); i++ ) {
@@ -211,7 +241,7 @@ public class ExpressionDataSVD {
      * @return how many rows the U matrix has.
      */
     public int getNumVariables() {
-        return this.svd.getU().rows();
+        return this.u.rows();
     }
 
     /**
@@ -219,18 +249,18 @@ public class ExpressionDataSVD {
      *         from 0).
      */
     public DoubleMatrix<Integer, Integer> getS() {
-        return svd.getS();
+        return s;
     }
 
     public double[] getSingularValues() {
-        return this.svd.getSingularValues();
+        return this.singularValues;
     }
 
     /**
      * @return the left singular vectors. The column indices are of the eigenarrays (starting from 0).
      */
     public DoubleMatrix<CompositeSequence, Integer> getU() {
-        return svd.getU();
+        return u;
     }
 
     /**
@@ -238,14 +268,14 @@ public class ExpressionDataSVD {
      *         are of the original samples in the given ExpressionDataDoubleMatrix.
      */
     public DoubleMatrix<Integer, BioMaterial> getV() {
-        return svd.getV();
+        return v;
     }
 
     /**
      * @return fractions of the variance for each singular vector.
      */
     public Double[] getVarianceFractions() {
-        double[] singularValues = svd.getSingularValues();
+        double[] singularValues = this.getSingularValues();
         // d should be be square roots of the eigenvalues scaled by number of variables: check
 
         int numVariables = this.getNumVariables();
@@ -273,26 +303,23 @@ public class ExpressionDataSVD {
      * @return                       the reconstructed matrix; values that were missing before are re-masked.
      */
     public ExpressionDataDoubleMatrix removeHighestComponents( int numComponentsToRemove ) {
-        DoubleMatrix<Integer, Integer> copy = svd.getS().copy();
+        this.checkNotTruncated();
+        DoubleMatrix<Integer, Integer> copy = s.copy();
 
         for ( int i = 0; i < numComponentsToRemove; i++ ) {
             copy.set( i, i, 0.0 );
         }
 
-        double[][] rawU = svd.getU().getRawMatrix();
-        double[][] rawS = copy.getRawMatrix();
-        double[][] rawV = svd.getV().getRawMatrix();
-
-        DoubleMatrix2D u = new DenseDoubleMatrix2D( rawU );
-        DoubleMatrix2D s = new DenseDoubleMatrix2D( rawS );
-        DoubleMatrix2D v = new DenseDoubleMatrix2D( rawV );
+        DoubleMatrix2D uc = new DenseDoubleMatrix2D( u.getRawMatrix() );
+        DoubleMatrix2D sc = new DenseDoubleMatrix2D( copy.getRawMatrix() );
+        DoubleMatrix2D vc = new DenseDoubleMatrix2D( v.getRawMatrix() );
 
         Algebra a = new Algebra();
         DoubleMatrix<CompositeSequence, BioMaterial> reconstructed = new DenseDoubleMatrix<>(
-                a.mult( a.mult( u, s ), a.transpose( v ) ).toArray() );
+                a.mult( a.mult( uc, sc ), a.transpose( vc ) ).toArray() );
 
-        reconstructed.setRowNames( this.expressionData.getMatrix().getRowNames() );
-        reconstructed.setColumnNames( this.expressionData.getMatrix().getColNames() );
+        reconstructed.setRowNames( this.expressionData.getRowNames() );
+        reconstructed.setColumnNames( this.expressionData.getColumnNames() );
 
         // re-mask the missing values.
         for ( int i = 0; i < reconstructed.rows(); i++ ) {
@@ -321,8 +348,9 @@ public class ExpressionDataSVD {
         if ( !normalized ) {
             throw new IllegalStateException( "You must do SVD on the normalized matrix" );
         }
+        this.checkNotTruncated();
 
-        DoubleMatrix<CompositeSequence, Integer> rawUMatrix = svd.getU();
+        DoubleMatrix<CompositeSequence, Integer> rawUMatrix = u;
 
         DoubleMatrix<CompositeSequence, BioMaterial> result = new DenseDoubleMatrix<>( rawUMatrix.rows(),
                 rawUMatrix.columns() );
@@ -333,7 +361,7 @@ public class ExpressionDataSVD {
                 result.set( i, j, Math.abs( rawUMatrix.get( i, j ) ) );
             }
         }
-        List<BioMaterial> colNames = svd.getV().getColNames();
+        List<BioMaterial> colNames = v.getColNames();
 
         result.setColumnNames( colNames );
         result.setRowNames( rawUMatrix.getRowNames() );
@@ -354,6 +382,7 @@ public class ExpressionDataSVD {
         if ( thresholdQuantile <= 0 || thresholdQuantile >= 1 ) {
             throw new IllegalArgumentException( "Threshold quantile should be a value between 0 and 1 exclusive" );
         }
+        this.checkNotTruncated();
 
         class NormCmp implements Comparable<NormCmp> {
             private Double norm;
@@ -421,33 +450,49 @@ public class ExpressionDataSVD {
             keepers.add( d );
         }
 
-        // remove genes which are near the origin in SVD space. FIXME: make sure the missing values are still masked.
+        // remove genes which are near the origin in SVD space. The missing values are still masked, as imputation was
+        // done on a copy.
         return new ExpressionDataDoubleMatrix( this.expressionData, keepers );
 
     }
 
+    private void checkNotTruncated() {
+        if ( truncated ) {
+            throw new IllegalStateException( "This needs the full SVD, but only the leading components were computed" );
+        }
+    }
+
     /**
      * Simple imputation method. Generally (but not always), missing values correspond to "low expression". Therefore
      * imputed values of zero are defensible. However, because at this point the matrix has probably already been
      * filtered, the row mean is better.
+     * <p>
+     * The data are copied a row at a time into the matrix to decompose, so the data matrix is neither modified nor
+     * copied as a whole. The missing values are kept track of so they can be re-masked later.
+     * </p>
+     *
+     * @return the matrix to decompose
      */
-    private void imputeMissing( DoubleMatrix<CompositeSequence, BioMaterial> matrix ) {
-        /*
-         * keep track of the missing values so they can be re-masked later.
-         */
-        missingValueInfo = new DenseDoubleMatrix2D( matrix.rows(), matrix.columns() );
-        for ( int i = 0; i < matrix.rows(); i++ ) {
-            DoubleArrayList v = new DoubleArrayList( matrix.getRow( i ) );
-            double m = DescriptiveWithMissing.mean( v );
-            for ( int j = 0; j < matrix.columns(); j++ ) {
-                double d = matrix.get( i, j );
-                if ( Double.isNaN( d ) ) {
+    private DoubleMatrix<CompositeSequence, BioMaterial> imputeMissing() {
+        int rows = this.expressionData.rows();
+        int columns = this.expressionData.columns();
+        DoubleMatrix<CompositeSequence, BioMaterial> matrix = new DenseDoubleMatrix<>( rows, columns );
+        matrix.setRowNames( this.expressionData.getRowNames() );
+        matrix.setColumnNames( this.expressionData.getColumnNames() );
+        missingValueInfo = new DenseDoubleMatrix2D( rows, columns );
+        for ( int i = 0; i < rows; i++ ) {
+            double[] row = this.expressionData.getRawRow( i );
+            double m = DescriptiveWithMissing.mean( new DoubleArrayList( row ) );
+            for ( int j = 0; j < columns; j++ ) {
+                if ( Double.isNaN( row[j] ) ) {
                     missingValueInfo.set( i, j, Double.NaN );
                     matrix.set( i, j, m );
                 } else {
                     missingValueInfo.set( i, j, 1.0 );
+                    matrix.set( i, j, row[j] );
                 }
             }
         }
+        return matrix;
     }
 }
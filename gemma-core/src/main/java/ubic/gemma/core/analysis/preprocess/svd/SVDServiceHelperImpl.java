@@ -45,6 +45,7 @@ import ubic.gemma.persistence.service.common.auditAndSecurity.AuditTrailService;
 import ubic.gemma.persistence.service.expression.bioAssayData.ProcessedExpressionDataVectorService;
 import ubic.gemma.persistence.service.expression.experiment.ExpressionExperimentService;
 import ubic.gemma.persistence.util.EntityUtils;
+import ubic.gemma.persistence.util.Settings;
 
 import java.util.*;
 
@@ -67,6 +68,12 @@ public class SVDServiceHelperImpl implements SVDServiceHelper {
      */
     private static final int MAX_NUM_COMPONENTS_TO_PERSIST = 5;
 
+    /**
+     * If true, only the loadings of the components that are stored are computed, which is much faster for large data
+     * sets.
+     */
+    private static final boolean TRUNCATED_SVD = Settings.getBoolean( "gemma.svd.truncated", false );
+
     private static final int MINIMUM_POINTS_TO_COMPARE_TO_EIGEN_GENE = 3;
 
     private static final int MAX_EIGEN_GENES_TO_TEST = 5;
@@ -155,7 +162,8 @@ public class SVDServiceHelperImpl implements SVDServiceHelper {
         ExpressionDataDoubleMatrix mat = new ExpressionDataDoubleMatrix( vectors );
 
         SVDServiceHelperImpl.log.info( "Starting SVD" );
-        ExpressionDataSVD svd = new ExpressionDataSVD( mat );
+        ExpressionDataSVD svd = new ExpressionDataSVD( mat, true,
+                SVDServiceHelperImpl.TRUNCATED_SVD ? SVDServiceHelperImpl.MAX_NUM_COMPONENTS_TO_PERSIST : 0 );
 
         SVDServiceHelperImpl.log.info( "SVD done, postprocessing and storing results." );
 
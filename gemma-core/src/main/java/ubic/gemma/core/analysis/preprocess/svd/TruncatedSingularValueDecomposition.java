@@ -0,0 +1,179 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2021 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.analysis.preprocess.svd;
+
+import cern.colt.matrix.DoubleMatrix2D;
+import cern.colt.matrix.impl.DenseDoubleMatrix2D;
+import cern.colt.matrix.linalg.EigenvalueDecomposition;
+import ubic.basecode.dataStructure.matrix.DenseDoubleMatrix;
+import ubic.basecode.dataStructure.matrix.DoubleMatrix;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * SVD of a matrix with many more rows than columns, E = U S V', computing only the leading columns of U. The
+ * decomposition is obtained from the eigenvectors of the columns x columns cross-product matrix E'E, which is built
+ * one row at a time; its eigenvalues are the squared singular values, and its eigenvectors are V. The wanted columns
+ * of U are then E V S^-1. Memory is therefore proportional to columns^2 plus rows x the number of components, and the
+ * input is read twice.
+ * All singular values and all of V are available. Precision of the smallest singular values is lower than with a full
+ * decomposition (they are obtained from their squares), but the leading components are not affected in practice.
+ * The results are named the same way as {@link ubic.basecode.math.linalg.SingularValueDecomposition}. As with any SVD,
+ * the signs of the singular vectors are arbitrary.
+ *
+ * @param <R> row type
+ * @param <C> column type
+ */
+class TruncatedSingularValueDecomposition<R, C> {
+
+    private final DoubleMatrix<R, Integer> u;
+    private final DoubleMatrix<Integer, C> v;
+    private final DoubleMatrix<Integer, Integer> s;
+    private final double[] singularValues;
+
+    /**
+     * @param matrix        the data; must have no missing values.
+     * @param numComponents how many columns of U to compute; at most the number of columns of the matrix are.
+     */
+    TruncatedSingularValueDecomposition( DoubleMatrix<R, C> matrix, int numComponents ) {
+        if ( numComponents < 1 ) {
+            throw new IllegalArgumentException( "Must compute at least one component" );
+        }
+
+        int m = matrix.rows();
+        int n = matrix.columns();
+        int k = Math.min( numComponents, n );
+
+        /*
+         * E'E, upper triangle only, then filled in.
+         */
+        double[][] crossProduct = new double[n][n];
+        for ( int i = 0; i < m; i++ ) {
+            double[] row = matrix.getRow( i );
+            for ( int a = 0; a < n; a++ ) {
+                double ra = row[a];
+                if ( ra == 0.0 ) {
+                    continue;
+                }
+                double[] cpa = crossProduct[a];
+                for ( int b = a; b < n; b++ ) {
+                    cpa[b] += ra * row[b];
+                }
+            }
+        }
+        for ( int a = 0; a < n; a++ ) {
+            for ( int b = 0; b < a; b++ ) {
+                crossProduct[a][b] = crossProduct[b][a];
+            }
+        }
+
+        EigenvalueDecomposition eigen = new EigenvalueDecomposition( new DenseDoubleMatrix2D( crossProduct ) );
+        final double[] eigenvalues = eigen.getRealEigenvalues().toArray();
+        DoubleMatrix2D eigenvectors = eigen.getV();
+
+        Integer[] order = new Integer[n];
+        for ( int c = 0; c < n; c++ ) {
+            order[c] = c;
+        }
+        Arrays.sort( order, new Comparator<Integer>() {
+            @Override
+            public int compare( Integer o1, Integer o2 ) {
+                return Double.compare( eigenvalues[o2], eigenvalues[o1] );
+            }
+        } );
+
+        this.singularValues = new double[n];
+        this.v = new DenseDoubleMatrix<>( n, n );
+        this.s = new DenseDoubleMatrix<>( n, n );
+        for ( int c = 0; c < n; c++ ) {
+            // rounding can make the eigenvalues of a rank-deficient matrix slightly negative.
+            singularValues[c] = Math.sqrt( Math.max( 0.0, eigenvalues[order[c]] ) );
+            s.set( c, c, singularValues[c] );
+            for ( int r = 0; r < n; r++ ) {
+                v.set( r, c, eigenvectors.getQuick( r, order[c] ) );
+            }
+        }
+
+        double[][] leading = new double[k][];
+        for ( int c = 0; c < k; c++ ) {
+            leading[c] = v.getColumn( c );
+        }
+        this.u = new DenseDoubleMatrix<>( m, k );
+        for ( int i = 0; i < m; i++ ) {
+            double[] row = matrix.getRow( i );
+            for ( int c = 0; c < k; c++ ) {
+                if ( singularValues[c] == 0.0 ) {
+                    continue;
+                }
+                double sum = 0.0;
+                for ( int a = 0; a < n; a++ ) {
+                    sum += row[a] * leading[c][a];
+                }
+                u.set( i, c, sum / singularValues[c] );
+            }
+        }
+
+        List<Integer> componentNames = TruncatedSingularValueDecomposition.indices( n );
+        u.setRowNames( matrix.getRowNames() );
+        u.setColumnNames( TruncatedSingularValueDecomposition.indices( k ) );
+        v.setRowNames( componentNames );
+        v.setColumnNames( matrix.getColNames() );
+        s.setRowNames( componentNames );
+        s.setColumnNames( componentNames );
+    }
+
+    /**
+     * @return the leading left singular vectors, one column per component.
+     */
+    DoubleMatrix<R, Integer> getU() {
+        return u;
+    }
+
+    /**
+     * @return all right singular vectors, one column per component.
+     */
+    DoubleMatrix<Integer, C> getV() {
+        return v;
+    }
+
+    /**
+     * @return all singular values, on the diagonal.
+     */
+    DoubleMatrix<Integer, Integer> getS() {
+        return s;
+    }
+
+    /**
+     * @return all singular values, in decreasing order.
+     */
+    double[] getSingularValues() {
+        return singularValues;
+    }
+
+    private static List<Integer> indices( int n ) {
+        List<Integer> result = new ArrayList<>( n );
+        for ( int i = 0; i < n; i++ ) {
+            result.add( i );
+        }
+        return result;
+    }
+}
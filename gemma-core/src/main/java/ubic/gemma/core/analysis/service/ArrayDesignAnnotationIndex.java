@@ -0,0 +1,251 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2021 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.analysis.service;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.time.StopWatch;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import ubic.basecode.util.FileTools;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The gene columns of a platform annotation file, in a binary file that is memory-mapped, so the annotations of a
+ * platform can be looked up by probe name without reading the text file again or holding them all on the heap.
+ * <p>
+ * The binary file starts with a header recording the modification time and length of the annotation file it was made
+ * from, so it can be told when it is out of date. Then comes the offset of each probe's record, in order of probe name,
+ * then the records: for each probe, its name, gene symbols, gene names, Gemma gene ids and NCBI ids, each as a length
+ * (-1 for a missing value) followed by UTF-8 bytes.
+ * </p>
+ * Lookups are thread-safe.
+ */
+public class ArrayDesignAnnotationIndex {
+
+    /**
+     * Values kept for each probe, as returned by {@link #get(String)}: probe name, gene symbol(s), gene name(s), Gemma
+     * gene id(s), NCBI id(s).
+     */
+    public static final int FIELDS_PER_PROBE = 5;
+
+    private static final int MAGIC = 0x47414e58;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4;
+    private static final String COMMENT_CHARACTER = "#";
+    private static final String HEADER_FIRST_COLUMN = "ProbeName";
+    private static final Log log = LogFactory.getLog( ArrayDesignAnnotationIndex.class );
+
+    private final ByteBuffer buffer;
+    private final long sourceLastModified;
+    private final long sourceLength;
+    private final int size;
+    private final int dataStart;
+
+    private ArrayDesignAnnotationIndex( ByteBuffer buffer ) throws IOException {
+        if ( buffer.limit() < ArrayDesignAnnotationIndex.HEADER_SIZE
+                || buffer.getInt( 0 ) != ArrayDesignAnnotationIndex.MAGIC
+                || buffer.getInt( 4 ) != ArrayDesignAnnotationIndex.VERSION ) {
+            throw new IOException( "Not an annotation index, or from a different version" );
+        }
+        this.buffer = buffer;
+        this.sourceLastModified = buffer.getLong( 8 );
+        this.sourceLength = buffer.getLong( 16 );
+        this.size = buffer.getInt( 24 );
+        this.dataStart = ArrayDesignAnnotationIndex.HEADER_SIZE + 4 * size;
+    }
+
+    /**
+     * Parse an annotation file and write its gene columns to an index file, replacing any that is there.
+     *
+     * @param  annotationFile annotation file, plain or gzipped
+     * @param  indexFile      index file to write
+     * @return the index, mapped from the new file
+     * @throws IOException if a file could not be read or written
+     */
+    public static ArrayDesignAnnotationIndex build( File annotationFile, File indexFile ) throws IOException {
+        StopWatch timer = new StopWatch();
+        timer.start();
+        long lastModified = annotationFile.lastModified();
+        long length = annotationFile.length();
+
+        Map<String, String[]> probes = ArrayDesignAnnotationIndex.readAnnotationFile( annotationFile );
+
+        File parent = indexFile.getAbsoluteFile().getParentFile();
+        if ( !parent.exists() && !parent.mkdirs() && !parent.exists() ) {
+            throw new IOException( "Could not create " + parent );
+        }
+        File tmp = File.createTempFile( indexFile.getName(), ".tmp", parent );
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream( new FileOutputStream( tmp ) ) )) {
+                out.writeInt( ArrayDesignAnnotationIndex.MAGIC );
+                out.writeInt( ArrayDesignAnnotationIndex.VERSION );
+                out.writeLong( lastModified );
+                out.writeLong( length );
+                out.writeInt( probes.size() );
+                int offset = 0;
+                for ( String[] fields : probes.values() ) {
+                    out.writeInt( offset );
+                    for ( String field : fields ) {
+                        offset += 4 + ( field == null ? 0 : field.getBytes( StandardCharsets.UTF_8 ).length );
+                    }
+                }
+                for ( String[] fields : probes.values() ) {
+                    for ( String field : fields ) {
+                        if ( field == null ) {
+                            out.writeInt( -1 );
+                        } else {
+                            byte[] bytes = field.getBytes( StandardCharsets.UTF_8 );
+                            out.writeInt( bytes.length );
+                            out.write( bytes );
+                        }
+                    }
+                }
+            }
+            Files.move( tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE );
+        } finally {
+            if ( tmp.exists() && !tmp.delete() ) {
+                ArrayDesignAnnotationIndex.log.warn( "Could not delete " + tmp );
+            }
+        }
+
+        ArrayDesignAnnotationIndex.log
+                .info( "Indexed annotations for " + probes.size() + " probes from " + annotationFile + " in " + timer
+                        .getTime() + "ms" );
+        return ArrayDesignAnnotationIndex.open( indexFile );
+    }
+
+    /**
+     * @param  indexFile index file
+     * @return the index, mapped from the file
+     * @throws IOException if the file could not be read, or is not an index
+     */
+    public static ArrayDesignAnnotationIndex open( File indexFile ) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile( indexFile, "r" );
+                FileChannel channel = raf.getChannel()) {
+            // the mapping stays valid once the channel is closed
+            MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+            return new ArrayDesignAnnotationIndex( buffer );
+        }
+    }
+
+    /**
+     * Reads the gene columns in the same way as {@link ArrayDesignAnnotationServiceImpl#readAnnotationFileAsString},
+     * skipping the header line; if a probe is listed more than once, the last line wins.
+     */
+    private static Map<String, String[]> readAnnotationFile( File annotationFile ) throws IOException {
+        Map<String, String[]> probes = new TreeMap<>();
+        try (InputStream is = FileTools.getInputStreamFromPlainOrCompressedFile( annotationFile.getAbsolutePath() );
+                BufferedReader br = new BufferedReader( new InputStreamReader( is ) )) {
+            String line;
+            while ( ( line = br.readLine() ) != null ) {
+                if ( StringUtils.isBlank( line ) || line
+                        .startsWith( ArrayDesignAnnotationIndex.COMMENT_CHARACTER ) ) {
+                    continue;
+                }
+                String[] fields = StringUtils.splitPreserveAllTokens( line, '\t' );
+                if ( fields.length < 3 )
+                    continue; // means there are no gene annotations.
+                if ( probes.isEmpty() && fields[0].equals( ArrayDesignAnnotationIndex.HEADER_FIRST_COLUMN ) )
+                    continue;
+
+                String[] probe = new String[ArrayDesignAnnotationIndex.FIELDS_PER_PROBE];
+                probe[0] = fields[0]; // Probe Name
+                probe[1] = fields[1]; // Gene Symbol(s)
+                probe[2] = fields[2]; // Gene Name
+                // fields[3] is the GO annotations, we skip that.
+                if ( fields.length > 4 ) {
+                    probe[3] = fields[4]; // Gemma Id
+                }
+                if ( fields.length > 5 ) {
+                    probe[4] = fields[5]; // NCBI id.
+                }
+                probes.put( probe[0], probe );
+            }
+        }
+        return probes;
+    }
+
+    /**
+     * @param  annotationFile the annotation file this was made from
+     * @return true if the file has not changed since
+     */
+    public boolean isCurrent( File annotationFile ) {
+        return annotationFile.lastModified() == sourceLastModified && annotationFile.length() == sourceLength;
+    }
+
+    /**
+     * @param  probeName probe name
+     * @return the annotations of the probe: [probe name, gene symbol(s), gene name(s), Gemma gene id(s), NCBI id(s)],
+     *         or null if the annotation file does not list it
+     */
+    public String[] get( String probeName ) {
+        if ( probeName == null ) {
+            return null;
+        }
+        ByteBuffer b = buffer.duplicate();
+        int low = 0;
+        int high = size - 1;
+        while ( low <= high ) {
+            int mid = ( low + high ) >>> 1;
+            b.position( dataStart + buffer.getInt( ArrayDesignAnnotationIndex.HEADER_SIZE + 4 * mid ) );
+            int c = ArrayDesignAnnotationIndex.readString( b ).compareTo( probeName );
+            if ( c < 0 ) {
+                low = mid + 1;
+            } else if ( c > 0 ) {
+                high = mid - 1;
+            } else {
+                String[] result = new String[ArrayDesignAnnotationIndex.FIELDS_PER_PROBE];
+                result[0] = probeName;
+                for ( int i = 1; i < result.length; i++ ) {
+                    result[i] = ArrayDesignAnnotationIndex.readString( b );
+                }
+                return result;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return number of probes listed
+     */
+    public int size() {
+        return size;
+    }
+
+    private static String readString( ByteBuffer b ) {
+        int length = b.getInt();
+        if ( length < 0 ) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        b.get( bytes );
+        return new String( bytes, StandardCharsets.UTF_8 );
+    }
+}
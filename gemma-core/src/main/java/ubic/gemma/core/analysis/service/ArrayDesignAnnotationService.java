@@ -59,6 +59,17 @@ public interface ArrayDesignAnnotationService {
 
     void deleteExistingFiles( ArrayDesign arrayDesign );
 
+    /**
+     * Get an index of the gene annotations of the platform's probes, made from the same annotation file that
+     * {@link ArrayDesignAnnotationServiceImpl#readAnnotationFileAsString(ArrayDesign)} reads. The index is made the
+     * first time it is needed, and again when the annotation file changes. It is kept on disk and shared by callers,
+     * so exporting the data of many experiments on one platform only reads the annotation file once.
+     *
+     * @param  arrayDesign platform
+     * @return the index, or null if there is no annotation file for the platform
+     */
+    ArrayDesignAnnotationIndex getAnnotationIndex( ArrayDesign arrayDesign );
+
     /**
      * Create (or update) all the annotation files for the given platform. Side effect: any expression experiment data
      * files that use this platform will be deleted.
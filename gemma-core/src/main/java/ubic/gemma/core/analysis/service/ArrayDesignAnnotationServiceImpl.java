@@ -55,6 +55,10 @@ import java.util.zip.GZIPOutputStream;
 public class ArrayDesignAnnotationServiceImpl implements ArrayDesignAnnotationService {
 
     private static final String COMMENT_CHARACTER = "#";
+    /**
+     * Where the indexes made from the annotation files are kept.
+     */
+    private static final String INDEX_DIR = ArrayDesignAnnotationService.ANNOT_DATA_DIR + "index" + File.separatorChar;
     private static final Log log = LogFactory.getLog( ArrayDesignAnnotationServiceImpl.class.getName() );
 
     public static File getFileName( String fileBaseName ) {
@@ -114,29 +118,9 @@ public class ArrayDesignAnnotationServiceImpl implements ArrayDesignAnnotationSe
      */
     public static Map<Long, String[]> readAnnotationFileAsString( ArrayDesign arrayDesign ) {
         Map<Long, String[]> results = new HashMap<>();
-        File f = new File( ArrayDesignAnnotationService.ANNOT_DATA_DIR + ArrayDesignAnnotationServiceImpl
-                .mungeFileName( arrayDesign.getShortName() ) + ArrayDesignAnnotationService.STANDARD_FILE_SUFFIX
-                + ArrayDesignAnnotationService.ANNOTATION_FILE_SUFFIX );
-        if ( !f.canRead() ) {
-            /*
-             * Look for more files.
-             */
-            f = new File( ArrayDesignAnnotationService.ANNOT_DATA_DIR + ArrayDesignAnnotationServiceImpl
-                    .mungeFileName( arrayDesign.getShortName() ) + ArrayDesignAnnotationService.NO_PARENTS_FILE_SUFFIX
-                    + ArrayDesignAnnotationService.ANNOTATION_FILE_SUFFIX );
-
-            if ( !f.canRead() ) {
-                f = new File( ArrayDesignAnnotationService.ANNOT_DATA_DIR + ArrayDesignAnnotationServiceImpl
-                        .mungeFileName( arrayDesign.getShortName() )
-                        + ArrayDesignAnnotationService.BIO_PROCESS_FILE_SUFFIX
-                        + ArrayDesignAnnotationService.ANNOTATION_FILE_SUFFIX );
-            }
-
-            if ( !f.canRead() ) {
-                ArrayDesignAnnotationServiceImpl.log
-                        .info( "Gene annotations are not available in " + ArrayDesignAnnotationService.ANNOT_DATA_DIR );
-                return results;
-            }
+        File f = ArrayDesignAnnotationServiceImpl.findAnnotationFile( arrayDesign );
+        if ( f == null ) {
+            return results;
         }
 
         Map<String, Long> probeNameToId = new HashMap<>();
@@ -200,6 +184,43 @@ public class ArrayDesignAnnotationServiceImpl implements ArrayDesignAnnotationSe
         }
     }
 
+    /**
+     * @param  arrayDesign array design
+     * @return             the first of the annotation files (regular, noparents or bioprocess) for the platform that
+     *                     can be read, or null if there is none
+     */
+    private static File findAnnotationFile( ArrayDesign arrayDesign ) {
+        File f = new File( ArrayDesignAnnotationService.ANNOT_DATA_DIR + ArrayDesignAnnotationServiceImpl
+                .mungeFileName( arrayDesign.getShortName() ) + ArrayDesignAnnotationService.STANDARD_FILE_SUFFIX
+                + ArrayDesignAnnotationService.ANNOTATION_FILE_SUFFIX );
+        if ( !f.canRead() ) {
+            /*
+             * Look for more files.
+             */
+            f = new File( ArrayDesignAnnotationService.ANNOT_DATA_DIR + ArrayDesignAnnotationServiceImpl
+                    .mungeFileName( arrayDesign.getShortName() ) + ArrayDesignAnnotationService.NO_PARENTS_FILE_SUFFIX
+                    + ArrayDesignAnnotationService.ANNOTATION_FILE_SUFFIX );
+
+            if ( !f.canRead() ) {
+                f = new File( ArrayDesignAnnotationService.ANNOT_DATA_DIR + ArrayDesignAnnotationServiceImpl
+                        .mungeFileName( arrayDesign.getShortName() )
+                        + ArrayDesignAnnotationService.BIO_PROCESS_FILE_SUFFIX
+                        + ArrayDesignAnnotationService.ANNOTATION_FILE_SUFFIX );
+            }
+
+            if ( !f.canRead() ) {
+                ArrayDesignAnnotationServiceImpl.log
+                        .info( "Gene annotations are not available in " + ArrayDesignAnnotationService.ANNOT_DATA_DIR );
+                return null;
+            }
+        }
+        return f;
+    }
+
+    private static File getIndexFile( File annotationFile ) {
+        return new File( ArrayDesignAnnotationServiceImpl.INDEX_DIR + annotationFile.getName() + ".idx" );
+    }
+
     private static Map<Long, Collection<Gene>> parseAnnotationFile( Map<Long, Collection<Gene>> results, InputStream is,
             Map<String, Long> probeNameToId ) {
         try {
@@ -316,6 +337,11 @@ public class ArrayDesignAnnotationServiceImpl implements ArrayDesignAnnotationSe
     @Autowired
     private GeneOntologyService goService;
 
+    /**
+     * Indexes in use, by the path of the annotation file they were made from.
+     */
+    private final Map<String, ArrayDesignAnnotationIndex> annotationIndexes = new HashMap<>();
+
     private final Transformer goTermExtractor = new Transformer() {
         @Override
         public Object transform( Object input ) {
@@ -421,6 +447,13 @@ public class ArrayDesignAnnotationServiceImpl implements ArrayDesignAnnotationSe
                 + ArrayDesignAnnotationService.STANDARD_FILE_SUFFIX;
         File af = ArrayDesignAnnotationServiceImpl.getFileName( allparFileBaseName );
 
+        for ( File f : new File[] { sf, bf, af } ) {
+            File indexFile = ArrayDesignAnnotationServiceImpl.getIndexFile( f );
+            if ( indexFile.exists() && !indexFile.delete() ) {
+                ArrayDesignAnnotationServiceImpl.log.warn( "Could not delete " + indexFile );
+            }
+        }
+
         int numFilesDeleted = 0;
         if ( sf.canWrite() && sf.delete() ) {
             numFilesDeleted++;
@@ -437,6 +470,38 @@ public class ArrayDesignAnnotationServiceImpl implements ArrayDesignAnnotationSe
 
     }
 
+    @Override
+    public synchronized ArrayDesignAnnotationIndex getAnnotationIndex( ArrayDesign arrayDesign ) {
+        File f = ArrayDesignAnnotationServiceImpl.findAnnotationFile( arrayDesign );
+        if ( f == null ) {
+            return null;
+        }
+        ArrayDesignAnnotationIndex index = annotationIndexes.get( f.getAbsolutePath() );
+        if ( index != null && index.isCurrent( f ) ) {
+            return index;
+        }
+
+        File indexFile = ArrayDesignAnnotationServiceImpl.getIndexFile( f );
+        index = null;
+        if ( indexFile.canRead() ) {
+            try {
+                index = ArrayDesignAnnotationIndex.open( indexFile );
+            } catch ( IOException e ) {
+                ArrayDesignAnnotationServiceImpl.log
+                        .warn( "Could not read " + indexFile + ", will make it again: " + e.getMessage() );
+            }
+        }
+        try {
+            if ( index == null || !index.isCurrent( f ) ) {
+                index = ArrayDesignAnnotationIndex.build( f, indexFile );
+            }
+        } catch ( IOException e ) {
+            throw new RuntimeException( e );
+        }
+        annotationIndexes.put( f.getAbsolutePath(), index );
+        return index;
+    }
+
     /*
      * (non-Javadoc)
      * 
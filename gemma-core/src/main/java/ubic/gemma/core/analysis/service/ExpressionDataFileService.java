@@ -25,6 +25,7 @@ import ubic.gemma.persistence.util.Settings;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
@@ -199,4 +200,17 @@ public interface ExpressionDataFileService extends TsvFileService<ExpressionExpe
     void writeDiffExArchiveFile( BioAssaySet ee, DifferentialExpressionAnalysis analysis,
             DifferentialExpressionAnalysisConfig config ) throws IOException;
 
+    /**
+     * Write the processed data of an experiment in a compact binary form, reading the vectors from the database a batch
+     * at a time, so the whole matrix is never held in memory. The output starts with the length of a header (a
+     * little-endian 32-bit integer) and the header itself, a UTF-8 JSON object giving the experiment, the quantitation
+     * type and the column names. Each row follows: the length of the probe name (little-endian 32-bit integer), the
+     * probe name in UTF-8, and one little-endian 32-bit float per column, NaN for missing values.
+     *
+     * @param ee  the experiment, which must have all its processed vectors in one bioassay dimension
+     * @param out where to write the data; it is not closed
+     * @throws IOException when there was a problem during write
+     */
+    void writeProcessedDataAsFloats( ExpressionExperiment ee, OutputStream out ) throws IOException;
+
 }
\ No newline at end of file
@@ -19,6 +19,7 @@
 package ubic.gemma.core.analysis.service;
 
 import org.apache.commons.lang3.RandomStringUtils;
+import org.apache.commons.lang3.StringEscapeUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -32,6 +33,7 @@ import ubic.gemma.core.analysis.preprocess.filter.FilterConfig;
 import ubic.gemma.core.datastructure.matrix.ExperimentalDesignWriter;
 import ubic.gemma.core.datastructure.matrix.ExpressionDataDoubleMatrix;
 import ubic.gemma.core.datastructure.matrix.ExpressionDataMatrix;
+import ubic.gemma.core.datastructure.matrix.ExpressionDataWriterUtils;
 import ubic.gemma.core.datastructure.matrix.MatrixWriter;
 import ubic.gemma.model.analysis.expression.diff.ContrastResult;
 import ubic.gemma.model.analysis.expression.diff.DifferentialExpressionAnalysis;
@@ -40,7 +42,10 @@ import ubic.gemma.model.analysis.expression.diff.ExpressionAnalysisResultSet;
 import ubic.gemma.model.common.description.Characteristic;
 import ubic.gemma.model.common.quantitationtype.QuantitationType;
 import ubic.gemma.model.expression.arrayDesign.ArrayDesign;
+import ubic.gemma.model.expression.bioAssay.BioAssay;
+import ubic.gemma.model.expression.bioAssay.BioAssayValueObject;
 import ubic.gemma.model.expression.bioAssayData.DesignElementDataVector;
+import ubic.gemma.model.expression.bioAssayData.DoubleVectorValueObject;
 import ubic.gemma.model.expression.designElement.CompositeSequence;
 import ubic.gemma.model.expression.experiment.*;
 import ubic.gemma.model.genome.Taxon;
@@ -48,14 +53,17 @@ import ubic.gemma.persistence.service.analysis.expression.diff.DifferentialExpre
 import ubic.gemma.persistence.service.association.coexpression.CoexpressionService;
 import ubic.gemma.persistence.service.association.coexpression.CoexpressionValueObject;
 import ubic.gemma.persistence.service.expression.arrayDesign.ArrayDesignService;
+import ubic.gemma.persistence.service.expression.bioAssayData.ProcessedExpressionDataVectorService;
 import ubic.gemma.persistence.service.expression.bioAssayData.RawExpressionDataVectorService;
 import ubic.gemma.persistence.service.expression.experiment.ExpressionExperimentService;
 import ubic.gemma.persistence.util.DifferentialExpressionAnalysisResultComparator;
 import ubic.gemma.persistence.util.EntityUtils;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.Map.Entry;
 import java.util.zip.GZIPOutputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
@@ -74,6 +82,10 @@ public class ExpressionDataFileServiceImpl extends AbstractTsvFileService<Expres
     private static final String MSG_FILE_FORCED = "Forcing file (%s) regeneration";
     private static final String MSG_FILE_NOT_EXISTS = "File (%s) does not exist or can not be accessed ";
     private static final String MSG_FILE_OUTDATED = "File (%s) outdated, regenerating";
+    /**
+     * Number of vectors read at a time when writing processed data without building the matrix.
+     */
+    private static final int DATA_BATCH_SIZE = 1000;
 
     private static ExpressionExperiment experimentForBioAssaySet( BioAssaySet bas ) {
         ExpressionExperiment ee;
@@ -85,6 +97,8 @@ public class ExpressionDataFileServiceImpl extends AbstractTsvFileService<Expres
         return ee;
     }
 
+    @Autowired
+    private ArrayDesignAnnotationService arrayDesignAnnotationService;
     @Autowired
     private ArrayDesignService arrayDesignService;
     @Autowired
@@ -96,6 +110,8 @@ public class ExpressionDataFileServiceImpl extends AbstractTsvFileService<Expres
     @Autowired
     private CoexpressionService gene2geneCoexpressionService = null;
 
+    @Autowired
+    private ProcessedExpressionDataVectorService processedExpressionDataVectorService;
     @Autowired
     private RawExpressionDataVectorService rawExpressionDataVectorService;
 
@@ -790,37 +806,37 @@ public class ExpressionDataFileServiceImpl extends AbstractTsvFileService<Expres
 
     /**
      * @return Map of composite sequence ids to an array of strings: [probe name, genes symbol(s), gene Name(s), gemma
-     *         id(s), ncbi id(s)].
+     *         id(s), ncbi id(s)]. The annotations are looked up in the platforms' annotation indexes as they are needed.
      */
     private Map<Long, String[]> getGeneAnnotationsAsStrings( Collection<ArrayDesign> ads ) {
-        Map<Long, String[]> annotations = new HashMap<>();
+        ProbeAnnotationMap<Long> annotations = new ProbeAnnotationMap<>();
         for ( ArrayDesign arrayDesign : ads ) {
             arrayDesign = arrayDesignService.thaw( arrayDesign );
-            annotations.putAll( ArrayDesignAnnotationServiceImpl.readAnnotationFileAsString( arrayDesign ) );
+            ArrayDesignAnnotationIndex index = arrayDesignAnnotationService.getAnnotationIndex( arrayDesign );
+            if ( index == null ) {
+                continue;
+            }
+            for ( CompositeSequence cs : arrayDesign.getCompositeSequences() ) {
+                annotations.add( cs.getId(), cs.getName(), index );
+            }
         }
         return annotations;
     }
 
+    /**
+     * @return as {@link #getGeneAnnotationsAsStrings(Collection)}, but keyed by the composite sequences
+     */
     private Map<CompositeSequence, String[]> getGeneAnnotationsAsStringsByProbe( Collection<ArrayDesign> ads ) {
-        Map<CompositeSequence, String[]> annotations = new HashMap<>();
+        ProbeAnnotationMap<CompositeSequence> annotations = new ProbeAnnotationMap<>();
         for ( ArrayDesign arrayDesign : ads ) {
             arrayDesign = arrayDesignService.thaw( arrayDesign );
-
-            Map<Long, CompositeSequence> csIdMap = EntityUtils.getIdMap( arrayDesign.getCompositeSequences() );
-
-            Map<Long, String[]> geneAnnotations = ArrayDesignAnnotationServiceImpl
-                    .readAnnotationFileAsString( arrayDesign );
-
-            for ( Entry<Long, String[]> e : geneAnnotations.entrySet() ) {
-
-                if ( !csIdMap.containsKey( e.getKey() ) ) {
-                    continue;
-                }
-
-                annotations.put( csIdMap.get( e.getKey() ), e.getValue() );
-
+            ArrayDesignAnnotationIndex index = arrayDesignAnnotationService.getAnnotationIndex( arrayDesign );
+            if ( index == null ) {
+                continue;
+            }
+            for ( CompositeSequence cs : arrayDesign.getCompositeSequences() ) {
+                annotations.add( cs, cs.getName(), index );
             }
-
         }
         return annotations;
     }
@@ -1129,8 +1145,144 @@ public class ExpressionDataFileServiceImpl extends AbstractTsvFileService<Expres
         this.writeMatrix( file, geneAnnotations, expressionDataMatrix );
     }
 
+    /**
+     * Writes the processed data of the experiment a batch of vectors at a time, so the whole matrix is never held in
+     * memory. The layout is that of the data files, except that there is no sequence column. Rows are in the order of
+     * the vector ids, and columns in the order the processed data are stored in (normally the experimental design
+     * order).
+     */
     @Override
     public void writeTsvToAppendable( ExpressionExperiment entity, Appendable appendable ) throws IOException {
-        // FIXME: implement this
+        ExpressionExperiment ee = expressionExperimentService.thawBioAssays( entity );
+        Map<Long, String[]> geneAnnotations = this
+                .getGeneAnnotationsAsStrings( expressionExperimentService.getArrayDesignsUsed( ee ) );
+        boolean writeGeneIds = !geneAnnotations.isEmpty() && geneAnnotations.values().iterator().next().length > 4;
+
+        List<DoubleVectorValueObject> vectors = this.getNextDataBatch( ee, null );
+
+        StringBuffer header = new StringBuffer();
+        ExpressionDataWriterUtils.appendBaseHeader( ee, false, header );
+        header.append( "Probe" );
+        if ( !geneAnnotations.isEmpty() ) {
+            header.append( "\tGeneSymbol\tGeneName" );
+            if ( writeGeneIds ) {
+                header.append( "\tGemmaId\tNCBIid" );
+            }
+        }
+        for ( String column : this.getDataColumnNames( ee, vectors ) ) {
+            header.append( '\t' ).append( column );
+        }
+        appendable.append( header ).append( '\n' );
+
+        while ( !vectors.isEmpty() ) {
+            StringBuilder rows = new StringBuilder();
+            for ( DoubleVectorValueObject v : vectors ) {
+                rows.append( v.getDesignElement().getName() );
+                if ( !geneAnnotations.isEmpty() ) {
+                    this.appendGeneInfo( rows, geneAnnotations.get( v.getDesignElement().getId() ), writeGeneIds );
+                }
+                for ( double d : v.getData() ) {
+                    rows.append( '\t' ).append( d );
+                }
+                rows.append( '\n' );
+            }
+            appendable.append( rows );
+            vectors = this.getNextDataBatch( ee, vectors );
+        }
+    }
+
+    @Override
+    public void writeProcessedDataAsFloats( ExpressionExperiment entity, OutputStream out ) throws IOException {
+        ExpressionExperiment ee = expressionExperimentService.thawBioAssays( entity );
+        List<DoubleVectorValueObject> vectors = this.getNextDataBatch( ee, null );
+
+        StringBuilder json = new StringBuilder();
+        json.append( "{\"id\":" ).append( ee.getId() );
+        json.append( ",\"shortName\":\"" ).append( StringEscapeUtils.escapeJava( ee.getShortName() ) ).append( '"' );
+        if ( !vectors.isEmpty() ) {
+            json.append( ",\"quantitationType\":\"" )
+                    .append( StringEscapeUtils.escapeJava( vectors.get( 0 ).getQuantitationType().getName() ) )
+                    .append( '"' );
+        }
+        json.append( ",\"byteOrder\":\"little-endian\",\"valueType\":\"float32\",\"columns\":[" );
+        boolean first = true;
+        for ( String column : this.getDataColumnNames( ee, vectors ) ) {
+            if ( !first )
+                json.append( ',' );
+            json.append( '"' ).append( StringEscapeUtils.escapeJava( column ) ).append( '"' );
+            first = false;
+        }
+        json.append( "]}" );
+
+        byte[] header = json.toString().getBytes( StandardCharsets.UTF_8 );
+        ByteBuffer buf = ByteBuffer.allocate( Integer.BYTES + header.length ).order( ByteOrder.LITTLE_ENDIAN );
+        buf.putInt( header.length ).put( header );
+        out.write( buf.array(), 0, buf.position() );
+
+        while ( !vectors.isEmpty() ) {
+            for ( DoubleVectorValueObject v : vectors ) {
+                byte[] name = v.getDesignElement().getName().getBytes( StandardCharsets.UTF_8 );
+                double[] data = v.getData();
+                int size = 2 * Integer.BYTES + name.length + data.length * Float.BYTES;
+                if ( buf.capacity() < size ) {
+                    buf = ByteBuffer.allocate( size ).order( ByteOrder.LITTLE_ENDIAN );
+                }
+                buf.clear();
+                buf.putInt( name.length ).put( name );
+                for ( double d : data ) {
+                    buf.putFloat( ( float ) d );
+                }
+                out.write( buf.array(), 0, buf.position() );
+            }
+            out.flush();
+            vectors = this.getNextDataBatch( ee, vectors );
+        }
+    }
+
+    /**
+     * @param previous the previous batch, or null to get the first one
+     * @return the next batch of processed data, or an empty list if there are no more
+     */
+    private List<DoubleVectorValueObject> getNextDataBatch( ExpressionExperiment ee,
+            List<DoubleVectorValueObject> previous ) {
+        Long afterVectorId = previous == null ? null : previous.get( previous.size() - 1 ).getId();
+        return processedExpressionDataVectorService
+                .getProcessedDataArraysBatch( ee, afterVectorId, ExpressionDataFileServiceImpl.DATA_BATCH_SIZE );
+    }
+
+    /**
+     * @param ee      experiment, with its bioassays thawed
+     * @param vectors processed data of the experiment; all have the same bioassays.
+     * @return the column names, as they appear in the data files
+     */
+    private List<String> getDataColumnNames( ExpressionExperiment ee, List<DoubleVectorValueObject> vectors ) {
+        List<String> result = new ArrayList<>();
+        if ( vectors.isEmpty() ) {
+            return result;
+        }
+        Map<Long, BioAssay> bioAssays = EntityUtils.getIdMap( ee.getBioAssays() );
+        for ( BioAssayValueObject ba : vectors.get( 0 ).getBioAssays() ) {
+            BioAssay bioAssay = bioAssays.get( ba.getId() );
+            result.add( ExpressionDataWriterUtils
+                    .constructBioAssayName( bioAssay.getSampleUsed(), Collections.singleton( bioAssay ) ) );
+        }
+        return result;
+    }
+
+    /**
+     * Same as the gene columns of the data files.
+     *
+     * @param geneStrings annotations of the probe as read from the platform annotation file, or null if it has none
+     * @see MatrixWriter
+     */
+    private void appendGeneInfo( StringBuilder buf, String[] geneStrings, boolean writeGeneIds ) {
+        int fields = writeGeneIds ? 4 : 2;
+        for ( int i = 1; i <= fields; i++ ) {
+            buf.append( '\t' );
+            if ( geneStrings != null && geneStrings.length > i && geneStrings[i] != null ) {
+                // gene names may contain '#', which R reads as a comment.
+                buf.append( i == 2 ? geneStrings[i].replaceAll( "#", "_" ) : geneStrings[i] );
+            }
+        }
     }
 }
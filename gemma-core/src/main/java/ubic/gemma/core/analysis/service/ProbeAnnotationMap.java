@@ -0,0 +1,104 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2021 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.analysis.service;
+
+import java.util.*;
+
+/**
+ * Read-only map from probes (or their ids) to their gene annotations, as returned by
+ * {@link ArrayDesignAnnotationServiceImpl#readAnnotationFileAsString}, that looks the annotations up in the platforms'
+ * annotation indexes when they are asked for instead of holding them. As with that method, probes of a platform that
+ * has annotations but which are not listed in its file map to an array of nulls.
+ */
+class ProbeAnnotationMap<K> extends AbstractMap<K, String[]> {
+
+    private final Map<K, Probe> probes = new LinkedHashMap<>();
+
+    /**
+     * @param key       key for the probe
+     * @param probeName name of the probe
+     * @param index     annotation index of the probe's platform
+     */
+    void add( K key, String probeName, ArrayDesignAnnotationIndex index ) {
+        probes.put( key, new Probe( probeName, index ) );
+    }
+
+    @Override
+    public boolean containsKey( Object key ) {
+        return probes.containsKey( key );
+    }
+
+    @Override
+    public String[] get( Object key ) {
+        Probe probe = probes.get( key );
+        return probe == null ? null : probe.getAnnotations();
+    }
+
+    @Override
+    public int size() {
+        return probes.size();
+    }
+
+    @Override
+    public Set<Entry<K, String[]>> entrySet() {
+        return new AbstractSet<Entry<K, String[]>>() {
+            @Override
+            public Iterator<Entry<K, String[]>> iterator() {
+                final Iterator<Entry<K, Probe>> it = probes.entrySet().iterator();
+                return new Iterator<Entry<K, String[]>>() {
+                    @Override
+                    public boolean hasNext() {
+                        return it.hasNext();
+                    }
+
+                    @Override
+                    public Entry<K, String[]> next() {
+                        Entry<K, Probe> e = it.next();
+                        return new SimpleImmutableEntry<>( e.getKey(), e.getValue().getAnnotations() );
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return probes.size();
+            }
+        };
+    }
+
+    private static class Probe {
+        private final String name;
+        private final ArrayDesignAnnotationIndex index;
+
+        private Probe( String name, ArrayDesignAnnotationIndex index ) {
+            this.name = name;
+            this.index = index;
+        }
+
+        private String[] getAnnotations() {
+            String[] annotations = index.get( name );
+            return annotations == null ? new String[ArrayDesignAnnotationIndex.FIELDS_PER_PROBE] : annotations;
+        }
+    }
+}
@@ -295,6 +295,15 @@ public class LinkAnalysisCli extends ExpressionExperimentManipulatingCLI {
                 .build();
         options.addOption( skipQC );
 
+        Option correlThreadsOption = Option.builder( "correlthreads" ).hasArg().argName( "numThreads" )
+                .desc( "Number of threads to use for computing correlations, default=1" ).build();
+        options.addOption( correlThreadsOption );
+
+        Option pipelinedOption = Option.builder( "pipelined" )
+                .desc( "Map links to genes and stage them in the database while correlations are being computed,"
+                        + " to use less memory" ).build();
+        options.addOption( pipelinedOption );
+
         Option deleteOption = Option.builder( "delete" ).desc(
                 "Delete analyses for selected experiments, instead of doing analysis; supersedes all other options" )
                 .build();
@@ -377,6 +386,14 @@ public class LinkAnalysisCli extends ExpressionExperimentManipulatingCLI {
 
         this.getFilterConfigOptions( commandLine );
 
+        if ( commandLine.hasOption( "correlthreads" ) ) {
+            this.linkAnalysisConfig.setNumThreads( this.getIntegerOptionValue( commandLine, "correlthreads" ) );
+        }
+
+        if ( commandLine.hasOption( "pipelined" ) ) {
+            this.linkAnalysisConfig.setPipelined( true );
+        }
+
         if ( commandLine.hasOption( 'a' ) ) {
             this.linkAnalysisConfig.setAbsoluteValue( true );
         }
@@ -18,7 +18,9 @@
  */
 package ubic.gemma.core.apps;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.time.StopWatch;
 import org.apache.commons.logging.Log;
@@ -37,21 +39,25 @@ import ubic.gemma.persistence.util.EntityUtils;
 import ubic.gemma.persistence.util.Settings;
 
 import java.io.*;
+import java.math.BigInteger;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.FutureTask;
+import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Class to manage the gfServer and run BLAT searches. Delegates to the command-line shell to run blat.
+ * <p>
+ * If gfClient.threads is more than one, a collection of sequences is split into chunks with about the same number of
+ * bases, and that many gfClient processes are run at once. The chunks and their results are kept in a directory under
+ * the download path, named for the query, until all the chunks are done, so running the same query again after a
+ * failure only runs the chunks that were not finished.
+ * </p>
  *
  * @author pavlidis
  */
@@ -86,6 +92,14 @@ public class ShellDelegatingBlat implements Blat {
     private int ratServerPort;
     private String seqDir = "/";
     private Process serverProcess;
+    /**
+     * Number of gfClient processes run at once for a collection of sequences.
+     */
+    private int gfClientThreads = 1;
+    /**
+     * Approximate number of bases in each chunk of a collection of sequences, when more than one process is used.
+     */
+    private int gfClientChunkSize = 1000000;
 
     /**
      * Create a blat object with settings read from the config file.
@@ -173,6 +187,10 @@ public class ShellDelegatingBlat implements Blat {
     @Override
     public Map<BioSequence, Collection<BlatResult>> blatQuery( Collection<BioSequence> sequences, boolean sensitive,
             Taxon taxon ) throws IOException {
+        if ( this.gfClientThreads > 1 ) {
+            return this.blatQueryInChunks( sequences, sensitive, taxon );
+        }
+
         Map<BioSequence, Collection<BlatResult>> results = new HashMap<>();
 
         File querySequenceFile = File.createTempFile( "sequences-for-blat", ".fa" );
@@ -264,6 +282,24 @@ public class ShellDelegatingBlat implements Blat {
         return this.seqDir;
     }
 
+    public void setGfClientExe( String gfClientExe ) {
+        this.gfClientExe = gfClientExe;
+    }
+
+    /**
+     * @param gfClientThreads number of gfClient processes to run at once for a collection of sequences
+     */
+    public void setGfClientThreads( int gfClientThreads ) {
+        this.gfClientThreads = gfClientThreads;
+    }
+
+    /**
+     * @param gfClientChunkSize approximate number of bases to give each gfClient process at a time
+     */
+    public void setGfClientChunkSize( int gfClientChunkSize ) {
+        this.gfClientChunkSize = gfClientChunkSize;
+    }
+
     @Override
     public String getSeqFiles( BlattableGenome genome ) {
         switch ( genome ) {
@@ -376,6 +412,21 @@ public class ShellDelegatingBlat implements Blat {
      */
     private Collection<BlatResult> execGfClient( File querySequenceFile, String outputPath, int portToUse )
             throws IOException {
+        int exitVal = this.runGfClient( querySequenceFile, outputPath, portToUse, true );
+        ShellDelegatingBlat.log.debug( "blat exit value=" + exitVal );
+        ShellDelegatingBlat.log.debug( "GfClient Success" );
+
+        return this.processPsl( outputPath, null );
+    }
+
+    /**
+     * Run gfClient and wait for it to finish.
+     *
+     * @param  reportProgress whether to log the size of the output periodically
+     * @return the exit value of gfClient
+     */
+    private int runGfClient( File querySequenceFile, String outputPath, int portToUse, boolean reportProgress )
+            throws IOException {
         final String cmd =
                 gfClientExe + " -nohead -minScore=" + ShellDelegatingBlat.MIN_SCORE + " " + host + " " + portToUse + " "
                         + seqDir + " " + querySequenceFile.getAbsolutePath() + " " + outputPath;
@@ -390,38 +441,236 @@ public class ShellDelegatingBlat implements Blat {
         gscIn.start();
 
         try {
-
-            int exitVal = Integer.MIN_VALUE;
-
             // wait...
             StopWatch overallWatch = new StopWatch();
             overallWatch.start();
 
-            while ( exitVal == Integer.MIN_VALUE ) {
-                try {
-                    exitVal = run.exitValue();
-                } catch ( IllegalThreadStateException e ) {
-                    // okay, still
-                    // waiting.
+            while ( !run.waitFor( ShellDelegatingBlat.BLAT_UPDATE_INTERVAL_MS, TimeUnit.MILLISECONDS ) ) {
+                if ( reportProgress ) {
+                    this.outputFile( outputPath, overallWatch );
                 }
-                Thread.sleep( ShellDelegatingBlat.BLAT_UPDATE_INTERVAL_MS );
-                // I hope this is okay...
-                this.outputFile( outputPath, overallWatch );
             }
 
             overallWatch.stop();
             String minutes = TimeUtil.getMinutesElapsed( overallWatch );
             ShellDelegatingBlat.log.info( "Blat took a total of " + minutes + " minutes" );
 
-            // int exitVal = run.waitFor();
-
-            ShellDelegatingBlat.log.debug( "blat exit value=" + exitVal );
+            return run.exitValue();
         } catch ( InterruptedException e ) {
+            run.destroy();
             throw new RuntimeException( e );
         }
-        ShellDelegatingBlat.log.debug( "GfClient Success" );
+    }
 
-        return this.processPsl( outputPath, null );
+    /**
+     * Run the query in chunks, several at a time, collecting the results of each chunk as it finishes. Chunks that
+     * were finished by an earlier run of the same query are not run again.
+     *
+     * @see #blatQuery(Collection, boolean, Taxon)
+     */
+    private Map<BioSequence, Collection<BlatResult>> blatQueryInChunks( Collection<BioSequence> sequences,
+            boolean sensitive, Taxon taxon ) throws IOException {
+        final Integer port = this.choosePortForQuery( taxon, sensitive );
+        if ( port == null ) {
+            throw new IllegalStateException(
+                    "Could not locate port for BLAT with settings taxon=" + taxon + ", sensitive=" + sensitive
+                            + ", check your configuration." );
+        }
+
+        List<List<BioSequence>> chunks = ShellDelegatingBlat
+                .makeChunks( sequences, this.gfClientThreads, this.gfClientChunkSize );
+        if ( chunks.isEmpty() ) {
+            throw new IllegalArgumentException( "No sequences!" );
+        }
+
+        File workDir = new File( Settings.getDownloadPath(),
+                "blat-" + ShellDelegatingBlat.getQueryKey( chunks, port, this.blatScoreThreshold ) );
+        if ( workDir.exists() ) {
+            ShellDelegatingBlat.log.info( "Resuming BLAT of " + chunks.size() + " chunks in " + workDir );
+        } else if ( !workDir.mkdirs() ) {
+            throw new IOException( "Could not create " + workDir );
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool( this.gfClientThreads,
+                new ThreadFactoryBuilder().setNameFormat( "gfclient-%d" ).setDaemon( true ).build() );
+        CompletionService<File> completionService = new ExecutorCompletionService<>( executor );
+        int submitted = 0;
+        int done = 0;
+        Collection<File> finished = new ArrayList<>();
+        for ( int i = 0; i < chunks.size(); i++ ) {
+            final File psl = new File( workDir, "chunk-" + i + ".psl" );
+            if ( psl.exists() ) {
+                finished.add( psl );
+                continue;
+            }
+            final File fasta = new File( workDir, "chunk-" + i + ".fa" );
+            SequenceWriter.writeSequencesToFile( chunks.get( i ), fasta );
+            completionService.submit( new Callable<File>() {
+                @Override
+                public File call() throws Exception {
+                    return ShellDelegatingBlat.this.runChunk( fasta, psl, port );
+                }
+            } );
+            submitted++;
+        }
+        executor.shutdown();
+        if ( !finished.isEmpty() ) {
+            ShellDelegatingBlat.log.info( finished.size() + " chunks were already done" );
+        }
+
+        Map<BioSequence, Collection<BlatResult>> results = new HashMap<>();
+        ExternalDatabase searchedDatabase = ShellDelegatingBlat.getSearchedGenome( taxon );
+        for ( File psl : finished ) {
+            this.addResults( this.processPsl( psl.getPath(), null ), searchedDatabase, results );
+        }
+
+        List<String> errors = new ArrayList<>();
+        try {
+            for ( int i = 0; i < submitted; i++ ) {
+                try {
+                    File psl = completionService.take().get();
+                    this.addResults( this.processPsl( psl.getPath(), null ), searchedDatabase, results );
+                    done++;
+                    ShellDelegatingBlat.log
+                            .info( "BLAT of " + ( done + finished.size() ) + "/" + chunks.size() + " chunks done; "
+                                    + results.size() + " sequences with results so far" );
+                } catch ( ExecutionException e ) {
+                    ShellDelegatingBlat.log.error( "BLAT of a chunk failed", e.getCause() );
+                    errors.add( e.getCause().getMessage() );
+                }
+            }
+        } catch ( InterruptedException e ) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( "BLAT was interrupted; finished chunks are kept in " + workDir, e );
+        }
+
+        if ( !errors.isEmpty() ) {
+            throw new IOException(
+                    errors.size() + " of " + chunks.size() + " BLAT chunks failed; run again to redo them (finished "
+                            + "chunks are kept in " + workDir + "). First error: " + errors.get( 0 ) );
+        }
+
+        ShellDelegatingBlat.log.info( "Got results for " + results.size() + " sequences" );
+        try {
+            FileUtils.deleteDirectory( workDir );
+        } catch ( IOException e ) {
+            ShellDelegatingBlat.log.warn( "Could not clean up " + workDir + ": " + e.getMessage() );
+        }
+        return results;
+    }
+
+    /**
+     * Run gfClient on one chunk. The output is written to a temporary file which is renamed when gfClient succeeds, so
+     * only finished chunks have their output file.
+     *
+     * @return the output file
+     */
+    private File runChunk( File fasta, File psl, int port ) throws IOException {
+        File partial = new File( psl.getPath() + ".part" );
+        int exitVal = this.runGfClient( fasta, partial.getPath(), port, false );
+        if ( exitVal != 0 ) {
+            throw new IOException( "gfClient exited with value " + exitVal + " for " + fasta );
+        }
+        if ( !partial.exists() ) {
+            throw new IOException( "gfClient did not write any output for " + fasta );
+        }
+        if ( !partial.renameTo( psl ) ) {
+            throw new IOException( "Could not rename " + partial + " to " + psl );
+        }
+        return psl;
+    }
+
+    private void addResults( Collection<BlatResult> rawResults, ExternalDatabase searchedDatabase,
+            Map<BioSequence, Collection<BlatResult>> results ) {
+        for ( BlatResult blatResult : rawResults ) {
+            blatResult.setSearchedDatabase( searchedDatabase );
+
+            BioSequence query = blatResult.getQuerySequence();
+
+            if ( !results.containsKey( query ) ) {
+                results.put( query, new HashSet<BlatResult>() );
+            }
+
+            results.get( query ).add( blatResult );
+        }
+    }
+
+    /**
+     * Split the sequences into chunks with about the same number of bases, leaving out blank and repeated sequences as
+     * {@link SequenceWriter} does. The result does not depend on the order of the sequences, so the chunks of a query
+     * that is run again are the same.
+     *
+     * @param  sequences  sequences
+     * @param  minChunks  the least number of chunks to make, if there are enough sequences
+     * @param  chunkSize  approximate number of bases in each chunk
+     * @return chunks of sequences, none empty
+     */
+    static List<List<BioSequence>> makeChunks( Collection<BioSequence> sequences, int minChunks, int chunkSize ) {
+        Map<String, BioSequence> unique = new TreeMap<>();
+        long totalBases = 0;
+        for ( BioSequence b : sequences ) {
+            if ( StringUtils.isBlank( b.getSequence() ) ) {
+                continue;
+            }
+            String identifier = SequenceWriter.getIdentifier( b );
+            if ( !unique.containsKey( identifier ) ) {
+                unique.put( identifier, b );
+                totalBases += b.getSequence().length();
+            }
+        }
+
+        int numChunks = ( int ) Math.min( unique.size(),
+                Math.max( minChunks, ( totalBases + chunkSize - 1 ) / Math.max( 1, chunkSize ) ) );
+
+        // longest first, each to the chunk with the fewest bases so far
+        List<BioSequence> byLength = new ArrayList<>( unique.values() );
+        Collections.sort( byLength, new Comparator<BioSequence>() {
+            @Override
+            public int compare( BioSequence o1, BioSequence o2 ) {
+                return Integer.compare( o2.getSequence().length(), o1.getSequence().length() );
+            }
+        } );
+        final long[] sizes = new long[numChunks];
+        PriorityQueue<Integer> smallest = new PriorityQueue<>( Math.max( 1, numChunks ), new Comparator<Integer>() {
+            @Override
+            public int compare( Integer o1, Integer o2 ) {
+                int c = Long.compare( sizes[o1], sizes[o2] );
+                return c != 0 ? c : Integer.compare( o1, o2 );
+            }
+        } );
+        List<List<BioSequence>> chunks = new ArrayList<>();
+        for ( int i = 0; i < numChunks; i++ ) {
+            chunks.add( new ArrayList<BioSequence>() );
+            smallest.add( i );
+        }
+        for ( BioSequence b : byLength ) {
+            int chunk = smallest.poll();
+            chunks.get( chunk ).add( b );
+            sizes[chunk] += b.getSequence().length();
+            smallest.add( chunk );
+        }
+        return chunks;
+    }
+
+    /**
+     * @return a name for the query, from everything that determines its results
+     */
+    private static String getQueryKey( List<List<BioSequence>> chunks, int port, double scoreThreshold ) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance( "SHA-1" );
+            digest.update( ( port + "\t" + scoreThreshold + "\n" ).getBytes( StandardCharsets.UTF_8 ) );
+            for ( List<BioSequence> chunk : chunks ) {
+                for ( BioSequence b : chunk ) {
+                    digest.update( ( SequenceWriter.getIdentifier( b ) + "\t" + b.getSequence() + "\n" )
+                            .getBytes( StandardCharsets.UTF_8 ) );
+                }
+                digest.update( ( byte ) 0 );
+            }
+            return new BigInteger( 1, digest.digest() ).toString( 16 );
+        } catch ( NoSuchAlgorithmException e ) {
+            throw new RuntimeException( e );
+        }
     }
 
     /**
@@ -472,6 +721,8 @@ public class ShellDelegatingBlat implements Blat {
         this.humanSeqFiles = Settings.getString( "gfClient.human.seqFiles" );
         this.gfClientExe = Settings.getString( "gfClient.exe" );
         this.gfServerExe = Settings.getString( "gfServer.exe" );
+        this.gfClientThreads = Settings.getInt( "gfClient.threads", 1 );
+        this.gfClientChunkSize = Settings.getInt( "gfClient.chunkSize", 1000000 );
 
         if ( gfServerExe == null ) {
             /*
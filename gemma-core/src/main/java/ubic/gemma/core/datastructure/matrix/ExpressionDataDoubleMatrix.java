@@ -43,6 +43,15 @@ import java.util.*;
  * A data structure that holds a reference to the data for a given expression experiment. The data can be queried by row
  * or column, returning data for a specific DesignElement or data for a specific BioAssay. This class is not database
  * aware so the vectors provided must already be 'thawed'.
+ * <p>
+ * The values are held in a single packed array, and matrices made from another one's rows or columns share it until
+ * one of them is modified. A baseCode {@link DoubleMatrix} is only created if {@link #getMatrix()} is called; from then
+ * on the data live there, so changes made to it are seen by this.
+ * </p>
+ * <p>
+ * Reading from several threads is safe, including while one of them calls {@link #getMatrix()}; modifying the matrix
+ * is not.
+ * </p>
  *
  * @author pavlidis
  * @author keshav
@@ -54,6 +63,14 @@ public class ExpressionDataDoubleMatrix extends BaseExpressionDataMatrix<Double>
     private static final Log log = LogFactory.getLog( ExpressionDataDoubleMatrix.class.getName() );
     private DoubleMatrix<CompositeSequence, BioMaterial> matrix;
 
+    /*
+     * The data until getMatrix() is called; null after that, or if the matrix was created from a DoubleMatrix. Read
+     * once by each accessor, so it sees either these or the matrix that replaced them.
+     */
+    private volatile PackedDoubleMatrix values;
+    private List<CompositeSequence> rowNames;
+    private List<BioMaterial> columnNames;
+
     private Map<CompositeSequence, Double> ranks = new HashMap<>();
 
     /**
@@ -140,26 +157,32 @@ public class ExpressionDataDoubleMatrix extends BaseExpressionDataMatrix<Double>
         this.columnBioMaterialMap = sourceMatrix.columnBioMaterialMap;
         this.columnBioMaterialMapByInteger = sourceMatrix.columnBioMaterialMapByInteger;
         this.quantitationTypes = sourceMatrix.getQuantitationTypes();
-        this.matrix = new DenseDoubleMatrix<>( rowsToUse.size(), sourceMatrix.columns() );
-        this.matrix.setColumnNames( sourceMatrix.getMatrix().getColNames() );
 
         ExpressionDataDoubleMatrix.log
                 .debug( "Creating a filtered matrix " + rowsToUse.size() + " x " + sourceMatrix.columns() );
 
+        int[] sourceRows = new int[rowsToUse.size()];
         int i = 0;
         for ( CompositeSequence element : rowsToUse ) {
             super.addToRowMaps( i, element );
-            Double[] rowVals = sourceMatrix.getRow( element );
-            assert rowVals != null : "Source matrix does not have row for " + element;
-
-            this.matrix.addRowName( element );
-
-            for ( int j = 0; j < rowVals.length; j++ ) {
-                Double val = rowVals[j];
-                this.set( i, j, val );
+            sourceRows[i] = sourceMatrix.getRowIndex( element );
+            if ( sourceRows[i] < 0 ) {
+                throw new IllegalArgumentException( "Source matrix does not have row for " + element );
             }
             i++;
         }
+
+        this.rowNames = new ArrayList<>( rowsToUse );
+        this.columnNames = new ArrayList<>( sourceMatrix.getColumnNames() );
+        PackedDoubleMatrix sourceValues = sourceMatrix.values;
+        if ( sourceValues != null ) {
+            this.values = sourceValues.selectRows( sourceRows );
+        } else {
+            this.values = new PackedDoubleMatrix( sourceRows.length, sourceMatrix.columns() );
+            for ( i = 0; i < sourceRows.length; i++ ) {
+                this.setRawRow( i, sourceMatrix.getRawRow( sourceRows[i] ) );
+            }
+        }
     }
 
     /**
@@ -242,36 +265,37 @@ public class ExpressionDataDoubleMatrix extends BaseExpressionDataMatrix<Double>
         this.init();
         this.expressionExperiment = sourceMatrix.expressionExperiment;
 
-        this.matrix = new DenseDoubleMatrix<>( sourceMatrix.rows(), columnsToUse.size() );
-        this.matrix.setRowNames( sourceMatrix.getMatrix().getRowNames() );
-        this.matrix.setColumnNames( columnsToUse );
-
         this.ranks = sourceMatrix.ranks; // not strictly correct if we are using subcolumns
 
         this.getQuantitationTypes().addAll( sourceMatrix.getQuantitationTypes() );
 
-        List<Integer> originalBioMaterialIndices = new ArrayList<>();
+        int[] originalBioMaterialIndices = new int[columnsToUse.size()];
+        int j = 0;
         for ( BioMaterial bm : columnsToUse ) {
-            originalBioMaterialIndices.add( sourceMatrix.getColumnIndex( bm ) );
+            originalBioMaterialIndices[j++] = sourceMatrix.getColumnIndex( bm );
         }
 
         this.bioAssayDimensions.clear();
 
-        int i = 0;
-        for ( ExpressionDataMatrixRowElement element : sourceMatrix.getRowElements() ) {
-            CompositeSequence designElement = element.getDesignElement();
+        for ( int i = 0; i < sourceMatrix.rows(); i++ ) {
+            CompositeSequence designElement = sourceMatrix.getDesignElementForRow( i );
             super.addToRowMaps( i, designElement );
-
-            Double[] sourceRow = sourceMatrix.getRow( designElement );
-
-            assert sourceRow != null : "Source matrix does not have row for " + designElement;
             bioAssayDimensions.put( designElement, reorderedDim );
+        }
 
-            for ( int j = 0; j < originalBioMaterialIndices.size(); j++ ) {
-                Double val = sourceRow[originalBioMaterialIndices.get( j )];
-                this.set( i, j, val );
+        this.rowNames = new ArrayList<>( sourceMatrix.getRowNames() );
+        this.columnNames = new ArrayList<>( columnsToUse );
+        PackedDoubleMatrix sourceValues = sourceMatrix.values;
+        if ( sourceValues != null ) {
+            this.values = sourceValues.selectColumns( originalBioMaterialIndices );
+        } else {
+            this.values = new PackedDoubleMatrix( sourceMatrix.rows(), originalBioMaterialIndices.length );
+            for ( int i = 0; i < sourceMatrix.rows(); i++ ) {
+                double[] sourceRow = sourceMatrix.getRawRow( i );
+                for ( j = 0; j < originalBioMaterialIndices.length; j++ ) {
+                    this.values.set( i, j, sourceRow[originalBioMaterialIndices[j]] );
+                }
             }
-            i++;
         }
 
         super.setUpColumnElements();
@@ -279,7 +303,8 @@ public class ExpressionDataDoubleMatrix extends BaseExpressionDataMatrix<Double>
 
     @Override
     public int columns() {
-        return matrix.columns();
+        PackedDoubleMatrix v = values;
+        return v != null ? v.columns() : matrix.columns();
     }
 
     @Override
@@ -290,12 +315,13 @@ public class ExpressionDataDoubleMatrix extends BaseExpressionDataMatrix<Double>
             ExpressionDataDoubleMatrix.log.warn( "No matrix element for " + designElement + ", " + bioAssay );
             return null;
         }
-        return this.matrix.get( i, j );
+        return this.get( i, j );
     }
 
     @Override
     public Double get( int row, int column ) {
-        return matrix.get( row, column );
+        PackedDoubleMatrix v = values;
+        return v != null ? v.get( row, column ) : matrix.get( row, column );
     }
 
     @Override
@@ -312,7 +338,8 @@ public class ExpressionDataDoubleMatrix extends BaseExpressionDataMatrix<Double>
 
     @Override
     public Double[] getColumn( Integer index ) {
-        double[] rawResult = this.matrix.getColumn( index );
+        PackedDoubleMatrix v = values;
+        double[] rawResult = v != null ? v.getColumn( index ) : this.matrix.getColumn( index );
         assert rawResult != null;
         Double[] result = new Double[rawResult.length];
         for ( int i = 0; i < rawResult.length; i++ ) {
@@ -329,10 +356,9 @@ public class ExpressionDataDoubleMatrix extends BaseExpressionDataMatrix<Double>
     @Override
     public Double[][] getRawMatrix() {
 
-        Double[][] dMatrix = new Double[matrix.rows()][matrix.columns()];
-        for ( int i = 0; i < matrix.rows(); i++ ) {
-            Double[] row = matrix.getRowObj( i );
-            dMatrix[i] = row;
+        Double[][] dMatrix = new Double[this.rows()][];
+        for ( int i = 0; i < this.rows(); i++ ) {
+            dMatrix[i] = this.getRow( i );
         }
 
         return dMatrix;
@@ -348,8 +374,7 @@ public class ExpressionDataDoubleMatrix extends BaseExpressionDataMatrix<Double>
 
     @Override
     public Double[] getRow( Integer index ) {
-        double[] rawRow = matrix.getRow( index );
-        return ArrayUtils.toObject( rawRow );
+        return ArrayUtils.toObject( this.getRawRow( index ) );
     }
 
     @Override
@@ -370,6 +395,10 @@ public class ExpressionDataDoubleMatrix extends BaseExpressionDataMatrix<Double>
 
     @Override
     public boolean hasMissingValues() {
+        PackedDoubleMatrix v = values;
+        if ( v != null ) {
+            return v.hasNaN();
+        }
         for ( int i = 0; i < matrix.rows(); i++ ) {
             for ( int j = 0; j < matrix.columns(); j++ ) {
                 if ( Double.isNaN( matrix.get( i, j ) ) )
@@ -381,15 +410,18 @@ public class ExpressionDataDoubleMatrix extends BaseExpressionDataMatrix<Double>
 
     @Override
     public int rows() {
-        return matrix.rows();
+        PackedDoubleMatrix v = values;
+        return v != null ? v.rows() : matrix.rows();
     }
 
     @Override
     public void set( int row, int column, Double value ) {
-        if ( value == null ) {
-            matrix.set( row, column, Double.NaN );
+        double v = value == null ? Double.NaN : value;
+        PackedDoubleMatrix packed = values;
+        if ( packed != null ) {
+            packed.set( row, column, v );
         } else {
-            matrix.set( row, column, value );
+            matrix.set( row, column, v );
         }
     }
 
@@ -457,7 +489,27 @@ public class ExpressionDataDoubleMatrix extends BaseExpressionDataMatrix<Double>
         return result;
     }
 
-    public DoubleMatrix<CompositeSequence, BioMaterial> getMatrix() {
+    /**
+     * The first call copies the data into a new baseCode matrix, which is used from then on, so it can be modified in
+     * place. Prefer the other accessors if the matrix is only read.
+     *
+     * @return the data as a baseCode matrix
+     */
+    public synchronized DoubleMatrix<CompositeSequence, BioMaterial> getMatrix() {
+        PackedDoubleMatrix v = values;
+        if ( matrix == null && v != null ) {
+            DoubleMatrix<CompositeSequence, BioMaterial> mat = new DenseDoubleMatrix<>( v.rows(), v.columns() );
+            for ( int i = 0; i < v.rows(); i++ ) {
+                for ( int j = 0; j < v.columns(); j++ ) {
+                    mat.set( i, j, v.get( i, j ) );
+                }
+            }
+            mat.setRowNames( rowNames );
+            mat.setColumnNames( columnNames );
+            this.matrix = mat;
+            // after the matrix is set, so readers that see null find it; the names are kept for readers that don't.
+            this.values = null;
+        }
         return matrix;
     }
 
@@ -470,17 +522,22 @@ public class ExpressionDataDoubleMatrix extends BaseExpressionDataMatrix<Double>
     }
 
     public double[] getRawRow( Integer index ) {
-        return matrix.getRow( index );
+        PackedDoubleMatrix v = values;
+        return v != null ? v.getRow( index ) : matrix.getRow( index );
     }
 
     public List<CompositeSequence> getRowNames() {
-        return this.getMatrix().getRowNames();
+        return values != null ? rowNames : matrix.getRowNames();
+    }
+
+    public List<BioMaterial> getColumnNames() {
+        return values != null ? columnNames : matrix.getColNames();
     }
 
     public void set( CompositeSequence designElement, BioAssay bioAssay, Double value ) {
         int row = this.getRowIndex( designElement );
         int column = this.getColumnIndex( bioAssay );
-        matrix.set( row, column, value );
+        this.set( row, column, value );
     }
 
     /**
@@ -491,14 +548,13 @@ public class ExpressionDataDoubleMatrix extends BaseExpressionDataMatrix<Double>
      */
     @SuppressWarnings("unused") // Useful interface
     public void setRow( int rowIndex, Double[] data ) {
-        if ( rowIndex > this.matrix.rows() ) {
+        if ( rowIndex > this.rows() ) {
             throw new RuntimeException(
-                    "Specified row index " + rowIndex + " is larger than the matrix of size " + this.matrix.rows()
-                            + "." );
+                    "Specified row index " + rowIndex + " is larger than the matrix of size " + this.rows() + "." );
         }
 
         for ( int j = 0; j < data.length; j++ ) {
-            this.matrix.set( rowIndex, j, data[j] );
+            this.set( rowIndex, j, data[j] );
         }
     }
 
@@ -566,36 +622,34 @@ public class ExpressionDataDoubleMatrix extends BaseExpressionDataMatrix<Double>
         }
 
         int maxSize = this.setUpColumnElements();
-        this.matrix = this.createMatrix( vectors, maxSize );
+        this.createMatrix( vectors, maxSize );
 
     }
 
+    private void setRawRow( int row, double[] data ) {
+        for ( int j = 0; j < data.length; j++ ) {
+            values.set( row, j, data[j] );
+        }
+    }
+
     /**
-     * Fill in the data
-     *
-     * @return DoubleMatrixNamed
+     * Fill in the data. Values that are not in any of the vectors are missing.
      */
-    private DoubleMatrix<CompositeSequence, BioMaterial> createMatrix(
-            Collection<? extends DesignElementDataVector> vectors, int maxSize ) {
+    private void createMatrix( Collection<? extends DesignElementDataVector> vectors, int maxSize ) {
 
         int numRows = this.rowDesignElementMapByInteger.keySet().size();
 
-        DoubleMatrix<CompositeSequence, BioMaterial> mat = new DenseDoubleMatrix<>( numRows, maxSize );
+        PackedDoubleMatrix mat = new PackedDoubleMatrix( numRows, maxSize );
+        mat.fill( Double.NaN );
 
-        for ( int j = 0; j < mat.columns(); j++ ) {
-            mat.addColumnName( this.getBioMaterialForColumn( j ) );
-        }
-
-        // initialize the matrix to -Infinity; this marks values that are not yet initialized.
-        for ( int i = 0; i < mat.rows(); i++ ) {
-            for ( int j = 0; j < mat.columns(); j++ ) {
-                mat.set( i, j, Double.NEGATIVE_INFINITY );
-            }
+        List<BioMaterial> colNames = new ArrayList<>( maxSize );
+        for ( int j = 0; j < maxSize; j++ ) {
+            colNames.add( this.getBioMaterialForColumn( j ) );
         }
 
         ByteArrayConverter bac = new ByteArrayConverter();
 
-        Map<Integer, CompositeSequence> rowNames = new TreeMap<>();
+        CompositeSequence[] designElements = new CompositeSequence[numRows];
         for ( DesignElementDataVector vector : vectors ) {
             BioAssayDimension dimension = vector.getBioAssayDimension();
             byte[] bytes = vector.getData();
@@ -606,7 +660,7 @@ public class ExpressionDataDoubleMatrix extends BaseExpressionDataMatrix<Double>
             Integer rowIndex = this.rowElementMap.get( designElement );
             assert rowIndex != null;
 
-            rowNames.put( rowIndex, designElement );
+            designElements[rowIndex] = designElement;
 
             double[] vals = bac.byteArrayToDoubles( bytes );
 
@@ -616,30 +670,21 @@ public class ExpressionDataDoubleMatrix extends BaseExpressionDataMatrix<Double>
                         "Mismatch: " + vals.length + " values in vector ( " + bytes.length + " bytes) for "
                                 + designElement + " got " + bioAssays.size() + " bioassays in the bioAssayDimension" );
 
-            Iterator<BioAssay> it = bioAssays.iterator();
-
-            this.setMatBioAssayValues( mat, rowIndex, ArrayUtils.toObject( vals ), bioAssays, it );
-        }
-
-        /*
-         * Note: these row names aren't that important unless we use the bare matrix.
-         */
-        for ( int i = 0; i < mat.rows(); i++ ) {
-            mat.addRowName( rowNames.get( i ) );
-        }
-        assert mat.getRowNames().size() == mat.rows();
-
-        // fill in remaining missing values.
-        for ( int i = 0; i < mat.rows(); i++ ) {
-            for ( int j = 0; j < mat.columns(); j++ ) {
-                if ( mat.get( i, j ) == Double.NEGATIVE_INFINITY ) {
-                    // log.debug( "Missing value at " + i + " " + j );
-                    mat.set( i, j, Double.NaN );
-                }
+            int j = 0;
+            for ( BioAssay bioAssay : bioAssays ) {
+                Integer column = this.columnAssayMap.get( bioAssay );
+                assert column != null;
+                // -Infinity in the data is treated as missing, as it always has been.
+                mat.set( rowIndex, column, vals[j] == Double.NEGATIVE_INFINITY ? Double.NaN : vals[j] );
+                j++;
             }
         }
+
+        this.matrix = null;
+        this.values = mat;
+        this.rowNames = new ArrayList<>( Arrays.asList( designElements ) );
+        this.columnNames = colNames;
         ExpressionDataDoubleMatrix.log.debug( "Created a " + mat.rows() + " x " + mat.columns() + " matrix" );
-        return mat;
     }
 
 }
@@ -97,7 +97,7 @@ public class ExpressionDataDoubleMatrixUtil {
      */
     public static ExpressionDataDoubleMatrix ensureLog2Scale( QuantitationType quantitationType,
             ExpressionDataDoubleMatrix dmatrix ) {
-        ScaleType scaleType = ExpressionDataDoubleMatrixUtil.findScale( quantitationType, dmatrix.getMatrix() );
+        ScaleType scaleType = ExpressionDataDoubleMatrixUtil.findScale( quantitationType, dmatrix );
 
         if ( scaleType.equals( ScaleType.LOG2 ) ) {
             ExpressionDataDoubleMatrixUtil.log.info( "Data is already on a log2 scale" );
@@ -135,6 +135,58 @@ public class ExpressionDataDoubleMatrixUtil {
     public static ScaleType findScale( QuantitationType quantitationType,
             DoubleMatrix<CompositeSequence, BioMaterial> namedMatrix ) {
 
+        ScaleType scaleType = ExpressionDataDoubleMatrixUtil.findScale( quantitationType );
+        if ( scaleType != null ) {
+            return scaleType;
+        }
+
+        if ( namedMatrix.rows() == 0 || namedMatrix.columns() == 0 ) {
+            throw new UnknownLogScaleException( "Cannot figure out scale without data (" + quantitationType + ")" );
+        }
+
+        // at this point it's supposedly 'linear', but we need to double-check.
+        for ( int i = 0; i < namedMatrix.rows(); i++ ) {
+            if ( ExpressionDataDoubleMatrixUtil.hasLargeValues( namedMatrix.getRow( i ) ) ) {
+                return ScaleType.LINEAR;
+            }
+        }
+
+        log.warn( "Data look log transformed, not sure about base (" + quantitationType + "). Will report as LINEAR!" );
+        return ScaleType.LINEAR;
+    }
+
+    /**
+     * As {@link #findScale(QuantitationType, DoubleMatrix)}, but without getting the baseCode matrix of the data.
+     *
+     * @param quantitationType QT
+     * @param dmatrix data
+     * @return ScaleType
+     */
+    public static ScaleType findScale( QuantitationType quantitationType, ExpressionDataDoubleMatrix dmatrix ) {
+
+        ScaleType scaleType = ExpressionDataDoubleMatrixUtil.findScale( quantitationType );
+        if ( scaleType != null ) {
+            return scaleType;
+        }
+
+        if ( dmatrix.rows() == 0 || dmatrix.columns() == 0 ) {
+            throw new UnknownLogScaleException( "Cannot figure out scale without data (" + quantitationType + ")" );
+        }
+
+        for ( int i = 0; i < dmatrix.rows(); i++ ) {
+            if ( ExpressionDataDoubleMatrixUtil.hasLargeValues( dmatrix.getRawRow( i ) ) ) {
+                return ScaleType.LINEAR;
+            }
+        }
+
+        log.warn( "Data look log transformed, not sure about base (" + quantitationType + "). Will report as LINEAR!" );
+        return ScaleType.LINEAR;
+    }
+
+    /**
+     * @return the scale given by the quantitation type, or null if the data have to be checked.
+     */
+    private static ScaleType findScale( QuantitationType quantitationType ) {
         if ( quantitationType.getScale() != null ) {
             if ( quantitationType.getScale().equals( ScaleType.LOG2 ) ) {
                 return ScaleType.LOG2;
@@ -151,24 +203,17 @@ public class ExpressionDataDoubleMatrixUtil {
                                 + quantitationType + ")" );
             }
         }
+        return null;
+    }
 
-        if ( namedMatrix.rows() == 0 || namedMatrix.columns() == 0 ) {
-            throw new UnknownLogScaleException( "Cannot figure out scale without data (" + quantitationType + ")" );
-        }
-
-        // at this point it's supposedly 'linear', but we need to double-check.
-        for ( int i = 0; i < namedMatrix.rows(); i++ ) {
-            for ( int j = 0; j < namedMatrix.columns(); j++ ) {
-                double v = namedMatrix.get( i, j );
-                if ( v > ExpressionDataDoubleMatrixUtil.LARGEST_EXPECTED_LOGGED_VALUE ) {
-                    ExpressionDataDoubleMatrixUtil.log.debug( "Data has large values, doesn't look log transformed" );
-                    return ScaleType.LINEAR;
-                }
+    private static boolean hasLargeValues( double[] row ) {
+        for ( double v : row ) {
+            if ( v > ExpressionDataDoubleMatrixUtil.LARGEST_EXPECTED_LOGGED_VALUE ) {
+                ExpressionDataDoubleMatrixUtil.log.debug( "Data has large values, doesn't look log transformed" );
+                return true;
             }
         }
-
-        log.warn( "Data look log transformed, not sure about base (" + quantitationType + "). Will report as LINEAR!" );
-        return ScaleType.LINEAR;
+        return false;
     }
 
     /**
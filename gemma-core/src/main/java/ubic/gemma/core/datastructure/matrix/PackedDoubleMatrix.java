@@ -0,0 +1,213 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2021 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.datastructure.matrix;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Unnamed matrix of doubles held in a single row-major array. Selecting or reordering rows and columns does not copy
+ * the values: the result is a view that maps its indices onto the shared array. The values are copied only when a
+ * shared matrix is modified, so neither the source nor the view sees the change made to the other.
+ * <p>
+ * This is the storage behind {@link ExpressionDataDoubleMatrix}; it is not thread-safe.
+ * </p>
+ */
+class PackedDoubleMatrix implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int rows;
+    private final int columns;
+
+    private double[] values;
+    private int stride;
+
+    /**
+     * Row and column of the backing array for each row and column of this matrix; null means the identity.
+     */
+    private int[] rowIndex;
+    private int[] columnIndex;
+
+    /**
+     * True if the backing array may be used by another matrix.
+     */
+    private boolean shared = false;
+
+    PackedDoubleMatrix( int rows, int columns ) {
+        if ( ( long ) rows * columns > Integer.MAX_VALUE ) {
+            throw new IllegalArgumentException( "Matrix is too large: " + rows + " x " + columns );
+        }
+        this.rows = rows;
+        this.columns = columns;
+        this.values = new double[rows * columns];
+        this.stride = columns;
+    }
+
+    private PackedDoubleMatrix( PackedDoubleMatrix source, int[] rowIndex, int[] columnIndex ) {
+        this.rows = rowIndex == null ? source.rows : rowIndex.length;
+        this.columns = columnIndex == null ? source.columns : columnIndex.length;
+        this.values = source.values;
+        this.stride = source.stride;
+        this.rowIndex = rowIndex;
+        this.columnIndex = columnIndex;
+        this.shared = true;
+        source.shared = true;
+    }
+
+    int rows() {
+        return rows;
+    }
+
+    int columns() {
+        return columns;
+    }
+
+    double get( int row, int column ) {
+        return values[this.offset( row, column )];
+    }
+
+    void set( int row, int column, double value ) {
+        if ( shared ) {
+            this.unshare();
+        }
+        values[this.offset( row, column )] = value;
+    }
+
+    void fill( double value ) {
+        if ( shared || rowIndex != null || columnIndex != null ) {
+            values = new double[rows * columns];
+            stride = columns;
+            rowIndex = null;
+            columnIndex = null;
+            shared = false;
+        }
+        Arrays.fill( values, value );
+    }
+
+    /**
+     * @param  row row
+     * @return a copy of the row
+     */
+    double[] getRow( int row ) {
+        this.checkRow( row );
+        int start = ( rowIndex == null ? row : rowIndex[row] ) * stride;
+        if ( columnIndex == null ) {
+            return Arrays.copyOfRange( values, start, start + columns );
+        }
+        double[] result = new double[columns];
+        for ( int j = 0; j < columns; j++ ) {
+            result[j] = values[start + columnIndex[j]];
+        }
+        return result;
+    }
+
+    /**
+     * @param  column column
+     * @return a copy of the column
+     */
+    double[] getColumn( int column ) {
+        this.checkColumn( column );
+        int c = columnIndex == null ? column : columnIndex[column];
+        double[] result = new double[rows];
+        for ( int i = 0; i < rows; i++ ) {
+            result[i] = values[( rowIndex == null ? i : rowIndex[i] ) * stride + c];
+        }
+        return result;
+    }
+
+    /**
+     * @param  rowsToUse indices of the rows to keep, in the order wanted; rows can be repeated
+     * @return a view of the selected rows
+     */
+    PackedDoubleMatrix selectRows( int[] rowsToUse ) {
+        int[] index = new int[rowsToUse.length];
+        for ( int i = 0; i < rowsToUse.length; i++ ) {
+            this.checkRow( rowsToUse[i] );
+            index[i] = rowIndex == null ? rowsToUse[i] : rowIndex[rowsToUse[i]];
+        }
+        return new PackedDoubleMatrix( this, index, columnIndex );
+    }
+
+    /**
+     * @param  columnsToUse indices of the columns to keep, in the order wanted; columns can be repeated
+     * @return a view of the selected columns
+     */
+    PackedDoubleMatrix selectColumns( int[] columnsToUse ) {
+        int[] index = new int[columnsToUse.length];
+        for ( int j = 0; j < columnsToUse.length; j++ ) {
+            this.checkColumn( columnsToUse[j] );
+            index[j] = columnIndex == null ? columnsToUse[j] : columnIndex[columnsToUse[j]];
+        }
+        return new PackedDoubleMatrix( this, rowIndex, index );
+    }
+
+    boolean hasNaN() {
+        if ( rowIndex == null && columnIndex == null ) {
+            for ( double v : values ) {
+                if ( Double.isNaN( v ) )
+                    return true;
+            }
+            return false;
+        }
+        for ( int i = 0; i < rows; i++ ) {
+            for ( int j = 0; j < columns; j++ ) {
+                if ( Double.isNaN( this.get( i, j ) ) )
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private int offset( int row, int column ) {
+        this.checkRow( row );
+        this.checkColumn( column );
+        int r = rowIndex == null ? row : rowIndex[row];
+        int c = columnIndex == null ? column : columnIndex[column];
+        return r * stride + c;
+    }
+
+    private void checkRow( int row ) {
+        if ( row < 0 || row >= rows ) {
+            throw new IndexOutOfBoundsException( "Row " + row + " out of range for matrix with " + rows + " rows" );
+        }
+    }
+
+    private void checkColumn( int column ) {
+        if ( column < 0 || column >= columns ) {
+            throw new IndexOutOfBoundsException(
+                    "Column " + column + " out of range for matrix with " + columns + " columns" );
+        }
+    }
+
+    /**
+     * Give this matrix its own compact copy of the values.
+     */
+    private void unshare() {
+        double[] copy = new double[rows * columns];
+        for ( int i = 0; i < rows; i++ ) {
+            System.arraycopy( this.getRow( i ), 0, copy, i * columns, columns );
+        }
+        values = copy;
+        stride = columns;
+        rowIndex = null;
+        columnIndex = null;
+        shared = false;
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2021 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.externalDb;
+
+import org.apache.commons.lang3.time.StopWatch;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import ubic.basecode.util.SQLUtils;
+
+import java.sql.Blob;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.*;
+
+/**
+ * In-memory copy of GoldenPath annotation tracks, so finding the features that overlap an alignment does not need a
+ * query to the database. A track is loaded one chromosome at a time, the first time that chromosome is looked at, into
+ * arrays of features sorted by start position, one for each strand.
+ * <p>
+ * The rows kept for each feature are the same as those the SQL queries return, so they can be turned into genes and
+ * gene products by the same code. This is thread-safe.
+ * </p>
+ */
+class GenomeAnnotationIndex {
+
+    private static final Log log = LogFactory.getLog( GenomeAnnotationIndex.class );
+
+    private final JdbcTemplate jdbcTemplate;
+
+    /**
+     * Loaded features, by track name and chromosome, then strand.
+     */
+    private final Map<String, Map<String, Features>> loaded = new HashMap<>();
+
+    GenomeAnnotationIndex( JdbcTemplate jdbcTemplate ) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * @param  track      track
+     * @param  chromosome chromosome name, as it is in the track (e.g. chr1)
+     * @param  start      start of the region
+     * @param  end        end of the region
+     * @param  strand     strand, or null to search both
+     * @return rows for the features of the track that overlap the region, in the track's sense of overlap
+     */
+    Collection<String[]> find( Track track, String chromosome, long start, long end, String strand ) {
+        Map<String, Features> byStrand = this.getFeatures( track, chromosome );
+        Collection<String[]> result = new ArrayList<>();
+        if ( strand == null ) {
+            for ( Features features : byStrand.values() ) {
+                features.find( start, end, track.strict, result );
+            }
+        } else if ( byStrand.containsKey( strand ) ) {
+            byStrand.get( strand ).find( start, end, track.strict, result );
+        }
+        return result;
+    }
+
+    private synchronized Map<String, Features> getFeatures( Track track, String chromosome ) {
+        String key = track.name + "|" + chromosome;
+        if ( !loaded.containsKey( key ) ) {
+            loaded.put( key, this.load( track, chromosome ) );
+        }
+        return loaded.get( key );
+    }
+
+    private Map<String, Features> load( final Track track, String chromosome ) {
+        StopWatch timer = new StopWatch();
+        timer.start();
+        final Map<String, List<Feature>> byStrand = new HashMap<>();
+        jdbcTemplate.query( track.query + track.chromosomeColumn + " = ?", new Object[] { chromosome },
+                new ResultSetExtractor<Void>() {
+                    @Override
+                    public Void extractData( ResultSet rs ) throws SQLException, DataAccessException {
+                        int columns = rs.getMetaData().getColumnCount() - 3;
+                        while ( rs.next() ) {
+                            String[] row = GenomeAnnotationIndex.readRow( rs, columns );
+                            String strand = rs.getString( columns + 3 );
+                            if ( !byStrand.containsKey( strand ) ) {
+                                byStrand.put( strand, new ArrayList<Feature>() );
+                            }
+                            byStrand.get( strand )
+                                    .add( new Feature( rs.getInt( columns + 1 ), rs.getInt( columns + 2 ), row ) );
+                        }
+                        return null;
+                    }
+                } );
+
+        Map<String, Features> result = new HashMap<>();
+        int count = 0;
+        for ( Map.Entry<String, List<Feature>> e : byStrand.entrySet() ) {
+            result.put( e.getKey(), new Features( e.getValue() ) );
+            count += e.getValue().size();
+        }
+        GenomeAnnotationIndex.log
+                .info( "Loaded " + count + " " + track.name + " features on " + chromosome + " in " + timer.getTime()
+                        + "ms" );
+        return result;
+    }
+
+    /**
+     * @param  rs      positioned on a row
+     * @param  columns number of columns to read, from the first
+     * @return the values of the row, with blobs read as strings
+     */
+    static String[] readRow( ResultSet rs, int columns ) throws SQLException {
+        ResultSetMetaData metaData = rs.getMetaData();
+        String[] row = new String[columns];
+        for ( int i = 0; i < columns; i++ ) {
+            switch ( metaData.getColumnType( i + 1 ) ) {
+                case Types.BLOB:
+                case Types.LONGVARBINARY:
+                case Types.VARBINARY:
+                    Blob blob = rs.getBlob( i + 1 );
+                    row[i] = blob == null ? null : SQLUtils.blobToString( blob );
+                    break;
+                default:
+                    row[i] = rs.getString( i + 1 );
+            }
+        }
+        return row;
+    }
+
+    /**
+     * A table, or join, of the GoldenPath database holding features with a location.
+     */
+    static class Track {
+        private final String name;
+        private final String query;
+        private final String chromosomeColumn;
+        private final boolean strict;
+
+        /**
+         * @param name             name used in logging
+         * @param query            query selecting the columns wanted for each feature, followed by its start, end and
+         *                         strand; it should end in WHERE, or AND after other conditions
+         * @param chromosomeColumn column holding the chromosome name
+         * @param strict           if true, features that only share an endpoint with the region, or have the same
+         *                         start and end, are not counted as overlapping it; this is what the queries of the
+         *                         all_mrna and all_est tables do
+         */
+        Track( String name, String query, String chromosomeColumn, boolean strict ) {
+            this.name = name;
+            this.query = query;
+            this.chromosomeColumn = chromosomeColumn;
+            this.strict = strict;
+        }
+    }
+
+    private static class Feature {
+        private final int start;
+        private final int end;
+        private final String[] row;
+
+        private Feature( int start, int end, String[] row ) {
+            this.start = start;
+            this.end = end;
+            this.row = row;
+        }
+    }
+
+    /**
+     * Features of one track on one strand of a chromosome, sorted by start. Along with the starts we keep the greatest
+     * end seen so far, so a search for overlaps can go back from the last feature starting before the end of the
+     * region and stop as soon as no earlier feature can reach the region.
+     */
+    static class Features {
+        private final int[] starts;
+        private final int[] ends;
+        private final int[] maxEnds;
+        private final String[][] rows;
+
+        private Features( List<Feature> features ) {
+            Collections.sort( features, new Comparator<Feature>() {
+                @Override
+                public int compare( Feature o1, Feature o2 ) {
+                    return Integer.compare( o1.start, o2.start );
+                }
+            } );
+            int n = features.size();
+            this.starts = new int[n];
+            this.ends = new int[n];
+            this.maxEnds = new int[n];
+            this.rows = new String[n][];
+            for ( int i = 0; i < n; i++ ) {
+                Feature f = features.get( i );
+                starts[i] = f.start;
+                ends[i] = f.end;
+                maxEnds[i] = i == 0 ? f.end : Math.max( maxEnds[i - 1], f.end );
+                rows[i] = f.row;
+            }
+        }
+
+        /**
+         * @param starts feature starts
+         * @param ends   feature ends
+         * @param rows   row for each feature
+         */
+        Features( int[] starts, int[] ends, String[][] rows ) {
+            this( GenomeAnnotationIndex.toFeatures( starts, ends, rows ) );
+        }
+
+        void find( long start, long end, boolean strict, Collection<String[]> result ) {
+            // the last feature starting at or before the end of the region
+            int i = Arrays.binarySearch( starts, ( int ) Math.min( end, Integer.MAX_VALUE ) );
+            if ( i < 0 ) {
+                i = -i - 2;
+            } else {
+                while ( i + 1 < starts.length && starts[i + 1] == starts[i] ) {
+                    i++;
+                }
+            }
+            for ( ; i >= 0 && maxEnds[i] >= start; i-- ) {
+                if ( GenomeAnnotationIndex.overlaps( starts[i], ends[i], start, end, strict ) ) {
+                    result.add( rows[i] );
+                }
+            }
+        }
+    }
+
+    /**
+     * The conditions used by the location queries against GoldenPath, which differ at the endpoints.
+     */
+    static boolean overlaps( long s, long e, long start, long end, boolean strict ) {
+        if ( strict ) {
+            return ( s > start && e < end ) || ( s < start && e > end ) || ( s > start && s < end ) || ( e > start
+                    && e < end );
+        }
+        return ( s >= start && e <= end ) || ( s <= start && e >= end ) || ( s >= start && s <= end ) || ( e >= start
+                && e <= end );
+    }
+
+    private static List<Feature> toFeatures( int[] starts, int[] ends, String[][] rows ) {
+        List<Feature> features = new ArrayList<>();
+        for ( int i = 0; i < starts.length; i++ ) {
+            features.add( new Feature( starts[i], ends[i], rows[i] ) );
+        }
+        return features;
+    }
+}
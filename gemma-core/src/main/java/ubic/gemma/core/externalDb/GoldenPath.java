@@ -99,6 +99,10 @@ public class GoldenPath {
         return taxon;
     }
 
+    String getUrl() {
+        return url;
+    }
+
     protected Connection getConnection() {
         try {
             return DriverManager.getConnection( url, user, password );
@@ -38,16 +38,21 @@ import ubic.gemma.model.genome.sequenceAnalysis.BlatAssociation;
 import ubic.gemma.model.genome.sequenceAnalysis.BlatResult;
 import ubic.gemma.model.genome.sequenceAnalysis.ThreePrimeDistanceMethod;
 import ubic.gemma.persistence.util.SequenceBinUtils;
+import ubic.gemma.persistence.util.Settings;
 
 import java.sql.Blob;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.Collection;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.*;
 
 /**
  * Using the Goldenpath databases for comparing sequence alignments to gene locations.
+ * <p>
+ * If gemma.goldenpath.index is set, the gene tracks are copied into memory, a chromosome at a time, the first time they
+ * are used, and overlaps are found there rather than by a query for each location; the copy is shared by all instances
+ * using the same database. Setting gemma.goldenpath.index.alignments does the same for the mRNA and EST alignments,
+ * which take much more memory.
+ * </p>
  *
  * @author pavlidis
  */
@@ -60,6 +65,63 @@ public class GoldenPathSequenceAnalysis extends GoldenPath {
      */
     private static final double RECHECK_OVERLAP_THRESHOLD = 0.9;
 
+    /*
+     * Queries for the features of each track. Each selects the columns used to make the gene or gene product, then the
+     * location the feature is found by, and is completed by conditions on the location.
+     */
+
+    /**
+     * Use kgXRef only to get the description - sometimes missing thus the outer join.
+     */
+    private static final String REFSEQ_QUERY =
+            "SELECT r.name, r.geneName, r.txStart, r.txEnd, r.strand, r.exonStarts, r.exonEnds, CONCAT('Refseq gene: ', kgXref.description), "
+                    + "r.txStart, r.txEnd, r.strand "
+                    + "FROM refFlat as r left outer join kgXref on r.geneName = kgXref.geneSymbol " + "WHERE ";
+
+    /**
+     * Many known genes map to refseq genes. We use those gene symbols instead. Use kgXRef only to get the description.
+     */
+    private static final String KNOWN_TO_REFSEQ_QUERY =
+            "SELECT r.name, r.geneName, r.txStart, r.txEnd, r.strand, r.exonStarts, r.exonEnds, CONCAT('Refseq gene: ', kgr.description), "
+                    + "kg.txStart, kg.txEnd, kg.strand "
+                    + " FROM knownGene as kg INNER JOIN knownToRefSeq kr on kr.name=kg.name inner join kgXref kgr on kgr.kgID=kg.name "
+                    + " INNER JOIN refFlat r ON r.name=kr.value  WHERE ";
+
+    /**
+     * Known genes that do not map to refseq using a left outer join.
+     */
+    private static final String KNOWN_QUERY =
+            "SELECT kgxr.mRNA, kgxr.geneSymbol, kg.txStart, kg.txEnd, kg.strand, kg.exonStarts, kg.exonEnds, CONCAT('Known gene: ', kgxr.description), "
+                    + "kg.txStart, kg.txEnd, kg.strand " + " FROM knownGene as kg INNER JOIN"
+                    + " kgXref AS kgxr ON kg.name=kgxr.kgID LEFT OUTER JOIN knownToRefSeq kr on kr.name=kg.name WHERE kr.value IS NULL AND ";
+
+    private static final String MRNA_QUERY =
+            "SELECT mrna.qName, mrna.qName, mrna.tStart, mrna.tEnd, mrna.strand, mrna.blockSizes, mrna.tStarts, "
+                    + "mrna.tStart, mrna.tEnd, mrna.strand " + " FROM all_mrna as mrna  WHERE ";
+
+    private static final String EST_QUERY =
+            "SELECT est.qName, est.qName, est.tStart, est.tEnd, est.strand, est.blockSizes, est.tStarts, "
+                    + "est.tStart, est.tEnd, est.strand " + " FROM all_est as est  WHERE ";
+
+    private static final GenomeAnnotationIndex.Track REFSEQ_TRACK = new GenomeAnnotationIndex.Track( "refseq",
+            GoldenPathSequenceAnalysis.REFSEQ_QUERY, "r.chrom", false );
+    private static final GenomeAnnotationIndex.Track KNOWN_TO_REFSEQ_TRACK = new GenomeAnnotationIndex.Track(
+            "known-refseq", GoldenPathSequenceAnalysis.KNOWN_TO_REFSEQ_QUERY, "kg.chrom", false );
+    private static final GenomeAnnotationIndex.Track KNOWN_TRACK = new GenomeAnnotationIndex.Track( "known",
+            GoldenPathSequenceAnalysis.KNOWN_QUERY, "kg.chrom", false );
+    private static final GenomeAnnotationIndex.Track MRNA_TRACK = new GenomeAnnotationIndex.Track( "mrna",
+            GoldenPathSequenceAnalysis.MRNA_QUERY, "mrna.tName", true );
+    private static final GenomeAnnotationIndex.Track EST_TRACK = new GenomeAnnotationIndex.Track( "est",
+            GoldenPathSequenceAnalysis.EST_QUERY, "est.tName", true );
+
+    private static final boolean USE_INDEX = Settings.getBoolean( "gemma.goldenpath.index", false );
+    private static final boolean INDEX_ALIGNMENTS = Settings.getBoolean( "gemma.goldenpath.index.alignments", false );
+
+    /**
+     * In-memory indexes, by database URL.
+     */
+    private static final Map<String, GenomeAnnotationIndex> indexes = new HashMap<>();
+
     /**
      * cache results of mRNA queries.
      */
@@ -211,8 +273,12 @@ public class GoldenPathSequenceAnalysis extends GoldenPath {
     public Collection<Gene> findESTs( final String chromosome, Long regionStart, Long regionEnd, String strand ) {
 
         String searchChrom = SequenceManipulation.blatFormatChromosomeName( chromosome );
-        String query = "SELECT est.qName, est.qName, est.tStart, est.tEnd, est.strand, est.blockSizes, est.tStarts  "
-                + " FROM all_est as est  WHERE "
+        if ( GoldenPathSequenceAnalysis.INDEX_ALIGNMENTS ) {
+            return this.toGenes( chromosome, this.getIndex()
+                    .find( GoldenPathSequenceAnalysis.EST_TRACK, searchChrom, regionStart, regionEnd, strand ) );
+        }
+
+        String query = GoldenPathSequenceAnalysis.EST_QUERY
                 + "((est.tStart > ? AND est.tEnd < ?) OR (est.tStart < ? AND est.tEnd > ?) OR "
                 + "(est.tStart > ?  AND est.tStart < ?) OR  (est.tEnd > ? AND  est.tEnd < ? )) and est.tName = ? ";
 
@@ -253,13 +319,16 @@ public class GoldenPathSequenceAnalysis extends GoldenPath {
          * be skipped for rat (3/2018)
          */
 
-        /*
-         * Many known genes map to refseq genes. We use those gene symbols instead. Use kgXRef only to get the
-         * description.
-         */
-        String query = "SELECT r.name, r.geneName, r.txStart, r.txEnd, r.strand, r.exonStarts, r.exonEnds, CONCAT('Refseq gene: ', kgr.description) "
-                + " FROM knownGene as kg INNER JOIN knownToRefSeq kr on kr.name=kg.name inner join kgXref kgr on kgr.kgID=kg.name "
-                + " INNER JOIN refFlat r ON r.name=kr.value  WHERE "
+        if ( GoldenPathSequenceAnalysis.USE_INDEX ) {
+            GenomeAnnotationIndex index = this.getIndex();
+            Collection<GeneProduct> result = this.toGeneProducts( searchChrom, index
+                    .find( GoldenPathSequenceAnalysis.KNOWN_TO_REFSEQ_TRACK, searchChrom, start, end, strand ) );
+            result.addAll( this.toGeneProducts( searchChrom,
+                    index.find( GoldenPathSequenceAnalysis.KNOWN_TRACK, searchChrom, start, end, strand ) ) );
+            return result;
+        }
+
+        String query = GoldenPathSequenceAnalysis.KNOWN_TO_REFSEQ_QUERY
                 + "((kg.txStart >= ? AND kg.txEnd <= ?) OR (kg.txStart <= ? AND kg.txEnd >= ?) OR "
                 + "(kg.txStart >= ?  AND kg.txStart <= ?) OR  (kg.txEnd >= ? AND  kg.txEnd <= ? )) and kg.chrom = ? ";
 
@@ -270,12 +339,7 @@ public class GoldenPathSequenceAnalysis extends GoldenPath {
         Collection<GeneProduct> known2refseq = this.findGenesByQuery( start, end, searchChrom, strand, query );
         Collection<GeneProduct> result = new HashSet<>( known2refseq );
 
-        /*
-         * Ones that do not map to refseq using a left outer join.
-         */
-        query = "SELECT kgxr.mRNA, kgxr.geneSymbol, kg.txStart, kg.txEnd, kg.strand, kg.exonStarts, kg.exonEnds, CONCAT('Known gene: ', kgxr.description) "
-                + " FROM knownGene as kg INNER JOIN"
-                + " kgXref AS kgxr ON kg.name=kgxr.kgID LEFT OUTER JOIN knownToRefSeq kr on kr.name=kg.name WHERE kr.value IS NULL AND "
+        query = GoldenPathSequenceAnalysis.KNOWN_QUERY
                 + "((kg.txStart >= ? AND kg.txEnd <= ?) OR (kg.txStart <= ? AND kg.txEnd >= ?) OR "
                 + "(kg.txStart >= ?  AND kg.txStart <= ?) OR  (kg.txEnd >= ? AND  kg.txEnd <= ? )) and kg.chrom = ? ";
 
@@ -299,12 +363,12 @@ public class GoldenPathSequenceAnalysis extends GoldenPath {
      */
     public Collection<GeneProduct> findRefGenesByLocation( String chromosome, Long start, Long end, String strand ) {
         String searchChrom = SequenceManipulation.blatFormatChromosomeName( chromosome );
+        if ( GoldenPathSequenceAnalysis.USE_INDEX ) {
+            return this.toGeneProducts( searchChrom, this.getIndex()
+                    .find( GoldenPathSequenceAnalysis.REFSEQ_TRACK, searchChrom, start, end, strand ) );
+        }
 
-        /*
-         * Use kgXRef only to get the description - sometimes missing thus the outer join.
-         */
-        String query = "SELECT r.name, r.geneName, r.txStart, r.txEnd, r.strand, r.exonStarts, r.exonEnds, CONCAT('Refseq gene: ', kgXref.description) "
-                + "FROM refFlat as r left outer join kgXref on r.geneName = kgXref.geneSymbol " + "WHERE "
+        String query = GoldenPathSequenceAnalysis.REFSEQ_QUERY
                 + "((r.txStart >= ? AND r.txEnd <= ?) OR (r.txStart <= ? AND r.txEnd >= ?) OR "
                 + "(r.txStart >= ?  AND r.txStart <= ?) OR  (r.txEnd >= ? AND  r.txEnd <= ? )) and r.chrom = ? ";
 
@@ -327,8 +391,12 @@ public class GoldenPathSequenceAnalysis extends GoldenPath {
     public Collection<Gene> findRNAs( final String chromosome, Long regionStart, Long regionEnd, String strand ) {
 
         String searchChrom = SequenceManipulation.blatFormatChromosomeName( chromosome );
-        String query = "SELECT mrna.qName, mrna.qName, mrna.tStart, mrna.tEnd, mrna.strand, mrna.blockSizes, mrna.tStarts  "
-                + " FROM all_mrna as mrna  WHERE "
+        if ( GoldenPathSequenceAnalysis.INDEX_ALIGNMENTS ) {
+            return this.toGenes( chromosome, this.getIndex()
+                    .find( GoldenPathSequenceAnalysis.MRNA_TRACK, searchChrom, regionStart, regionEnd, strand ) );
+        }
+
+        String query = GoldenPathSequenceAnalysis.MRNA_QUERY
                 + "((mrna.tStart > ? AND mrna.tEnd < ?) OR (mrna.tStart < ? AND mrna.tEnd > ?) OR "
                 + "(mrna.tStart > ?  AND mrna.tStart < ?) OR  (mrna.tEnd > ? AND  mrna.tEnd < ? )) and mrna.tName = ? ";
 
@@ -412,39 +480,49 @@ public class GoldenPathSequenceAnalysis extends GoldenPath {
 
             @Override
             public Collection<Gene> extractData( ResultSet rs ) throws SQLException, DataAccessException {
-
-                Collection<Gene> r = new HashSet<>();
+                Collection<String[]> rows = new ArrayList<>();
                 while ( rs.next() ) {
+                    rows.add( GenomeAnnotationIndex.readRow( rs, 7 ) );
+                }
+                return GoldenPathSequenceAnalysis.this.toGenes( chromosome, rows );
+            }
+        } );
+    }
 
-                    Gene gene = Gene.Factory.newInstance();
+    /**
+     * @param  rows mRNA or EST alignments: name, name, start, end, strand, block sizes, block starts
+     * @return transient genes standing for the alignments
+     */
+    private Collection<Gene> toGenes( String chromosome, Collection<String[]> rows ) {
+        Collection<Gene> r = new HashSet<>();
+        for ( String[] row : rows ) {
 
-                    gene.setNcbiGeneId( Integer.parseInt( rs.getString( 1 ) ) );
-                    gene.setOfficialSymbol( rs.getString( 2 ) );
-                    gene.setName( gene.getOfficialSymbol() );
+            Gene gene = Gene.Factory.newInstance();
 
-                    PhysicalLocation pl = PhysicalLocation.Factory.newInstance();
-                    pl.setNucleotide( rs.getLong( 3 ) );
-                    pl.setNucleotideLength( rs.getInt( 4 ) - rs.getInt( 3 ) );
-                    pl.setStrand( rs.getString( 5 ) );
-                    pl.setBin( SequenceBinUtils.binFromRange( ( int ) rs.getLong( 3 ), rs.getInt( 4 ) ) );
+            gene.setNcbiGeneId( Integer.parseInt( row[0] ) );
+            gene.setOfficialSymbol( row[1] );
+            gene.setName( gene.getOfficialSymbol() );
 
-                    Chromosome c = new Chromosome( SequenceManipulation.deBlatFormatChromosomeName( chromosome ),
-                            GoldenPathSequenceAnalysis.this.getTaxon() );
-                    pl.setChromosome( c );
+            long start = Long.parseLong( row[2] );
+            int end = Integer.parseInt( row[3] );
+            PhysicalLocation pl = PhysicalLocation.Factory.newInstance();
+            pl.setNucleotide( start );
+            pl.setNucleotideLength( end - ( int ) start );
+            pl.setStrand( row[4] );
+            pl.setBin( SequenceBinUtils.binFromRange( ( int ) start, end ) );
 
-                    // note that we aren't setting the chromosome here; we already know that.
-                    gene.setPhysicalLocation( pl );
-                    r.add( gene );
+            Chromosome c = new Chromosome( SequenceManipulation.deBlatFormatChromosomeName( chromosome ),
+                    this.getTaxon() );
+            pl.setChromosome( c );
 
-                    Blob blockSizes = rs.getBlob( 6 );
-                    Blob blockStarts = rs.getBlob( 7 );
+            // note that we aren't setting the chromosome here; we already know that.
+            gene.setPhysicalLocation( pl );
+            r.add( gene );
 
-                    GoldenPathSequenceAnalysis.this.setBlocks( gene, blockSizes, blockStarts );
+            this.setBlocks( gene, row[5], row[6] );
 
-                }
-                return r;
-            }
-        } );
+        }
+        return r;
     }
 
     private Collection<PhysicalLocation> blocksToPhysicalLocations( int[] blockSizes, int[] blockStarts,
@@ -698,92 +776,104 @@ public class GoldenPathSequenceAnalysis extends GoldenPath {
 
             @Override
             public Collection<GeneProduct> extractData( ResultSet rs ) throws SQLException, DataAccessException {
-                Collection<GeneProduct> r = new HashSet<>();
+                Collection<String[]> rows = new ArrayList<>();
                 while ( rs.next() ) {
-
-                    GeneProduct product = GeneProduct.Factory.newInstance();
-
-                    String name = rs.getString( 1 );
-
-                    /*
-                     * This happens for a very few cases in kgXref, where the gene is 'abParts'. We have to skip these.
-                     */
-                    if ( StringUtils.isBlank( name ) ) {
-                        continue;
-                    }
-
-                    /*
-                     * The name is our database identifier (either genbank or ensembl)
-                     */
-                    DatabaseEntry accession = DatabaseEntry.Factory.newInstance();
-                    accession.setAccession( name );
-                    if ( name.startsWith( "ENST" ) ) {
-                        accession.setExternalDatabase( NcbiGeneConverter.getEnsembl() );
-                    } else {
-                        accession.setExternalDatabase( NcbiGeneConverter.getGenbank() );
-                    }
-
-                    product.getAccessions().add( accession );
-
-                    Gene gene = Gene.Factory.newInstance();
-                    gene.setOfficialSymbol( rs.getString( 2 ) );
-                    gene.setName( gene.getOfficialSymbol() );
-                    Taxon taxon = GoldenPathSequenceAnalysis.this.getTaxon();
-
-                    assert taxon != null;
-                    gene.setTaxon( taxon );
-
-                    PhysicalLocation pl = PhysicalLocation.Factory.newInstance();
-                    pl.setNucleotide( rs.getLong( 3 ) );
-                    pl.setNucleotideLength( rs.getInt( 4 ) - rs.getInt( 3 ) );
-                    pl.setStrand( rs.getString( 5 ) );
-                    pl.setBin( SequenceBinUtils.binFromRange( ( int ) rs.getLong( 3 ), rs.getInt( 4 ) ) );
-                    PhysicalLocation genePl = PhysicalLocation.Factory.newInstance();
-                    genePl.setStrand( pl.getStrand() );
-
-                    Chromosome c = new Chromosome( SequenceManipulation.deBlatFormatChromosomeName( chromosome ),
-                            taxon );
-                    pl.setChromosome( c );
-                    genePl.setChromosome( c );
-
-                    /*
-                     * this only contains the chromosome and strand: the nucleotide positions are only valid for the
-                     * gene product
-                     */
-                    gene.setPhysicalLocation( genePl );
-
-                    product.setName( name );
-
-                    String descriptionFromGP = rs.getString( 8 );
-                    if ( StringUtils.isBlank( descriptionFromGP ) ) {
-                        product.setDescription( "Imported from GoldenPath" );
-                    } else {
-                        product.setDescription( "Imported from Golden Path: " + descriptionFromGP );
-                    }
-                    product.setPhysicalLocation( pl );
-                    product.setGene( gene );
-
-                    Blob exonStarts = rs.getBlob( 6 );
-                    Blob exonEnds = rs.getBlob( 7 );
-                    product.setExons( GoldenPathSequenceAnalysis.this.getExons( c, exonStarts, exonEnds ) );
-
-                    /*
-                     * For microRNAs, we don't get exons, so we just use the whole length for now.
-                     */
-                    if ( product.getExons().size() == 0 ) {
-                        product.getExons().add( pl );
-                    }
-
-                    r.add( product );
-
+                    rows.add( GenomeAnnotationIndex.readRow( rs, 8 ) );
                 }
-                return r;
+                return GoldenPathSequenceAnalysis.this.toGeneProducts( chromosome, rows );
             }
 
         } );
 
     }
 
+    /**
+     * @param  chromosome chromosome, in the GoldenPath format
+     * @param  rows       transcripts: name, gene symbol, start, end, strand, exon starts, exon ends, description
+     * @return gene products. This is a collection of transient instances, not from Gemma's database.
+     */
+    private Collection<GeneProduct> toGeneProducts( String chromosome, Collection<String[]> rows ) {
+        Collection<GeneProduct> r = new HashSet<>();
+        for ( String[] row : rows ) {
+
+            GeneProduct product = GeneProduct.Factory.newInstance();
+
+            String name = row[0];
+
+            /*
+             * This happens for a very few cases in kgXref, where the gene is 'abParts'. We have to skip these.
+             */
+            if ( StringUtils.isBlank( name ) ) {
+                continue;
+            }
+
+            /*
+             * The name is our database identifier (either genbank or ensembl)
+             */
+            DatabaseEntry accession = DatabaseEntry.Factory.newInstance();
+            accession.setAccession( name );
+            if ( name.startsWith( "ENST" ) ) {
+                accession.setExternalDatabase( NcbiGeneConverter.getEnsembl() );
+            } else {
+                accession.setExternalDatabase( NcbiGeneConverter.getGenbank() );
+            }
+
+            product.getAccessions().add( accession );
+
+            Gene gene = Gene.Factory.newInstance();
+            gene.setOfficialSymbol( row[1] );
+            gene.setName( gene.getOfficialSymbol() );
+            Taxon taxon = this.getTaxon();
+
+            assert taxon != null;
+            gene.setTaxon( taxon );
+
+            long start = Long.parseLong( row[2] );
+            int end = Integer.parseInt( row[3] );
+            PhysicalLocation pl = PhysicalLocation.Factory.newInstance();
+            pl.setNucleotide( start );
+            pl.setNucleotideLength( end - ( int ) start );
+            pl.setStrand( row[4] );
+            pl.setBin( SequenceBinUtils.binFromRange( ( int ) start, end ) );
+            PhysicalLocation genePl = PhysicalLocation.Factory.newInstance();
+            genePl.setStrand( pl.getStrand() );
+
+            Chromosome c = new Chromosome( SequenceManipulation.deBlatFormatChromosomeName( chromosome ), taxon );
+            pl.setChromosome( c );
+            genePl.setChromosome( c );
+
+            /*
+             * this only contains the chromosome and strand: the nucleotide positions are only valid for the
+             * gene product
+             */
+            gene.setPhysicalLocation( genePl );
+
+            product.setName( name );
+
+            String descriptionFromGP = row[7];
+            if ( StringUtils.isBlank( descriptionFromGP ) ) {
+                product.setDescription( "Imported from GoldenPath" );
+            } else {
+                product.setDescription( "Imported from Golden Path: " + descriptionFromGP );
+            }
+            product.setPhysicalLocation( pl );
+            product.setGene( gene );
+
+            product.setExons( this.getExons( c, row[5], row[6] ) );
+
+            /*
+             * For microRNAs, we don't get exons, so we just use the whole length for now.
+             */
+            if ( product.getExons().size() == 0 ) {
+                product.getExons().add( pl );
+            }
+
+            r.add( product );
+
+        }
+        return r;
+    }
+
     /**
      * Uses a query that can retrieve BlatResults from GoldenPath. The query must have the appropriate form.
      *
@@ -843,27 +933,32 @@ public class GoldenPathSequenceAnalysis extends GoldenPath {
 
     }
 
+    private GenomeAnnotationIndex getIndex() {
+        synchronized ( GoldenPathSequenceAnalysis.indexes ) {
+            String url = this.getUrl();
+            if ( !GoldenPathSequenceAnalysis.indexes.containsKey( url ) ) {
+                GoldenPathSequenceAnalysis.indexes.put( url, new GenomeAnnotationIndex( this.getJdbcTemplate() ) );
+            }
+            return GoldenPathSequenceAnalysis.indexes.get( url );
+        }
+    }
+
     /**
-     * Fill in the exon information for a gene, given the raw blobs from the GoldenPath database.
-     * Be sure to pass the right Blob arguments!
+     * Fill in the exon information for a gene, given the raw values from the GoldenPath database.
+     * Be sure to pass the right arguments!
      *
      * @param exonStarts starts
      * @param exonEnds ends
-     * @throws SQLException sql problem
      */
-    private Collection<PhysicalLocation> getExons( Chromosome chrom, Blob exonStarts, Blob exonEnds )
-            throws SQLException {
+    private Collection<PhysicalLocation> getExons( Chromosome chrom, String exonStarts, String exonEnds ) {
 
         Collection<PhysicalLocation> exons = new HashSet<>();
         if ( exonStarts == null || exonEnds == null ) {
             return exons;
         }
 
-        String exonStartLocations = SQLUtils.blobToString( exonStarts );
-        String exonEndLocations = SQLUtils.blobToString( exonEnds );
-
-        int[] exonStartsInts = SequenceManipulation.blatLocationsToIntArray( exonStartLocations );
-        int[] exonEndsInts = SequenceManipulation.blatLocationsToIntArray( exonEndLocations );
+        int[] exonStartsInts = SequenceManipulation.blatLocationsToIntArray( exonStarts );
+        int[] exonEndsInts = SequenceManipulation.blatLocationsToIntArray( exonEnds );
 
         assert exonStartsInts.length == exonEndsInts.length;
 
@@ -912,21 +1007,18 @@ public class GoldenPathSequenceAnalysis extends GoldenPath {
     /**
      * Handle the format used by the all_mrna and other GoldenPath tables, which go by sizes of blocks and their starts,
      * not the starts and ends.
-     * Be sure to pass the right Blob arguments!
+     * Be sure to pass the right arguments!
      *
      * @param gene gene
      * @param blockSizes sizes
      * @param blockStarts starts
      */
-    private void setBlocks( Gene gene, Blob blockSizes, Blob blockStarts ) throws SQLException {
+    private void setBlocks( Gene gene, String blockSizes, String blockStarts ) {
         if ( blockSizes == null || blockStarts == null )
             return;
 
-        String exonSizes = SQLUtils.blobToString( blockSizes );
-        String exonStarts = SQLUtils.blobToString( blockStarts );
-
-        int[] exonSizeInts = SequenceManipulation.blatLocationsToIntArray( exonSizes );
-        int[] exonStartInts = SequenceManipulation.blatLocationsToIntArray( exonStarts );
+        int[] exonSizeInts = SequenceManipulation.blatLocationsToIntArray( blockSizes );
+        int[] exonStartInts = SequenceManipulation.blatLocationsToIntArray( blockStarts );
 
         assert exonSizeInts.length == exonStartInts.length;
 
@@ -22,6 +22,8 @@ import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContext;
 import org.springframework.security.core.context.SecurityContextHolder;
 import ubic.gemma.core.tasks.analysis.expression.ExpressionExperimentLoadTaskCommand;
+import ubic.gemma.model.expression.experiment.ExpressionExperiment;
+import ubic.gemma.persistence.util.Settings;
 
 import java.io.Serializable;
 
@@ -45,6 +47,11 @@ public class TaskCommand implements Serializable {
      */
     public static final int MAX_QUEUING_MINUTES = 60 * 2;
     private static final long serialVersionUID = 1L;
+    /**
+     * Bytes of memory assumed to be needed for each value of an experiment's data; analyses hold several copies of the
+     * data, in different forms, at once.
+     */
+    private static final long BYTES_PER_VALUE = Settings.getLong( "gemma.tasks.bytesPerValue", 100 );
     /**
      * For tasks that use too much resources and must be run remotely.
      */
@@ -73,6 +80,10 @@ public class TaskCommand implements Serializable {
      */
     private Integer maxQueueMinutes = TaskCommand.MAX_QUEUING_MINUTES;
     private int maxRuntime = TaskCommand.MAX_RUNTIME_MINUTES;
+    /**
+     * Decides the order in which queued tasks are started.
+     */
+    private TaskPriority priority = TaskPriority.BATCH;
 
     public TaskCommand() {
         // The taskId is assigned on creation.
@@ -99,6 +110,18 @@ public class TaskCommand implements Serializable {
         this.entityId = entityId;
     }
 
+    /**
+     * @param  ee experiment, may be null
+     * @return estimate of the memory needed to work on the data of the experiment, from its number of data vectors
+     *            and samples; zero if they are not known
+     */
+    protected static long estimateMemory( ExpressionExperiment ee ) {
+        if ( ee == null || ee.getNumberOfDataVectors() == null || ee.getNumberOfSamples() == null ) {
+            return 0;
+        }
+        return ( long ) ee.getNumberOfDataVectors() * ee.getNumberOfSamples() * TaskCommand.BYTES_PER_VALUE;
+    }
+
     public Long getEntityId() {
         return entityId;
     }
@@ -134,6 +157,26 @@ public class TaskCommand implements Serializable {
         this.maxRuntime = maxRuntime;
     }
 
+    /**
+     * Override for tasks that load the data of an experiment, so the task running service does not start more of them
+     * at once than there is memory for.
+     *
+     * @return estimate of the memory, in bytes, this task will need; zero if it is small or not known
+     */
+    public long getMemoryEstimate() {
+        return 0;
+    }
+
+    /**
+     * Override for tasks that do the same whoever submits them, so a queued one submitted by another user can stand in
+     * for this one. Otherwise only a task queued by the same user is considered to be the same task.
+     *
+     * @return true if the task and its results don't depend on the user it runs as
+     */
+    public boolean isUserIndependent() {
+        return false;
+    }
+
     /**
      * @return the persistJobDetails
      */
@@ -148,6 +191,14 @@ public class TaskCommand implements Serializable {
         this.persistJobDetails = persistJobDetails;
     }
 
+    public TaskPriority getPriority() {
+        return priority;
+    }
+
+    public void setPriority( TaskPriority priority ) {
+        this.priority = priority;
+    }
+
     public SecurityContext getSecurityContext() {
         return this.securityContext;
     }
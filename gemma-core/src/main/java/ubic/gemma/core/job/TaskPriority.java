@@ -0,0 +1,37 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2021 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.job;
+
+/**
+ * Classes of tasks, in the order in which queued tasks are started.
+ */
+public enum TaskPriority {
+    /**
+     * Quick tasks a user is waiting on, such as searches and visualizations. Some threads are kept for these.
+     */
+    INTERACTIVE,
+    /**
+     * Analyses and data loading; the default.
+     */
+    BATCH,
+    /**
+     * Housekeeping such as reports and index rebuilds, run when nothing else is waiting.
+     */
+    MAINTENANCE
+}
@@ -0,0 +1,263 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2021 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.job.executor.common;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import ubic.gemma.core.job.TaskPriority;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs tasks in threads, starting queued tasks by their priority and then in the order they were submitted.
+ * <ul>
+ * <li>At most numThreads tasks run at once, and some of those threads are kept for interactive tasks, so a queue of
+ * long analyses does not hold up a search a user is waiting on.</li>
+ * <li>A task is only started if the memory estimates of the running tasks, with its own, fit in the memory limit; a
+ * task is always started if nothing else is running, however large its estimate.</li>
+ * <li>A task that cannot be started holds up the tasks queued behind it, so a large task is not passed over forever by
+ * smaller ones.</li>
+ * </ul>
+ * Counts and wait and run times are kept for each priority; see {@link #getStats()}.
+ */
+public class PrioritizedTaskExecutor {
+
+    private static final Log log = LogFactory.getLog( PrioritizedTaskExecutor.class );
+
+    private final ExecutorService executor;
+    private final int numThreads;
+    private final int reservedThreads;
+    private final long memoryLimit;
+
+    private final PriorityQueue<QueuedTask<?>> queue = new PriorityQueue<>();
+    private final Map<TaskPriority, Stats> stats = new EnumMap<>( TaskPriority.class );
+    private long submitted = 0;
+    private int running = 0;
+    private long memoryInUse = 0;
+
+    /**
+     * @param name            used to name the threads
+     * @param numThreads      maximum number of tasks to run at once
+     * @param reservedThreads number of those that only interactive tasks can use; at least one thread is left for
+     *                        other tasks
+     * @param memoryLimit     limit on the sum of the memory estimates of running tasks, in bytes
+     */
+    public PrioritizedTaskExecutor( String name, int numThreads, int reservedThreads, long memoryLimit ) {
+        if ( numThreads < 1 ) {
+            throw new IllegalArgumentException( "Need at least one thread" );
+        }
+        this.numThreads = numThreads;
+        this.reservedThreads = Math.max( 0, Math.min( reservedThreads, numThreads - 1 ) );
+        this.memoryLimit = memoryLimit;
+        this.executor = Executors
+                .newCachedThreadPool( new ThreadFactoryBuilder().setNameFormat( name + "-%d" ).build() );
+        for ( TaskPriority priority : TaskPriority.values() ) {
+            stats.put( priority, new Stats() );
+        }
+    }
+
+    /**
+     * @param  callable       the task
+     * @param  priority       priority; null is taken as batch
+     * @param  memoryEstimate memory, in bytes, the task is expected to need
+     * @return future for the result of the task; cancelling it while the task is queued removes it from the queue
+     */
+    public <T> ListenableFuture<T> submit( Callable<T> callable, TaskPriority priority, long memoryEstimate ) {
+        final QueuedTask<T> task;
+        synchronized ( this ) {
+            task = new QueuedTask<>( ListenableFutureTask.create( callable ),
+                    priority == null ? TaskPriority.BATCH : priority, Math.max( 0, memoryEstimate ), submitted++ );
+            queue.add( task );
+            stats.get( task.priority ).queued++;
+        }
+        task.future.addListener( new Runnable() {
+            @Override
+            public void run() {
+                PrioritizedTaskExecutor.this.removeIfQueued( task );
+            }
+        }, MoreExecutors.sameThreadExecutor() );
+        this.startTasks();
+        return task.future;
+    }
+
+    /**
+     * @return the number of tasks waiting, running and finished, and their wait and run times, for each priority
+     */
+    public synchronized String getStats() {
+        StringBuilder buf = new StringBuilder();
+        buf.append( running ).append( " tasks running, using an estimated " ).append( memoryInUse / ( 1024 * 1024 ) )
+                .append( " of " ).append( memoryLimit / ( 1024 * 1024 ) ).append( " MB" );
+        for ( TaskPriority priority : TaskPriority.values() ) {
+            Stats s = stats.get( priority );
+            buf.append( "; " ).append( priority.name().toLowerCase() ).append( ": " ).append( s.queued )
+                    .append( " queued, " ).append( s.running ).append( " running, " ).append( s.finished )
+                    .append( " done" );
+            if ( s.started > 0 ) {
+                buf.append( ", wait mean/max " ).append( s.waitTime / s.started ).append( "/" ).append( s.maxWaitTime )
+                        .append( " ms" );
+            }
+            if ( s.finished > 0 ) {
+                buf.append( ", run mean " ).append( s.runTime / s.finished ).append( " ms" );
+            }
+        }
+        return buf.toString();
+    }
+
+    /**
+     * @param  priority priority
+     * @return number of tasks of the priority waiting to start
+     */
+    public synchronized int getQueueDepth( TaskPriority priority ) {
+        return stats.get( priority ).queued;
+    }
+
+    /**
+     * @param  priority priority
+     * @return number of tasks of the priority running
+     */
+    public synchronized int getRunning( TaskPriority priority ) {
+        return stats.get( priority ).running;
+    }
+
+    /**
+     * Cancel running tasks, and any that are queued.
+     */
+    public void shutdownNow() {
+        List<QueuedTask<?>> queued;
+        synchronized ( this ) {
+            queued = new ArrayList<>( queue );
+        }
+        for ( QueuedTask<?> task : queued ) {
+            task.future.cancel( false );
+        }
+        executor.shutdownNow();
+    }
+
+    private synchronized void startTasks() {
+        while ( !queue.isEmpty() && this.canStart( queue.peek() ) ) {
+            final QueuedTask<?> task = queue.poll();
+            Stats s = stats.get( task.priority );
+            s.queued--;
+            if ( task.future.isDone() ) {
+                continue; // cancelled while queued
+            }
+
+            task.startTime = System.nanoTime();
+            long wait = TimeUnit.NANOSECONDS.toMillis( task.startTime - task.submissionTime );
+            s.started++;
+            s.waitTime += wait;
+            s.maxWaitTime = Math.max( s.maxWaitTime, wait );
+            s.running++;
+            running++;
+            memoryInUse += task.memoryEstimate;
+
+            if ( PrioritizedTaskExecutor.log.isDebugEnabled() ) {
+                PrioritizedTaskExecutor.log
+                        .debug( "Starting " + task.priority + " task after waiting " + wait + " ms; " + running
+                                + " tasks running, using an estimated " + memoryInUse + " bytes" );
+            }
+
+            executor.execute( new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.future.run();
+                    } finally {
+                        PrioritizedTaskExecutor.this.finished( task );
+                    }
+                }
+            } );
+        }
+    }
+
+    private boolean canStart( QueuedTask<?> task ) {
+        int threads = task.priority == TaskPriority.INTERACTIVE ? numThreads : numThreads - reservedThreads;
+        if ( running >= threads ) {
+            return false;
+        }
+        return running == 0 || memoryInUse + task.memoryEstimate <= memoryLimit;
+    }
+
+    private void finished( QueuedTask<?> task ) {
+        synchronized ( this ) {
+            Stats s = stats.get( task.priority );
+            s.running--;
+            s.finished++;
+            s.runTime += TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - task.startTime );
+            running--;
+            memoryInUse -= task.memoryEstimate;
+        }
+        this.startTasks();
+    }
+
+    private void removeIfQueued( QueuedTask<?> task ) {
+        boolean removed;
+        synchronized ( this ) {
+            removed = queue.remove( task );
+            if ( removed ) {
+                stats.get( task.priority ).queued--;
+            }
+        }
+        if ( removed ) {
+            // it may have been holding up the tasks behind it
+            this.startTasks();
+        }
+    }
+
+    private static class Stats {
+        private int queued = 0;
+        private int running = 0;
+        private long started = 0;
+        private long finished = 0;
+        private long waitTime = 0;
+        private long maxWaitTime = 0;
+        private long runTime = 0;
+    }
+
+    private static class QueuedTask<T> implements Comparable<QueuedTask<?>> {
+        private final ListenableFutureTask<T> future;
+        private final TaskPriority priority;
+        private final long memoryEstimate;
+        private final long sequence;
+        private final long submissionTime = System.nanoTime();
+        private long startTime;
+
+        private QueuedTask( ListenableFutureTask<T> future, TaskPriority priority, long memoryEstimate,
+                long sequence ) {
+            this.future = future;
+            this.priority = priority;
+            this.memoryEstimate = memoryEstimate;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo( QueuedTask<?> o ) {
+            int c = priority.compareTo( o.priority );
+            return c != 0 ? c : Long.compare( sequence, o.sequence );
+        }
+    }
+}
@@ -101,9 +101,11 @@ public class SubmittedTasksMaintenance {
             }
         }
 
-        if ( tasks.size() > 0 && numDone != tasks.size() )
+        if ( tasks.size() > 0 && numDone != tasks.size() ) {
             SubmittedTasksMaintenance.log
                     .info( tasks.size() + " tasks monitored; Done: " + numDone + "; Running: " + numRunning
                             + "; Cancelled: " + numCancelled + "; Queued: " + numQueued );
+            SubmittedTasksMaintenance.log.info( "Local tasks: " + taskRunningService.getStats() );
+        }
     }
 }
@@ -28,6 +28,11 @@ public interface TaskRunningService {
 
     SubmittedTask getSubmittedTask( String taskId );
 
+    /**
+     * @return the number of local tasks queued, running and finished, and their wait and run times, for each priority
+     */
+    String getStats();
+
     /**
      * @return the submittedTasks
      */
@@ -19,11 +19,12 @@
 package ubic.gemma.core.job.executor.webapp;
 
 import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.ListeningExecutorService;
-import com.google.common.util.concurrent.MoreExecutors;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.builder.EqualsBuilder;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.core.context.SecurityContext;
 import org.springframework.stereotype.Component;
 import ubic.gemma.core.infrastructure.common.MessageReceiver;
 import ubic.gemma.core.infrastructure.common.MessageSender;
@@ -44,12 +45,13 @@ import java.util.Date;
 import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
- * Handles the execution of tasks in threads that can be checked by clients later.
+ * Handles the execution of tasks in threads that can be checked by clients later. Local tasks are queued by priority
+ * and started when there are threads and memory for them; a task that is the same as one already queued by the same
+ * user (or by anyone, if it doesn't depend on the user) is not queued again.
  *
  * @author pavlidis
  */
@@ -58,8 +60,9 @@ import static com.google.common.base.Preconditions.checkNotNull;
 @Component
 public class TaskRunningServiceImpl implements TaskRunningService {
     private static final Log log = LogFactory.getLog( TaskRunningServiceImpl.class );
-    private final ListeningExecutorService executorService = MoreExecutors
-            .listeningDecorator( Executors.newFixedThreadPool( 20 ) );
+    private final PrioritizedTaskExecutor taskExecutor = new PrioritizedTaskExecutor( "local-task",
+            Settings.getInt( "gemma.tasks.threads", 20 ), Settings.getInt( "gemma.tasks.interactiveThreads", 2 ),
+            ( long ) ( Runtime.getRuntime().maxMemory() * Settings.getDouble( "gemma.tasks.memoryFraction", 0.6 ) ) );
     private final Map<String, SubmittedTask<? extends TaskResult>> submittedTasks = new ConcurrentHashMap<>();
     @Autowired
     private TaskCommandToTaskMatcher taskCommandToTaskMatcher;
@@ -84,6 +87,11 @@ public class TaskRunningServiceImpl implements TaskRunningService {
         return submittedTasks.values();
     }
 
+    @Override
+    public String getStats() {
+        return taskExecutor.getStats();
+    }
+
     @Override
     public <C extends TaskCommand> String submitLocalTask( C taskCommand ) {
         this.checkTaskCommand( taskCommand );
@@ -93,13 +101,21 @@ public class TaskRunningServiceImpl implements TaskRunningService {
         return this.submitLocalTask( task );
     }
 
+    /**
+     * Synchronized so that looking for the same task already queued and queuing this one happen together.
+     */
     @Override
-    public <T extends Task> String submitLocalTask( T task ) {
+    public synchronized <T extends Task> String submitLocalTask( T task ) {
         this.checkTask( task );
 
         TaskCommand taskCommand = task.getTaskCommand();
         this.checkTaskCommand( taskCommand );
 
+        SubmittedTask<? extends TaskResult> queued = this.findQueuedTask( taskCommand );
+        if ( queued != null ) {
+            return queued.getTaskId();
+        }
+
         final String taskId = task.getTaskCommand().getTaskId();
 
         if ( TaskRunningServiceImpl.log.isDebugEnabled() ) {
@@ -137,7 +153,8 @@ public class TaskRunningServiceImpl implements TaskRunningService {
             }
         } ) );
 
-        ListenableFuture<TaskResult> future = executorService.submit( executingTask );
+        ListenableFuture<TaskResult> future = taskExecutor
+                .submit( executingTask, taskCommand.getPriority(), taskCommand.getMemoryEstimate() );
         submittedTask.setFuture( future );
 
         // Adding post-processing steps, they will run on future completion.
@@ -151,13 +168,19 @@ public class TaskRunningServiceImpl implements TaskRunningService {
     }
 
     /**
-     * We check if there are listeners on task submission queue to decide if remote tasks can be served.
+     * We check if there are listeners on task submission queue to decide if remote tasks can be served. Synchronized
+     * for the same reason as {@link #submitLocalTask(Task)}.
      */
     @Override
-    public <C extends TaskCommand> String submitRemoteTask( final C taskCommand ) {
+    public synchronized <C extends TaskCommand> String submitRemoteTask( final C taskCommand ) {
         String taskId = taskCommand.getTaskId();
         assert ( taskId != null );
 
+        SubmittedTask<? extends TaskResult> queued = this.findQueuedTask( taskCommand );
+        if ( queued != null ) {
+            return queued.getTaskId();
+        }
+
         if ( Settings.isRemoteTasksEnabled() && jmsBrokerMonitor.canServiceRemoteTasks() ) {
             jmsHelper.sendMessage( taskSubmissionQueue, taskCommand );
 
@@ -172,6 +195,52 @@ public class TaskRunningServiceImpl implements TaskRunningService {
         return taskId;
     }
 
+    /**
+     * Look for a task that has not started yet and was submitted with the same parameters, by the same user, as the
+     * given command. The user is not compared if the command says it doesn't depend on it; the command's own task id
+     * is never compared. Callers must hold the lock on this until the command is queued, if it is.
+     *
+     * @param  taskCommand task command
+     * @return the queued task, or null if there is none; if the command asks for an email alert, one is added to the
+     *         task that is found
+     */
+    private SubmittedTask<? extends TaskResult> findQueuedTask( TaskCommand taskCommand ) {
+        for ( SubmittedTask<? extends TaskResult> submittedTask : submittedTasks.values() ) {
+            TaskCommand queuedCommand = submittedTask.getTaskCommand();
+            if ( submittedTask.getStatus() != SubmittedTask.Status.QUEUED || queuedCommand == taskCommand
+                    || !queuedCommand.getClass().equals( taskCommand.getClass() ) ) {
+                continue;
+            }
+            if ( !taskCommand.isUserIndependent() && !StringUtils
+                    .equals( TaskRunningServiceImpl.getUserName( queuedCommand ),
+                            TaskRunningServiceImpl.getUserName( taskCommand ) ) ) {
+                continue;
+            }
+            if ( EqualsBuilder.reflectionEquals( queuedCommand, taskCommand, "taskId", "securityContext", "submitter",
+                    "emailAlert" ) ) {
+                TaskRunningServiceImpl.log
+                        .info( taskCommand.getClass().getSimpleName() + " is the same as queued task " + submittedTask
+                                .getTaskId() + ", not submitting it again" );
+                if ( taskCommand.isEmailAlert() ) {
+                    submittedTask.addEmailAlert();
+                }
+                return submittedTask;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the name of the user the command runs as, or null if there is none
+     */
+    private static String getUserName( TaskCommand taskCommand ) {
+        SecurityContext context = taskCommand.getSecurityContext();
+        if ( context == null || context.getAuthentication() == null ) {
+            return null;
+        }
+        return context.getAuthentication().getName();
+    }
+
     private void checkTask( Task task ) {
         checkNotNull( task, "Must provide a task." );
     }
@@ -37,23 +37,19 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 /**
- * This will run on remote worker jvm CompletionService backed by ThreadPoolExecutor is used to execute tasks.
- * ApplicationContext is injected and is used to load classes implementing Tasks.
+ * This will run on remote worker jvm. Tasks are queued by priority and started when there are threads and memory for
+ * them, see {@link PrioritizedTaskExecutor}. ApplicationContext is injected and is used to load classes implementing
+ * Tasks.
  */
 @Component("remoteTaskRunningService")
 public class RemoteTaskRunningServiceImpl implements RemoteTaskRunningService {
     private static final Log log = LogFactory.getLog( RemoteTaskRunningServiceImpl.class );
     private final Map<String, SubmittedTaskRemote> submittedTasks = new ConcurrentHashMap<>();
-    /*
-     * thread pool with 10 core threads and a maximum of 15 threads.
-     */
-    private final ListeningExecutorService executorService = MoreExecutors.listeningDecorator(
-            new ThreadPoolExecutor( 10, 15, 10, TimeUnit.MINUTES, new LinkedBlockingQueue<Runnable>() ) );
+    private final PrioritizedTaskExecutor taskExecutor = new PrioritizedTaskExecutor( "remote-task",
+            Settings.getInt( "gemma.remoteTasks.threads", 10 ), Settings.getInt( "gemma.tasks.interactiveThreads", 2 ),
+            ( long ) ( Runtime.getRuntime().maxMemory() * Settings.getDouble( "gemma.tasks.memoryFraction", 0.6 ) ) );
     // Take completed Task and send its result to the SubmittedTaskProxy via JMS queue.
     private final FutureCallback<TaskResult> sendTaskResultCallback = new FutureCallback<TaskResult>() {
         @Override
@@ -61,6 +57,8 @@ public class RemoteTaskRunningServiceImpl implements RemoteTaskRunningService {
             // Clean up.
             SubmittedTaskRemote task = submittedTasks.remove( taskResult.getTaskId() );
             task.sendTaskResult();
+            RemoteTaskRunningServiceImpl.log
+                    .info( "Task " + taskResult.getTaskId() + " done; " + taskExecutor.getStats() );
         }
 
         @Override
@@ -118,7 +116,8 @@ public class RemoteTaskRunningServiceImpl implements RemoteTaskRunningService {
             }
         } );
 
-        ListenableFuture<TaskResult> future = executorService.submit( executingTask );
+        ListenableFuture<TaskResult> future = taskExecutor
+                .submit( executingTask, taskCommand.getPriority(), taskCommand.getMemoryEstimate() );
         submittedTask.setFuture( future );
 
         // These are run on task completion.
@@ -138,7 +137,7 @@ public class RemoteTaskRunningServiceImpl implements RemoteTaskRunningService {
 
     @Override
     public void shutdown() {
-        this.executorService.shutdownNow();
+        this.taskExecutor.shutdownNow();
     }
 
     private void checkTaskCommand( TaskCommand taskCommand ) {
@@ -1048,26 +1048,26 @@ public class GeoConverterImpl implements GeoConverter {
         }
     }
 
+    /**
+     * @param blob the converted data, or null if they were all missing
+     */
     private RawExpressionDataVector convertDesignElementDataVector( GeoPlatform geoPlatform,
-            ExpressionExperiment expExp, BioAssayDimension bioAssayDimension, String designElementName,
-            List<Object> dataVector, QuantitationType qt ) {
-
-        if ( dataVector == null || dataVector.size() == 0 )
-            return null;
+            ExpressionExperiment expExp, BioAssayDimension bioAssayDimension, String designElementName, byte[] blob,
+            int numValues, QuantitationType qt ) {
 
         int numValuesExpected = bioAssayDimension.getBioAssays().size();
-        if ( dataVector.size() != numValuesExpected ) {
+        if ( numValues != numValuesExpected ) {
             throw new IllegalArgumentException(
-                    "Expected " + numValuesExpected + " in bioassaydimension, data contains " + dataVector.size() );
+                    "Expected " + numValuesExpected + " in bioassaydimension, data contains " + numValues );
         }
-        byte[] blob = this.convertData( dataVector, qt );
+
         if ( blob == null ) { // all missing etc.
             if ( GeoConverterImpl.log.isDebugEnabled() )
                 GeoConverterImpl.log.debug( "All missing values for DE=" + designElementName + " QT=" + qt );
             return null;
         }
         if ( GeoConverterImpl.log.isDebugEnabled() ) {
-            GeoConverterImpl.log.debug( blob.length + " bytes for " + dataVector.size() + " raw elements" );
+            GeoConverterImpl.log.debug( blob.length + " bytes for " + numValues + " raw elements" );
         }
 
         ArrayDesign p = this.convertPlatform( geoPlatform );
@@ -2426,17 +2426,26 @@ public class GeoConverterImpl implements GeoConverter {
             GeoConverterImpl.log.debug( "Processing " + quantitationType + " (column=" + quantitationTypeIndex
                     + " - according to sample, it's " + columnAccordingToSample + ")" );
 
-            Map<String, List<Object>> dataVectors = this
-                    .makeDataVectors( values, datasetSamples, quantitationTypeIndex );
+            Collections.sort( datasetSamples );
+            GeoPlatform dataPlatform = this.getPlatformForSamples( datasetSamples );
 
-            if ( dataVectors == null || dataVectors.size() == 0 ) {
+            // the locations of the data we need in the target vectors (mostly reordering)
+            Integer[] indices = values.getIndices( dataPlatform, datasetSamples, quantitationTypeIndex );
+            List<String> designElements = this
+                    .getDesignElementsWithData( values, dataPlatform, indices, quantitationTypeIndex );
+
+            if ( designElements.isEmpty() ) {
                 GeoConverterImpl.log
                         .debug( "No data for " + quantitationType + " (column=" + quantitationTypeIndex + ")" );
+                if ( indices != null )
+                    values.clear( dataPlatform, datasetSamples, quantitationTypeIndex );
                 continue;
             }
-            GeoConverterImpl.log.info( dataVectors.size() + " data vectors for " + quantitationType );
+            assert indices.length == datasetSamples.size();
+            GeoConverterImpl.log.info( designElements.size() + " data vectors for " + quantitationType );
 
-            Object exampleValue = dataVectors.values().iterator().next().iterator().next();
+            Object exampleValue = values
+                    .getValues( dataPlatform, quantitationTypeIndex, designElements.get( 0 ), indices ).get( 0 );
 
             QuantitationType qt = QuantitationType.Factory.newInstance();
             qt.setName( quantitationType );
@@ -2447,14 +2456,14 @@ public class GeoConverterImpl implements GeoConverter {
 
             int count = 0;
             int skipped = 0;
-            for ( String designElementName : dataVectors.keySet() ) {
-                List<Object> dataVector = dataVectors.get( designElementName );
-                if ( dataVector == null || dataVector.size() == 0 )
-                    continue;
-
+            double[] buffer = new double[indices.length];
+            for ( String designElementName : designElements ) {
+                byte[] blob = this
+                        .convertData( values, dataPlatform, quantitationTypeIndex, designElementName, indices, buffer,
+                                qt );
                 RawExpressionDataVector vector = this
                         .convertDesignElementDataVector( geoPlatform, expExp, bioAssayDimension, designElementName,
-                                dataVector, qt );
+                                blob, indices.length, qt );
 
                 if ( vector == null ) {
                     skipped++;
@@ -2467,7 +2476,7 @@ public class GeoConverterImpl implements GeoConverter {
                 if ( GeoConverterImpl.log.isTraceEnabled() ) {
                     GeoConverterImpl.log
                             .trace( designElementName + " " + qt.getName() + " " + qt.getRepresentation() + " "
-                                    + dataVector.size() + " elements in vector" );
+                                    + indices.length + " elements in vector" );
                 }
 
                 expExp.getRawExpressionDataVectors().add( vector );
@@ -2491,6 +2500,8 @@ public class GeoConverterImpl implements GeoConverter {
             if ( skipped > 0 ) {
                 GeoConverterImpl.log.info( "Skipped " + skipped + " vectors" );
             }
+
+            values.clear( dataPlatform, datasetSamples, quantitationTypeIndex );
         }
         GeoConverterImpl.log
                 .info( "Total of " + expExp.getRawExpressionDataVectors().size() + " vectors on platform " + geoPlatform
@@ -2901,6 +2912,27 @@ public class GeoConverterImpl implements GeoConverter {
         return seriesSamples;
     }
 
+    /**
+     * Convert the values for one design element, reading doubles directly from the parsed values without going via
+     * strings.
+     *
+     * @param  indices locations of the values for the samples, as obtained from the GeoValues
+     * @param  buffer  reused for each design element, the same length as the indices
+     * @return         the data, or null if the values are all missing
+     */
+    private byte[] convertData( GeoValues values, GeoPlatform platform, Integer quantitationTypeIndex,
+            String designElementName, Integer[] indices, double[] buffer, QuantitationType qt ) {
+        if ( qt.getRepresentation().equals( PrimitiveType.DOUBLE ) ) {
+            int numPresent = values
+                    .getDoubleValues( platform, quantitationTypeIndex, designElementName, indices, buffer );
+            if ( numPresent <= 0 ) {
+                return null;
+            }
+            return byteArrayConverter.doubleArrayToBytes( buffer );
+        }
+        return this.convertData( values.getValues( platform, quantitationTypeIndex, designElementName, indices ), qt );
+    }
+
     /**
      * Deal with missing values, identified by nulls or number format exceptions.
      */
@@ -2938,26 +2970,6 @@ public class GeoConverterImpl implements GeoConverter {
         return externalDb != null && externalDb.getName().equalsIgnoreCase( "Genbank" );
     }
 
-    /**
-     * Check to see if we got any data. If not, we should return null. This can happen if the quantitation type was
-     * filtered during parsing.
-     */
-    private boolean isPopulated( Map<String, List<Object>> dataVectors ) {
-        boolean filledIn = false;
-        for ( List<Object> vector : dataVectors.values() ) {
-            for ( Object object : vector ) {
-                if ( object != null ) {
-                    filledIn = true;
-                    break;
-                }
-            }
-            if ( filledIn ) {
-                break;
-            }
-        }
-        return filledIn;
-    }
-
     /**
      * Note that series can have more than one type, if it has mixed samples; if at least on type matches one we can
      * use, we keep it.
@@ -2973,55 +2985,47 @@ public class GeoConverterImpl implements GeoConverter {
     }
 
     /**
-     * Convert the by-sample data for a given quantitation type to by-designElement data vectors.
+     * Find the design elements which have data for a given quantitation type, in the order they are on the platform.
      *
-     * @param  datasetSamples           The samples we want to get data for. These should all have been run on the same
-     *                                  platform.
-     * @param  quantitationTypeIndex    - first index is 0
-     * @return                          A map of Strings (design element names) to Lists of Strings containing the data.
-     * @throws IllegalArgumentException if the columnNumber is not valid
+     * @param  indices               locations of the data for the samples, as obtained from the GeoValues.
+     * @param  quantitationTypeIndex - first index is 0
+     * @return                       design element names; empty if there are no data, which can happen if the
+     *                               quantitation type was filtered during parsing.
      */
-    private Map<String, List<Object>> makeDataVectors( GeoValues values, List<GeoSample> datasetSamples,
+    private List<String> getDesignElementsWithData( GeoValues values, GeoPlatform platform, Integer[] indices,
             Integer quantitationTypeIndex ) {
-        Map<String, List<Object>> dataVectors = new HashMap<>( GeoConverterImpl.INITIAL_VECTOR_CAPACITY );
-        Collections.sort( datasetSamples );
-        GeoPlatform platform = this.getPlatformForSamples( datasetSamples );
-
-        // the locations of the data we need in the target vectors (mostly reordering)
-        Integer[] indices = values.getIndices( platform, datasetSamples, quantitationTypeIndex );
+        List<String> result = new ArrayList<>( GeoConverterImpl.INITIAL_VECTOR_CAPACITY );
 
         if ( indices == null || indices.length == 0 )
-            return null; // can happen if quantitation type was filtered out.
+            return result; // can happen if quantitation type was filtered out.
 
-        assert indices.length == datasetSamples.size();
+        boolean anySample = false;
+        for ( Integer i : indices ) {
+            if ( i != null ) {
+                anySample = true;
+                break;
+            }
+        }
+        if ( !anySample )
+            return result;
 
         String identifier = platform.getIdColumnName();
         List<String> designElements = platform.getColumnData( identifier );
 
         if ( designElements == null ) {
-            return dataVectors;
+            return result;
         }
 
         for ( String designElementName : designElements ) {
             /*
-             * Note: null data can happen if the platform has probes that aren't in the data, or if this is a
+             * Note: missing data can happen if the platform has probes that aren't in the data, or if this is a
              * quantitation type that was filtered out during parsing, or absent from some samples.
              */
-            List<Object> ob = values.getValues( platform, quantitationTypeIndex, designElementName, indices );
-            if ( ob == null || ob.size() == 0 )
-                continue;
-            assert ob.size() == datasetSamples.size();
-            dataVectors.put( designElementName, ob );
+            if ( values.hasValues( platform, quantitationTypeIndex, designElementName ) ) {
+                result.add( designElementName );
+            }
         }
-
-        boolean filledIn = this.isPopulated( dataVectors );
-
-        values.clear( platform, datasetSamples, quantitationTypeIndex );
-
-        if ( !filledIn )
-            return null;
-
-        return dataVectors;
+        return result;
     }
 
     private void matchSampleReplicationToExperimentalFactorValue( BioMaterial bioMaterial,
@@ -150,7 +150,8 @@ public class GeoDomainObjectGenerator implements SourceDomainObjectGenerator {
     }
 
     /**
-     * Initialize fetchers, clear out any data that was already generated by this Generator.
+     * Initialize fetchers, clear out any data that was already generated by this Generator. The platforms and samples
+     * to skip and the section listener are reset too.
      */
     public void initialize() {
         parser = new GeoFamilyParser();
@@ -197,10 +198,33 @@ public class GeoDomainObjectGenerator implements SourceDomainObjectGenerator {
         this.platformFetcher = platformFetcher;
     }
 
+    /**
+     * @param platformAccessions platforms to pass over while parsing, along with their samples; see
+     *                           {@link GeoFamilyParser#setPlatformsToSkip(Collection)}
+     */
+    public void setPlatformsToSkip( Collection<String> platformAccessions ) {
+        this.parser.setPlatformsToSkip( platformAccessions );
+    }
+
     public void setProcessPlatformsOnly( boolean b ) {
         this.processPlatformsOnly = b;
     }
 
+    /**
+     * @param sampleAccessions samples to pass over while parsing; see
+     *                         {@link GeoFamilyParser#setSamplesToSkip(Collection)}
+     */
+    public void setSamplesToSkip( Collection<String> sampleAccessions ) {
+        this.parser.setSamplesToSkip( sampleAccessions );
+    }
+
+    /**
+     * @param sectionListener to be told about each series header, platform and sample as it is parsed
+     */
+    public void setSectionListener( GeoFamilyParser.SectionListener sectionListener ) {
+        this.parser.setSectionListener( sectionListener );
+    }
+
     /**
      * @param seriesFetcher The seriesFetcher to set.
      */
@@ -19,6 +19,8 @@
 package ubic.gemma.core.loader.expression.geo;
 
 import org.apache.commons.beanutils.BeanUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.input.CountingInputStream;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.text.WordUtils;
 import org.apache.commons.lang3.time.StopWatch;
@@ -65,6 +67,12 @@ public class GeoFamilyParser implements Parser<Object> {
      */
     private final Collection<String> processedDesignElements = new HashSet<>();
     private final Collection<Integer> wantedQuantitationTypes = new HashSet<>();
+    private final Collection<String> platformsToSkip = new HashSet<>();
+    private final Collection<String> samplesToSkip = new HashSet<>();
+    /*
+     * Platforms listed in the header of the current series.
+     */
+    private final Collection<String> seriesPlatforms = new HashSet<>();
     private boolean alreadyWarnedAboutClobbering = false;
     private boolean alreadyWarnedAboutInconsistentColumnOrder = false;
     private boolean alreadyWarnedAboutDuplicateColumnName = false;
@@ -91,6 +99,11 @@ public class GeoFamilyParser implements Parser<Object> {
     private int sampleDataLines = 0;
     private boolean processPlatformsOnly;
     private int numWarnings = 0;
+    private SectionListener sectionListener;
+    /*
+     * True while we are passing over the lines of a platform or sample we were asked to skip.
+     */
+    private boolean skippingSection = false;
 
     @Override
     public Collection<Object> getResults() {
@@ -116,7 +129,8 @@ public class GeoFamilyParser implements Parser<Object> {
             throw new IOException( "No bytes to read from the input stream." );
         }
 
-        try (final BufferedReader dis = new BufferedReader( new InputStreamReader( is ) )) {
+        final CountingInputStream counter = new CountingInputStream( is );
+        try (final BufferedReader dis = new BufferedReader( new InputStreamReader( counter ) )) {
 
             GeoFamilyParser.log.debug( "Parsing...." );
 
@@ -147,7 +161,8 @@ public class GeoFamilyParser implements Parser<Object> {
                     dis.close();
                     return;
                 }
-                GeoFamilyParser.log.info( parsedLines + " lines parsed." );
+                GeoFamilyParser.log.info( parsedLines + " lines parsed (" + FileUtils
+                        .byteCountToDisplaySize( counter.getByteCount() ) + ")." );
             }
 
             try {
@@ -210,6 +225,34 @@ public class GeoFamilyParser implements Parser<Object> {
         this.processPlatformsOnly = b;
     }
 
+    /**
+     * @param platformAccessions platforms whose sections should be passed over without parsing. Samples run on these
+     *                           platforms are skipped as well. This can be called from the {@link SectionListener}, and
+     *                           then applies to the sections that follow.
+     */
+    public void setPlatformsToSkip( Collection<String> platformAccessions ) {
+        this.platformsToSkip.clear();
+        this.platformsToSkip.addAll( platformAccessions );
+    }
+
+    /**
+     * @param sampleAccessions samples whose sections should be passed over without parsing; they are also left out of
+     *                         the series. This can be called from the {@link SectionListener}, and then applies to the
+     *                         sections that follow.
+     */
+    public void setSamplesToSkip( Collection<String> sampleAccessions ) {
+        this.samplesToSkip.clear();
+        this.samplesToSkip.addAll( sampleAccessions );
+    }
+
+    /**
+     * @param sectionListener to be notified as each series header, platform and sample is completed, while parsing is
+     *                        still under way.
+     */
+    public void setSectionListener( SectionListener sectionListener ) {
+        this.sectionListener = sectionListener;
+    }
+
     /**
      * Check to make sure data has been added for all the design elements, and all quantitation types. This is necessary
      * where the data for some design elements is omitted. This can happen if there is some variability between the
@@ -289,6 +332,10 @@ public class GeoFamilyParser implements Parser<Object> {
     }
 
     private void addSeriesSample( String value ) {
+        if ( samplesToSkip.contains( value ) ) {
+            GeoFamilyParser.log.debug( "Skipping sample " + value + " for series " + currentSeriesAccession );
+            return;
+        }
         if ( !results.getSampleMap().containsKey( value ) ) {
             GeoFamilyParser.log.debug( "New sample (for series): " + value );
             this.addNewSample( value );
@@ -458,6 +505,10 @@ public class GeoFamilyParser implements Parser<Object> {
                 }
             }
 
+            if ( inSeries ) {
+                this.notifySeriesParsed();
+                inSeries = false;
+            }
             this.tidyUp();
 
         } catch ( Exception e ) {
@@ -933,6 +984,10 @@ public class GeoFamilyParser implements Parser<Object> {
         if ( StringUtils.isBlank( line ) )
             return;
         if ( line.startsWith( "^" ) ) {
+            skippingSection = false;
+            if ( inSeries ) {
+                this.notifySeriesParsed();
+            }
             if ( this.startsWithIgnoreCase( line, "^DATABASE" ) ) {
                 inDatabase = true;
                 inSubset = false;
@@ -952,6 +1007,10 @@ public class GeoFamilyParser implements Parser<Object> {
                 if ( this.processPlatformsOnly )
                     return;
                 String value = this.extractValue( line );
+                if ( samplesToSkip.contains( value ) ) {
+                    this.skipSample( value );
+                    return;
+                }
                 currentSampleAccession = value;
                 GeoFamilyParser.log.debug( "Starting new sample " + value );
                 if ( results.getSampleMap().containsKey( value ) )
@@ -965,6 +1024,10 @@ public class GeoFamilyParser implements Parser<Object> {
                 inSample = false;
                 inSeries = false;
                 String value = this.extractValue( line );
+                if ( platformsToSkip.contains( value ) ) {
+                    this.skipSection( value );
+                    return;
+                }
                 currentPlatformAccession = value;
                 if ( results.getPlatformMap().containsKey( value ) )
                     return;
@@ -983,6 +1046,7 @@ public class GeoFamilyParser implements Parser<Object> {
                     return;
                 String value = this.extractValue( line );
                 currentSeriesAccession = value;
+                seriesPlatforms.clear();
                 if ( results.getSeriesMap().containsKey( value ) )
                     return;
                 GeoSeries series = new GeoSeries();
@@ -1028,7 +1092,7 @@ public class GeoFamilyParser implements Parser<Object> {
             } else {
                 GeoFamilyParser.log.error( "Unknown flag in subset: " + line );
             }
-        } else {
+        } else if ( !skippingSection ) {
             this.parseRegularLine( line );
         }
     }
@@ -1150,6 +1214,9 @@ public class GeoFamilyParser implements Parser<Object> {
             haveReadPlatformHeader = false;
         } else if ( this.startsWithIgnoreCase( line, "!Platform_table_end" ) ) {
             inPlatformTable = false;
+            if ( sectionListener != null ) {
+                sectionListener.platformParsed( results.getPlatformMap().get( currentPlatformAccession ) );
+            }
         } else if ( this.startsWithIgnoreCase( line, "!Platform_contributor" ) ) {
             // noop. This is the name of the person who submitted the platform.
         } else if ( this.startsWithIgnoreCase( line, "!Platform_series_id" ) ) {
@@ -1339,6 +1406,7 @@ public class GeoFamilyParser implements Parser<Object> {
         } else if ( this.startsWithIgnoreCase( line, "!sample_table_end" ) ) {
             this.checkDataCompleteness();
             inSampleTable = false;
+            this.notifySampleParsed();
         } else if ( this.startsWithIgnoreCase( line, "!Sample_title" ) ) {
             if ( this.inDataset ) {
                 this.sampleSet( currentSampleAccession, "titleInDataset", value );
@@ -1401,6 +1469,10 @@ public class GeoFamilyParser implements Parser<Object> {
             GeoSample sample = results.getSampleMap().get( currentSampleAccession );
             sample.getChannel( channel ).addCharacteristic( value );
         } else if ( this.startsWithIgnoreCase( line, "!Sample_platform_id" ) ) {
+            if ( platformsToSkip.contains( value ) ) {
+                this.skipCurrentSample();
+                return;
+            }
             this.sampleSet( currentSampleAccession, "id", value );
             if ( results.getPlatformMap().containsKey( value ) ) {
                 results.getSampleMap().get( currentSampleAccession )
@@ -1451,6 +1523,7 @@ public class GeoFamilyParser implements Parser<Object> {
                 GeoFamilyParser.log.warn( "No data for sample " + currentSampleAccession );
                 this.initializeQuantitationTypes();
                 this.checkDataCompleteness(); // because we don't get the table_end.
+                this.notifySampleParsed();
             }
         } else if ( this.startsWithIgnoreCase( line, "!Sample_type" ) ) {
             // e.g. SRA - this is not actually the type!
@@ -1644,6 +1717,7 @@ public class GeoFamilyParser implements Parser<Object> {
             this.seriesContactSet( currentSeriesAccession, "webLink", value );
         } else if ( this.startsWithIgnoreCase( line, "!series_platform_id" ) ) {
             this.seriesSet( currentSeriesAccession, "platformId", value );
+            seriesPlatforms.add( value );
         } else if ( this.startsWithIgnoreCase( line, "!series_table_begin" ) ) {
             inSeriesTable = true;
         } else if ( this.startsWithIgnoreCase( line, "!series_table_end" ) ) {
@@ -1914,6 +1988,45 @@ public class GeoFamilyParser implements Parser<Object> {
 
     }
 
+    private void notifySampleParsed() {
+        if ( sectionListener == null )
+            return;
+        GeoSeries series = currentSeriesAccession == null ? null : this.currentSeries();
+        sectionListener.sampleParsed( series, this.currentSample() );
+    }
+
+    private void notifySeriesParsed() {
+        if ( sectionListener == null || processPlatformsOnly || currentSeriesAccession == null )
+            return;
+        sectionListener.seriesParsed( this.currentSeries(), Collections.unmodifiableCollection( seriesPlatforms ) );
+    }
+
+    /**
+     * Drop the sample we are in, because it uses a platform we are skipping, and pass over the rest of its section.
+     */
+    private void skipCurrentSample() {
+        this.skipSample( currentSampleAccession );
+        currentSampleAccession = null;
+    }
+
+    /**
+     * Drop a sample, which might have been added already by the series that lists it, and pass over its section.
+     */
+    private void skipSample( String accession ) {
+        GeoSample sample = results.getSampleMap().remove( accession );
+        if ( sample != null ) {
+            for ( GeoSeries series : results.getSeriesMap().values() ) {
+                series.removeSamples( Collections.singleton( sample ) );
+            }
+        }
+        this.skipSection( accession );
+    }
+
+    private void skipSection( String accession ) {
+        GeoFamilyParser.log.info( "Skipping " + accession );
+        skippingSection = true;
+    }
+
     /**
      * Check for problems and fix them.
      */
@@ -1944,4 +2057,32 @@ public class GeoFamilyParser implements Parser<Object> {
         return clobbers;
     }
 
+    /**
+     * Receives series headers, platforms and samples as soon as their sections (including the data table) have been
+     * read, so they can be processed while the rest of the file is parsed.
+     */
+    public interface SectionListener {
+
+        /**
+         * In a series family file the series header comes first, so this is the place to decide which platforms and
+         * samples to skip.
+         *
+         * @param series             a series whose header has been read; its samples are the ones it lists
+         * @param platformAccessions the platforms listed in the series header
+         */
+        void seriesParsed( GeoSeries series, Collection<String> platformAccessions );
+
+        /**
+         * @param platform a platform whose table has been read
+         */
+        void platformParsed( GeoPlatform platform );
+
+        /**
+         * @param series the series the sample is being read for (its values hold the sample's data), or null if not
+         *               known
+         * @param sample a sample whose data table has been read
+         */
+        void sampleParsed( GeoSeries series, GeoSample sample );
+    }
+
 }
@@ -0,0 +1,447 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2021 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.loader.expression.geo.model;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Values for one quantitation type on one platform. There is one column per sample, in the same order as the samples
+ * in the sample dimension, and within a column values are addressed by the index of the design element (see
+ * {@link GeoValues}).
+ * Numeric values are parsed as they are added and kept as primitive doubles, but only if they can be given back as
+ * exactly the same string. Plain decimals (e.g. "7.850" or "0.0001") are kept with their number of decimal places,
+ * which is enough to rebuild their text. Anything else, including numbers written some other way (e.g. "007", "1e2",
+ * numbers with too many digits or identifiers too long for an int), is kept as a string. So values read back as
+ * strings are always as they were added, whatever the representation of their quantitation type turns out to be.
+ * The arrays for a column are only allocated once it has a value that isn't a string, so columns of text (e.g.
+ * detection calls) cost no more than the strings themselves.
+ *
+ * @see GeoValues
+ */
+class GeoValueColumns implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /*
+     * What is stored in a cell. UNSET is what you get for design elements that had no value in the sample.
+     */
+    private static final byte UNSET = 0;
+    private static final byte BLANK = 1;
+    private static final byte INT = 2;
+    private static final byte DOUBLE = 3;
+    private static final byte STRING = 4;
+    /*
+     * DECIMAL + n: a plain decimal number with n decimal places, from 1 to MAX_DECIMAL_PLACES.
+     */
+    private static final byte DECIMAL = 5;
+
+    private static final int MAX_DECIMAL_PLACES = 15;
+
+    /*
+     * Decimals are only kept as doubles if their digits, taken as an integer, are below this (2^50, so any number with
+     * up to 15 digits). That integer is then recovered exactly by multiplying the double by a power of ten and
+     * rounding.
+     */
+    private static final long MAX_DECIMAL_DIGITS = 1L << 50;
+
+    private static final double[] POWERS_OF_TEN = new double[GeoValueColumns.MAX_DECIMAL_PLACES + 1];
+
+    static {
+        double p = 1.0;
+        for ( int i = 0; i <= GeoValueColumns.MAX_DECIMAL_PLACES; i++ ) {
+            GeoValueColumns.POWERS_OF_TEN[i] = p;
+            p *= 10.0;
+        }
+    }
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final List<Column> columns = new ArrayList<>();
+
+    /**
+     * Design elements that have a value in at least one of the columns.
+     */
+    private final BitSet designElementsPresent = new BitSet();
+
+    /**
+     * Used to avoid searching the sample dimension for every value, as values are added sample by sample.
+     */
+    private transient GeoSample lastSample = null;
+    private transient int lastPosition = -1;
+
+    /**
+     * @param value the value
+     * @return the parsed value if it is an integer written the way Integer.toString writes it, or null
+     */
+    private static Integer parseInt( String value ) {
+        int n = value.length();
+        if ( n == 0 || n > 11 )
+            return null;
+        for ( int i = 0; i < n; i++ ) {
+            char c = value.charAt( i );
+            if ( ( c < '0' || c > '9' ) && !( i == 0 && ( c == '-' || c == '+' ) && n > 1 ) ) {
+                return null;
+            }
+        }
+        try {
+            int i = Integer.parseInt( value );
+            // e.g. leading zeros or '+'
+            return Integer.toString( i ).equals( value ) ? i : null;
+        } catch ( NumberFormatException e ) {
+            return null; // out of range.
+        }
+    }
+
+    /**
+     * @param value the value
+     * @return the parsed value if it is a number written the way Double.toString writes it, or null.
+     */
+    private static Double parseDouble( String value ) {
+        try {
+            double d = Double.parseDouble( value );
+            // e.g. trailing zeros, exponents, or suffixes like 'f' and 'd', which parseDouble accepts
+            return Double.toString( d ).equals( value ) ? d : null;
+        } catch ( NumberFormatException e ) {
+            return null;
+        }
+    }
+
+    /**
+     * @param value the value
+     * @return the number of decimal places if the value is a plain decimal number (no exponent, no leading zeros and no
+     *         '+') whose text can be rebuilt from its double value and that number, or -1.
+     */
+    private static int decimalPlaces( String value ) {
+        int n = value.length();
+        int start = value.charAt( 0 ) == '-' ? 1 : 0;
+        int point = value.indexOf( '.' );
+        if ( point <= start || point == n - 1 || n - point - 1 > GeoValueColumns.MAX_DECIMAL_PLACES ) {
+            return -1;
+        }
+        if ( value.charAt( start ) == '0' && point > start + 1 ) {
+            return -1;
+        }
+        long digits = 0;
+        for ( int i = start; i < n; i++ ) {
+            if ( i == point )
+                continue;
+            char c = value.charAt( i );
+            if ( c < '0' || c > '9' )
+                return -1;
+            digits = digits * 10 + ( c - '0' );
+            if ( digits >= GeoValueColumns.MAX_DECIMAL_DIGITS )
+                return -1;
+        }
+        if ( start == 1 && digits == 0 ) {
+            return -1; // negative zero, which would lose its sign
+        }
+        return n - point - 1;
+    }
+
+    /**
+     * @param d      a value stored as a decimal
+     * @param places its number of decimal places
+     * @return the value as it was written
+     */
+    private static String formatDecimal( double d, int places ) {
+        String digits = Long.toString( Math.round( Math.abs( d ) * GeoValueColumns.POWERS_OF_TEN[places] ) );
+        StringBuilder buf = new StringBuilder( digits.length() + places + 3 );
+        if ( d < 0 ) {
+            buf.append( '-' );
+        }
+        int whole = digits.length() - places;
+        if ( whole > 0 ) {
+            buf.append( digits, 0, whole ).append( '.' ).append( digits, whole, digits.length() );
+        } else {
+            buf.append( "0." );
+            for ( int i = whole; i < 0; i++ ) {
+                buf.append( '0' );
+            }
+            buf.append( digits );
+        }
+        return buf.toString();
+    }
+
+    /**
+     * @param designElementIndex design element
+     * @return true if there is at least one value for the design element.
+     */
+    boolean hasDesignElement( int designElementIndex ) {
+        return designElementsPresent.get( designElementIndex );
+    }
+
+    /**
+     * @return true if at least one value is stored (blank values count).
+     */
+    boolean isPopulated() {
+        return !designElementsPresent.isEmpty();
+    }
+
+    /**
+     * @param position           position of the sample in the sample dimension
+     * @param designElementIndex design element
+     * @return true if there is a non-missing value at the given location, as far as conversion to a double is concerned.
+     */
+    boolean isDoublePresent( int position, int designElementIndex ) {
+        Column column = this.getColumn( position );
+        if ( column == null )
+            return false;
+        byte kind = column.kind( designElementIndex );
+        if ( kind == INT || kind == DOUBLE || kind > DECIMAL )
+            return true;
+        if ( kind == STRING ) {
+            try {
+                Double.parseDouble( column.strings.get( designElementIndex ) );
+                return true;
+            } catch ( NumberFormatException e ) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param position           position of the sample in the sample dimension
+     * @param designElementIndex design element
+     * @return the value as a double, or NaN if it is missing or not a number.
+     */
+    double getDouble( int position, int designElementIndex ) {
+        Column column = this.getColumn( position );
+        if ( column == null )
+            return Double.NaN;
+        byte kind = column.kind( designElementIndex );
+        if ( kind > DECIMAL )
+            return column.values[designElementIndex];
+        switch ( kind ) {
+            case INT:
+            case DOUBLE:
+                return column.values[designElementIndex];
+            case STRING:
+                try {
+                    return Double.parseDouble( column.strings.get( designElementIndex ) );
+                } catch ( NumberFormatException e ) {
+                    return Double.NaN;
+                }
+            default:
+                return Double.NaN;
+        }
+    }
+
+    /**
+     * @param position           position of the sample in the sample dimension
+     * @param designElementIndex design element
+     * @return the value as it was added, or null if there is no value at all.
+     */
+    String getString( int position, int designElementIndex ) {
+        Column column = this.getColumn( position );
+        if ( column == null )
+            return null;
+        byte kind = column.kind( designElementIndex );
+        if ( kind > DECIMAL )
+            return GeoValueColumns.formatDecimal( column.values[designElementIndex], kind - DECIMAL );
+        switch ( kind ) {
+            case BLANK:
+                return "";
+            case INT:
+                return Integer.toString( ( int ) column.values[designElementIndex] );
+            case DOUBLE:
+                return Double.toString( column.values[designElementIndex] );
+            case STRING:
+                return column.strings.get( designElementIndex );
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return number of columns, including positions for samples that had no values (which are empty).
+     */
+    int numColumns() {
+        return columns.size();
+    }
+
+    /**
+     * Store a value.
+     *
+     * @param sample             sample
+     * @param position           position of the sample in the sample dimension
+     * @param designElementIndex design element
+     * @param numDesignElements  how many design elements are known so far for the platform, used to size new columns
+     * @param value              value
+     * @throws IllegalStateException if there is already a value for the design element in that sample.
+     */
+    void set( GeoSample sample, int position, int designElementIndex, int numDesignElements, String value ) {
+        while ( columns.size() <= position ) {
+            columns.add( null );
+        }
+        Column column = columns.get( position );
+        if ( column == null ) {
+            column = new Column( Math.max( numDesignElements, GeoValueColumns.INITIAL_CAPACITY ) );
+            columns.set( position, column );
+        }
+        column.ensureCapacity( designElementIndex + 1 );
+
+        if ( column.kind( designElementIndex ) != UNSET ) {
+            throw new IllegalStateException(
+                    "Sample " + sample + " already has a value for the same design element and quantitation type" );
+        }
+
+        if ( StringUtils.isBlank( value ) ) {
+            column.setKind( designElementIndex, BLANK );
+        } else {
+            Integer i = GeoValueColumns.parseInt( value );
+            int places = i == null ? GeoValueColumns.decimalPlaces( value ) : -1;
+            Double d = i == null && places < 0 ? GeoValueColumns.parseDouble( value ) : null;
+            if ( i != null ) {
+                column.setNumber( designElementIndex, INT, i );
+            } else if ( places > 0 ) {
+                column.setNumber( designElementIndex, ( byte ) ( DECIMAL + places ), Double.parseDouble( value ) );
+            } else if ( d != null ) {
+                column.setNumber( designElementIndex, DOUBLE, d );
+            } else {
+                if ( column.strings == null ) {
+                    column.strings = new HashMap<>();
+                }
+                column.strings.put( designElementIndex, value );
+            }
+        }
+        designElementsPresent.set( designElementIndex );
+    }
+
+    /**
+     * @param sample    sample
+     * @param dimension the samples for this quantitation type, in order
+     * @return position of the sample in the dimension, or -1 if it isn't there.
+     */
+    int positionOf( GeoSample sample, Collection<GeoSample> dimension ) {
+        if ( sample == lastSample ) {
+            return lastPosition;
+        }
+        int i = 0;
+        for ( GeoSample s : dimension ) {
+            if ( s.equals( sample ) ) {
+                lastSample = sample;
+                lastPosition = i;
+                return i;
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    /**
+     * @param positions positions to retain, in the order wanted
+     * @return copy of these values retaining only the selected columns
+     */
+    GeoValueColumns subset( List<Integer> positions ) {
+        GeoValueColumns result = new GeoValueColumns();
+        for ( Integer p : positions ) {
+            Column c = this.getColumn( p );
+            result.columns.add( c == null ? null : c.copy() );
+            if ( c != null ) {
+                if ( c.kinds != null ) {
+                    for ( int i = 0; i < c.kinds.length; i++ ) {
+                        if ( c.kinds[i] != UNSET ) {
+                            result.designElementsPresent.set( i );
+                        }
+                    }
+                }
+                if ( c.strings != null ) {
+                    for ( Integer i : c.strings.keySet() ) {
+                        result.designElementsPresent.set( i );
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private Column getColumn( int position ) {
+        if ( position >= columns.size() )
+            return null;
+        return columns.get( position );
+    }
+
+    /**
+     * Values for one sample. Strings are only in the map; the arrays, allocated when first needed, hold everything
+     * else.
+     */
+    private static class Column implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private int capacity;
+        private double[] values = null;
+        private byte[] kinds = null;
+        private Map<Integer, String> strings = null;
+
+        private Column( int capacity ) {
+            this.capacity = capacity;
+        }
+
+        private Column copy() {
+            Column c = new Column( capacity );
+            if ( values != null ) {
+                c.values = Arrays.copyOf( values, values.length );
+            }
+            if ( kinds != null ) {
+                c.kinds = Arrays.copyOf( kinds, kinds.length );
+            }
+            if ( strings != null ) {
+                c.strings = new HashMap<>( strings );
+            }
+            return c;
+        }
+
+        private void ensureCapacity( int size ) {
+            if ( size <= capacity )
+                return;
+            capacity = Math.max( size, capacity * 2 );
+            if ( values != null ) {
+                values = Arrays.copyOf( values, capacity );
+            }
+            if ( kinds != null ) {
+                kinds = Arrays.copyOf( kinds, capacity );
+            }
+        }
+
+        private byte kind( int i ) {
+            if ( kinds != null && i < kinds.length && kinds[i] != UNSET ) {
+                return kinds[i];
+            }
+            return strings != null && strings.containsKey( i ) ? STRING : UNSET;
+        }
+
+        private void setKind( int i, byte kind ) {
+            if ( kinds == null ) {
+                kinds = new byte[capacity];
+            }
+            kinds[i] = kind;
+        }
+
+        private void setNumber( int i, byte kind, double value ) {
+            if ( values == null ) {
+                values = new double[capacity];
+            }
+            values[i] = value;
+            this.setKind( i, kind );
+        }
+    }
+}
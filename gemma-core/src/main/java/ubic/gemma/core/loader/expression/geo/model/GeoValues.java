@@ -25,12 +25,14 @@ import ubic.gemma.core.loader.expression.geo.model.GeoDataset.PlatformType;
 
 import java.io.Serializable;
 import java.util.*;
-import java.util.Map.Entry;
 
 /**
  * Class to store the expression data prior to conversion. The data are read from series files sample by sample, and
  * within each sample designElement by designElement, and within each designElement, quantitationType by
- * quantitationType. Values are stored in vectors, roughly equivalent to DesignElementDataVectors.
+ * quantitationType. Values are stored by sample in primitive columns (see GeoValueColumns) and read back out as
+ * vectors, roughly equivalent to DesignElementDataVectors. The values stay in memory until conversion, which reads
+ * them back design element by design element across all the samples; to keep memory down, unwanted samples and
+ * platforms are passed over while parsing instead (see GeoFamilyParser#setSamplesToSkip).
  * This is an important class as it encompasses how we convert GEO sample data into vectors. There are a couple of
  * assumptions that this is predicated on. First, we assume that all samples are presented with their quantitation types
  * in the same order. Second, we assume that all samples have the same quantitation type, OR at worst, some are missing
@@ -226,9 +228,15 @@ public class GeoValues implements Serializable {
     }
 
     /*
-     * Map of platform --> quantitationtype -> designElement -> values; values in same order as sampleVector.
+     * Map of platform --> quantitationtype -> values, stored by sample in the same order as the sampleDimensions.
      */
-    private final Map<GeoPlatform, Map<Integer, Map<String, List<Object>>>> data = new HashMap<>();
+    private final Map<GeoPlatform, Map<Integer, GeoValueColumns>> data = new HashMap<>();
+
+    /*
+     * Map of platform --> designElement -> index of the design element in the value columns; and the reverse.
+     */
+    private final Map<GeoPlatform, Map<String, Integer>> designElementIndexes = new HashMap<>();
+    private final Map<GeoPlatform, List<String>> designElementNames = new HashMap<>();
     private final Map<GeoPlatform, Map<Integer, Collection<String>>> quantitationTypeIndexMap = new HashMap<>();
     private final Map<GeoPlatform, Map<String, Integer>> quantitationTypeNameMap = new HashMap<>();
 
@@ -360,11 +368,11 @@ public class GeoValues implements Serializable {
      * connected to the platform the sample uses, the quantitation type. Because in GEO files samples are seen one at a
      * time, the vectors for each designElement are built up. Thus it is important that we add a value for each sample
      * for each design element.
-     * Note what happens if data is MISSING for a given designElement/quantitationType/sample combination. This can
-     * happen (typically all the quantitation types for a designElement in a given sample). This method will NOT be
-     * called. When the next sample is processed, the new data will be added onto the end in the wrong place. Then the
-     * data in the vectors stored here will be incorrect. Thus the GEO parser has to ensure that each vector is
-     * 'completed' before moving to the next sample.
+     * Values are stored by the position of the sample in its dimension, with design elements interned to integer
+     * indexes, and numeric values are kept as primitives. If data is MISSING for a given
+     * designElement/quantitationType/sample combination (typically all the quantitation types for a designElement in a
+     * given sample), this method will NOT be called, and the value is treated as missing when it is read. The GEO
+     * parser still fills in such values with blanks.
      *
      * @param sample                sample
      * @param quantitationTypeIndex The column number for the quantitation type, needed because the names of the
@@ -387,20 +395,21 @@ public class GeoValues implements Serializable {
         GeoPlatform platform = this.addSample( sample, quantitationTypeIndex );
 
         if ( !data.containsKey( platform ) ) {
-            data.put( platform, new HashMap<Integer, Map<String, List<Object>>>() );
+            data.put( platform, new HashMap<Integer, GeoValueColumns>() );
         }
 
-        Map<Integer, Map<String, List<Object>>> platformMap = data.get( platform );
+        Map<Integer, GeoValueColumns> platformMap = data.get( platform );
         if ( !platformMap.containsKey( quantitationTypeIndex ) ) {
-            platformMap.put( quantitationTypeIndex, new HashMap<String, List<Object>>() );
+            platformMap.put( quantitationTypeIndex, new GeoValueColumns() );
         }
 
-        Map<String, List<Object>> qtMap = platformMap.get( quantitationTypeIndex );
-        if ( !qtMap.containsKey( designElement ) ) {
-            qtMap.put( designElement, new ArrayList<>() );
-        }
+        GeoValueColumns qtValues = platformMap.get( quantitationTypeIndex );
+        int position = qtValues
+                .positionOf( sample, sampleDimensions.get( platform ).get( quantitationTypeIndex ) );
+        assert position >= 0;
 
-        qtMap.get( designElement ).add( value );
+        qtValues.set( sample, position, this.internDesignElement( platform, designElement ),
+                designElementNames.get( platform ).size(), value.toString() );
 
         if ( GeoValues.log.isTraceEnabled() ) {
             GeoValues.log.trace( "Adding value for platform=" + platform + " sample=" + sample + " qt="
@@ -415,6 +424,8 @@ public class GeoValues implements Serializable {
      */
     public void clear( GeoPlatform geoPlatform ) {
         this.data.remove( geoPlatform );
+        this.designElementIndexes.remove( geoPlatform );
+        this.designElementNames.remove( geoPlatform );
     }
 
     /**
@@ -496,7 +507,11 @@ public class GeoValues implements Serializable {
 
     @SuppressWarnings({ "unused", "WeakerAccess" }) // Possible external use
     public List<Object> getValues( GeoPlatform platform, Integer quantitationType, String designElement ) {
-        return data.get( platform ).get( quantitationType ).get( designElement );
+        Integer[] indices = new Integer[sampleDimensions.get( platform ).get( quantitationType ).size()];
+        for ( int i = 0; i < indices.length; i++ ) {
+            indices[i] = i;
+        }
+        return this.getValues( platform, quantitationType, designElement, indices );
     }
 
     /**
@@ -504,48 +519,80 @@ public class GeoValues implements Serializable {
      * @param designElement    design element
      * @param indices          indices
      * @param platform         platforms
-     * @return a 'slice' of the data corresponding to the indices provided.
+     * @return a 'slice' of the data corresponding to the indices provided. Values are returned exactly as they were
+     * added; values that are missing are null.
      */
     public List<Object> getValues( GeoPlatform platform, Integer quantitationType, String designElement,
             Integer[] indices ) {
-        List<Object> result = new ArrayList<>();
-        Map<Integer, Map<String, List<Object>>> map = data.get( platform );
-        assert map != null : "No data for platform=" + platform;
-        Map<String, List<Object>> map2 = map.get( quantitationType );
-        assert map2 != null : "No data for qt " + quantitationType + " on " + platform;
-        List<Object> rawvals = map2.get( designElement );
+        GeoValueColumns qtValues = this.getValueColumns( platform, quantitationType );
+        Integer de = this.getDesignElementIndex( platform, designElement );
 
         // this can happen if the data doesn't contain that designElement.
-        if ( rawvals == null )
+        if ( de == null || !qtValues.hasDesignElement( de ) )
             return null;
+
+        List<Object> result = new ArrayList<>( indices.length );
         for ( Integer i : indices ) {
             if ( i == null ) {
                 result.add( null );
             } else {
-
                 /*
                  * There can be values missing if some data are missing for some samples. For example, on GSE1004,
                  * sample GSM15832 was run on HG-U95V1 while the rest are on HG-U95V2, so a few probes are missing data.
                  */
-                if ( rawvals.size() < ( i + 1 ) ) {
-                    throw new IllegalStateException(
-                            "Data out of bounds index=" + i + " (" + designElement + " on " + platform
-                                    + " quant.type # " + quantitationType + ") - vector has only " + rawvals.size()
-                                    + " values." );
-                }
-                Object value = rawvals.get( i );
-                if ( value == null ) {
-                    if ( GeoValues.log.isDebugEnabled() )
-                        GeoValues.log.debug( "No data for index " + i + " (" + designElement + " on " + platform
-                                + " quant.type # " + quantitationType + ") - vector has " + rawvals.size()
-                                + " values." );
-                }
-                result.add( value );
+                result.add( qtValues.getString( i, de ) );
             }
         }
         return result;
     }
 
+    /**
+     * Get a 'slice' of the data as doubles, without creating intermediate objects. Values that are missing or can't be
+     * read as numbers are NaN.
+     *
+     * @param platform         platform
+     * @param quantitationType QT
+     * @param designElement    design element
+     * @param indices          indices, as obtained from {@link #getIndices(GeoPlatform, List, Integer)}
+     * @param target           array to fill in, at least as long as the indices
+     * @return the number of values that were not missing, or -1 if there are no data for the design element.
+     */
+    public int getDoubleValues( GeoPlatform platform, Integer quantitationType, String designElement,
+            Integer[] indices, double[] target ) {
+        GeoValueColumns qtValues = this.getValueColumns( platform, quantitationType );
+        Integer de = this.getDesignElementIndex( platform, designElement );
+        if ( de == null || !qtValues.hasDesignElement( de ) )
+            return -1;
+
+        int numPresent = 0;
+        for ( int k = 0; k < indices.length; k++ ) {
+            Integer i = indices[k];
+            if ( i == null ) {
+                target[k] = Double.NaN;
+                continue;
+            }
+            if ( qtValues.isDoublePresent( i, de ) ) {
+                numPresent++;
+            }
+            target[k] = qtValues.getDouble( i, de );
+        }
+        return numPresent;
+    }
+
+    /**
+     * @param platform         platform
+     * @param quantitationType QT
+     * @param designElement    design element
+     * @return true if there is at least one value, possibly blank, for the design element.
+     */
+    public boolean hasValues( GeoPlatform platform, Integer quantitationType, String designElement ) {
+        Map<Integer, GeoValueColumns> map = data.get( platform );
+        if ( map == null || !map.containsKey( quantitationType ) )
+            return false;
+        Integer de = this.getDesignElementIndex( platform, designElement );
+        return de != null && map.get( quantitationType ).hasDesignElement( de );
+    }
+
     public boolean hasData() {
         return !this.sampleDimensions.isEmpty();
     }
@@ -576,60 +623,40 @@ public class GeoValues implements Serializable {
 
         GeoValues v = new GeoValues();
 
-        /*
-         * First, create new sampleDimensions and start setting up empty data.
-         */
+        Collection<GeoPlatform> platforms = new HashSet<>();
         for ( GeoSample s : samples ) {
-            GeoPlatform p = s.getPlatforms().iterator().next();
-
-            if ( !v.sampleDimensions.containsKey( p ) ) {
-                v.sampleDimensions.put( p, new HashMap<Integer, LinkedHashSet<GeoSample>>() );
-
-                // deep copy.
-                for ( Integer o : this.sampleDimensions.get( p ).keySet() ) {
-                    v.sampleDimensions.get( p ).put( o, new LinkedHashSet<GeoSample>() );
-                    for ( GeoSample ss : this.sampleDimensions.get( p ).get( o ) ) {
-                        v.sampleDimensions.get( p ).get( o ).add( ss ); // could use add all
-                    }
-                }
-
-                v.data.put( p, new HashMap<Integer, Map<String, List<Object>>>() );
-                for ( Integer o : this.data.get( p ).keySet() ) {
-                    v.data.get( p ).put( o, new HashMap<String, List<Object>>() );
-
-                    for ( String probeId : this.data.get( p ).get( o ).keySet() ) {
-                        v.data.get( p ).get( o ).put( probeId, new ArrayList<>() );
-                    }
-                }
-            }
+            platforms.add( s.getPlatforms().iterator().next() );
         }
 
-        /*
-         * Then, subset the data.
-         */
-        for ( GeoPlatform p : v.sampleDimensions.keySet() ) {
-            for ( Integer o : v.sampleDimensions.get( p ).keySet() ) {
-                LinkedHashSet<GeoSample> dimsamples = v.sampleDimensions.get( p ).get( o );
+        for ( GeoPlatform p : platforms ) {
+            v.sampleDimensions.put( p, new HashMap<Integer, LinkedHashSet<GeoSample>>() );
+            v.data.put( p, new HashMap<Integer, GeoValueColumns>() );
 
+            for ( Integer o : this.sampleDimensions.get( p ).keySet() ) {
+                LinkedHashSet<GeoSample> dimsamples = new LinkedHashSet<>();
+                List<Integer> positions = new ArrayList<>();
                 int i = 0;
-                for ( Iterator<GeoSample> it = dimsamples.iterator(); it.hasNext(); ) {
-                    GeoSample geoSample = it.next();
-
+                for ( GeoSample geoSample : this.sampleDimensions.get( p ).get( o ) ) {
                     if ( samples.contains( geoSample ) ) {
-
-                        Map<String, List<Object>> newmap = v.data.get( p ).get( o );
-                        for ( String probeId : newmap.keySet() ) {
-                            newmap.get( probeId ).add( this.data.get( p ).get( o ).get( probeId ).get( i ) );
-                        }
-
-                    } else {
-                        // this is where we remove the unneded samples from the sampledimensions.
-                        it.remove();
+                        dimsamples.add( geoSample );
+                        positions.add( i );
                     }
-
+                    // otherwise this is where we remove the unneeded samples from the sampledimensions.
                     i++;
                 }
+                v.sampleDimensions.get( p ).put( o, dimsamples );
 
+                if ( this.data.get( p ) != null && this.data.get( p ).containsKey( o ) ) {
+                    v.data.get( p ).put( o, this.data.get( p ).get( o ).subset( positions ) );
+                }
+            }
+
+            /*
+             * Design element indexes are not modified after they are assigned, so they can be shared.
+             */
+            if ( this.designElementIndexes.containsKey( p ) ) {
+                v.designElementIndexes.put( p, this.designElementIndexes.get( p ) );
+                v.designElementNames.put( p, this.designElementNames.get( p ) );
             }
         }
 
@@ -664,15 +691,20 @@ public class GeoValues implements Serializable {
                 }
                 buf.append( "\n" );
 
-                Map<String, List<Object>> map = data.get( platform ).get( qType );
-                assert map != null;
-                List<String> els = new ArrayList<>( map.keySet() );
+                GeoValueColumns qtValues = data.get( platform ).get( qType );
+                assert qtValues != null;
+                List<String> els = new ArrayList<>( designElementNames.get( platform ) );
                 Collections.sort( els );
+                int numSamples = sampleDimensions.get( platform ).get( qType ).size();
                 for ( String dEl : els ) {
+                    int de = designElementIndexes.get( platform ).get( dEl );
+                    if ( !qtValues.hasDesignElement( de ) )
+                        continue;
                     buf.append( dEl );
 
-                    for ( Object val : map.get( dEl ) ) {
-                        if ( val == null || StringUtils.isBlank( val.toString() ) ) {
+                    for ( int i = 0; i < numSamples; i++ ) {
+                        String val = qtValues.getString( i, de );
+                        if ( val == null || StringUtils.isBlank( val ) ) {
                             val = ".";
                         }
                         buf.append( "\t" ).append( val );
@@ -697,7 +729,7 @@ public class GeoValues implements Serializable {
     public void validate() {
         for ( GeoPlatform platform : sampleDimensions.keySet() ) {
 
-            Map<Integer, Map<String, List<Object>>> d = data.get( platform );
+            Map<Integer, GeoValueColumns> d = data.get( platform );
 
             for ( Integer qType : sampleDimensions.get( platform ).keySet() ) {
 
@@ -719,30 +751,21 @@ public class GeoValues implements Serializable {
                 }
                 Collection<String> qtNames = qtMap.get( qType );
 
-                Map<String, List<Object>> q = d.get( qType );
-                boolean warned = false;
-                for ( Entry<String, List<Object>> e : q.entrySet() ) {
-                    String designElement = e.getKey();
-                    List<Object> vals = e.getValue();
-
-                    if ( vals.size() < numSamples ) {
-                        int paddingAmount = numSamples - vals.size();
-                        if ( !warned )
-                            GeoValues.log.warn( "Padding some vectors with " + paddingAmount
-                                    + " values for quantitation type " + qType + "(" + StringUtils.join( qtNames, "/" )
-                                    + ")" );
-                        warned = true;
-                        for ( int i = 0; i < paddingAmount; i++ ) {
-                            vals.add( null );
-                        }
-                    } else if ( vals.size() > numSamples ) {
-                        GeoValues.log.error( "Samples so far: " + StringUtils
-                                .join( sampleDimensions.get( platform ).get( qType ), ',' ) );
-                        throw new IllegalStateException(
-                                "Validation failed at platform=" + platform + " designelement=" + designElement
-                                        + " qType=" + qType + " expected " + numSamples + " values, got " + vals.size()
-                                        + "; name(s) for qType are " + StringUtils.join( qtNames, "," ) );
-                    }
+                GeoValueColumns q = d == null ? null : d.get( qType );
+                if ( q == null )
+                    continue;
+
+                /*
+                 * Values are stored by sample position, so vectors can't come out too long, and ones that are too short
+                 * are effectively padded with missing values when they are read.
+                 */
+                if ( q.numColumns() > numSamples ) {
+                    GeoValues.log.error( "Samples so far: " + StringUtils
+                            .join( sampleDimensions.get( platform ).get( qType ), ',' ) );
+                    throw new IllegalStateException(
+                            "Validation failed at platform=" + platform + " qType=" + qType + " expected " + numSamples
+                                    + " values, got " + q.numColumns() + "; name(s) for qType are " + StringUtils
+                                    .join( qtNames, "," ) );
                 }
                 if ( GeoValues.log.isDebugEnabled() )
                     GeoValues.log
@@ -779,4 +802,38 @@ public class GeoValues implements Serializable {
         return platform;
     }
 
+    private Integer getDesignElementIndex( GeoPlatform platform, String designElement ) {
+        Map<String, Integer> indexes = designElementIndexes.get( platform );
+        if ( indexes == null )
+            return null;
+        return indexes.get( designElement );
+    }
+
+    private GeoValueColumns getValueColumns( GeoPlatform platform, Integer quantitationType ) {
+        Map<Integer, GeoValueColumns> map = data.get( platform );
+        assert map != null : "No data for platform=" + platform;
+        GeoValueColumns qtValues = map.get( quantitationType );
+        assert qtValues != null : "No data for qt " + quantitationType + " on " + platform;
+        return qtValues;
+    }
+
+    /**
+     * @return the index for the design element, assigning a new one if it hasn't been seen yet on the platform.
+     */
+    private int internDesignElement( GeoPlatform platform, String designElement ) {
+        if ( !designElementIndexes.containsKey( platform ) ) {
+            designElementIndexes.put( platform, new HashMap<String, Integer>() );
+            designElementNames.put( platform, new ArrayList<String>() );
+        }
+        Map<String, Integer> indexes = designElementIndexes.get( platform );
+        Integer index = indexes.get( designElement );
+        if ( index == null ) {
+            List<String> names = designElementNames.get( platform );
+            index = names.size();
+            names.add( designElement );
+            indexes.put( designElement, index );
+        }
+        return index;
+    }
+
 }
@@ -27,6 +27,7 @@ import ubic.gemma.core.loader.entrez.pubmed.PubMedXMLFetcher;
 import ubic.gemma.core.loader.expression.geo.DatasetCombiner;
 import ubic.gemma.core.loader.expression.geo.GeoConverter;
 import ubic.gemma.core.loader.expression.geo.GeoDomainObjectGenerator;
+import ubic.gemma.core.loader.expression.geo.GeoFamilyParser;
 import ubic.gemma.core.loader.expression.geo.GeoSampleCorrespondence;
 import ubic.gemma.core.loader.expression.geo.model.*;
 import ubic.gemma.core.loader.util.AlreadyExistsInSystemException;
@@ -606,6 +607,7 @@ public class GeoServiceImpl extends AbstractGeoService {
         for ( String subSeriesAccession : superSeries.getSubSeries() ) {
             AbstractGeoService.log.info( "Processing subseries " + subSeriesAccession );
             geoDomainObjectGenerator.initialize();
+            this.skipSubSeriesData();
             Collection<? extends GeoData> parseResult = geoDomainObjectGenerator.generate( subSeriesAccession );
             if ( parseResult.size() == 0 ) {
                 AbstractGeoService.log.warn( "Got no results for " + subSeriesAccession );
@@ -635,6 +637,34 @@ public class GeoServiceImpl extends AbstractGeoService {
         }
     }
 
+    /**
+     * Only the description of a subseries is used, so once its header is read, pass over its platforms and samples,
+     * which hold nearly all the data in the file.
+     */
+    private void skipSubSeriesData() {
+        geoDomainObjectGenerator.setSectionListener( new GeoFamilyParser.SectionListener() {
+            @Override
+            public void seriesParsed( GeoSeries series, Collection<String> platformAccessions ) {
+                Collection<String> sampleAccessions = new HashSet<>();
+                for ( GeoSample sample : series.getSamples() ) {
+                    sampleAccessions.add( sample.getGeoAccession() );
+                }
+                geoDomainObjectGenerator.setPlatformsToSkip( platformAccessions );
+                geoDomainObjectGenerator.setSamplesToSkip( sampleAccessions );
+            }
+
+            @Override
+            public void platformParsed( GeoPlatform platform ) {
+                // nothing to do.
+            }
+
+            @Override
+            public void sampleParsed( GeoSeries series, GeoSample sample ) {
+                // nothing to do.
+            }
+        } );
+    }
+
     private void matchToExistingPlatform( GeoConverter geoConverter, GeoPlatform rawGEOPlatform,
             ArrayDesignsForExperimentCache c ) {
         // we have to populate this.
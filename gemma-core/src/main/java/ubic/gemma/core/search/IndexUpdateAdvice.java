@@ -0,0 +1,90 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2021 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.search;
+
+import gemma.gsec.util.CrudUtilsImpl;
+import org.aspectj.lang.JoinPoint;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Records created, updated and deleted entities in the {@link IndexUpdateJournal}, so they can be put in the search
+ * index without rebuilding it. Applied to the same methods as the {@link ubic.gemma.core.security.audit.AuditAdvice}.
+ */
+@Component
+public class IndexUpdateAdvice {
+
+    @Autowired
+    private IndexUpdateJournal indexUpdateJournal;
+
+    public IndexUpdateAdvice() {
+    }
+
+    /**
+     * For tests.
+     */
+    IndexUpdateAdvice( IndexUpdateJournal indexUpdateJournal ) {
+        this.indexUpdateJournal = indexUpdateJournal;
+    }
+
+    /**
+     * Entry point. This only takes action if the method involves entities that are indexed.
+     *
+     * @param pjp      pjp
+     * @param retValue return value
+     */
+    @SuppressWarnings("unused") // entry point
+    public void recordChange( JoinPoint pjp, Object retValue ) {
+        Object object = this.getPersistentObject( retValue, pjp.getSignature().getName(), pjp.getArgs() );
+        if ( object == null )
+            return;
+
+        Collection<?> entities = object instanceof Collection ? ( Collection<?> ) object
+                : Collections.singleton( object );
+        long time = System.currentTimeMillis();
+        Collection<IndexUpdateJournal.Update> updates = new ArrayList<>();
+        for ( Object o : entities ) {
+            IndexUpdateJournal.Update u = IndexUpdateJournal.toUpdate( o, time );
+            if ( u != null ) {
+                updates.add( u );
+            }
+        }
+        if ( !updates.isEmpty() ) {
+            // one write, and one lock of the journal, for the whole collection
+            indexUpdateJournal.add( updates );
+        }
+    }
+
+    /**
+     * As in the audit advice: update and delete methods return nothing, so look at their argument.
+     */
+    private Object getPersistentObject( Object retValue, String methodName, Object[] args ) {
+        if ( retValue == null && ( CrudUtilsImpl.methodIsDelete( methodName ) || CrudUtilsImpl
+                .methodIsUpdate( methodName ) ) ) {
+            if ( args.length != 1 )
+                return null;
+            return args[0];
+        }
+        return retValue;
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2021 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.search;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.stereotype.Component;
+import ubic.gemma.model.common.Identifiable;
+import ubic.gemma.model.common.description.BibliographicReference;
+import ubic.gemma.model.expression.arrayDesign.ArrayDesign;
+import ubic.gemma.model.expression.experiment.ExpressionExperiment;
+import ubic.gemma.model.genome.Gene;
+import ubic.gemma.model.genome.gene.GeneSet;
+import ubic.gemma.persistence.util.Settings;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * File of the entities that have been created, updated or deleted since they were last put in the search index, so the
+ * index can be brought up to date without rebuilding it. The file is shared by all the JVMs that use the same search
+ * index directory (the web application, CLIs and workers), and is locked while it is written or read. Within a JVM
+ * there should only be one instance, as file locks are held per JVM.
+ * <p>
+ * Updates that have been taken from the journal are kept in a second file until {@link #done()} is called, so they are
+ * not lost if applying them fails; they are returned again by the next call to {@link #take()}. Updates that keep
+ * failing can be set aside with {@link #quarantine(Collection)}, in a third file that is not read back.
+ * </p>
+ */
+@Component
+public class IndexUpdateJournal {
+
+    /**
+     * Entities whose changes are recorded; other entities are ignored.
+     */
+    public static final List<Class<? extends Identifiable>> INDEXED_CLASSES = Collections.unmodifiableList(
+            Arrays.<Class<? extends Identifiable>>asList( ExpressionExperiment.class, ArrayDesign.class, Gene.class,
+                    GeneSet.class, BibliographicReference.class ) );
+
+    private static final String IN_PROGRESS_SUFFIX = ".inprogress";
+    private static final String RECONCILED_SUFFIX = ".reconciled";
+    private static final String QUARANTINE_SUFFIX = ".failed";
+    private static final Log log = LogFactory.getLog( IndexUpdateJournal.class );
+
+    private final File journal;
+    private final File inProgress;
+    private final File reconciled;
+    private final File quarantined;
+
+    public IndexUpdateJournal() {
+        this( new File( Settings.getString( "gemma.compass.journal" ) ) );
+    }
+
+    public IndexUpdateJournal( File journal ) {
+        this.journal = journal;
+        this.inProgress = new File( journal.getPath() + IndexUpdateJournal.IN_PROGRESS_SUFFIX );
+        this.reconciled = new File( journal.getPath() + IndexUpdateJournal.RECONCILED_SUFFIX );
+        this.quarantined = new File( journal.getPath() + IndexUpdateJournal.QUARANTINE_SUFFIX );
+    }
+
+    /**
+     * @param  entity any object
+     * @return the indexed class the object is an instance of, or null if it is not one
+     */
+    public static Class<? extends Identifiable> getIndexedClass( Object entity ) {
+        for ( Class<? extends Identifiable> c : IndexUpdateJournal.INDEXED_CLASSES ) {
+            if ( c.isInstance( entity ) ) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param  entity any object
+     * @param  time   when it was changed
+     * @return the update for the entity, or null if it is not of one of the {@link #INDEXED_CLASSES} or is transient
+     */
+    public static Update toUpdate( Object entity, long time ) {
+        Class<? extends Identifiable> clazz = IndexUpdateJournal.getIndexedClass( entity );
+        if ( clazz == null ) {
+            return null;
+        }
+        Long id = ( ( Identifiable ) entity ).getId();
+        if ( id == null ) {
+            return null;
+        }
+        return new Update( clazz, id, time );
+    }
+
+    /**
+     * Record that an entity was created, updated or deleted. Does nothing if it is not of one of the
+     * {@link #INDEXED_CLASSES} or is transient. Failures are logged, not thrown, so they do not stop the change itself.
+     *
+     * @param entity entity
+     */
+    public void add( Object entity ) {
+        Update update = IndexUpdateJournal.toUpdate( entity, System.currentTimeMillis() );
+        if ( update != null ) {
+            this.add( Collections.singleton( update ) );
+        }
+    }
+
+    /**
+     * Failures are logged, not thrown.
+     *
+     * @param updates updates to record, with the number of times applying them failed
+     */
+    public synchronized void add( Collection<Update> updates ) {
+        try {
+            IndexUpdateJournal.append( journal, updates );
+        } catch ( IOException e ) {
+            IndexUpdateJournal.log
+                    .warn( "Could not record " + updates.size() + " search index updates in " + journal + ": " + e
+                            .getMessage() );
+        }
+    }
+
+    /**
+     * Set aside updates that could not be applied, so they are not tried again. They are logged, and kept in a file
+     * next to the journal for inspection; a later change to the same entity, or rebuilding the index, puts them in the
+     * index.
+     *
+     * @param updates updates that failed too many times
+     */
+    public synchronized void quarantine( Collection<Update> updates ) {
+        if ( updates.isEmpty() ) {
+            return;
+        }
+        IndexUpdateJournal.log.error( "Giving up on updating the search index for " + updates.size() + " entities: "
+                + updates + "; they are listed in " + quarantined );
+        try {
+            IndexUpdateJournal.append( quarantined, updates );
+        } catch ( IOException e ) {
+            IndexUpdateJournal.log.warn( "Could not write " + quarantined + ": " + e.getMessage() );
+        }
+    }
+
+    /**
+     * Take the updates recorded so far, along with any taken earlier that were not marked {@link #done()}. Each entity
+     * is returned once, with the time it was first recorded and the most failed attempts recorded for it.
+     *
+     * @return updates, in the order they were first recorded
+     * @throws IOException if the journal could not be read
+     */
+    public synchronized Collection<Update> take() throws IOException {
+        if ( journal.exists() ) {
+            try (FileChannel channel = FileChannel
+                    .open( journal.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE );
+                    FileLock ignored = channel.lock()) {
+                if ( channel.size() > 0 ) {
+                    ByteBuffer contents = ByteBuffer.allocate( ( int ) channel.size() );
+                    while ( contents.hasRemaining() && channel.read( contents ) >= 0 ) {
+                        // keep reading
+                    }
+                    contents.flip();
+                    // keep them safe before emptying the journal
+                    try (FileOutputStream out = new FileOutputStream( inProgress, true )) {
+                        while ( contents.hasRemaining() ) {
+                            out.getChannel().write( contents );
+                        }
+                        out.getFD().sync();
+                    }
+                    channel.truncate( 0 );
+                }
+            }
+        }
+
+        Map<Update, Update> updates = new LinkedHashMap<>();
+        if ( inProgress.exists() ) {
+            for ( String line : Files.readAllLines( inProgress.toPath(), StandardCharsets.UTF_8 ) ) {
+                Update u = IndexUpdateJournal.parse( line );
+                if ( u == null ) {
+                    continue;
+                }
+                Update previous = updates.get( u );
+                if ( previous != null ) {
+                    u = new Update( u.getEntityClass(), u.getId(), Math.min( previous.getTime(), u.getTime() ),
+                            Math.max( previous.getAttempts(), u.getAttempts() ) );
+                }
+                updates.put( u, u );
+            }
+        }
+        return new ArrayList<>( updates.values() );
+    }
+
+    /**
+     * Forget the updates returned by {@link #take()}, once they have been applied.
+     */
+    public synchronized void done() {
+        if ( inProgress.exists() && !inProgress.delete() ) {
+            IndexUpdateJournal.log.warn( "Could not delete " + inProgress + "; its updates will be applied again" );
+        }
+    }
+
+    /**
+     * @return the time up to which the index was last checked against the audit trails, or null if it never was
+     */
+    public synchronized Date getReconciledUntil() {
+        if ( !reconciled.canRead() ) {
+            return null;
+        }
+        try {
+            String time = new String( Files.readAllBytes( reconciled.toPath() ), StandardCharsets.UTF_8 );
+            return new Date( Long.parseLong( StringUtils.trim( time ) ) );
+        } catch ( IOException | NumberFormatException e ) {
+            IndexUpdateJournal.log.warn( "Could not read " + reconciled + ": " + e.getMessage() );
+            return null;
+        }
+    }
+
+    /**
+     * @param  date the time up to which the index has been checked against the audit trails
+     * @throws IOException if it could not be saved
+     */
+    public synchronized void setReconciledUntil( Date date ) throws IOException {
+        Files.write( reconciled.toPath(), String.valueOf( date.getTime() ).getBytes( StandardCharsets.UTF_8 ) );
+    }
+
+    /**
+     * Append the updates to the file, one per line, with the file locked.
+     */
+    private static void append( File file, Collection<Update> updates ) throws IOException {
+        if ( updates.isEmpty() ) {
+            return;
+        }
+        StringBuilder buf = new StringBuilder();
+        for ( Update u : updates ) {
+            buf.append( u.getEntityClass().getName() ).append( '\t' ).append( u.getId() ).append( '\t' )
+                    .append( u.getTime() ).append( '\t' ).append( u.getAttempts() ).append( '\n' );
+        }
+        File parent = file.getAbsoluteFile().getParentFile();
+        if ( !parent.exists() && !parent.mkdirs() && !parent.exists() ) {
+            throw new IOException( "Could not create " + parent );
+        }
+        try (FileChannel channel = FileChannel
+                .open( file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND );
+                FileLock ignored = channel.lock()) {
+            ByteBuffer bytes = ByteBuffer.wrap( buf.toString().getBytes( StandardCharsets.UTF_8 ) );
+            while ( bytes.hasRemaining() ) {
+                channel.write( bytes );
+            }
+        }
+    }
+
+    private static Update parse( String line ) {
+        String[] fields = StringUtils.split( line, '\t' );
+        if ( fields.length != 3 && fields.length != 4 ) {
+            return null; // partial line from an interrupted write.
+        }
+        try {
+            Class<?> clazz = Class.forName( fields[0] );
+            if ( !IndexUpdateJournal.INDEXED_CLASSES.contains( clazz ) ) {
+                return null;
+            }
+            //noinspection unchecked // checked above
+            return new Update( ( Class<? extends Identifiable> ) clazz, Long.parseLong( fields[1] ),
+                    Long.parseLong( fields[2] ), fields.length == 4 ? Integer.parseInt( fields[3] ) : 0 );
+        } catch ( ClassNotFoundException | NumberFormatException e ) {
+            IndexUpdateJournal.log.warn( "Skipping bad search index journal line: " + line );
+            return null;
+        }
+    }
+
+    /**
+     * A change to an entity; equal to any other change to the same entity.
+     */
+    public static class Update {
+        private final Class<? extends Identifiable> entityClass;
+        private final Long id;
+        private final long time;
+        private final int attempts;
+
+        public Update( Class<? extends Identifiable> entityClass, Long id, long time ) {
+            this( entityClass, id, time, 0 );
+        }
+
+        public Update( Class<? extends Identifiable> entityClass, Long id, long time, int attempts ) {
+            this.entityClass = entityClass;
+            this.id = id;
+            this.time = time;
+            this.attempts = attempts;
+        }
+
+        public Class<? extends Identifiable> getEntityClass() {
+            return entityClass;
+        }
+
+        public Long getId() {
+            return id;
+        }
+
+        /**
+         * @return when the change was recorded, in milliseconds since the epoch
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @return the number of times applying the change failed
+         */
+        public int getAttempts() {
+            return attempts;
+        }
+
+        /**
+         * @return the same change, with one more failed attempt
+         */
+        public Update failed() {
+            return new Update( entityClass, id, time, attempts + 1 );
+        }
+
+        @Override
+        public boolean equals( Object o ) {
+            if ( this == o )
+                return true;
+            if ( !( o instanceof Update ) )
+                return false;
+            Update that = ( Update ) o;
+            return entityClass.equals( that.entityClass ) && id.equals( that.id );
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * entityClass.hashCode() + id.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return entityClass.getSimpleName() + ":" + id;
+        }
+    }
+}
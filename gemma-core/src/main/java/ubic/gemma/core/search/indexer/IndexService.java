@@ -43,6 +43,23 @@ public interface IndexService {
     @Secured("GROUP_AGENT")
     String indexAll();
 
+    /**
+     * Apply the changes recorded in the {@link ubic.gemma.core.search.IndexUpdateJournal} to the search indexes, in
+     * batches, without rebuilding them. The entities of a batch that fails are retried one at a time; those that still
+     * fail are tried again on the next run, up to gemma.compass.updates.maxAttempts runs, and are then quarantined.
+     * This runs in the calling thread, not as a task.
+     */
+    @Secured("GROUP_AGENT")
+    void indexPendingUpdates();
+
+    /**
+     * Add the expression experiments and platforms whose audit trails show changes since this was last run to the
+     * {@link ubic.gemma.core.search.IndexUpdateJournal}, to catch changes that were not recorded when they were made,
+     * and then apply the pending updates. This is a convenience method for Quartz.
+     */
+    @Secured("GROUP_AGENT")
+    void reconcileIndex();
+
     /**
      * Indexes array designs.
      *
@@ -18,18 +18,40 @@
  */
 package ubic.gemma.core.search.indexer;
 
+import org.apache.commons.lang3.time.DateUtils;
+import org.apache.commons.lang3.time.StopWatch;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.compass.core.Compass;
+import org.compass.core.CompassTemplate;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
 import ubic.gemma.core.job.SubmittedTask;
 import ubic.gemma.core.job.executor.webapp.TaskRunningService;
+import ubic.gemma.core.search.IndexUpdateJournal;
 import ubic.gemma.core.tasks.AbstractTask;
 import ubic.gemma.core.tasks.maintenance.IndexerResult;
 import ubic.gemma.core.tasks.maintenance.IndexerTaskCommand;
+import ubic.gemma.model.common.Auditable;
+import ubic.gemma.model.common.Identifiable;
+import ubic.gemma.model.common.description.BibliographicReference;
+import ubic.gemma.model.expression.arrayDesign.ArrayDesign;
+import ubic.gemma.model.expression.experiment.ExpressionExperiment;
+import ubic.gemma.model.genome.Gene;
+import ubic.gemma.model.genome.gene.GeneSet;
+import ubic.gemma.persistence.service.common.auditAndSecurity.AuditEventService;
 import ubic.gemma.persistence.util.CompassUtils;
+import ubic.gemma.persistence.util.Settings;
 
 import java.io.IOException;
+import java.util.*;
 import java.util.concurrent.ExecutionException;
 
 /**
@@ -40,9 +62,32 @@ import java.util.concurrent.ExecutionException;
 @Component
 public class IndexServiceImpl implements IndexService {
 
+    private static final int UPDATE_BATCH_SIZE = Settings.getInt( "gemma.compass.updates.batchSize", 200 );
+    /**
+     * Number of runs an entity can fail in before it is quarantined.
+     */
+    static final int MAX_UPDATE_ATTEMPTS = Settings.getInt( "gemma.compass.updates.maxAttempts", 5 );
+    /**
+     * How far back to look in the audit trails if the index was never reconciled with them.
+     */
+    private static final int DAYS_TO_RECONCILE = 7;
+    private static final Log log = LogFactory.getLog( IndexServiceImpl.class );
+
     @Autowired
     private TaskRunningService taskRunningService;
 
+    @Autowired
+    private IndexUpdateJournal indexUpdateJournal;
+
+    @Autowired
+    private AuditEventService auditEventService;
+
+    @Autowired
+    private SessionFactory sessionFactory;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
     @Autowired
     @Qualifier("compassArray")
     private Compass compassArray;
@@ -75,6 +120,17 @@ public class IndexServiceImpl implements IndexService {
     @Qualifier("compassProbe")
     private Compass compassProbe;
 
+    public IndexServiceImpl() {
+    }
+
+    /**
+     * For tests.
+     */
+    IndexServiceImpl( IndexUpdateJournal indexUpdateJournal, AuditEventService auditEventService ) {
+        this.indexUpdateJournal = indexUpdateJournal;
+        this.auditEventService = auditEventService;
+    }
+
     @Override
     public String index( IndexerTaskCommand command ) {
         return taskRunningService.submitLocalTask( new IndexerJob( command ) );
@@ -87,6 +143,115 @@ public class IndexServiceImpl implements IndexService {
         return taskRunningService.submitLocalTask( new IndexerJob( command ) );
     }
 
+    @Override
+    public synchronized void indexPendingUpdates() {
+        Collection<IndexUpdateJournal.Update> updates;
+        try {
+            updates = indexUpdateJournal.take();
+        } catch ( IOException e ) {
+            IndexServiceImpl.log.error( "Could not read the search index updates: " + e.getMessage(), e );
+            return;
+        }
+        if ( updates.isEmpty() ) {
+            return;
+        }
+
+        StopWatch timer = new StopWatch();
+        timer.start();
+        long oldest = Long.MAX_VALUE;
+        for ( IndexUpdateJournal.Update u : updates ) {
+            oldest = Math.min( oldest, u.getTime() );
+        }
+
+        List<IndexUpdateJournal.Update> toDo = new ArrayList<>( updates );
+        List<IndexUpdateJournal.Update> retry = new ArrayList<>();
+        List<IndexUpdateJournal.Update> quarantined = new ArrayList<>();
+        int numBatches = 0;
+        for ( int i = 0; i < toDo.size(); i += IndexServiceImpl.UPDATE_BATCH_SIZE ) {
+            List<IndexUpdateJournal.Update> batch = toDo
+                    .subList( i, Math.min( toDo.size(), i + IndexServiceImpl.UPDATE_BATCH_SIZE ) );
+            numBatches++;
+            try {
+                this.indexBatch( batch );
+                continue;
+            } catch ( RuntimeException e ) {
+                if ( batch.size() == 1 ) {
+                    this.recordFailure( batch.get( 0 ), e, retry, quarantined );
+                    continue;
+                }
+                IndexServiceImpl.log.warn( "Failed to update the search index for a batch of " + batch.size()
+                        + " entities, trying them one at a time: " + e.getMessage() );
+            }
+
+            // so one bad entity does not hold back the rest of its batch
+            for ( IndexUpdateJournal.Update u : batch ) {
+                try {
+                    this.indexBatch( Collections.singletonList( u ) );
+                } catch ( RuntimeException e ) {
+                    this.recordFailure( u, e, retry, quarantined );
+                }
+            }
+        }
+        // failures keep the time they were first recorded, so they show up in the lag.
+        indexUpdateJournal.add( retry );
+        indexUpdateJournal.quarantine( quarantined );
+        indexUpdateJournal.done();
+
+        int numFailed = retry.size() + quarantined.size();
+        long time = Math.max( 1, timer.getTime() );
+        IndexServiceImpl.log.info( String.format(
+                "Updated the search index for %d entities in %d batches, %d failed (%d given up on), in %d ms"
+                        + " (%.1f per second); the oldest change had waited %d s", toDo.size() - numFailed,
+                numBatches, numFailed, quarantined.size(), time, 1000.0 * toDo.size() / time,
+                ( System.currentTimeMillis() - oldest ) / 1000 ) );
+    }
+
+    /**
+     * Put the update, with one more failed attempt, in the list to retry, or in the list to quarantine if it has failed
+     * too many times.
+     */
+    private void recordFailure( IndexUpdateJournal.Update u, RuntimeException e, List<IndexUpdateJournal.Update> retry,
+            List<IndexUpdateJournal.Update> quarantined ) {
+        IndexUpdateJournal.Update failed = u.failed();
+        IndexServiceImpl.log.error( "Failed to update the search index for " + u + " (attempt " + failed.getAttempts()
+                + " of " + IndexServiceImpl.MAX_UPDATE_ATTEMPTS + "): " + e.getMessage(), e );
+        if ( failed.getAttempts() >= IndexServiceImpl.MAX_UPDATE_ATTEMPTS ) {
+            quarantined.add( failed );
+        } else {
+            retry.add( failed );
+        }
+    }
+
+    @Override
+    public void reconcileIndex() {
+        Date started = new Date();
+        Date since = indexUpdateJournal.getReconciledUntil();
+        if ( since == null ) {
+            since = DateUtils.addDays( started, -IndexServiceImpl.DAYS_TO_RECONCILE );
+        }
+
+        Collection<Auditable> changed = new HashSet<>( auditEventService.getNewSinceDate( since ) );
+        changed.addAll( auditEventService.getUpdatedSinceDate( since ) );
+        Collection<IndexUpdateJournal.Update> updates = new ArrayList<>();
+        for ( Auditable a : changed ) {
+            IndexUpdateJournal.Update u = IndexUpdateJournal.toUpdate( a, started.getTime() );
+            if ( u != null ) {
+                updates.add( u );
+            }
+        }
+        IndexServiceImpl.log.info( updates.size() + " indexed entities changed since " + since
+                + " according to their audit trails" );
+        indexUpdateJournal.add( updates );
+
+        this.indexPendingUpdates();
+
+        try {
+            indexUpdateJournal.setReconciledUntil( started );
+        } catch ( IOException e ) {
+            IndexServiceImpl.log.warn( "Could not save the time of reconciling the search index: " + e.getMessage() );
+        }
+    }
+
     @Override
     public String indexArrayDesigns() {
         IndexerTaskCommand command = new IndexerTaskCommand();
@@ -129,6 +294,43 @@ public class IndexServiceImpl implements IndexService {
         return taskRunningService.submitLocalTask( new IndexerJob( command ) );
     }
 
+    private Compass getCompass( Class<? extends Identifiable> entityClass ) {
+        if ( ExpressionExperiment.class.equals( entityClass ) )
+            return compassExpression;
+        if ( ArrayDesign.class.equals( entityClass ) )
+            return compassArray;
+        if ( Gene.class.equals( entityClass ) )
+            return compassGene;
+        if ( GeneSet.class.equals( entityClass ) )
+            return compassGeneSet;
+        if ( BibliographicReference.class.equals( entityClass ) )
+            return compassBibliographic;
+        throw new IllegalArgumentException( "No search index for " + entityClass.getName() );
+    }
+
+    /**
+     * Put the current state of the entities in the index, or remove them from it if they were deleted, in one
+     * transaction.
+     */
+    void indexBatch( final List<IndexUpdateJournal.Update> batch ) {
+        new TransactionTemplate( transactionManager ).execute( new TransactionCallbackWithoutResult() {
+            @Override
+            protected void doInTransactionWithoutResult( TransactionStatus status ) {
+                Session session = sessionFactory.getCurrentSession();
+                for ( IndexUpdateJournal.Update u : batch ) {
+                    CompassTemplate template = new CompassTemplate(
+                            IndexServiceImpl.this.getCompass( u.getEntityClass() ) );
+                    Object entity = session.get( u.getEntityClass(), u.getId() );
+                    if ( entity == null ) {
+                        template.delete( u.getEntityClass(), u.getId() );
+                    } else {
+                        template.save( entity );
+                    }
+                }
+            }
+        } );
+    }
+
     private void loadExternalIndices( IndexerTaskCommand indexerTaskCommand, IndexerResult remoteIndexTaskResult ) {
         /*
          * When the rebuild is done in another JVM, in the client the index must be 'swapped' to refer to the new one.
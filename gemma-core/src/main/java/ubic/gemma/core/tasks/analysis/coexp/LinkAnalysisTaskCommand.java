@@ -69,4 +69,9 @@ public class LinkAnalysisTaskCommand extends TaskCommand {
         return LinkAnalysisTask.class;
     }
 
+    @Override
+    public long getMemoryEstimate() {
+        return TaskCommand.estimateMemory( this.getExpressionExperiment() );
+    }
+
 }
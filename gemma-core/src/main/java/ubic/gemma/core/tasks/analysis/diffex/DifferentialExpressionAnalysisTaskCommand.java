@@ -137,6 +137,11 @@ public class DifferentialExpressionAnalysisTaskCommand extends TaskCommand {
         return DifferentialExpressionAnalysisTask.class;
     }
 
+    @Override
+    public long getMemoryEstimate() {
+        return TaskCommand.estimateMemory( this.getExpressionExperiment() );
+    }
+
     public DifferentialExpressionAnalysis getToRedo() {
         return toRedo;
     }
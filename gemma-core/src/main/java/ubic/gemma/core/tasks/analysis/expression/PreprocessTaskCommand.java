@@ -67,6 +67,11 @@ public class PreprocessTaskCommand extends TaskCommand {
         return PreprocessExperimentTask.class;
     }
 
+    @Override
+    public long getMemoryEstimate() {
+        return TaskCommand.estimateMemory( this.getExpressionExperiment() );
+    }
+
     public boolean diagnosticsOnly() {
         return diagnosticsOnly;
     }
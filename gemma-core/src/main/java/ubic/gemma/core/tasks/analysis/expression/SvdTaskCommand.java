@@ -55,6 +55,11 @@ public class SvdTaskCommand extends TaskCommand {
         return SvdTask.class;
     }
 
+    @Override
+    public long getMemoryEstimate() {
+        return TaskCommand.estimateMemory( this.getExpressionExperiment() );
+    }
+
     public boolean isPostProcessOnly() {
         return postProcessOnly;
     }
@@ -100,4 +100,9 @@ public class TwoChannelMissingValueTaskCommand extends TaskCommand {
     public Class<? extends Task<TaskResult, ? extends TaskCommand>> getTaskClass() {
         return TwoChannelMissingValueTask.class;
     }
+
+    @Override
+    public long getMemoryEstimate() {
+        return TaskCommand.estimateMemory( this.getExpressionExperiment() );
+    }
 }
@@ -19,6 +19,7 @@
 package ubic.gemma.core.tasks.maintenance;
 
 import ubic.gemma.core.job.TaskCommand;
+import ubic.gemma.core.job.TaskPriority;
 import ubic.gemma.core.job.TaskResult;
 import ubic.gemma.core.tasks.Task;
 import ubic.gemma.model.expression.experiment.ExpressionExperiment;
@@ -37,6 +38,9 @@ public class ExpressionExperimentReportTaskCommand extends TaskCommand {
         super();
         this.setMaxRuntime( 300 ); /* 5 hours */
         this.all = all;
+        if ( all ) {
+            this.setPriority( TaskPriority.MAINTENANCE );
+        }
     }
 
     public ExpressionExperimentReportTaskCommand( ExpressionExperiment expressionExperiment ) {
@@ -20,6 +20,7 @@
 package ubic.gemma.core.tasks.maintenance;
 
 import ubic.gemma.core.job.TaskCommand;
+import ubic.gemma.core.job.TaskPriority;
 
 /**
  * @author klc
@@ -43,6 +44,7 @@ public class IndexerTaskCommand extends TaskCommand {
     public IndexerTaskCommand() {
         super();
         this.setMaxRuntime( IndexerTaskCommand.INDEXER_MAX_RUNTIME );
+        this.setPriority( TaskPriority.MAINTENANCE );
     }
 
     @Override
@@ -50,6 +52,14 @@ public class IndexerTaskCommand extends TaskCommand {
         return IndexerTask.class;
     }
 
+    /**
+     * The indexes are rebuilt the same way whoever asks for it.
+     */
+    @Override
+    public boolean isUserIndependent() {
+        return true;
+    }
+
     public boolean isCompassOn() {
         return compassOn;
     }
@@ -40,6 +40,7 @@ public class DifferentialExpressionGenesConditionsValueObject {
     private final Map<Long, Collection<Condition>> resultSetConditions = new HashMap<>();
     private final List<Condition> conditions;
     private final List<DiffExGene> genes;
+    private boolean partial = false;
 
     @SuppressWarnings("WeakerAccess") // Front end use
     public DifferentialExpressionGenesConditionsValueObject() {
@@ -144,6 +145,18 @@ public class DifferentialExpressionGenesConditionsValueObject {
         return genes;
     }
 
+    /**
+     * @return true if the search ran out of time, so some of the conditions show no results even though they may have
+     * some.
+     */
+    public boolean isPartial() {
+        return partial;
+    }
+
+    public void setPartial( boolean partial ) {
+        this.partial = partial;
+    }
+
     private void addCell( Long geneId, String conditionId, Cell cell ) {
         Map<Long, Cell> geneToCellMap = cellData.get( conditionId );
         if ( geneToCellMap == null ) {
@@ -1,6 +1,7 @@
 package ubic.gemma.core.tasks.visualization;
 
 import ubic.gemma.core.job.TaskCommand;
+import ubic.gemma.core.job.TaskPriority;
 import ubic.gemma.core.job.TaskResult;
 import ubic.gemma.core.tasks.Task;
 import ubic.gemma.model.expression.experiment.ExpressionExperimentDetailsValueObject;
@@ -33,6 +34,7 @@ public class DifferentialExpressionSearchTaskCommand extends TaskCommand {
         this.experimentGroup = experimentGroup;
         this.geneGroupName = geneGroupName;
         this.experimentGroupName = experimentGroupName;
+        this.setPriority( TaskPriority.INTERACTIVE );
     }
 
     @Override
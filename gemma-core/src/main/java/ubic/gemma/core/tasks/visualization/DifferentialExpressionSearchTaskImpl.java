@@ -272,8 +272,10 @@ public class DifferentialExpressionSearchTaskImpl
         watch.start( "Fetch diff ex results" );
 
         // Main query for results; the main time sink.
-        Map<Long, Map<Long, DiffExprGeneSearchResult>> resultSetToGeneResults = differentialExpressionResultService
+        DiffExprGeneSearchResults found = differentialExpressionResultService
                 .findDiffExAnalysisResultIdsInResultSets( resultSets, geneIds );
+        Map<Long, Map<Long, DiffExprGeneSearchResult>> resultSetToGeneResults = found.getResults();
+        searchResult.setPartial( found.isPartial() );
         watch.stop();
 
         Collection<DiffExprGeneSearchResult> aggregatedResults = this
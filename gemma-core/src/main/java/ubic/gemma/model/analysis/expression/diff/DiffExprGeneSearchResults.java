@@ -0,0 +1,64 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2021 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.gemma.model.analysis.expression.diff;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * The differential expression results found for a set of genes in a set of result sets. If the search ran out of time,
+ * some of the result sets were not searched: the results are then partial, and those result sets are listed.
+ */
+public class DiffExprGeneSearchResults {
+
+    private final Map<Long, Map<Long, DiffExprGeneSearchResult>> results;
+    private final Collection<Long> resultSetsNotSearched;
+
+    /**
+     * @param results map of result set ids to map of gene ids to results, for all the result sets searched.
+     */
+    public DiffExprGeneSearchResults( Map<Long, Map<Long, DiffExprGeneSearchResult>> results ) {
+        this( results, new HashSet<Long>() );
+    }
+
+    /**
+     * @param results               map of result set ids to map of gene ids to results
+     * @param resultSetsNotSearched result sets that could not be searched in time.
+     */
+    public DiffExprGeneSearchResults( Map<Long, Map<Long, DiffExprGeneSearchResult>> results,
+            Collection<Long> resultSetsNotSearched ) {
+        this.results = results;
+        this.resultSetsNotSearched = resultSetsNotSearched;
+    }
+
+    /**
+     * @return map of result set ids to map of gene ids to results.
+     */
+    public Map<Long, Map<Long, DiffExprGeneSearchResult>> getResults() {
+        return results;
+    }
+
+    public Collection<Long> getResultSetsNotSearched() {
+        return resultSetsNotSearched;
+    }
+
+    /**
+     * @return true if some of the result sets were not searched.
+     */
+    public boolean isPartial() {
+        return !resultSetsNotSearched.isEmpty();
+    }
+}
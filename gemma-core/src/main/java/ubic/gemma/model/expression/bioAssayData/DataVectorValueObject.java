@@ -79,6 +79,28 @@ public abstract class DataVectorValueObject extends IdentifiableValueObject<Data
         this.genes = genes;
     }
 
+    /**
+     * For when the vector itself was not loaded; value objects for the associated entities are supplied and can be
+     * shared among vectors.
+     *
+     * @param id                   id of the vector
+     * @param designElement        design element VO
+     * @param expressionExperiment experiment VO
+     * @param quantitationType     QT VO
+     * @param badvo                BA dimension VO
+     * @param genes                genes
+     */
+    public DataVectorValueObject( Long id, CompositeSequenceValueObject designElement,
+            ExpressionExperimentValueObject expressionExperiment, QuantitationTypeValueObject quantitationType,
+            BioAssayDimensionValueObject badvo, Collection<Long> genes ) {
+        super( id );
+        this.designElement = designElement;
+        this.expressionExperiment = expressionExperiment;
+        this.quantitationType = quantitationType;
+        this.bioAssayDimension = badvo;
+        this.genes = genes;
+    }
+
     @Override
     public boolean equals( Object obj ) {
         if ( this == obj )
@@ -0,0 +1,73 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2021 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.model.expression.bioAssayData;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Decodes the stored data of many double vectors at once. Each vector's bytes are read in bulk (the stored format is
+ * big-endian, as written by {@link ubic.basecode.io.ByteArrayConverter}) and the missing-value mask, if any, is applied
+ * in the same pass. Each vector gets its own array, so it can be handed on (e.g. to a {@link DoubleVectorValueObject})
+ * without copying; vectors may differ in length.
+ */
+public class DoubleVectorDecoder {
+
+    private DoubleVectorDecoder() {
+    }
+
+    /**
+     * @param data  the stored data of each vector
+     * @param masks the stored missing-value (boolean) vectors matching the data, in the same order, or null if there are
+     *              none. Individual masks can also be null. Where a mask is false, the value is set to NaN.
+     * @return decoded data, one array per vector
+     * @throws IllegalArgumentException if data are not a whole number of doubles
+     * @throws IllegalStateException    if a mask doesn't match the length of its vector
+     */
+    public static double[][] decode( List<byte[]> data, List<byte[]> masks ) {
+        if ( masks != null && masks.size() != data.size() ) {
+            throw new IllegalArgumentException( "Must have one mask per vector (which can be null)" );
+        }
+
+        double[][] rows = new double[data.size()][];
+        int i = 0;
+        for ( byte[] bytes : data ) {
+            if ( bytes.length % Double.BYTES != 0 ) {
+                throw new IllegalArgumentException(
+                        "Data for vector " + i + " is not a whole number of doubles: " + bytes.length + " bytes" );
+            }
+            double[] row = new double[bytes.length / Double.BYTES];
+            ByteBuffer.wrap( bytes ).asDoubleBuffer().get( row );
+
+            byte[] mask = masks == null ? null : masks.get( i );
+            if ( mask != null ) {
+                if ( mask.length != row.length ) {
+                    throw new IllegalStateException( "Missing value data didn't match data length" );
+                }
+                for ( int j = 0; j < row.length; j++ ) {
+                    if ( mask[j] == 0 ) {
+                        row[j] = Double.NaN;
+                    }
+                }
+            }
+            rows[i++] = row;
+        }
+        return rows;
+    }
+}
@@ -25,14 +25,17 @@ import ubic.gemma.core.datastructure.matrix.ExpressionDataDoubleMatrix;
 import ubic.gemma.core.datastructure.matrix.ExpressionDataDoubleMatrixUtil;
 import ubic.gemma.model.common.quantitationtype.PrimitiveType;
 import ubic.gemma.model.common.quantitationtype.QuantitationType;
+import ubic.gemma.model.common.quantitationtype.QuantitationTypeValueObject;
 import ubic.gemma.model.common.quantitationtype.ScaleType;
 import ubic.gemma.model.expression.arrayDesign.ArrayDesignValueObject;
 import ubic.gemma.model.expression.bioAssay.BioAssayValueObject;
 import ubic.gemma.model.expression.biomaterial.BioMaterialValueObject;
 import ubic.gemma.model.expression.designElement.CompositeSequence;
+import ubic.gemma.model.expression.designElement.CompositeSequenceValueObject;
 import ubic.gemma.model.expression.experiment.ExpressionExperiment;
 import ubic.gemma.model.expression.experiment.ExpressionExperimentSubSet;
 import ubic.gemma.model.expression.experiment.ExpressionExperimentSubsetValueObject;
+import ubic.gemma.model.expression.experiment.ExpressionExperimentValueObject;
 
 import java.util.*;
 
@@ -124,7 +127,22 @@ public class DoubleVectorValueObject extends DataVectorValueObject {
      */
     public DoubleVectorValueObject( DesignElementDataVector dedv, BioAssayDimensionValueObject vectorsBadVo,
             Collection<Long> genes, BioAssayDimension dimToMatch ) {
-        this( dedv, genes, vectorsBadVo );
+        this( dedv, vectorsBadVo, genes, dimToMatch, null );
+    }
+
+    /**
+     * As above, but using data that were already decoded, e.g. by {@link DoubleVectorDecoder}.
+     *
+     * @param dimToMatch ensure that the vector missing values to match the locations of any bioassays in dimToMatch
+     *        that aren't in the dedv's bioAssayDimension.
+     * @param genes genes
+     * @param dedv dedv
+     * @param vectorsBadVo BA dimension vo
+     * @param data the decoded data of the dedv, which will be owned by this; or null to decode them here.
+     */
+    public DoubleVectorValueObject( DesignElementDataVector dedv, BioAssayDimensionValueObject vectorsBadVo,
+            Collection<Long> genes, BioAssayDimension dimToMatch, double[] data ) {
+        this( dedv, genes, vectorsBadVo, data );
 
         if ( dimToMatch.getBioAssays().size() != this.data.length ) {
             this.addGaps( dimToMatch );
@@ -134,6 +152,17 @@ public class DoubleVectorValueObject extends DataVectorValueObject {
 
     public DoubleVectorValueObject( DesignElementDataVector dedv, Collection<Long> genes,
             BioAssayDimensionValueObject badVo ) {
+        this( dedv, genes, badVo, null );
+    }
+
+    /**
+     * @param dedv dedv
+     * @param genes genes
+     * @param badVo BA dimension vo
+     * @param data the decoded data of the dedv, which will be owned by this; or null to decode them here.
+     */
+    public DoubleVectorValueObject( DesignElementDataVector dedv, Collection<Long> genes,
+            BioAssayDimensionValueObject badVo, double[] data ) {
         super( dedv, genes, badVo );
         QuantitationType qt = dedv.getQuantitationType();
         if ( !qt.getRepresentation().equals( PrimitiveType.DOUBLE ) ) {
@@ -143,7 +172,11 @@ public class DoubleVectorValueObject extends DataVectorValueObject {
         if ( qt.getIsMaskedPreferred() ) {
             this.masked = true;
         }
-        this.data = DataVectorValueObject.byteArrayConverter.byteArrayToDoubles( dedv.getData() );
+        if ( data != null ) {
+            this.data = data;
+        } else {
+            this.data = DataVectorValueObject.byteArrayConverter.byteArrayToDoubles( dedv.getData() );
+        }
         if ( dedv instanceof ProcessedExpressionDataVector ) {
             this.rankByMax = ( ( ProcessedExpressionDataVector ) dedv ).getRankByMax();
             this.rankByMean = ( ( ProcessedExpressionDataVector ) dedv ).getRankByMean();
@@ -152,7 +185,51 @@ public class DoubleVectorValueObject extends DataVectorValueObject {
         int i = 0;
         for ( BioAssayValueObject bVo : this.getBioAssays() ) {
             if ( bVo.isOutlier() ) {
-                data[i] = Double.NaN;
+                this.data[i] = Double.NaN;
+            }
+            i++;
+        }
+    }
+
+    /**
+     * For data that were read from somewhere other than the vector itself, e.g. a stored copy of the processed data.
+     * Values for outlier bioassays are set to NaN, as for the other constructors.
+     *
+     * @param id                   id of the vector
+     * @param designElement        design element VO
+     * @param expressionExperiment experiment VO
+     * @param qt                   quantitation type of the vector
+     * @param qtVo                 VO for the quantitation type, which can be shared among vectors
+     * @param badVo                BA dimension VO
+     * @param genes                genes
+     * @param rankByMean           rank by mean
+     * @param rankByMax            rank by max
+     * @param data                 the data of the vector, which will be owned by this
+     */
+    public DoubleVectorValueObject( Long id, CompositeSequenceValueObject designElement,
+            ExpressionExperimentValueObject expressionExperiment, QuantitationType qt,
+            QuantitationTypeValueObject qtVo, BioAssayDimensionValueObject badVo, Collection<Long> genes,
+            Double rankByMean, Double rankByMax, double[] data ) {
+        super( id, designElement, expressionExperiment, qtVo, badVo, genes );
+        if ( !qt.getRepresentation().equals( PrimitiveType.DOUBLE ) ) {
+            throw new IllegalArgumentException(
+                    "Can only store double vectors, got " + qt + " " + qt.getRepresentation() );
+        }
+        if ( data.length != badVo.getBioAssays().size() ) {
+            throw new IllegalArgumentException(
+                    "Data has " + data.length + " values, expected " + badVo.getBioAssays().size() );
+        }
+        if ( qt.getIsMaskedPreferred() ) {
+            this.masked = true;
+        }
+        this.rankByMean = rankByMean;
+        this.rankByMax = rankByMax;
+        this.data = data;
+
+        int i = 0;
+        for ( BioAssayValueObject bVo : this.getBioAssays() ) {
+            if ( bVo.isOutlier() ) {
+                this.data[i] = Double.NaN;
             }
             i++;
         }
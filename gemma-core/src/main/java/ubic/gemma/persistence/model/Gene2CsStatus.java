@@ -22,6 +22,7 @@ import ubic.gemma.persistence.service.TableMaintenanceUtil;
 
 import java.io.Serializable;
 import java.util.Date;
+import java.util.Map;
 
 /**
  * Used to store information about what happened when the GENE2CS table was updated.
@@ -40,6 +41,12 @@ public class Gene2CsStatus implements Serializable {
 
     private String annotation;
 
+    /**
+     * For each platform, when its entries were last regenerated (the start of the update that did it). Null in
+     * statuses written before this was kept.
+     */
+    private Map<Long, Date> platformVersions;
+
     public String getAnnotation() {
         return annotation;
     }
@@ -56,6 +63,14 @@ public class Gene2CsStatus implements Serializable {
         this.error = error;
     }
 
+    public Map<Long, Date> getPlatformVersions() {
+        return platformVersions;
+    }
+
+    public void setPlatformVersions( Map<Long, Date> platformVersions ) {
+        this.platformVersions = platformVersions;
+    }
+
     public Date getLastUpdate() {
         return lastUpdate;
     }
@@ -24,11 +24,11 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.mail.SimpleMailMessage;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
-import ubic.basecode.util.FileTools;
 import ubic.gemma.model.common.Auditable;
 import ubic.gemma.model.common.auditAndSecurity.AuditEvent;
 import ubic.gemma.model.common.auditAndSecurity.eventType.ArrayDesignGeneMappingEvent;
@@ -40,9 +40,9 @@ import ubic.gemma.persistence.util.MailEngine;
 import ubic.gemma.persistence.util.Settings;
 
 import java.io.*;
-import java.util.Calendar;
-import java.util.Collection;
-import java.util.Date;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -57,14 +57,37 @@ public class TableMaintenanceUtilImpl implements TableMaintenanceUtil {
 
     private static final AtomicBoolean running = new AtomicBoolean( false );
 
+    private static final String GENE2CS_INSERT =
+            "INSERT INTO GENE2CS (GENE, CS, AD) " + "SELECT DISTINCT gene.ID, cs.ID, cs.ARRAY_DESIGN_FK "
+                    + " FROM CHROMOSOME_FEATURE AS gene, CHROMOSOME_FEATURE AS geneprod,BIO_SEQUENCE2_GENE_PRODUCT AS bsgp,COMPOSITE_SEQUENCE cs "
+                    + " WHERE geneprod.GENE_FK = gene.ID AND bsgp.GENE_PRODUCT_FK = geneprod.ID AND "
+                    + " bsgp.BIO_SEQUENCE_FK = cs.BIOLOGICAL_CHARACTERISTIC_FK";
+
     /**
      * The query used to repopulate the contents of the GENE2CS table.
      */
     private static final String GENE2CS_REPOPULATE_QUERY =
-            "INSERT INTO GENE2CS (GENE, CS, AD) " + "SELECT DISTINCT gene.ID, cs.ID, cs.ARRAY_DESIGN_FK "
-                    + " FROM CHROMOSOME_FEATURE AS gene, CHROMOSOME_FEATURE AS geneprod,BIO_SEQUENCE2_GENE_PRODUCT AS bsgp,COMPOSITE_SEQUENCE cs "
-                    + " WHERE geneprod.GENE_FK = gene.ID AND bsgp.GENE_PRODUCT_FK = geneprod.ID AND "
-                    + " bsgp.BIO_SEQUENCE_FK = cs.BIOLOGICAL_CHARACTERISTIC_FK ORDER BY gene.ID,cs.ARRAY_DESIGN_FK";
+            TableMaintenanceUtilImpl.GENE2CS_INSERT + " ORDER BY gene.ID,cs.ARRAY_DESIGN_FK";
+
+    /**
+     * The queries used to regenerate the entries for a range of probes on one platform.
+     */
+    private static final String GENE2CS_PLATFORM_DELETE_QUERY =
+            "DELETE FROM GENE2CS WHERE AD = :ad AND CS BETWEEN :first AND :last";
+    private static final String GENE2CS_PLATFORM_REPOPULATE_QUERY = TableMaintenanceUtilImpl.GENE2CS_INSERT
+            + " AND cs.ARRAY_DESIGN_FK = :ad AND cs.ID BETWEEN :first AND :last ORDER BY gene.ID";
+
+    /**
+     * If true, only the entries for platforms that changed since the last update are regenerated, rather than the
+     * whole table. The first update in this mode regenerates everything, to record when each platform was done, as does
+     * the next update after one that failed without recording that.
+     */
+    private static final boolean INCREMENTAL = Settings.getBoolean( "gemma.gene2cs.incremental", false );
+
+    /**
+     * In incremental mode, the range of probe IDs whose entries are replaced in each transaction.
+     */
+    private static final int PLATFORM_BATCH_SIZE = Settings.getInt( "gemma.gene2cs.batchsize", 50000 );
 
     private static final String HOME_DIR = Settings.getString( "gemma.appdata.home" );
 
@@ -84,6 +107,33 @@ public class TableMaintenanceUtilImpl implements TableMaintenanceUtil {
 
     private boolean sendEmail = true;
 
+    private final File gene2CsInfoPath;
+    private final boolean incremental;
+    private final int platformBatchSize;
+
+    public TableMaintenanceUtilImpl() {
+        this.gene2CsInfoPath = TableMaintenanceUtilImpl.getGene2CsInfopath();
+        this.incremental = TableMaintenanceUtilImpl.INCREMENTAL;
+        this.platformBatchSize = TableMaintenanceUtilImpl.PLATFORM_BATCH_SIZE;
+    }
+
+    /**
+     * For tests.
+     *
+     * @param gene2CsInfoPath   where the status of the last update is kept
+     * @param incremental       whether only the entries of platforms that changed are regenerated
+     * @param platformBatchSize the range of probe IDs whose entries are replaced in each transaction
+     */
+    TableMaintenanceUtilImpl( AuditEventService auditEventService, SessionFactory sessionFactory,
+            File gene2CsInfoPath, boolean incremental, int platformBatchSize ) {
+        this.auditEventService = auditEventService;
+        this.sessionFactory = sessionFactory;
+        this.gene2CsInfoPath = gene2CsInfoPath;
+        this.incremental = incremental;
+        this.platformBatchSize = platformBatchSize;
+        this.sendEmail = false;
+    }
+
     @Override
     @Transactional
     public synchronized void updateGene2CsEntries() {
@@ -94,12 +144,20 @@ public class TableMaintenanceUtilImpl implements TableMaintenanceUtil {
         TableMaintenanceUtilImpl.log.debug( "Running Gene2CS status check" );
 
         String annotation = "";
+        Gene2CsStatus status = null;
         try {
             TableMaintenanceUtilImpl.running.set( true );
 
-            Gene2CsStatus status = this.getLastGene2CsUpdateStatus();
+            Date started = new Date();
+            status = this.getLastGene2CsUpdateStatus();
+            if ( this.incremental && status != null && status.getPlatformVersions() != null ) {
+                this.updateGene2CsEntriesIncrementally( status, started );
+                return;
+            }
+
             boolean needToRefresh = false;
-            if ( status == null ) {
+            if ( status == null || this.incremental ) {
+                // in incremental mode, we get here if the platform versions are not known
                 needToRefresh = true;
             }
 
@@ -141,7 +199,12 @@ public class TableMaintenanceUtilImpl implements TableMaintenanceUtil {
             if ( needToRefresh ) {
                 TableMaintenanceUtilImpl.log.debug( "Update of GENE2CS initiated" );
                 this.generateGene2CsEntries();
-                Gene2CsStatus updatedStatus = this.writeUpdateStatus( annotation, null );
+                Map<Long, Date> platformVersions = new HashMap<>();
+                for ( Long id : this.getPlatformIds() ) {
+                    platformVersions.put( id, started );
+                }
+                Gene2CsStatus updatedStatus = this.writeUpdateStatus( annotation, null, new Date(),
+                        platformVersions );
                 this.sendEmail( updatedStatus );
 
             } else {
@@ -151,7 +214,12 @@ public class TableMaintenanceUtilImpl implements TableMaintenanceUtil {
         } catch ( Exception e ) {
             try {
                 TableMaintenanceUtilImpl.log.info( "Error during attempt to check status or update GENE2CS", e );
-                Gene2CsStatus updatedStatus = this.writeUpdateStatus( annotation, e );
+                /*
+                 * Keep the time of the last update, so the changes since are found again next time. Entries may have
+                 * been replaced, so the platform versions are no longer known.
+                 */
+                Gene2CsStatus updatedStatus = this.writeUpdateStatus( annotation, e,
+                        status == null || status.getLastUpdate() == null ? new Date() : status.getLastUpdate(), null );
                 this.sendEmail( updatedStatus );
             } catch ( IOException e1 ) {
                 throw new RuntimeException( e1 );
@@ -196,18 +264,203 @@ public class TableMaintenanceUtilImpl implements TableMaintenanceUtil {
 
     }
 
-    private File getGene2CsInfopath() {
+    /**
+     * Regenerate the entries for the platforms that were added or had their probes mapped to genes since their entries
+     * were last generated, and remove those for platforms that no longer exist. Each platform is done in transactions
+     * covering a range of its probes, so the rest of the table, and most of the platform's entries, can be used while
+     * this runs.
+     *
+     * @param status  the status written by the last update
+     * @param started when this update started; recorded as the version of the platforms that are regenerated
+     */
+    private void updateGene2CsEntriesIncrementally( Gene2CsStatus status, Date started ) throws IOException {
+        Map<Long, Date> platformVersions = new HashMap<>( status.getPlatformVersions() );
+        Map<Long, String> changed = this.findChangedPlatforms( status.getLastUpdate(), platformVersions );
+
+        Collection<Long> platformIds = this.getPlatformIds();
+        for ( Long id : platformIds ) {
+            if ( !platformVersions.containsKey( id ) && !changed.containsKey( id ) ) {
+                changed.put( id, "Platform " + id + " has no record of an earlier update" );
+            }
+        }
+        for ( Long id : platformVersions.keySet() ) {
+            if ( !platformIds.contains( id ) ) {
+                changed.put( id, "Platform " + id + " was removed" );
+            }
+        }
+
+        if ( changed.isEmpty() ) {
+            TableMaintenanceUtilImpl.log.debug( "No update of GENE2CS needed" );
+            return;
+        }
+
+        TableMaintenanceUtilImpl.log.info( "Updating Gene2Cs for " + changed.size() + " platforms ..." );
+        StringBuilder annotation = new StringBuilder();
+        Exception error = null;
+        for ( Map.Entry<Long, String> platform : changed.entrySet() ) {
+            TableMaintenanceUtilImpl.log.debug( platform.getValue() );
+            try {
+                int inserted = this.generateGene2CsEntries( platform.getKey() );
+                annotation.append( platform.getValue() ).append( "; " ).append( inserted ).append( " entries\n" );
+                if ( platformIds.contains( platform.getKey() ) ) {
+                    platformVersions.put( platform.getKey(), started );
+                } else {
+                    platformVersions.remove( platform.getKey() );
+                }
+            } catch ( Exception e ) {
+                TableMaintenanceUtilImpl.log
+                        .info( "Error during update of GENE2CS for platform " + platform.getKey(), e );
+                annotation.append( platform.getValue() ).append( "; failed: " ).append( e.getMessage() ).append( "\n" );
+                error = e;
+                /*
+                 * Some of its entries may have been replaced. Forgetting its version makes data derived from the old
+                 * entries out of date, and has the platform done again next time.
+                 */
+                platformVersions.remove( platform.getKey() );
+            }
+        }
+        TableMaintenanceUtilImpl.log.info( "Done updating Gene2Cs." );
+
+        Gene2CsStatus updatedStatus = this.writeUpdateStatus( annotation.toString(), error, started,
+                platformVersions );
+        this.sendEmail( updatedStatus );
+    }
+
+    /**
+     * @param  lastUpdate       when GENE2CS was last updated
+     * @param  platformVersions when the entries for each platform were last regenerated
+     * @return the IDs of the platforms that were created since the last update, or that had their probes mapped to
+     *         genes since their entries were regenerated, with the reason
+     */
+    private Map<Long, String> findChangedPlatforms( Date lastUpdate, Map<Long, Date> platformVersions ) {
+        Map<Long, String> changed = new LinkedHashMap<>();
+
+        for ( Auditable a : auditEventService.getNewSinceDate( lastUpdate ) ) {
+            if ( a instanceof ArrayDesign && !platformVersions.containsKey( a.getId() ) ) {
+                changed.put( a.getId(), a + " is new since " + lastUpdate );
+            }
+        }
+
+        for ( Auditable a : auditEventService.getUpdatedSinceDate( lastUpdate ) ) {
+            if ( !( a instanceof ArrayDesign ) || changed.containsKey( a.getId() ) ) {
+                continue;
+            }
+            Date version = platformVersions.get( a.getId() );
+            if ( version == null ) {
+                version = lastUpdate;
+            }
+            for ( AuditEvent ae : auditEventService.getEvents( a ) ) {
+                if ( ae == null )
+                    continue;
+                if ( ae.getEventType() instanceof ArrayDesignGeneMappingEvent && ae.getDate().after( version ) ) {
+                    changed.put( a.getId(), a + " had probe mapping done since: " + version );
+                    break;
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Replace the entries for one platform, a range of probes at a time, each in its own transaction. If the platform
+     * no longer exists, this removes its entries.
+     *
+     * @param  platformId platform
+     * @return number of entries inserted
+     */
+    int generateGene2CsEntries( Long platformId ) {
+        Session session = this.sessionFactory.getCurrentSession();
+        Object[] probeRange = ( Object[] ) session
+                .createSQLQuery( "SELECT MIN(ID), MAX(ID) FROM COMPOSITE_SEQUENCE WHERE ARRAY_DESIGN_FK = :ad" )
+                .setParameter( "ad", platformId ).uniqueResult();
+        Object[] entryRange = ( Object[] ) session
+                .createSQLQuery( "SELECT MIN(CS), MAX(CS) FROM GENE2CS WHERE AD = :ad" )
+                .setParameter( "ad", platformId ).uniqueResult();
+
+        // entries may remain for probes that have been removed from the platform
+        if ( probeRange[0] == null && entryRange[0] == null ) {
+            return 0;
+        }
+        long first = Math.min( TableMaintenanceUtilImpl.toLong( probeRange[0], Long.MAX_VALUE ),
+                TableMaintenanceUtilImpl.toLong( entryRange[0], Long.MAX_VALUE ) );
+        long last = Math.max( TableMaintenanceUtilImpl.toLong( probeRange[1], Long.MIN_VALUE ),
+                TableMaintenanceUtilImpl.toLong( entryRange[1], Long.MIN_VALUE ) );
+
+        int inserted = 0;
+        for ( long start = first; start <= last; start += this.platformBatchSize ) {
+            long end = Math.min( last, start + this.platformBatchSize - 1 );
+            Session batchSession = this.sessionFactory.openSession();
+            Transaction tx = batchSession.beginTransaction();
+            try {
+                batchSession.createSQLQuery( TableMaintenanceUtilImpl.GENE2CS_PLATFORM_DELETE_QUERY )
+                        .setParameter( "ad", platformId ).setParameter( "first", start ).setParameter( "last", end )
+                        .executeUpdate();
+                inserted += batchSession.createSQLQuery( TableMaintenanceUtilImpl.GENE2CS_PLATFORM_REPOPULATE_QUERY )
+                        .setParameter( "ad", platformId ).setParameter( "first", start ).setParameter( "last", end )
+                        .executeUpdate();
+                tx.commit();
+            } catch ( RuntimeException e ) {
+                tx.rollback();
+                throw e;
+            } finally {
+                batchSession.close();
+            }
+        }
+        return inserted;
+    }
+
+    private Collection<Long> getPlatformIds() {
+        Collection<Long> ids = new HashSet<>();
+        for ( Object id : this.sessionFactory.getCurrentSession().createSQLQuery( "SELECT ID FROM ARRAY_DESIGN" )
+                .list() ) {
+            ids.add( ( ( Number ) id ).longValue() );
+        }
+        return ids;
+    }
+
+    private static long toLong( Object value, long ifNull ) {
+        return value == null ? ifNull : ( ( Number ) value ).longValue();
+    }
+
+    /**
+     * @return the file recording the last update of GENE2CS.
+     */
+    public static File getGene2CsInfopath() {
         return new File( TableMaintenanceUtilImpl.HOME_DIR + File.separatorChar + TableMaintenanceUtilImpl.DB_INFO_DIR
                 + File.separatorChar + "gene2cs.info" );
     }
 
+    /**
+     * Data derived from the GENE2CS entries of a platform should record the version of the entries it was derived
+     * from, read before the table is queried; it is out of date once the version changes.
+     *
+     * @return when the entries for each platform were last regenerated; empty if that is not known (e.g. the last
+     *         update failed).
+     */
+    public static Map<Long, Date> getGene2CsPlatformVersions() {
+        try {
+            Gene2CsStatus status = TableMaintenanceUtilImpl
+                    .readUpdateStatus( TableMaintenanceUtilImpl.getGene2CsInfopath() );
+            if ( status != null && status.getPlatformVersions() != null ) {
+                return status.getPlatformVersions();
+            }
+        } catch ( IOException | ClassNotFoundException e ) {
+            TableMaintenanceUtilImpl.log.warn( "Could not read the status of the last GENE2CS update", e );
+        }
+        return Collections.emptyMap();
+    }
+
     /**
      * Reads previous run information from disk.
      *
      * @return null if there is no update information available.
      */
     private Gene2CsStatus getLastGene2CsUpdateStatus() throws IOException, ClassNotFoundException {
-        File gene2CsInfopath = this.getGene2CsInfopath();
+        return TableMaintenanceUtilImpl.readUpdateStatus( this.gene2CsInfoPath );
+    }
+
+    private static Gene2CsStatus readUpdateStatus( File gene2CsInfopath )
+            throws IOException, ClassNotFoundException {
         if ( !gene2CsInfopath.canRead() ) {
             return null;
         }
@@ -218,10 +471,11 @@ public class TableMaintenanceUtilImpl implements TableMaintenanceUtil {
 
     }
 
-    private void initDirectories() {
-        FileTools.createDir( TableMaintenanceUtilImpl.HOME_DIR );
-        FileTools.createDir(
-                TableMaintenanceUtilImpl.HOME_DIR + File.separatorChar + TableMaintenanceUtilImpl.DB_INFO_DIR );
+    private void initDirectories() throws IOException {
+        File dir = this.gene2CsInfoPath.getParentFile();
+        if ( !dir.exists() && !dir.mkdirs() && !dir.exists() ) {
+            throw new IOException( "Could not create directory " + dir );
+        }
     }
 
     private void sendEmail( Gene2CsStatus results ) {
@@ -242,20 +496,32 @@ public class TableMaintenanceUtilImpl implements TableMaintenanceUtil {
     }
 
     /**
-     * @param annotation extra text that describes the status
+     * @param annotation       extra text that describes the status
+     * @param lastUpdate       the time changes are looked for after, next time
+     * @param platformVersions when the entries for each platform were last regenerated; null if not known
      */
-    private Gene2CsStatus writeUpdateStatus( String annotation, Exception e ) throws IOException {
+    private Gene2CsStatus writeUpdateStatus( String annotation, Exception e, Date lastUpdate,
+            Map<Long, Date> platformVersions ) throws IOException {
         this.initDirectories();
         Gene2CsStatus status = new Gene2CsStatus();
-        Calendar c = Calendar.getInstance();
-        Date date = c.getTime();
-        status.setLastUpdate( date );
+        status.setLastUpdate( lastUpdate );
         status.setError( e );
         status.setAnnotation( annotation );
+        status.setPlatformVersions( platformVersions );
 
-        try (FileOutputStream fos = new FileOutputStream( this.getGene2CsInfopath() );
-                ObjectOutputStream oos = new ObjectOutputStream( fos )) {
-            oos.writeObject( status );
+        // written under a temporary name first, since the platform versions are read while the table is in use.
+        File tmp = File.createTempFile( this.gene2CsInfoPath.getName(), ".tmp", this.gene2CsInfoPath.getParentFile() );
+        try {
+            try (FileOutputStream fos = new FileOutputStream( tmp );
+                    ObjectOutputStream oos = new ObjectOutputStream( fos )) {
+                oos.writeObject( status );
+            }
+            Files.move( tmp.toPath(), this.gene2CsInfoPath.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE );
+        } finally {
+            if ( tmp.exists() && !tmp.delete() ) {
+                TableMaintenanceUtilImpl.log.warn( "Could not remove " + tmp );
+            }
         }
         return status;
     }
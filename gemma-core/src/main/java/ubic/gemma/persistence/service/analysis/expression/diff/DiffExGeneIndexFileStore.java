@@ -0,0 +1,342 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2021 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.persistence.service.analysis.expression.diff;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import ubic.gemma.persistence.util.Settings;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * Stores, for each result set, the best differential expression result of each gene, ordered by gene, so searches for
+ * genes in many result sets can be answered without querying the results table. Each file holds the gene ids (sorted),
+ * the id of the best result (lowest corrected p-value) for the gene, its p-value and corrected p-value, how many
+ * probes for the gene had results, and how many of those were counted as differentially expressed. Files are
+ * memory-mapped for reading, so a search only touches the pages it needs.
+ * The files are derived from the database and the GENE2CS table: they have to be replaced when the results change, and
+ * when the GENE2CS entries of the result set's platforms are regenerated. For the latter, each file records the
+ * platforms of its result set and the version of their GENE2CS entries it was built from (see
+ * {@link ubic.gemma.persistence.model.Gene2CsStatus#getPlatformVersions()}); it is only used while those are current.
+ */
+class DiffExGeneIndexFileStore {
+
+    private static final Log log = LogFactory.getLog( DiffExGeneIndexFileStore.class );
+
+    private static final int MAGIC = 0x47444749; // "GDGI"
+    private static final int VERSION = 3;
+
+    /**
+     * magic, version, number of platforms, number of genes.
+     */
+    private static final int HEADER_BYTES = 4 * Integer.BYTES;
+
+    /**
+     * platform id, version of its GENE2CS entries (in ms, or -1 if not known)
+     */
+    private static final int BYTES_PER_PLATFORM = 2 * Long.BYTES;
+
+    /**
+     * gene id, result id, p-value, corrected p-value, number of probes, number of differentially expressed probes
+     */
+    private static final int BYTES_PER_GENE = 2 * Long.BYTES + 2 * Double.BYTES + 2 * Integer.BYTES;
+
+    private final File directory;
+
+    /**
+     * Use the default location, under gemma.appdata.home.
+     */
+    DiffExGeneIndexFileStore() {
+        this( new File( Settings.getString( "gemma.appdata.home" ), "diffExGeneIndex" ) );
+    }
+
+    /**
+     * @param directory where the files are kept; created if necessary.
+     */
+    DiffExGeneIndexFileStore( File directory ) {
+        this.directory = directory;
+    }
+
+    /**
+     * @param resultSetId      result set
+     * @param platformVersions the current version of the GENE2CS entries of each platform; a file built from other
+     *                         versions of its platforms' entries is out of date, and is removed.
+     * @return the stored index, or null if there isn't a usable one.
+     */
+    Index read( Long resultSetId, Map<Long, Date> platformVersions ) {
+        File file = this.getFile( resultSetId );
+        if ( !file.canRead() ) {
+            return null;
+        }
+
+        Index index = null;
+        try (RandomAccessFile raf = new RandomAccessFile( file, "r" ); FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer buf = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+            if ( buf.getInt() != DiffExGeneIndexFileStore.MAGIC || buf.getInt() != DiffExGeneIndexFileStore.VERSION ) {
+                throw new IOException( "Not a gene index file, or an incompatible version" );
+            }
+            int numPlatforms = buf.getInt();
+            int size = buf.getInt();
+            long expectedSize = DiffExGeneIndexFileStore.HEADER_BYTES
+                    + ( long ) numPlatforms * DiffExGeneIndexFileStore.BYTES_PER_PLATFORM
+                    + ( long ) size * DiffExGeneIndexFileStore.BYTES_PER_GENE;
+            if ( numPlatforms < 0 || size < 0 || channel.size() != expectedSize ) {
+                throw new IOException( "File is " + channel.size() + " bytes, expected " + expectedSize );
+            }
+
+            boolean current = true;
+            for ( int i = 0; i < numPlatforms && current; i++ ) {
+                long platformId = buf.getLong();
+                long version = buf.getLong();
+                if ( version != DiffExGeneIndexFileStore.toMillis( platformVersions.get( platformId ) ) ) {
+                    DiffExGeneIndexFileStore.log.debug( "Gene index for result set " + resultSetId
+                            + " is out of date for platform " + platformId );
+                    current = false;
+                }
+            }
+            if ( current ) {
+                index = this.readGenes( buf, size );
+            }
+        } catch ( IOException e ) {
+            DiffExGeneIndexFileStore.log
+                    .warn( "Could not read gene index file " + file + ", removing it: " + e.getMessage() );
+        }
+
+        if ( index == null ) {
+            this.remove( resultSetId );
+        }
+        return index;
+    }
+
+    /**
+     * Write the index for a result set, replacing any existing file. The file is written under a temporary name first,
+     * so readers never see a partial file.
+     *
+     * @param resultSetId      result set
+     * @param index            the index to store
+     * @param platformIds      the platforms of the result set
+     * @param platformVersions the version of the GENE2CS entries of each platform that was current before the index
+     *                         was read from the database
+     * @throws IOException if the file could not be written
+     */
+    void write( Long resultSetId, Index index, Collection<Long> platformIds, Map<Long, Date> platformVersions )
+            throws IOException {
+        if ( !directory.exists() && !directory.mkdirs() && !directory.exists() ) {
+            throw new IOException( "Could not create directory " + directory );
+        }
+
+        int size = index.size();
+        File file = this.getFile( resultSetId );
+        File tmp = File.createTempFile( file.getName(), ".tmp", directory );
+        try {
+            try (RandomAccessFile raf = new RandomAccessFile( tmp, "rw" ); FileChannel channel = raf.getChannel()) {
+                ByteBuffer buf = ByteBuffer.allocate( DiffExGeneIndexFileStore.HEADER_BYTES
+                        + platformIds.size() * DiffExGeneIndexFileStore.BYTES_PER_PLATFORM
+                        + size * DiffExGeneIndexFileStore.BYTES_PER_GENE );
+                buf.putInt( DiffExGeneIndexFileStore.MAGIC );
+                buf.putInt( DiffExGeneIndexFileStore.VERSION );
+                buf.putInt( platformIds.size() );
+                buf.putInt( size );
+                for ( Long platformId : platformIds ) {
+                    buf.putLong( platformId );
+                    buf.putLong( DiffExGeneIndexFileStore.toMillis( platformVersions.get( platformId ) ) );
+                }
+                for ( int i = 0; i < size; i++ ) {
+                    buf.putLong( index.getGeneId( i ) );
+                }
+                for ( int i = 0; i < size; i++ ) {
+                    buf.putLong( index.getResultId( i ) );
+                }
+                for ( int i = 0; i < size; i++ ) {
+                    buf.putDouble( index.getPvalue( i ) );
+                }
+                for ( int i = 0; i < size; i++ ) {
+                    buf.putDouble( index.getCorrectedPvalue( i ) );
+                }
+                for ( int i = 0; i < size; i++ ) {
+                    buf.putInt( index.getNumberOfProbes( i ) );
+                }
+                for ( int i = 0; i < size; i++ ) {
+                    buf.putInt( index.getNumberOfProbesDiffExpressed( i ) );
+                }
+                buf.flip();
+                while ( buf.hasRemaining() ) {
+                    channel.write( buf );
+                }
+            }
+            Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE );
+        } finally {
+            if ( tmp.exists() && !tmp.delete() ) {
+                DiffExGeneIndexFileStore.log.warn( "Could not remove " + tmp );
+            }
+        }
+    }
+
+    /**
+     * @param resultSetId result set whose file, if any, should be removed.
+     */
+    void remove( Long resultSetId ) {
+        File file = this.getFile( resultSetId );
+        if ( file.exists() && !file.delete() ) {
+            DiffExGeneIndexFileStore.log.warn( "Could not remove " + file );
+        }
+    }
+
+    /**
+     * @return the index made of the next bytes of buf, which hold the given number of genes.
+     */
+    private Index readGenes( ByteBuffer buf, int size ) {
+        LongBuffer geneIds = DiffExGeneIndexFileStore.slice( buf, size * Long.BYTES ).asLongBuffer();
+        LongBuffer resultIds = DiffExGeneIndexFileStore.slice( buf, size * Long.BYTES ).asLongBuffer();
+        DoubleBuffer pvalues = DiffExGeneIndexFileStore.slice( buf, size * Double.BYTES ).asDoubleBuffer();
+        DoubleBuffer correctedPvalues = DiffExGeneIndexFileStore.slice( buf, size * Double.BYTES ).asDoubleBuffer();
+        IntBuffer numProbes = DiffExGeneIndexFileStore.slice( buf, size * Integer.BYTES ).asIntBuffer();
+        IntBuffer numProbesDiffExpressed = DiffExGeneIndexFileStore.slice( buf, size * Integer.BYTES ).asIntBuffer();
+        return new Index( geneIds, resultIds, pvalues, correctedPvalues, numProbes, numProbesDiffExpressed );
+    }
+
+    private File getFile( Long resultSetId ) {
+        return new File( directory, "rs" + resultSetId + ".genes.bin" );
+    }
+
+    private static long toMillis( Date version ) {
+        return version == null ? -1L : version.getTime();
+    }
+
+    /**
+     * @return the next length bytes of buf, which is advanced past them.
+     */
+    private static ByteBuffer slice( ByteBuffer buf, int length ) {
+        ByteBuffer result = buf.slice();
+        result.limit( length );
+        buf.position( buf.position() + length );
+        return result;
+    }
+
+    /**
+     * The best result of each gene in one result set, ordered by gene id.
+     */
+    static class Index {
+
+        private final LongBuffer geneIds;
+        private final LongBuffer resultIds;
+        private final DoubleBuffer pvalues;
+        private final DoubleBuffer correctedPvalues;
+        private final IntBuffer numProbes;
+        private final IntBuffer numProbesDiffExpressed;
+
+        /**
+         * @param geneIds                sorted, without duplicates
+         * @param resultIds              the best result for each gene
+         * @param pvalues                p-value of the best result
+         * @param correctedPvalues       corrected p-value of the best result
+         * @param numProbes              how many probes for the gene had results
+         * @param numProbesDiffExpressed how many of those probes were under the corrected p-value threshold
+         */
+        Index( long[] geneIds, long[] resultIds, double[] pvalues, double[] correctedPvalues, int[] numProbes,
+                int[] numProbesDiffExpressed ) {
+            this( LongBuffer.wrap( geneIds ), LongBuffer.wrap( resultIds ), DoubleBuffer.wrap( pvalues ),
+                    DoubleBuffer.wrap( correctedPvalues ), IntBuffer.wrap( numProbes ),
+                    IntBuffer.wrap( numProbesDiffExpressed ) );
+            for ( int i = 1; i < geneIds.length; i++ ) {
+                if ( geneIds[i] <= geneIds[i - 1] ) {
+                    throw new IllegalArgumentException( "Gene ids must be sorted and distinct" );
+                }
+            }
+        }
+
+        private Index( LongBuffer geneIds, LongBuffer resultIds, DoubleBuffer pvalues, DoubleBuffer correctedPvalues,
+                IntBuffer numProbes, IntBuffer numProbesDiffExpressed ) {
+            if ( resultIds.limit() != geneIds.limit() || pvalues.limit() != geneIds.limit()
+                    || correctedPvalues.limit() != geneIds.limit() || numProbes.limit() != geneIds.limit()
+                    || numProbesDiffExpressed.limit() != geneIds.limit() ) {
+                throw new IllegalArgumentException( "Must have the same number of values for each gene" );
+            }
+            this.geneIds = geneIds;
+            this.resultIds = resultIds;
+            this.pvalues = pvalues;
+            this.correctedPvalues = correctedPvalues;
+            this.numProbes = numProbes;
+            this.numProbesDiffExpressed = numProbesDiffExpressed;
+        }
+
+        int size() {
+            return geneIds.limit();
+        }
+
+        /**
+         * @param geneId gene
+         * @return position of the gene, or -1 if it has no result.
+         */
+        int find( long geneId ) {
+            int low = 0;
+            int high = geneIds.limit() - 1;
+            while ( low <= high ) {
+                int mid = ( low + high ) >>> 1;
+                long midVal = geneIds.get( mid );
+                if ( midVal < geneId ) {
+                    low = mid + 1;
+                } else if ( midVal > geneId ) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        long getGeneId( int i ) {
+            return geneIds.get( i );
+        }
+
+        long getResultId( int i ) {
+            return resultIds.get( i );
+        }
+
+        double getPvalue( int i ) {
+            return pvalues.get( i );
+        }
+
+        double getCorrectedPvalue( int i ) {
+            return correctedPvalues.get( i );
+        }
+
+        int getNumberOfProbes( int i ) {
+            return numProbes.get( i );
+        }
+
+        int getNumberOfProbesDiffExpressed( int i ) {
+            return numProbesDiffExpressed.get( i );
+        }
+    }
+}
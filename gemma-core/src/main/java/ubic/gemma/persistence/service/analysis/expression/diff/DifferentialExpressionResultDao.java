@@ -79,11 +79,20 @@ public interface DifferentialExpressionResultDao extends BaseDao<DifferentialExp
     /**
      * @param  geneIds    gene ids
      * @param  resultSets result sets
-     * @return            map of resultSetId to map of gene to DiffExprGeneSearchResult
+     * @return            map of resultSetId to map of gene to DiffExprGeneSearchResult; partial if the search
+     *                    deadline (gemma.diffex.search.deadline) was reached.
      */
-    Map<Long, Map<Long, DiffExprGeneSearchResult>> findDiffExAnalysisResultIdsInResultSets(
+    DiffExprGeneSearchResults findDiffExAnalysisResultIdsInResultSets(
             Collection<DiffExResultSetSummaryValueObject> resultSets, Collection<Long> geneIds );
 
+    /**
+     * Rebuild the per-gene index of the results of the given result sets, if the index is in use
+     * (gemma.diffex.geneindex); otherwise does nothing.
+     *
+     * @param resultSetIds result sets whose results have been stored
+     */
+    void updateGeneIndex( Collection<Long> resultSetIds );
+
     List<Double> findGeneInResultSets( Gene gene, ExpressionAnalysisResultSet resultSet,
             Collection<Long> arrayDesignIds, Integer limit );
 
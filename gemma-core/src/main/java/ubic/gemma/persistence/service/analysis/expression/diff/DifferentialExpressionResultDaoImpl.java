@@ -18,10 +18,14 @@
  */
 package ubic.gemma.persistence.service.analysis.expression.diff;
 
+import cern.colt.list.DoubleArrayList;
+import cern.colt.list.IntArrayList;
+import cern.colt.list.LongArrayList;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.time.StopWatch;
 import org.hibernate.*;
 import org.hibernate.type.DoubleType;
+import org.hibernate.type.LongType;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.orm.hibernate3.HibernateTemplate;
 import org.springframework.stereotype.Repository;
@@ -36,12 +40,17 @@ import ubic.gemma.model.expression.experiment.*;
 import ubic.gemma.model.genome.Gene;
 import ubic.gemma.model.genome.gene.GeneValueObject;
 import ubic.gemma.persistence.service.AbstractDao;
+import ubic.gemma.persistence.service.TableMaintenanceUtilImpl;
 import ubic.gemma.persistence.util.CommonQueries;
 import ubic.gemma.persistence.util.EntityUtils;
+import ubic.gemma.persistence.util.Settings;
+import ubic.gemma.persistence.util.SharedExecutors;
 import ubic.gemma.persistence.util.TaskCancelledException;
 
+import java.io.IOException;
 import java.math.BigInteger;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * This is a key class for queries to retrieve differential expression results (as well as standard CRUD aspects of
@@ -57,6 +66,40 @@ public class DifferentialExpressionResultDaoImpl extends AbstractDao<Differentia
      * Temporary. For mimicing the effect of storing only 'significant' results.
      */
     private static final Double CORRECTED_PVALUE_THRESHOLD_TO_BE_CONSIDERED_DIFF_EX = 1.0;
+
+    /**
+     * Whether searches for genes across result sets are answered from the per-result set gene index files (see
+     * {@link DiffExGeneIndexFileStore}) rather than by querying the results table.
+     */
+    private static final boolean USE_GENE_INDEX = Settings.getBoolean( "gemma.diffex.geneindex", false );
+
+    /**
+     * How many batches of a search for genes across result sets are queried at once, each on its own session. 1 means
+     * the batches are queried one after the other on the caller's session.
+     */
+    private static final int SEARCH_THREADS = Settings.getInt( "gemma.diffex.search.threads", 1 );
+
+    /**
+     * Time allowed for querying the database in a search for genes across result sets, in seconds; when it is up, the
+     * result sets done so far are returned. 0 means no limit.
+     */
+    private static final int SEARCH_DEADLINE_SECONDS = Settings.getInt( "gemma.diffex.search.deadline", 0 );
+
+    /*
+     * The results for each gene in a result set, best first; used to build the gene index.
+     */
+    private static final String fetchGeneIndexByResultSetQuery = "SELECT g2s.GENE, dear.ID, dear.PVALUE, dear.CORRECTED_PVALUE"
+            + " FROM DIFFERENTIAL_EXPRESSION_ANALYSIS_RESULT dear INNER JOIN GENE2CS g2s ON g2s.CS = dear.PROBE_FK"
+            + " WHERE dear.RESULT_SET_FK = :rs_id AND dear.PVALUE IS NOT NULL AND dear.CORRECTED_PVALUE IS NOT NULL"
+            + " ORDER BY g2s.GENE, dear.CORRECTED_PVALUE, dear.ID";
+
+    /*
+     * The platforms of a result set, whose GENE2CS entries the gene index depends on.
+     */
+    private static final String fetchPlatformsByResultSetQuery = "SELECT DISTINCT cs.ARRAY_DESIGN_FK"
+            + " FROM DIFFERENTIAL_EXPRESSION_ANALYSIS_RESULT dear"
+            + " INNER JOIN COMPOSITE_SEQUENCE cs ON cs.ID = dear.PROBE_FK WHERE dear.RESULT_SET_FK = :rs_id";
+
     /*
      * This is a key query: get all results for a set of genes in a set of resultssets (basically, experiments)
      */
@@ -112,6 +155,12 @@ public class DifferentialExpressionResultDaoImpl extends AbstractDao<Differentia
 
     private final DifferentialExpressionResultCache differentialExpressionResultCache;
 
+    private final DiffExGeneIndexFileStore geneIndexFileStore = new DiffExGeneIndexFileStore();
+
+    private int searchThreads = DifferentialExpressionResultDaoImpl.SEARCH_THREADS;
+
+    private int searchDeadlineSeconds = DifferentialExpressionResultDaoImpl.SEARCH_DEADLINE_SECONDS;
+
     @Autowired
     public DifferentialExpressionResultDaoImpl( SessionFactory sessionFactory,
             DifferentialExpressionResultCache differentialExpressionResultCache ) {
@@ -296,7 +345,7 @@ public class DifferentialExpressionResultDaoImpl extends AbstractDao<Differentia
     }
 
     @Override
-    public Map<Long, Map<Long, DiffExprGeneSearchResult>> findDiffExAnalysisResultIdsInResultSets(
+    public DiffExprGeneSearchResults findDiffExAnalysisResultIdsInResultSets(
             Collection<DiffExResultSetSummaryValueObject> resultSets, Collection<Long> geneIds ) {
 
         Map<Long, Map<Long, DiffExprGeneSearchResult>> results = new HashMap<>();
@@ -320,7 +369,7 @@ public class DifferentialExpressionResultDaoImpl extends AbstractDao<Differentia
         // Are we finished?
         if ( resultSetsNeeded.isEmpty() ) {
             AbstractDao.log.info( "All results were in the cache." );
-            return results;
+            return new DiffExprGeneSearchResults( results );
         }
 
         AbstractDao.log.info( foundInCache.size() + "/" + resultSetIdsMap.size()
@@ -328,8 +377,14 @@ public class DifferentialExpressionResultDaoImpl extends AbstractDao<Differentia
 
         assert !resultSetsNeeded.isEmpty();
 
-        org.hibernate.SQLQuery queryObject = session.createSQLQuery(
-                DifferentialExpressionResultDaoImpl.fetchBatchDifferentialExpressionAnalysisResultsByResultSetsAndGeneQuery );
+        if ( DifferentialExpressionResultDaoImpl.USE_GENE_INDEX ) {
+            Map<Long, Map<Long, DiffExprGeneSearchResult>> resultsFromIndex = this
+                    .findInGeneIndex( session, resultSetsNeeded, geneIds );
+            // reading the index is cheap, but the cache also saves building indexes that are missing or out of date.
+            this.addToCache( resultsFromIndex, resultSetsNeeded, geneIds );
+            this.addResults( results, resultsFromIndex );
+            return new DiffExprGeneSearchResults( results );
+        }
 
         /*
          * These values have been tweaked to probe for performance issues.
@@ -349,9 +404,83 @@ public class DifferentialExpressionResultDaoImpl extends AbstractDao<Differentia
                     + " resultSets; batch size=" + geneBatchSize );
         }
 
-        final int numResultSetBatches = ( int ) Math.ceil( resultSetsNeeded.size() / resultSetBatchSize );
+        long deadline = searchDeadlineSeconds > 0 ?
+                System.currentTimeMillis() + 1000L * searchDeadlineSeconds :
+                Long.MAX_VALUE;
+        Collection<Long> resultSetsSearched = new HashSet<>();
 
-        queryObject.setFlushMode( FlushMode.MANUAL );
+        Map<Long, Map<Long, DiffExprGeneSearchResult>> resultsFromDb;
+        if ( searchThreads > 1 ) {
+            resultsFromDb = this
+                    .fetchResultsConcurrently( session, resultSetsNeeded, geneIds, resultSetIdsMap, resultSetBatchSize,
+                            geneBatchSize, deadline, resultSetsSearched );
+        } else {
+            resultsFromDb = this
+                    .fetchResults( session, resultSetsNeeded, geneIds, resultSetIdsMap, resultSetBatchSize,
+                            geneBatchSize, deadline, resultSetsSearched );
+        }
+
+        // Results for result sets that were only partly searched are left out.
+        Collection<Long> resultSetsNotSearched = new HashSet<>( resultSetsNeeded );
+        resultSetsNotSearched.removeAll( resultSetsSearched );
+        resultsFromDb.keySet().retainAll( resultSetsSearched );
+        if ( !resultSetsNotSearched.isEmpty() ) {
+            AbstractDao.log.warn( "Search deadline reached, " + resultSetsNotSearched.size() + "/" + resultSetsNeeded
+                    .size() + " result sets were not searched" );
+        }
+
+        // Add the DB results to the cached results.
+        this.addToCache( resultsFromDb, resultSetsSearched, geneIds );
+        this.addResults( results, resultsFromDb );
+
+        return new DiffExprGeneSearchResults( results, resultSetsNotSearched );
+    }
+
+    @Override
+    public void updateGeneIndex( Collection<Long> resultSetIds ) {
+        if ( !DifferentialExpressionResultDaoImpl.USE_GENE_INDEX ) {
+            return;
+        }
+        Session session = this.getSessionFactory().getCurrentSession();
+        Map<Long, Date> platformVersions = TableMaintenanceUtilImpl.getGene2CsPlatformVersions();
+        for ( Long resultSetId : resultSetIds ) {
+            this.buildGeneIndex( session, resultSetId, platformVersions );
+            // searches look in the cache before the index.
+            this.differentialExpressionResultCache.clearCache( resultSetId );
+        }
+    }
+
+    /**
+     * For tests.
+     *
+     * @param searchThreads how many batches of a search are queried at once
+     */
+    void setSearchThreads( int searchThreads ) {
+        this.searchThreads = searchThreads;
+    }
+
+    /**
+     * For tests.
+     *
+     * @param searchDeadlineSeconds time allowed for the queries of a search, or 0 for no limit
+     */
+    void setSearchDeadlineSeconds( int searchDeadlineSeconds ) {
+        this.searchDeadlineSeconds = searchDeadlineSeconds;
+    }
+
+    /**
+     * Query the results for the genes in the result sets, one batch after the other, on the given session.
+     *
+     * @param deadline           time (in ms) after which no more batches are started, and any running is stopped
+     * @param resultSetsSearched to which result sets whose batches were all done are added
+     * @return map of result set ids to map of gene ids to results
+     */
+    private Map<Long, Map<Long, DiffExprGeneSearchResult>> fetchResults( Session session,
+            Collection<Long> resultSetsNeeded, Collection<Long> geneIds,
+            Map<Long, DiffExResultSetSummaryValueObject> resultSetIdsMap, int resultSetBatchSize, int geneBatchSize,
+            long deadline, Collection<Long> resultSetsSearched ) {
+
+        final int numResultSetBatches = ( int ) Math.ceil( resultSetsNeeded.size() / resultSetBatchSize );
 
         StopWatch timer = new StopWatch();
         timer.start();
@@ -361,10 +490,16 @@ public class DifferentialExpressionResultDaoImpl extends AbstractDao<Differentia
         Map<Long, Map<Long, DiffExprGeneSearchResult>> resultsFromDb = new HashMap<>();
 
         int numResultSetBatchesDone = 0;
+        boolean timedOut = false;
 
         // Iterate over batches of resultSets
         for ( Collection<Long> resultSetIdBatch : new BatchIterator<>( resultSetsNeeded, resultSetBatchSize ) ) {
 
+            if ( System.currentTimeMillis() > deadline ) {
+                timedOut = true;
+                break;
+            }
+
             if ( AbstractDao.log.isDebugEnabled() )
                 AbstractDao.log.debug( "Starting batch of resultsets: " + StringUtils
                         .abbreviate( StringUtils.join( resultSetIdBatch, "," ), 100 ) );
@@ -376,8 +511,6 @@ public class DifferentialExpressionResultDaoImpl extends AbstractDao<Differentia
             Map<Long, Collection<Long>> cs2GeneIdMap = this
                     .getProbesForGenesInResultSetBatch( session, geneIds, resultSetIdsMap, resultSetIdBatch );
 
-            queryObject.setParameterList( "rs_ids", resultSetIdBatch );
-
             int numGeneBatchesDone = 0;
             final int numGeneBatches = ( int ) Math.ceil( cs2GeneIdMap.size() / geneBatchSize );
 
@@ -386,6 +519,11 @@ public class DifferentialExpressionResultDaoImpl extends AbstractDao<Differentia
             // iterate over batches of probes (genes)
             for ( Collection<Long> probeBatch : new BatchIterator<>( cs2GeneIdMap.keySet(), geneBatchSize ) ) {
 
+                if ( System.currentTimeMillis() > deadline ) {
+                    timedOut = true;
+                    break;
+                }
+
                 if ( AbstractDao.log.isDebugEnabled() )
                     AbstractDao.log.debug( "Starting batch of probes: " + StringUtils
                             .abbreviate( StringUtils.join( probeBatch, "," ), 100 ) );
@@ -394,15 +532,25 @@ public class DifferentialExpressionResultDaoImpl extends AbstractDao<Differentia
                 List<Long> pbL = new Vector<>( probeBatch );
                 Collections.sort( pbL );
 
-                queryObject.setParameterList( "probe_ids", pbL );
-
                 innerQt.start();
-                List<?> queryResult = queryObject.list();
-                innerQt.stop();
+                List<?> queryResult;
+                try {
+                    queryResult = this.queryProbeBatch( session, resultSetIdBatch, pbL, deadline );
+                } catch ( HibernateException e ) {
+                    if ( System.currentTimeMillis() < deadline ) {
+                        throw e;
+                    }
+                    // stopped by its timeout
+                    timedOut = true;
+                    break;
+                } finally {
+                    innerQt.stop();
+                }
 
                 if ( innerQt.getTime() > 2000 ) {
                     // show the actual query with params.
-                    AbstractDao.log.info( "Query time: " + innerQt.getTime() + "ms:\n " + queryObject.getQueryString()
+                    AbstractDao.log.info( "Query time: " + innerQt.getTime() + "ms:\n "
+                            + DifferentialExpressionResultDaoImpl.fetchBatchDifferentialExpressionAnalysisResultsByResultSetsAndGeneQuery
                             .replace( ":probe_ids", StringUtils.join( probeBatch, "," ) )
                             .replace( ":rs_ids", StringUtils.join( resultSetIdBatch, "," ) ) );
                 }
@@ -445,6 +593,11 @@ public class DifferentialExpressionResultDaoImpl extends AbstractDao<Differentia
                 throw new TaskCancelledException( "Search was cancelled" );
             }
 
+            if ( timedOut ) {
+                break;
+            }
+
+            resultSetsSearched.addAll( resultSetIdBatch );
             numResultSetBatchesDone++;
 
         }
@@ -460,19 +613,125 @@ public class DifferentialExpressionResultDaoImpl extends AbstractDao<Differentia
             }
         }
 
-        // Add the DB results to the cached results.
-        this.addToCache( resultsFromDb, resultSetsNeeded, geneIds );
+        return resultsFromDb;
+    }
 
-        for ( Long resultSetId : resultsFromDb.keySet() ) {
-            Map<Long, DiffExprGeneSearchResult> geneResults = resultsFromDb.get( resultSetId );
-            if ( results.containsKey( resultSetId ) ) {
-                results.get( resultSetId ).putAll( geneResults );
-            } else {
-                results.put( resultSetId, geneResults );
+    /**
+     * Query the results for the genes in the result sets, running the batches concurrently (each on its own read-only
+     * session) and merging their results as they arrive. The probes for each batch of result sets are looked up on the
+     * given session.
+     *
+     * @param deadline           time (in ms) after which we stop waiting for batches; any still running are cancelled
+     * @param resultSetsSearched to which result sets whose batches were all done are added
+     * @return map of result set ids to map of gene ids to results
+     */
+    private Map<Long, Map<Long, DiffExprGeneSearchResult>> fetchResultsConcurrently( Session session,
+            Collection<Long> resultSetsNeeded, Collection<Long> geneIds,
+            Map<Long, DiffExResultSetSummaryValueObject> resultSetIdsMap, int resultSetBatchSize, int geneBatchSize,
+            long deadline, Collection<Long> resultSetsSearched ) {
+
+        StopWatch timer = new StopWatch();
+        timer.start();
+        int numResults = 0;
+
+        Map<Long, Map<Long, DiffExprGeneSearchResult>> resultsFromDb = new HashMap<>();
+
+        CompletionService<ProbeBatchQuery> completionService = new ExecutorCompletionService<>(
+                this.getSearchExecutor() );
+        Collection<Future<ProbeBatchQuery>> pending = new HashSet<>();
+
+        // number of probe batches not yet done, for each batch of result sets.
+        Map<Collection<Long>, Integer> numProbeBatchesLeft = new IdentityHashMap<>();
+
+        try {
+            for ( Collection<Long> batch : new BatchIterator<>( resultSetsNeeded, resultSetBatchSize ) ) {
+                if ( Thread.currentThread().isInterrupted() ) {
+                    throw new TaskCancelledException( "Search was cancelled" );
+                }
+                if ( System.currentTimeMillis() > deadline ) {
+                    break;
+                }
+
+                // shared by the queries for the batch, and used as its key.
+                Collection<Long> resultSetIdBatch = new ArrayList<>( batch );
+
+                Map<Long, Collection<Long>> cs2GeneIdMap = this
+                        .getProbesForGenesInResultSetBatch( session, geneIds, resultSetIdsMap, resultSetIdBatch );
+                if ( cs2GeneIdMap.isEmpty() ) {
+                    resultSetsSearched.addAll( resultSetIdBatch );
+                    continue;
+                }
+
+                int numProbeBatches = 0;
+                for ( Collection<Long> probeBatch : new BatchIterator<>( cs2GeneIdMap.keySet(), geneBatchSize ) ) {
+                    List<Long> pbL = new ArrayList<>( probeBatch );
+                    Collections.sort( pbL );
+                    pending.add( completionService
+                            .submit( new ProbeBatchQuery( resultSetIdBatch, pbL, cs2GeneIdMap, deadline ) ) );
+                    numProbeBatches++;
+                }
+                numProbeBatchesLeft.put( resultSetIdBatch, numProbeBatches );
+            }
+
+            while ( !pending.isEmpty() ) {
+                Future<ProbeBatchQuery> future;
+                if ( deadline == Long.MAX_VALUE ) {
+                    future = completionService.take();
+                } else {
+                    future = completionService.poll( deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS );
+                    if ( future == null ) {
+                        break;
+                    }
+                }
+                pending.remove( future );
+
+                ProbeBatchQuery done;
+                try {
+                    done = future.get();
+                } catch ( ExecutionException e ) {
+                    if ( e.getCause() instanceof HibernateException && System.currentTimeMillis() >= deadline ) {
+                        break; // stopped by its timeout
+                    }
+                    if ( e.getCause() instanceof RuntimeException ) {
+                        throw ( RuntimeException ) e.getCause();
+                    }
+                    throw new RuntimeException( e.getCause() );
+                }
+
+                /*
+                 * Each query tuple are the probe, result, resultsSet, qvalue, pvalue.
+                 */
+                for ( Object o : done.getRows() ) {
+                    numResults += this.processResultTuple( o, resultsFromDb, done.cs2GeneIdMap );
+                }
+
+                if ( DifferentialExpressionResultDaoImpl.CORRECTED_PVALUE_THRESHOLD_TO_BE_CONSIDERED_DIFF_EX < 1.0 ) {
+                    this.fillNonSignificant( done.probeIds, resultSetIdsMap, resultsFromDb, done.resultSetIdBatch,
+                            done.cs2GeneIdMap, session );
+                }
+
+                int left = numProbeBatchesLeft.get( done.resultSetIdBatch ) - 1;
+                numProbeBatchesLeft.put( done.resultSetIdBatch, left );
+                if ( left == 0 ) {
+                    resultSetsSearched.addAll( done.resultSetIdBatch );
+                }
+            }
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new TaskCancelledException( "Search was cancelled" );
+        } finally {
+            for ( Future<ProbeBatchQuery> future : pending ) {
+                future.cancel( true );
             }
         }
 
-        return results;
+        if ( timer.getTime() > 1000 && AbstractDao.log.isInfoEnabled() ) {
+            AbstractDao.log.info( "Fetching DiffEx from DB with " + searchThreads
+                    + " threads took total of " + timer.getTime() + " ms; " + numResults + " results for "
+                    + resultSetsSearched.size() + "/" + resultSetsNeeded.size() + " result sets" );
+        }
+
+        return resultsFromDb;
     }
 
     @Override
@@ -1054,6 +1313,21 @@ public class DifferentialExpressionResultDaoImpl extends AbstractDao<Differentia
         return 1;
     }
 
+    /**
+     * Add results found in the database or the gene index to those found in the cache.
+     */
+    private void addResults( Map<Long, Map<Long, DiffExprGeneSearchResult>> results,
+            Map<Long, Map<Long, DiffExprGeneSearchResult>> found ) {
+        for ( Long resultSetId : found.keySet() ) {
+            Map<Long, DiffExprGeneSearchResult> geneResults = found.get( resultSetId );
+            if ( results.containsKey( resultSetId ) ) {
+                results.get( resultSetId ).putAll( geneResults );
+            } else {
+                results.put( resultSetId, geneResults );
+            }
+        }
+    }
+
     /**
      * This is to be called after a query for diff ex results is finished for a set of resultSets and genes. It assumes
      * that if a gene is missing from the results, there are none for that resultSet for that gene. It then stores a
@@ -1180,7 +1454,7 @@ public class DifferentialExpressionResultDaoImpl extends AbstractDao<Differentia
     /**
      * @return map of probe to genes.
      */
-    private Map<Long, Collection<Long>> getProbesForGenesInResultSetBatch( Session session, Collection<Long> geneIds,
+    Map<Long, Collection<Long>> getProbesForGenesInResultSetBatch( Session session, Collection<Long> geneIds,
             Map<Long, DiffExResultSetSummaryValueObject> resultSetIds, Collection<Long> resultSetIdBatch ) {
         Collection<Long> adUsed = new HashSet<>();
         for ( Long rsid : resultSetIdBatch ) {
@@ -1225,6 +1499,177 @@ public class DifferentialExpressionResultDaoImpl extends AbstractDao<Differentia
         }
     }
 
+    /**
+     * Query for the results of one batch of probes in one batch of result sets.
+     *
+     * @param  deadline time (in ms) after which the query is stopped, or Long.MAX_VALUE
+     * @return rows of probe, result, result set, corrected p-value and p-value
+     */
+    List<?> queryProbeBatch( Session session, Collection<Long> resultSetIdBatch, List<Long> probeIds,
+            long deadline ) {
+        SQLQuery queryObject = session.createSQLQuery(
+                DifferentialExpressionResultDaoImpl.fetchBatchDifferentialExpressionAnalysisResultsByResultSetsAndGeneQuery );
+        queryObject.setFlushMode( FlushMode.MANUAL );
+        queryObject.setParameterList( "rs_ids", resultSetIdBatch );
+        queryObject.setParameterList( "probe_ids", probeIds );
+        if ( deadline < Long.MAX_VALUE ) {
+            // don't leave the query running once we have stopped waiting for it.
+            long timeLeft = deadline - System.currentTimeMillis();
+            queryObject.setTimeout( ( int ) Math.max( 1, ( timeLeft + 999 ) / 1000 ) );
+        }
+        return queryObject.list();
+    }
+
+    /**
+     * The queries mostly wait on the database, so they get their own pool rather than the compute one. It is shared by
+     * all searches, which bounds the number of sessions (and connections) they hold at once. It is sized when first
+     * used, from the number of batches queried at once.
+     */
+    ExecutorService getSearchExecutor() {
+        return SharedExecutors.getExecutor( "diffex-search", searchThreads );
+    }
+
+    /**
+     * Read the best result of each gene in a result set from the results table, and store it in the index. As when
+     * querying the results table, genes whose best result is over the corrected p-value threshold are left out; the
+     * others have all their probes counted, and those under the threshold counted as differentially expressed.
+     *
+     * @param platformVersions the versions of the GENE2CS entries of each platform, read before GENE2CS is queried so
+     *                         the index is out of date if they are regenerated meanwhile
+     * @return the index; if it could not be stored, it is still returned.
+     */
+    private DiffExGeneIndexFileStore.Index buildGeneIndex( Session session, Long resultSetId,
+            Map<Long, Date> platformVersions ) {
+        StopWatch timer = new StopWatch();
+        timer.start();
+
+        Collection<Long> platformIds = new ArrayList<>();
+        for ( Object id : session.createSQLQuery( DifferentialExpressionResultDaoImpl.fetchPlatformsByResultSetQuery )
+                .setLong( "rs_id", resultSetId ).setFlushMode( FlushMode.MANUAL ).list() ) {
+            platformIds.add( ( ( Number ) id ).longValue() );
+        }
+
+        org.hibernate.SQLQuery queryObject = session
+                .createSQLQuery( DifferentialExpressionResultDaoImpl.fetchGeneIndexByResultSetQuery );
+        queryObject.setLong( "rs_id", resultSetId );
+        queryObject.addScalar( "GENE", new LongType() );
+        queryObject.addScalar( "ID", new LongType() );
+        queryObject.addScalar( "PVALUE", new DoubleType() );
+        queryObject.addScalar( "CORRECTED_PVALUE", new DoubleType() );
+        queryObject.setFlushMode( FlushMode.MANUAL );
+
+        LongArrayList geneIds = new LongArrayList();
+        LongArrayList resultIds = new LongArrayList();
+        DoubleArrayList pvalues = new DoubleArrayList();
+        DoubleArrayList correctedPvalues = new DoubleArrayList();
+        IntArrayList numProbes = new IntArrayList();
+        IntArrayList numProbesDiffExpressed = new IntArrayList();
+
+        ScrollableResults scroll = queryObject.scroll( ScrollMode.FORWARD_ONLY );
+        try {
+            while ( scroll.next() ) {
+                long geneId = scroll.getLong( 0 );
+                double correctedPvalue = scroll.getDouble( 3 );
+                boolean diffExpressed = correctedPvalue
+                        <= DifferentialExpressionResultDaoImpl.CORRECTED_PVALUE_THRESHOLD_TO_BE_CONSIDERED_DIFF_EX;
+                int last = geneIds.size() - 1;
+                if ( last >= 0 && geneIds.getQuick( last ) == geneId ) {
+                    // rows for a gene are sorted best first, so we only count the others.
+                    numProbes.setQuick( last, numProbes.getQuick( last ) + 1 );
+                    if ( diffExpressed ) {
+                        numProbesDiffExpressed.setQuick( last, numProbesDiffExpressed.getQuick( last ) + 1 );
+                    }
+                    continue;
+                }
+                if ( !diffExpressed ) {
+                    // the best is over the threshold, so are the gene's other rows, which come here too.
+                    continue;
+                }
+                geneIds.add( geneId );
+                resultIds.add( scroll.getLong( 1 ) );
+                pvalues.add( scroll.getDouble( 2 ) );
+                correctedPvalues.add( correctedPvalue );
+                numProbes.add( 1 );
+                numProbesDiffExpressed.add( 1 );
+            }
+        } finally {
+            scroll.close();
+        }
+
+        geneIds.trimToSize();
+        resultIds.trimToSize();
+        pvalues.trimToSize();
+        correctedPvalues.trimToSize();
+        numProbes.trimToSize();
+        numProbesDiffExpressed.trimToSize();
+        DiffExGeneIndexFileStore.Index index = new DiffExGeneIndexFileStore.Index( geneIds.elements(),
+                resultIds.elements(), pvalues.elements(), correctedPvalues.elements(), numProbes.elements(),
+                numProbesDiffExpressed.elements() );
+
+        try {
+            this.geneIndexFileStore.write( resultSetId, index, platformIds, platformVersions );
+        } catch ( IOException e ) {
+            AbstractDao.log.warn( "Could not store gene index for result set " + resultSetId + ": " + e.getMessage() );
+        }
+
+        if ( timer.getTime() > 1000 ) {
+            AbstractDao.log.info( "Built gene index for result set " + resultSetId + " (" + index.size() + " genes) in "
+                    + timer.getTime() + "ms" );
+        }
+        return index;
+    }
+
+    /**
+     * Answer a search for genes in result sets from the gene index, building the index for result sets that don't
+     * have an up to date one. Genes without results in a result set are left out, as when querying the database.
+     */
+    private Map<Long, Map<Long, DiffExprGeneSearchResult>> findInGeneIndex( Session session,
+            Collection<Long> resultSetIds, Collection<Long> geneIds ) {
+        StopWatch timer = new StopWatch();
+        timer.start();
+
+        // indexes are derived from GENE2CS, so are stale once the entries for their platforms are regenerated.
+        Map<Long, Date> platformVersions = TableMaintenanceUtilImpl.getGene2CsPlatformVersions();
+
+        Map<Long, Map<Long, DiffExprGeneSearchResult>> results = new HashMap<>();
+        int numBuilt = 0;
+        for ( Long resultSetId : resultSetIds ) {
+            if ( Thread.currentThread().isInterrupted() ) {
+                throw new TaskCancelledException( "Search was cancelled" );
+            }
+
+            DiffExGeneIndexFileStore.Index index = this.geneIndexFileStore.read( resultSetId, platformVersions );
+            if ( index == null ) {
+                index = this.buildGeneIndex( session, resultSetId, platformVersions );
+                numBuilt++;
+            }
+
+            Map<Long, DiffExprGeneSearchResult> geneResults = new HashMap<>();
+            for ( Long geneId : geneIds ) {
+                int i = index.find( geneId );
+                if ( i < 0 ) {
+                    continue;
+                }
+                DiffExprGeneSearchResult r = new DiffExprGeneSearchResult( resultSetId, geneId );
+                r.setResultId( index.getResultId( i ) );
+                r.setPvalue( index.getPvalue( i ) );
+                r.setCorrectedPvalue( index.getCorrectedPvalue( i ) );
+                r.setNumberOfProbes( index.getNumberOfProbes( i ) );
+                r.setNumberOfProbesDiffExpressed( index.getNumberOfProbesDiffExpressed( i ) );
+                geneResults.put( geneId, r );
+            }
+            if ( !geneResults.isEmpty() ) {
+                results.put( resultSetId, geneResults );
+            }
+        }
+
+        if ( timer.getTime() > 1000 ) {
+            AbstractDao.log.info( "Searched " + geneIds.size() + " genes in " + resultSetIds.size() + " result sets ("
+                    + numBuilt + " indexes built) in " + timer.getTime() + "ms" );
+        }
+        return results;
+    }
+
     /**
      * Identify resultSets that are still need to be queried. Those would be the ones which don't have information for
      * all the genes requested in the cache. Note that those results could be 'dummies' that are represent missing
@@ -1248,4 +1693,42 @@ public class DifferentialExpressionResultDaoImpl extends AbstractDao<Differentia
         }
         return needToQuery;
     }
-}
\ No newline at end of file
+
+    /**
+     * Query for the results of one batch of probes in one batch of result sets, on its own read-only session.
+     */
+    private class ProbeBatchQuery implements Callable<ProbeBatchQuery> {
+
+        private final Collection<Long> resultSetIdBatch;
+        private final List<Long> probeIds;
+        private final Map<Long, Collection<Long>> cs2GeneIdMap;
+        private final long deadline;
+        private List<?> rows;
+
+        private ProbeBatchQuery( Collection<Long> resultSetIdBatch, List<Long> probeIds,
+                Map<Long, Collection<Long>> cs2GeneIdMap, long deadline ) {
+            this.resultSetIdBatch = resultSetIdBatch;
+            this.probeIds = probeIds;
+            this.cs2GeneIdMap = cs2GeneIdMap;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public ProbeBatchQuery call() {
+            Session session = DifferentialExpressionResultDaoImpl.this.getSessionFactory().openSession();
+            try {
+                session.setDefaultReadOnly( true );
+                session.setFlushMode( FlushMode.MANUAL );
+                rows = DifferentialExpressionResultDaoImpl.this
+                        .queryProbeBatch( session, resultSetIdBatch, probeIds, deadline );
+            } finally {
+                session.close();
+            }
+            return this;
+        }
+
+        private List<?> getRows() {
+            return rows;
+        }
+    }
+}
@@ -107,11 +107,20 @@ public interface DifferentialExpressionResultService extends BaseService<Differe
      *
      * @param geneIds    gene ids
      * @param resultSets result sets
-     * @return map of resultset IDs to map of gene id to differential expression results.
+     * @return map of resultset IDs to map of gene id to differential expression results. If the search took too
+     *         long, some result sets are left out and the results are flagged as partial.
      */
-    Map<Long, Map<Long, DiffExprGeneSearchResult>> findDiffExAnalysisResultIdsInResultSets(
+    DiffExprGeneSearchResults findDiffExAnalysisResultIdsInResultSets(
             Collection<DiffExResultSetSummaryValueObject> resultSets, Collection<Long> geneIds );
 
+    /**
+     * Rebuild the per-gene index used by {@link #findDiffExAnalysisResultIdsInResultSets(Collection, Collection)}, if
+     * it is enabled. To be called once the results of the result sets have been stored.
+     *
+     * @param resultSets result sets
+     */
+    void updateGeneIndex( Collection<ExpressionAnalysisResultSet> resultSets );
+
     List<Double> findGeneInResultSet( Gene gene, ExpressionAnalysisResultSet resultSet, Collection<Long> arrayDesignIds,
             Integer limit );
 
@@ -28,6 +28,7 @@ import ubic.gemma.model.expression.experiment.ExperimentalFactor;
 import ubic.gemma.model.expression.experiment.ExpressionExperimentValueObject;
 import ubic.gemma.model.genome.Gene;
 import ubic.gemma.persistence.service.AbstractService;
+import ubic.gemma.persistence.util.EntityUtils;
 
 import java.util.Collection;
 import java.util.List;
@@ -88,11 +89,17 @@ public class DifferentialExpressionResultServiceImpl extends AbstractService<Dif
 
     @Override
     @Transactional(readOnly = true)
-    public Map<Long, Map<Long, DiffExprGeneSearchResult>> findDiffExAnalysisResultIdsInResultSets(
+    public DiffExprGeneSearchResults findDiffExAnalysisResultIdsInResultSets(
             Collection<DiffExResultSetSummaryValueObject> resultSets, Collection<Long> geneIds ) {
         return this.DERDao.findDiffExAnalysisResultIdsInResultSets( resultSets, geneIds );
     }
 
+    @Override
+    @Transactional(readOnly = true)
+    public void updateGeneIndex( Collection<ExpressionAnalysisResultSet> resultSets ) {
+        this.DERDao.updateGeneIndex( EntityUtils.getIds( resultSets ) );
+    }
+
     @Override
     @Transactional(readOnly = true)
     public List<Double> findGeneInResultSet( Gene gene, ExpressionAnalysisResultSet resultSet,
@@ -48,6 +48,8 @@ import java.util.stream.Collectors;
 public class ExpressionAnalysisResultSetDaoImpl extends AbstractDao<ExpressionAnalysisResultSet>
         implements ExpressionAnalysisResultSetDao {
 
+    private final DiffExGeneIndexFileStore geneIndexFileStore = new DiffExGeneIndexFileStore();
+
     @Autowired
     public ExpressionAnalysisResultSetDaoImpl( SessionFactory sessionFactory ) {
         super( ExpressionAnalysisResultSet.class, sessionFactory );
@@ -191,8 +193,10 @@ public class ExpressionAnalysisResultSetDaoImpl extends AbstractDao<ExpressionAn
 
         // Remove result set
         AbstractDao.log.info( "Removing result set " + resultSet.getId() );
+        Long resultSetId = resultSet.getId();
         super.remove( resultSet );
         this.getSessionFactory().getCurrentSession().flush();
+        this.geneIndexFileStore.remove( resultSetId );
     }
 
     @Override
@@ -25,11 +25,11 @@ import ubic.basecode.dataStructure.matrix.DoubleMatrix;
 import ubic.basecode.dataStructure.matrix.ObjectMatrix;
 import ubic.basecode.io.ByteArrayConverter;
 import ubic.basecode.math.MatrixRowStats;
-import ubic.basecode.math.MatrixStats;
 import ubic.basecode.math.linearmodels.DesignMatrix;
 import ubic.basecode.math.linearmodels.LeastSquaresFit;
 import ubic.gemma.core.analysis.expression.diff.DifferentialExpressionAnalysisConfig;
 import ubic.gemma.core.analysis.expression.diff.LinearModelAnalyzer;
+import ubic.gemma.core.analysis.preprocess.SampleCorrelationMatrix;
 import ubic.gemma.core.analysis.preprocess.filter.FilterConfig;
 import ubic.gemma.core.analysis.preprocess.svd.SVDServiceHelper;
 import ubic.gemma.core.analysis.service.ExpressionDataMatrixService;
@@ -218,31 +218,25 @@ public class SampleCoexpressionAnalysisServiceImpl implements SampleCoexpression
             return null;
         }
 
-        DoubleMatrix<BioAssay, BioAssay> cormat = this.dataToDoubleMat( mat );
+        SampleCorrelationMatrix cormat = this.dataToCorrelationMatrix( mat );
         // Check consistency
         BioAssayDimension bestBioAssayDimension = mat.getBestBioAssayDimension();
-        if ( cormat.rows() != bestBioAssayDimension.getBioAssays().size() ) {
+        if ( cormat.size() != bestBioAssayDimension.getBioAssays().size() ) {
             throw new IllegalStateException(
                     String.format( SampleCoexpressionAnalysisServiceImpl.MSG_ERR_BIOASSAY_MISMATCH,
-                            bestBioAssayDimension.getBioAssays().size(), cormat.rows() ) );
+                            bestBioAssayDimension.getBioAssays().size(), cormat.size() ) );
         }
 
-        return new SampleCoexpressionMatrix( bestBioAssayDimension,
-                SampleCoexpressionAnalysisServiceImpl.bac.doubleMatrixToBytes( cormat.getRawMatrix() ) );
+        // stored in full, as doubles, as before.
+        return new SampleCoexpressionMatrix( bestBioAssayDimension, cormat.toBytes() );
     }
 
-    private DoubleMatrix<BioAssay, BioAssay> dataToDoubleMat( ExpressionDataDoubleMatrix matrix ) {
-
-        DoubleMatrix<BioMaterial, CompositeSequence> transposeR = matrix.getMatrix().transpose();
-
-        DoubleMatrix<BioAssay, CompositeSequence> transpose = new DenseDoubleMatrix<>( transposeR.getRawMatrix() );
-        transpose.setColumnNames( transposeR.getColNames() );
-        for ( int i = 0; i < transpose.rows(); i++ ) {
-            BioAssay s = transposeR.getRowName( i ).getBioAssaysUsedIn().iterator().next();
-            transpose.setRowName( s, i );
+    private SampleCorrelationMatrix dataToCorrelationMatrix( ExpressionDataDoubleMatrix matrix ) {
+        List<BioAssay> bioAssays = new ArrayList<>( matrix.columns() );
+        for ( int i = 0; i < matrix.columns(); i++ ) {
+            bioAssays.add( matrix.getBioMaterialForColumn( i ).getBioAssaysUsedIn().iterator().next() );
         }
-
-        return MatrixStats.correlationMatrix( transpose );
+        return SampleCorrelationMatrix.compute( matrix, bioAssays );
     }
 
     private ExpressionDataDoubleMatrix loadDataMatrix( ExpressionExperiment ee, boolean useRegression,
@@ -47,6 +47,46 @@ public interface CoexpressionDao {
     void createOrUpdate( BioAssaySet bioAssaySet, List<NonPersistentNonOrderedCoexpLink> p2plinks, LinkCreator c,
             Set<Gene> genesTested );
 
+    /**
+     * Save some of the links for an experiment, without updating the 'tested-in' information; see
+     * {@link #updateTestedIn(BioAssaySet, Set)}. The links must not be in any other batch for the experiment, and there
+     * must not be any links for the experiment other than those from earlier batches.
+     *
+     * @param bioAssaySet bio assay set
+     * @param links       links
+     * @param c           link creator
+     */
+    void createOrUpdateBatch( BioAssaySet bioAssaySet, List<NonPersistentNonOrderedCoexpLink> links, LinkCreator c );
+
+    /**
+     * @param bioAssaySet bio assay set, to be recorded as tested for the genes
+     * @param genesTested genes tested
+     */
+    void updateTestedIn( BioAssaySet bioAssaySet, Set<Gene> genesTested );
+
+    /**
+     * Keep links for an experiment aside, without touching its saved links, until they are moved with
+     * {@link #createOrUpdateBatch(BioAssaySet, List, LinkCreator)}. Links that are already staged are ignored.
+     *
+     * @param bioAssaySet bio assay set
+     * @param links       links
+     */
+    void stageLinks( BioAssaySet bioAssaySet, Collection<NonPersistentNonOrderedCoexpLink> links );
+
+    /**
+     * @param bioAssaySet bio assay set
+     * @param after       the last link of the previous page, or null to start
+     * @param limit       maximum number of links to return
+     * @return staged links for the experiment that come after the given one, ordered by genes and sign
+     */
+    List<NonPersistentNonOrderedCoexpLink> getStagedLinks( BioAssaySet bioAssaySet,
+            NonPersistentNonOrderedCoexpLink after, int limit );
+
+    /**
+     * @param bioAssaySet bio assay set whose staged links are removed
+     */
+    void deleteStagedLinks( BioAssaySet bioAssaySet );
+
     void deleteLinks( Taxon taxon, BioAssaySet experiment );
 
     /**
@@ -24,15 +24,21 @@ import org.apache.commons.lang3.time.StopWatch;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hibernate.*;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.jdbc.Work;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.orm.hibernate3.support.HibernateDaoSupport;
 import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import ubic.basecode.dataStructure.CountingMap;
 import ubic.basecode.io.ByteArrayConverter;
 import ubic.basecode.util.BatchIterator;
 import ubic.gemma.model.analysis.expression.coexpression.GeneCoexpressedGenes;
 import ubic.gemma.model.analysis.expression.coexpression.GeneCoexpressionTestedIn;
+import ubic.gemma.model.analysis.expression.coexpression.IdArray;
 import ubic.gemma.model.analysis.expression.coexpression.IdArrayValueObject;
 import ubic.gemma.model.analysis.expression.coexpression.SupportDetails;
 import ubic.gemma.model.association.coexpression.ExperimentCoexpressionLink;
@@ -43,12 +49,31 @@ import ubic.gemma.model.expression.experiment.BioAssaySet;
 import ubic.gemma.model.genome.Gene;
 import ubic.gemma.model.genome.Taxon;
 import ubic.gemma.persistence.util.EntityUtils;
+import ubic.gemma.persistence.util.Settings;
+import ubic.gemma.persistence.util.SharedExecutors;
 
 import java.math.BigInteger;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Manages and queries coexpression 'links' between genes.
+ * <p>
+ * All the links of an experiment are saved in one transaction, whether through Hibernate or, if
+ * <code>gemma.coexpression.bulkpersist</code> is set, with JDBC batches and multi-row inserts. That keeps the tables
+ * consistent (the support of a link matches its support details, and each link has its flipped version) if saving
+ * fails part way. The cost is that, for a large experiment, the transaction holds locks on many rows and a large undo
+ * log until it commits, and a failure near the end throws away all the work; the bulk mode makes it shorter, but does
+ * not split it. Callers that would rather keep what was saved can use
+ * {@link #createOrUpdateBatch(BioAssaySet, List, LinkCreator)}, and remove the experiment's links if a batch fails.
+ * </p>
  *
  * @author klc
  * @author paul
@@ -91,6 +116,16 @@ public class CoexpressionDaoImpl extends HibernateDaoSupport implements Coexpres
     private static final int BATCH_SIZE = 2048;
     private static final int BATCH_SIZE_SMALL = 8;
     private static final Log log = LogFactory.getLog( CoexpressionDaoImpl.class );
+    /**
+     * Links of experiments whose analysis is still running; see stageLinks.
+     */
+    private static final String STAGED_LINKS_TABLE = "GENE_COEX_STAGED_LINKS";
+    /**
+     * If true, gene-first queries are answered from an in-memory copy of the gene-level links (per taxon), when it is
+     * available. The copy is built in the background the first time it is needed, and rebuilt after links are changed.
+     * Until it is ready, queries go to the cache and database as usual.
+     */
+    private static final boolean USE_GRAPH_INDEX = Settings.getBoolean( "gemma.coexpression.index.enabled", false );
     /**
      * If the stringency is less than this, we will usually want to use a dataset-first query unless the number of
      * datasets is quite large. Note that this setting should depend on how many datasets are in the system in the first
@@ -104,11 +139,42 @@ public class CoexpressionDaoImpl extends HibernateDaoSupport implements Coexpres
     @Autowired
     private GeneTestedInCache geneTestedInCache;
 
+    /*
+     * In-memory link graphs, keyed by link table name (as some taxa share a table). The generation is incremented
+     * whenever a table is modified, so that an index that was being built at the time is not used.
+     */
+    private final ConcurrentMap<String, CoexpressionGraphIndex> graphIndexes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicLong> graphIndexGenerations = new ConcurrentHashMap<>();
+    private final Set<String> graphIndexesBuilding = Collections
+            .newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+
+    /**
+     * If true, new links are saved with JDBC multi-row inserts and batched updates instead of through the Hibernate
+     * session. Still all in one transaction.
+     */
+    private boolean bulkPersist = Settings.getBoolean( "gemma.coexpression.bulkpersist", false );
+
+    /**
+     * Rows per multi-row insert, and statements per JDBC batch for updates, when saving links in bulk.
+     */
+    private int bulkPersistRows = Settings.getInt( "gemma.coexpression.bulkpersist.rows", 500 );
+
     @Autowired
     public CoexpressionDaoImpl( SessionFactory sessionFactory ) {
         super.setSessionFactory( sessionFactory );
     }
 
+    /**
+     * For tests.
+     *
+     * @param bulkPersist     whether links are saved with JDBC batches and multi-row inserts
+     * @param bulkPersistRows rows per multi-row insert, and statements per JDBC batch
+     */
+    void setBulkPersist( boolean bulkPersist, int bulkPersistRows ) {
+        this.bulkPersist = bulkPersist;
+        this.bulkPersistRows = bulkPersistRows;
+    }
+
     @Override
     public Integer countLinks( Gene gene, BioAssaySet ee ) {
         // Looking at the first gene is enough if we save the flipped versions; we don't get a double-count here because
@@ -151,6 +217,13 @@ public class CoexpressionDaoImpl extends HibernateDaoSupport implements Coexpres
                     "There are already links for given bioAssaySet; they must be deleted before proceeding" );
         }
 
+        this.invalidateGraphIndex( CoexpressionQueryUtils.getGeneLinkTableName( gene.getTaxon() ) );
+
+        if ( this.bulkPersist ) {
+            this.createOrUpdateBulk( sess, gene.getTaxon(), bioAssaySet, links, c, genesTested );
+            return;
+        }
+
         /*
          * Attempt to save database trips
          */
@@ -367,6 +440,93 @@ public class CoexpressionDaoImpl extends HibernateDaoSupport implements Coexpres
         CoexpressionDaoImpl.log.info( "Done,  flushing changes ..." );
     }
 
+    /*
+     * Unlike createOrUpdate, a failure here only loses this batch; the caller has to remove the links saved by earlier
+     * batches.
+     */
+    @Override
+    public void createOrUpdateBatch( BioAssaySet bioAssaySet, List<NonPersistentNonOrderedCoexpLink> links,
+            LinkCreator c ) {
+        assert bioAssaySet != null;
+        assert c != null;
+        if ( links.isEmpty() )
+            return;
+
+        Session sess = this.getSessionFactory().getCurrentSession();
+        sess.setCacheMode( CacheMode.IGNORE );
+
+        // to determine the species
+        Gene gene = ( Gene ) sess.get( Gene.class, links.iterator().next().getFirstGene() );
+
+        this.invalidateGraphIndex( CoexpressionQueryUtils.getGeneLinkTableName( gene.getTaxon() ) );
+
+        // links already saved for this experiment by an earlier batch are caught by the support check.
+        this.createOrUpdateBulk( sess, gene.getTaxon(), bioAssaySet, links, c, null );
+    }
+
+    @Override
+    public void updateTestedIn( BioAssaySet bioAssaySet, Set<Gene> genesTested ) {
+        this.updatedTestedIn( bioAssaySet, genesTested );
+    }
+
+    /*
+     * The staged links are only gene pairs and signs, keyed so the same link staged twice is kept once.
+     */
+    @Override
+    public void stageLinks( final BioAssaySet bioAssaySet, final Collection<NonPersistentNonOrderedCoexpLink> links ) {
+        if ( links.isEmpty() )
+            return;
+        this.getSessionFactory().getCurrentSession().doWork( new Work() {
+            @Override
+            public void execute( Connection connection ) throws SQLException {
+                try (MultiRowInsert insert = new MultiRowInsert( connection, CoexpressionDaoImpl.STAGED_LINKS_TABLE,
+                        new String[] { "EXPERIMENT_FK", "FIRST_GENE_FK", "SECOND_GENE_FK", "POSITIVE" },
+                        CoexpressionDaoImpl.this.bulkPersistRows, true )) {
+                    for ( NonPersistentNonOrderedCoexpLink link : links ) {
+                        insert.addRow( bioAssaySet.getId(), link.getFirstGene(), link.getSecondGene(),
+                                link.isPositiveCorrelation() ? 1 : 0 );
+                    }
+                }
+            }
+        } );
+    }
+
+    @Override
+    public List<NonPersistentNonOrderedCoexpLink> getStagedLinks( BioAssaySet bioAssaySet,
+            NonPersistentNonOrderedCoexpLink after, int limit ) {
+        String sql = "select FIRST_GENE_FK, SECOND_GENE_FK, POSITIVE from " + CoexpressionDaoImpl.STAGED_LINKS_TABLE
+                + " where EXPERIMENT_FK = :ee";
+        if ( after != null ) {
+            sql = sql + " and (FIRST_GENE_FK > :g1 or (FIRST_GENE_FK = :g1 and (SECOND_GENE_FK > :g2"
+                    + " or (SECOND_GENE_FK = :g2 and POSITIVE > :pos))))";
+        }
+        SQLQuery q = this.getSessionFactory().getCurrentSession()
+                .createSQLQuery( sql + " order by FIRST_GENE_FK, SECOND_GENE_FK, POSITIVE" );
+        q.setParameter( "ee", bioAssaySet.getId() );
+        if ( after != null ) {
+            q.setParameter( "g1", after.getFirstGene() );
+            q.setParameter( "g2", after.getSecondGene() );
+            q.setParameter( "pos", after.isPositiveCorrelation() ? 1 : 0 );
+        }
+        q.setMaxResults( limit );
+
+        List<NonPersistentNonOrderedCoexpLink> result = new ArrayList<>();
+        for ( Object[] row : ( List<Object[]> ) q.list() ) {
+            result.add( new NonPersistentNonOrderedCoexpLink( ( ( Number ) row[0] ).longValue(),
+                    ( ( Number ) row[1] ).longValue(), ( ( Number ) row[2] ).intValue() > 0 ) );
+        }
+        return result;
+    }
+
+    @Override
+    public void deleteStagedLinks( BioAssaySet bioAssaySet ) {
+        int removed = this.getSessionFactory().getCurrentSession().createSQLQuery(
+                "delete from " + CoexpressionDaoImpl.STAGED_LINKS_TABLE + " where EXPERIMENT_FK = :ee" )
+                .setParameter( "ee", bioAssaySet.getId() ).executeUpdate();
+        if ( removed > 0 )
+            CoexpressionDaoImpl.log.info( "Removed " + removed + " staged links for " + bioAssaySet );
+    }
+
     /*
      * Errors here will be big trouble, leading to corrupt data. It has to be all one transaction.
      *
@@ -377,6 +537,8 @@ public class CoexpressionDaoImpl extends HibernateDaoSupport implements Coexpres
         Session sess = this.getSessionFactory().getCurrentSession();
         sess.setCacheMode( CacheMode.IGNORE );
 
+        this.invalidateGraphIndex( CoexpressionQueryUtils.getGeneLinkTableName( t ) );
+
         CoexpressionDaoImpl.log.info( "Fetching any old coexpression ..." );
         Collection<Gene2GeneCoexpression> links = this.getCoexpression( t, experiment );
 
@@ -578,7 +740,10 @@ public class CoexpressionDaoImpl extends HibernateDaoSupport implements Coexpres
         Map<Long, List<CoexpressionValueObject>> results = new HashMap<>();
         Collection<Long> genesNeeded = this.checkCacheForInterGeneLinks( genes, results, stringency );
 
-        if ( !genesNeeded.isEmpty() ) { // something wasn't in the cache.
+        CoexpressionGraphIndex index = genesNeeded.isEmpty() ? null : this.getGraphIndex( taxon );
+        if ( index != null ) {
+            results.putAll( this.getCoexpressionFromGraphIndex( index, genes, stringency, true, quick ) );
+        } else if ( !genesNeeded.isEmpty() ) { // something wasn't in the cache.
             Map<Long, List<CoexpressionValueObject>> dbResults;
             if ( bas.size() > CoexpressionDaoImpl.MAX_DATASETS_FOR_DATASET_FIRST_QUERY
                     || genes.size() < CoexpressionDaoImpl.MIN_GENES_FOR_DATASET_FIRST_QUERY ) {
@@ -855,6 +1020,11 @@ public class CoexpressionDaoImpl extends HibernateDaoSupport implements Coexpres
         int BATCH_SIZE = 1024;
         Session sess = this.getSessionFactory().getCurrentSession();
 
+        // we don't know the taxon here.
+        for ( String table : graphIndexGenerations.keySet() ) {
+            this.invalidateGraphIndex( table );
+        }
+
         /*
          * no cascade, so we have to make sure these get updated.
          */
@@ -1203,6 +1373,433 @@ public class CoexpressionDaoImpl extends HibernateDaoSupport implements Coexpres
         return rawCount / 2;
     }
 
+    /**
+     * Bulk version of createOrUpdate: the links are sorted by gene pair, existing links are found with one query per
+     * batch of genes, and everything is written with JDBC batches and multi-row inserts on the session's connection.
+     * This is still done in the caller's transaction, so if anything fails nothing is kept.
+     *
+     * @param sess        session, which will be flushed and cleared
+     * @param t           taxon
+     * @param bioAssaySet the experiment the links are from
+     * @param links       all the links for the experiment
+     * @param c           link creator for the taxon
+     * @param genesTested genes tested, may be null
+     */
+    private void createOrUpdateBulk( final Session sess, final Taxon t, final BioAssaySet bioAssaySet,
+            final List<NonPersistentNonOrderedCoexpLink> links, final LinkCreator c, final Set<Gene> genesTested ) {
+        StopWatch timer = new StopWatch();
+        timer.start();
+
+        // order by gene pair, so the rows go in clustered.
+        List<NonPersistentNonOrderedCoexpLink> sorted = new ArrayList<>( links );
+        Collections.sort( sorted, new Comparator<NonPersistentNonOrderedCoexpLink>() {
+            @Override
+            public int compare( NonPersistentNonOrderedCoexpLink o1, NonPersistentNonOrderedCoexpLink o2 ) {
+                int r = o1.getFirstGene().compareTo( o2.getFirstGene() );
+                if ( r != 0 )
+                    return r;
+                r = o1.getSecondGene().compareTo( o2.getSecondGene() );
+                if ( r != 0 )
+                    return r;
+                return Boolean.compare( o1.isPositiveCorrelation(), o2.isPositiveCorrelation() );
+            }
+        } );
+
+        final Map<NonPersistentNonOrderedCoexpLink, Long[]> existingLinks = this
+                .findExistingLinks( sess, t, sorted );
+
+        final List<NonPersistentNonOrderedCoexpLink> newLinks = new ArrayList<>();
+        final List<NonPersistentNonOrderedCoexpLink> updatedLinks = new ArrayList<>();
+        Set<NonPersistentNonOrderedCoexpLink> seen = new HashSet<>();
+        for ( NonPersistentNonOrderedCoexpLink link : sorted ) {
+            if ( !seen.add( link ) ) {
+                if ( existingLinks.containsKey( link ) ) {
+                    throw new IllegalStateException(
+                            "The data passed had the same existing link represented more than once: " + link );
+                }
+                CoexpressionDaoImpl.log
+                        .warn( "The data passed had the same new link represented more than once: " + link );
+                continue;
+            }
+            if ( existingLinks.containsKey( link ) ) {
+                updatedLinks.add( link );
+            } else {
+                newLinks.add( link );
+            }
+        }
+
+        CoexpressionDaoImpl.log
+                .info( "Bulk saving links for " + bioAssaySet + ": " + updatedLinks.size() + " to update, " + newLinks
+                        .size() + " new" );
+
+        // everything else goes directly to the database.
+        sess.flush();
+        sess.clear();
+
+        final TreeMap<Long, NonPersistentNonOrderedCoexpLink> linkIds = new TreeMap<>();
+        sess.doWork( new Work() {
+            @Override
+            public void execute( Connection connection ) throws SQLException {
+                CoexpressionDaoImpl.this
+                        .bulkUpdateLinks( sess, connection, t, bioAssaySet, updatedLinks, existingLinks, linkIds );
+                CoexpressionDaoImpl.this.bulkCreateLinks( sess, connection, t, bioAssaySet, newLinks, c, linkIds );
+                CoexpressionDaoImpl.this.bulkCreateExperimentLevelLinks( sess, connection, t, bioAssaySet, c, linkIds );
+
+                if ( genesTested != null ) {
+                    Map<Long, Collection<Long>> testedIn = new HashMap<>();
+                    for ( Long g : EntityUtils.getIds( genesTested ) ) {
+                        testedIn.put( g, Collections.singleton( bioAssaySet.getId() ) );
+                    }
+                    CoexpressionDaoImpl.this
+                            .bulkUpdateIdArrays( sess, connection, "GENE_COEX_TESTED_IN", testedIn, true );
+                }
+
+                Map<Long, Collection<Long>> coexpressedWith = new HashMap<>();
+                for ( Map.Entry<Long, Set<Long>> e : CoexpressionQueryUtils.linksToMap( links ).entrySet() ) {
+                    coexpressedWith.put( e.getKey(), e.getValue() );
+                }
+                CoexpressionDaoImpl.this
+                        .bulkUpdateIdArrays( sess, connection, "GENE_COEX_GENES", coexpressedWith, false );
+            }
+        } );
+
+        assert linkIds.size() == updatedLinks.size() + newLinks.size();
+
+        // Hibernate didn't see any of that.
+        Cache cache = this.getSessionFactory().getCache();
+        cache.evictEntityRegion( GeneCoexpressionTestedIn.class );
+        cache.evictEntityRegion( GeneCoexpressedGenes.class );
+        cache.evictEntityRegion( ( ( SessionFactoryImplementor ) this.getSessionFactory() )
+                .getImportedClassName( CoexpressionQueryUtils.getExperimentLinkClassName( t ) ) );
+        if ( genesTested != null ) {
+            this.geneTestedInCache.clearCache();
+        }
+
+        Set<Long> genesWithUpdatedData = new HashSet<>();
+        for ( NonPersistentNonOrderedCoexpLink link : seen ) {
+            genesWithUpdatedData.add( link.getFirstGene() );
+            genesWithUpdatedData.add( link.getSecondGene() );
+        }
+        int numRemovedFromCache = this.gene2GeneCoexpressionCache.remove( genesWithUpdatedData );
+        if ( numRemovedFromCache > 0 )
+            CoexpressionDaoImpl.log.info( numRemovedFromCache + " results evicted from cache" );
+
+        CoexpressionDaoImpl.log
+                .info( "Bulk saved " + linkIds.size() + " links for " + bioAssaySet + " in " + timer.getTime() + "ms" );
+    }
+
+    /**
+     * Find which of the links are already in the database (possibly with a support of zero).
+     *
+     * @param links sorted by first gene
+     * @return map of links to the ids of the existing link (first gene lower than second gene) and its support details
+     */
+    private Map<NonPersistentNonOrderedCoexpLink, Long[]> findExistingLinks( Session sess, Taxon t,
+            List<NonPersistentNonOrderedCoexpLink> links ) {
+        StopWatch timer = new StopWatch();
+        timer.start();
+
+        Set<NonPersistentNonOrderedCoexpLink> wanted = new HashSet<>( links );
+        Set<Long> firstGenes = new LinkedHashSet<>();
+        for ( NonPersistentNonOrderedCoexpLink link : links ) {
+            firstGenes.add( link.getFirstGene() );
+        }
+
+        // uses the index on the first gene; we get all the links for each gene, but only keep the ones we need.
+        SQLQuery q = sess.createSQLQuery(
+                "select ID, FIRST_GENE_FK, SECOND_GENE_FK, POSITIVE, SUPPORT_DETAILS_FK from " + CoexpressionQueryUtils
+                        .getGeneLinkTableName( t ) + " where FIRST_GENE_FK in (:genes)" );
+
+        Map<NonPersistentNonOrderedCoexpLink, Long[]> result = new HashMap<>();
+        for ( Collection<Long> batch : BatchIterator.batches( firstGenes, 64 ) ) {
+            for ( Object[] oa : ( List<Object[]> ) q.setParameterList( "genes", batch ).list() ) {
+                long g1 = ( ( Number ) oa[1] ).longValue();
+                long g2 = ( ( Number ) oa[2] ).longValue();
+                if ( g1 > g2 )
+                    continue; // the flipped version
+                NonPersistentNonOrderedCoexpLink link = new NonPersistentNonOrderedCoexpLink( g1, g2,
+                        ( ( Number ) oa[3] ).intValue() > 0 );
+                if ( wanted.contains( link ) ) {
+                    result.put( link,
+                            new Long[] { ( ( Number ) oa[0] ).longValue(), ( ( Number ) oa[4] ).longValue() } );
+                }
+            }
+        }
+
+        CoexpressionDaoImpl.log
+                .info( "Found " + result.size() + "/" + links.size() + " links already in the database in " + timer
+                        .getTime() + "ms" );
+        return result;
+    }
+
+    /**
+     * Add the experiment to the support of links that already exist, and update the support of both directions.
+     */
+    private void bulkUpdateLinks( Session sess, Connection connection, Taxon t, BioAssaySet bioAssaySet,
+            List<NonPersistentNonOrderedCoexpLink> links, Map<NonPersistentNonOrderedCoexpLink, Long[]> existingLinks,
+            Map<Long, NonPersistentNonOrderedCoexpLink> linkIds ) throws SQLException {
+        if ( links.isEmpty() )
+            return;
+
+        String linkTable = CoexpressionQueryUtils.getGeneLinkTableName( t );
+        String supportDetailsTable = CoexpressionQueryUtils.getSupportDetailsTableName( t );
+        SQLQuery q = sess.createSQLQuery( "select ID, BYTES from " + supportDetailsTable + " where ID in (:ids)" );
+
+        StopWatch timer = new StopWatch();
+        timer.start();
+        int count = 0;
+        try (PreparedStatement updateSupportDetails = connection
+                .prepareStatement( "update " + supportDetailsTable + " set BYTES=? where ID=?" );
+                PreparedStatement updateLink = connection
+                        .prepareStatement( "update " + linkTable + " set SUPPORT=? where ID=?" );
+                PreparedStatement updateFlippedLink = connection.prepareStatement( "update " + linkTable
+                        + " set SUPPORT=? where FIRST_GENE_FK=? and SECOND_GENE_FK=? and POSITIVE=?" )) {
+
+            for ( Collection<NonPersistentNonOrderedCoexpLink> batch : BatchIterator
+                    .batches( links, this.bulkPersistRows ) ) {
+
+                Map<Long, NonPersistentNonOrderedCoexpLink> bySupportDetails = new HashMap<>();
+                for ( NonPersistentNonOrderedCoexpLink link : batch ) {
+                    bySupportDetails.put( existingLinks.get( link )[1], link );
+                }
+
+                for ( Object[] oa : ( List<Object[]> ) q.setParameterList( "ids", bySupportDetails.keySet() )
+                        .list() ) {
+                    Long supportDetailsId = ( ( Number ) oa[0] ).longValue();
+                    NonPersistentNonOrderedCoexpLink link = bySupportDetails.get( supportDetailsId );
+
+                    IdArrayValueObject supportDetails = new IdArrayValueObject( ( byte[] ) oa[1] );
+                    if ( supportDetails.isIncluded( bioAssaySet.getId() ) ) {
+                        throw new IllegalStateException(
+                                "Support for this experiment already exists for " + link + ", must be deleted first" );
+                    }
+                    supportDetails.addEntity( bioAssaySet.getId() );
+                    int support = supportDetails.getNumIds();
+
+                    updateSupportDetails.setBytes( 1, supportDetails.getBytes() );
+                    updateSupportDetails.setLong( 2, supportDetailsId );
+                    updateSupportDetails.addBatch();
+
+                    Long linkId = existingLinks.get( link )[0];
+                    updateLink.setInt( 1, support );
+                    updateLink.setLong( 2, linkId );
+                    updateLink.addBatch();
+
+                    updateFlippedLink.setInt( 1, support );
+                    updateFlippedLink.setLong( 2, link.getSecondGene() );
+                    updateFlippedLink.setLong( 3, link.getFirstGene() );
+                    updateFlippedLink.setInt( 4, link.isPositiveCorrelation() ? 1 : 0 );
+                    updateFlippedLink.addBatch();
+
+                    linkIds.put( linkId, link );
+                    count++;
+                }
+
+                updateSupportDetails.executeBatch();
+                updateLink.executeBatch();
+                for ( int n : updateFlippedLink.executeBatch() ) {
+                    assert n == 1 || n == PreparedStatement.SUCCESS_NO_INFO : "Flipped link missing or duplicated";
+                }
+
+                CoexpressionDaoImpl.log
+                        .info( "Updated " + count + "/" + links.size() + " existing links (" + CoexpressionDaoImpl
+                                .rate( count, timer ) + " links/s)" );
+            }
+        }
+
+        if ( count != links.size() ) {
+            throw new IllegalStateException( "Support details missing for " + ( links.size() - count ) + " links" );
+        }
+    }
+
+    /**
+     * Save new links, with their support details and flipped versions. The flipped versions are saved after all the
+     * others, in order of the first gene.
+     */
+    private void bulkCreateLinks( Session sess, Connection connection, Taxon t, BioAssaySet bioAssaySet,
+            List<NonPersistentNonOrderedCoexpLink> links, LinkCreator c,
+            Map<Long, NonPersistentNonOrderedCoexpLink> linkIds ) throws SQLException {
+        if ( links.isEmpty() )
+            return;
+
+        String[] linkColumns = new String[] { "ID", "POSITIVE", "SUPPORT", "FIRST_GENE_FK", "SECOND_GENE_FK",
+                "SUPPORT_DETAILS_FK" };
+        List<Gene2GeneCoexpression> flipped = new ArrayList<>( links.size() );
+        Map<Gene2GeneCoexpression, Long> flippedSupportDetails = new HashMap<>();
+
+        /*
+         * Support details are added first, and both inserts write after the same number of rows, so the support
+         * details are always in the database before the links that refer to them.
+         */
+        try (MultiRowInsert supportDetailsInsert = new MultiRowInsert( connection,
+                CoexpressionQueryUtils.getSupportDetailsTableName( t ), new String[] { "ID", "BYTES" },
+                this.bulkPersistRows );
+                MultiRowInsert linkInsert = new MultiRowInsert( connection,
+                        CoexpressionQueryUtils.getGeneLinkTableName( t ), linkColumns,
+                        this.bulkPersistRows )) {
+            for ( NonPersistentNonOrderedCoexpLink link : links ) {
+                Gene2GeneCoexpression g2g = link.getLink();
+                if ( g2g == null ) {
+                    g2g = c.create( link.isPositiveCorrelation() ? 1 : -1, link.getFirstGene(), link.getSecondGene() );
+                }
+
+                SupportDetails sd = c.createSupportDetails( link.getFirstGene(), link.getSecondGene(),
+                        link.isPositiveCorrelation() );
+                sd.addEntity( bioAssaySet.getId() );
+                Long supportDetailsId = this.generateId( sess, sd );
+                supportDetailsInsert.addRow( supportDetailsId, sd.getBytes() );
+
+                Long id = this.generateId( sess, g2g );
+                linkInsert.addRow( id, link.isPositiveCorrelation() ? 1 : 0, 1, g2g.getFirstGene(),
+                        g2g.getSecondGene(), supportDetailsId );
+                linkIds.put( id, link );
+
+                Gene2GeneCoexpression flippedG2g = c
+                        .create( link.isPositiveCorrelation() ? 1 : -1, g2g.getSecondGene(), g2g.getFirstGene() );
+                flipped.add( flippedG2g );
+                flippedSupportDetails.put( flippedG2g, supportDetailsId );
+            }
+        }
+
+        Collections.sort( flipped, new Comparator<Gene2GeneCoexpression>() {
+            @Override
+            public int compare( Gene2GeneCoexpression o1, Gene2GeneCoexpression o2 ) {
+                return o1.getFirstGene().compareTo( o2.getFirstGene() );
+            }
+        } );
+
+        try (MultiRowInsert flippedInsert = new MultiRowInsert( connection,
+                CoexpressionQueryUtils.getGeneLinkTableName( t ), linkColumns,
+                this.bulkPersistRows )) {
+            for ( Gene2GeneCoexpression g2g : flipped ) {
+                flippedInsert.addRow( this.generateId( sess, g2g ), g2g.isPositiveCorrelation() ? 1 : 0, 1,
+                        g2g.getFirstGene(), g2g.getSecondGene(), flippedSupportDetails.get( g2g ) );
+            }
+        }
+    }
+
+    /**
+     * Save the experiment-level links (and flipped versions) for the gene-level links.
+     *
+     * @param linkIds gene-level link ids and the links, in order of id
+     */
+    private void bulkCreateExperimentLevelLinks( Session sess, Connection connection, Taxon t, BioAssaySet bioAssaySet,
+            LinkCreator c, TreeMap<Long, NonPersistentNonOrderedCoexpLink> linkIds ) throws SQLException {
+        if ( linkIds.isEmpty() )
+            return;
+
+        String[] columns = new String[] { "ID", "EXPERIMENT_FK", "LINK_FK", "GENE1_FK", "GENE2_FK" };
+        String table = CoexpressionQueryUtils.getExperimentLinkTableName( t );
+        ExperimentCoexpressionLink template = null;
+        List<Long[]> flipped = new ArrayList<>( linkIds.size() );
+
+        try (MultiRowInsert insert = new MultiRowInsert( connection, table, columns,
+                this.bulkPersistRows )) {
+            for ( Long linkId : linkIds.keySet() ) {
+                NonPersistentNonOrderedCoexpLink link = linkIds.get( linkId );
+                if ( template == null ) {
+                    template = c.createEELink( bioAssaySet, linkId, link.getFirstGene(), link.getSecondGene() );
+                }
+                insert.addRow( this.generateId( sess, template ), bioAssaySet.getId(), linkId, link.getFirstGene(),
+                        link.getSecondGene() );
+
+                // as in saveExperimentLevelLinks, the flipped version uses the same link ID.
+                flipped.add( new Long[] { linkId, link.getSecondGene(), link.getFirstGene() } );
+            }
+        }
+
+        Collections.sort( flipped, new Comparator<Long[]>() {
+            @Override
+            public int compare( Long[] o1, Long[] o2 ) {
+                return o1[1].compareTo( o2[1] );
+            }
+        } );
+
+        try (MultiRowInsert insert = new MultiRowInsert( connection, table, columns,
+                this.bulkPersistRows )) {
+            for ( Long[] f : flipped ) {
+                insert.addRow( this.generateId( sess, template ), bioAssaySet.getId(), f[0], f[1], f[2] );
+            }
+        }
+    }
+
+    /**
+     * Add ids to the per-gene id arrays stored in the given table (GENE_COEX_TESTED_IN or GENE_COEX_GENES), creating
+     * rows for genes that don't have one yet.
+     *
+     * @param table     table name
+     * @param toAdd     map of gene ids to the ids to add for that gene
+     * @param withCount if the table has the NUM_TESTS column, which is kept in sync.
+     */
+    private void bulkUpdateIdArrays( Session sess, Connection connection, String table,
+            Map<Long, Collection<Long>> toAdd, boolean withCount ) throws SQLException {
+        if ( toAdd.isEmpty() )
+            return;
+
+        StopWatch timer = new StopWatch();
+        timer.start();
+        SQLQuery q = sess.createSQLQuery( "select ID, BYTES from " + table + " where ID in (:ids)" );
+        Set<Long> seen = new HashSet<>();
+
+        try (PreparedStatement update = connection.prepareStatement(
+                withCount ? "update " + table + " set BYTES=?, NUM_TESTS=? where ID=?" :
+                        "update " + table + " set BYTES=? where ID=?" )) {
+            for ( Collection<Long> batch : BatchIterator
+                    .batches( toAdd.keySet(), this.bulkPersistRows ) ) {
+                for ( Object[] oa : ( List<Object[]> ) q.setParameterList( "ids", batch ).list() ) {
+                    Long geneId = ( ( Number ) oa[0] ).longValue();
+                    IdArray ids =
+                            withCount ? new GeneCoexpressionTestedIn( geneId ) : new GeneCoexpressedGenes( geneId );
+                    ids.setBytes( ( byte[] ) oa[1] );
+                    ids.addEntities( toAdd.get( geneId ) );
+
+                    int p = 1;
+                    update.setBytes( p++, ids.getBytes() );
+                    if ( withCount ) {
+                        update.setInt( p++, ids.getNumIds() );
+                    }
+                    update.setLong( p, geneId );
+                    update.addBatch();
+                    seen.add( geneId );
+                }
+                update.executeBatch();
+            }
+        }
+
+        try (MultiRowInsert insert = new MultiRowInsert( connection, table,
+                withCount ? new String[] { "ID", "BYTES", "NUM_TESTS" } : new String[] { "ID", "BYTES" },
+                this.bulkPersistRows )) {
+            for ( Long geneId : toAdd.keySet() ) {
+                if ( seen.contains( geneId ) )
+                    continue;
+                IdArray ids = withCount ? new GeneCoexpressionTestedIn( geneId ) : new GeneCoexpressedGenes( geneId );
+                ids.addEntities( toAdd.get( geneId ) );
+                if ( withCount ) {
+                    insert.addRow( geneId, ids.getBytes(), ids.getNumIds() );
+                } else {
+                    insert.addRow( geneId, ids.getBytes() );
+                }
+            }
+        }
+
+        CoexpressionDaoImpl.log
+                .info( "Updated " + table + " for " + toAdd.size() + " genes (" + seen.size() + " existing) in " + timer
+                        .getTime() + "ms" );
+    }
+
+    /**
+     * Get a new id for the entity from its (Hibernate) identifier generator, for entities we insert directly.
+     */
+    private Long generateId( Session sess, Object entity ) {
+        return ( Long ) ( ( SessionFactoryImplementor ) this.getSessionFactory() )
+                .getIdentifierGenerator( entity.getClass().getName() )
+                .generate( ( SessionImplementor ) sess, entity );
+    }
+
+    private static long rate( long count, StopWatch timer ) {
+        return Math.round( 1000.0 * count / Math.max( 1, timer.getTime() ) );
+    }
+
     /**
      * Find link (or null) based on the genes and direction of correlation in the given nonpersistent link.
      *
@@ -1480,6 +2077,12 @@ public class CoexpressionDaoImpl extends HibernateDaoSupport implements Coexpres
         // we assume the genes are from the same taxon.
         assert t != null;
 
+        CoexpressionGraphIndex index = this.getGraphIndex( t );
+        if ( index != null ) {
+            finalResult.putAll( this.getCoexpressionFromGraphIndex( index, genesNeeded, stringency, false, quick ) );
+            return finalResult;
+        }
+
         // fetch rest of genes needed from the database.
         StopWatch timer = new StopWatch();
         timer.start();
@@ -1697,6 +2300,169 @@ public class CoexpressionDaoImpl extends HibernateDaoSupport implements Coexpres
         return results;
     }
 
+    /**
+     * @param index         the in-memory links for the taxon
+     * @param genes         query genes
+     * @param stringency    minimum support
+     * @param onlyAmongThem only return links among the query genes
+     * @param quick         if false, the tested-in details are filled in
+     * @return map of gene ids to ranked list of coexpression value objects, which will still need to be trimmed.
+     */
+    private Map<Long, List<CoexpressionValueObject>> getCoexpressionFromGraphIndex( CoexpressionGraphIndex index,
+            Collection<Long> genes, int stringency, boolean onlyAmongThem, boolean quick ) {
+        StopWatch timer = new StopWatch();
+        timer.start();
+
+        Map<Long, List<CoexpressionValueObject>> results = index.find( genes, stringency, onlyAmongThem );
+        int total = 0;
+        for ( List<CoexpressionValueObject> gc : results.values() ) {
+            Collections.sort( gc );
+            if ( !quick ) {
+                this.populateTestedInDetails( gc );
+            }
+            total += gc.size();
+        }
+
+        if ( timer.getTime() > 1000 ) {
+            CoexpressionDaoImpl.log
+                    .debug( "Fetched " + total + " coexpression results from in-memory index for " + genes.size()
+                            + " genes in " + timer.getTime() + "ms" );
+        }
+        return results;
+    }
+
+    /**
+     * @param t taxon
+     * @return the in-memory links for the taxon, or null if they are not in use or not available (yet). In the latter
+     * case a build is started in the background.
+     */
+    private CoexpressionGraphIndex getGraphIndex( Taxon t ) {
+        if ( !CoexpressionDaoImpl.USE_GRAPH_INDEX ) {
+            return null;
+        }
+        String linkTable = CoexpressionQueryUtils.getGeneLinkTableName( t );
+        CoexpressionGraphIndex index = graphIndexes.get( linkTable );
+        if ( index == null ) {
+            this.buildGraphIndex( linkTable, CoexpressionQueryUtils.getSupportDetailsTableName( t ) );
+        }
+        return index;
+    }
+
+    private AtomicLong getGraphIndexGeneration( String linkTable ) {
+        graphIndexGenerations.putIfAbsent( linkTable, new AtomicLong() );
+        return graphIndexGenerations.get( linkTable );
+    }
+
+    /**
+     * Start building the in-memory links for the given table in the background, unless that is already under way.
+     */
+    private void buildGraphIndex( final String linkTable, final String supportDetailsTable ) {
+        if ( !graphIndexesBuilding.add( linkTable ) ) {
+            return;
+        }
+        final long generation = this.getGraphIndexGeneration( linkTable ).get();
+        // one thread: builds wait on the database and hold a lot of memory, so they are done one after the other
+        ExecutorService executor = SharedExecutors.getExecutor( "coexpression-index", 1 );
+        try {
+            this.submitGraphIndexBuild( executor, linkTable, supportDetailsTable, generation );
+        } catch ( RejectedExecutionException e ) {
+            // the pools are being shut down; a later search will try again.
+            graphIndexesBuilding.remove( linkTable );
+        }
+    }
+
+    private void submitGraphIndexBuild( ExecutorService executor, final String linkTable,
+            final String supportDetailsTable, final long generation ) {
+        executor.submit( new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    CoexpressionGraphIndex index = CoexpressionDaoImpl.this
+                            .loadGraphIndex( linkTable, supportDetailsTable );
+                    synchronized ( graphIndexes ) {
+                        if ( CoexpressionDaoImpl.this.getGraphIndexGeneration( linkTable ).get() == generation ) {
+                            graphIndexes.put( linkTable, index );
+                        } else {
+                            CoexpressionDaoImpl.log.info( "Links in " + linkTable
+                                    + " were modified while the in-memory index was built, discarding it" );
+                        }
+                    }
+                } catch ( Exception e ) {
+                    CoexpressionDaoImpl.log.error( "Failed to build in-memory index of " + linkTable, e );
+                } finally {
+                    graphIndexesBuilding.remove( linkTable );
+                }
+            }
+        } );
+    }
+
+    /**
+     * Read all the links and support details from the given tables, streaming the rows.
+     */
+    private CoexpressionGraphIndex loadGraphIndex( String linkTable, String supportDetailsTable ) {
+        StopWatch timer = new StopWatch();
+        timer.start();
+        CoexpressionDaoImpl.log.info( "Building in-memory index of " + linkTable + " ..." );
+
+        CoexpressionGraphIndex.Builder builder = new CoexpressionGraphIndex.Builder();
+        StatelessSession session = this.getSessionFactory().openStatelessSession();
+        try {
+            // with MySQL, a fetch size of Integer.MIN_VALUE makes the driver stream the results.
+            ScrollableResults links = session.createSQLQuery(
+                    "select POSITIVE, SUPPORT, FIRST_GENE_FK, SECOND_GENE_FK, SUPPORT_DETAILS_FK from " + linkTable )
+                    .setFetchSize( Integer.MIN_VALUE ).scroll( ScrollMode.FORWARD_ONLY );
+            int n = 0;
+            while ( links.next() ) {
+                Object[] oa = links.get();
+                builder.addLink( ( ( Number ) oa[2] ).longValue(), ( ( Number ) oa[3] ).longValue(),
+                        ( ( Number ) oa[0] ).intValue() > 0, ( ( Number ) oa[1] ).intValue(),
+                        ( ( Number ) oa[4] ).longValue() );
+                if ( ++n % 5000000 == 0 ) {
+                    CoexpressionDaoImpl.log.info( "Read " + n + " links from " + linkTable + " ..." );
+                }
+            }
+            links.close();
+
+            ScrollableResults details = session.createSQLQuery( "select ID, BYTES from " + supportDetailsTable )
+                    .setFetchSize( Integer.MIN_VALUE ).scroll( ScrollMode.FORWARD_ONLY );
+            while ( details.next() ) {
+                Object[] oa = details.get();
+                builder.addSupportDetails( ( ( Number ) oa[0] ).longValue(), ( byte[] ) oa[1] );
+            }
+            details.close();
+        } finally {
+            session.close();
+        }
+
+        CoexpressionGraphIndex index = builder.build();
+        CoexpressionDaoImpl.log
+                .info( "Built in-memory index of " + linkTable + ": " + index.numLinks() + " links among " + index
+                        .numGenes() + " genes in " + timer.getTime() + "ms" );
+        return index;
+    }
+
+    /**
+     * Discard the in-memory links for the given table, if any. If there is a transaction, this is done again once it
+     * completes, so an index built in the meantime (from the old data) is not kept.
+     */
+    private void invalidateGraphIndex( final String linkTable ) {
+        synchronized ( graphIndexes ) {
+            this.getGraphIndexGeneration( linkTable ).incrementAndGet();
+            graphIndexes.remove( linkTable );
+        }
+        if ( TransactionSynchronizationManager.isSynchronizationActive() ) {
+            TransactionSynchronizationManager.registerSynchronization( new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion( int status ) {
+                    synchronized ( graphIndexes ) {
+                        CoexpressionDaoImpl.this.getGraphIndexGeneration( linkTable ).incrementAndGet();
+                        graphIndexes.remove( linkTable );
+                    }
+                }
+            } );
+        }
+    }
+
     /**
      * Find links among the given genes in the given experiments, querying the experiment-level table. Does not check
      * the cache. There are easily hundreds of genes, number of experiments would be relatively small (otherwise we
@@ -0,0 +1,249 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2021 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.gemma.persistence.service.association.coexpression;
+
+import cern.colt.list.ByteArrayList;
+import cern.colt.list.IntArrayList;
+import cern.colt.list.LongArrayList;
+import ubic.gemma.model.analysis.expression.coexpression.IdArrayValueObject;
+
+import java.util.*;
+
+/**
+ * Read-only in-memory copy of the gene-level coexpression links for one link table, used to answer gene-major queries
+ * without going to the database.
+ * The links are stored in compressed sparse row layout: the links for the gene at position i in {@link #geneIds} are at
+ * positions offsets[i] to offsets[i+1] of the link arrays, sorted by decreasing support so queries at any stringency
+ * can stop early. Links in both directions are stored, as in the database. The support details (which data sets
+ * support the link) are kept in their stored (compressed) form, shared by the two directions of each link, and are only
+ * decoded for links that are returned.
+ *
+ * @see CoexpressionDaoImpl
+ */
+class CoexpressionGraphIndex {
+
+    private final long[] geneIds;
+    private final int[] offsets;
+
+    private final int[] partners;
+    private final int[] support;
+    private final BitSet positive;
+    private final int[] supportDetails;
+
+    private final long[] supportDetailsIds;
+    private final byte[][] supportDetailsBytes;
+
+    private CoexpressionGraphIndex( long[] geneIds, int[] offsets, int[] partners, int[] support, BitSet positive,
+            int[] supportDetails, long[] supportDetailsIds, byte[][] supportDetailsBytes ) {
+        this.geneIds = geneIds;
+        this.offsets = offsets;
+        this.partners = partners;
+        this.support = support;
+        this.positive = positive;
+        this.supportDetails = supportDetails;
+        this.supportDetailsIds = supportDetailsIds;
+        this.supportDetailsBytes = supportDetailsBytes;
+    }
+
+    /**
+     * Get links for the given genes. This is equivalent to a query of the link table for links that have the given genes
+     * as the first gene, followed by conversion to value objects: duplicates (the same link in the other direction) are
+     * removed, and links among the query genes are flagged.
+     *
+     * @param genes         query genes
+     * @param stringency    minimum support
+     * @param onlyAmongThem if true, only links among the query genes are returned
+     * @return map of query gene ids to links, sorted by decreasing support. Genes without links are omitted.
+     */
+    Map<Long, List<CoexpressionValueObject>> find( Collection<Long> genes, int stringency, boolean onlyAmongThem ) {
+        Set<Long> queryGenes = genes instanceof Set ? ( Set<Long> ) genes : new HashSet<>( genes );
+        Set<NonPersistentNonOrderedCoexpLink> allSeen = new HashSet<>();
+        Map<Long, List<CoexpressionValueObject>> results = new HashMap<>();
+
+        for ( Long g : genes ) {
+            int i = Arrays.binarySearch( geneIds, g );
+            if ( i < 0 )
+                continue;
+
+            for ( int k = offsets[i]; k < offsets[i + 1]; k++ ) {
+                int s = support[k];
+                if ( s < stringency )
+                    break; // sorted by support.
+
+                Long coexGeneId = geneIds[partners[k]];
+                boolean interQuery = queryGenes.contains( coexGeneId );
+                if ( onlyAmongThem && !interQuery )
+                    continue;
+
+                boolean pos = positive.get( k );
+                if ( !allSeen.add( new NonPersistentNonOrderedCoexpLink( g, coexGeneId, pos ) ) )
+                    continue;
+
+                int d = supportDetails[k];
+                CoexpressionValueObject g2gvo = new CoexpressionValueObject( g, coexGeneId, pos, s,
+                        supportDetailsIds[d], new IdArrayValueObject( supportDetailsBytes[d] ).getIdsSet() );
+                g2gvo.setInterQueryLink( interQuery );
+
+                if ( !results.containsKey( g ) ) {
+                    results.put( g, new ArrayList<CoexpressionValueObject>() );
+                }
+                results.get( g ).add( g2gvo );
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @return number of links (each direction is counted).
+     */
+    int numLinks() {
+        return partners.length;
+    }
+
+    int numGenes() {
+        return geneIds.length;
+    }
+
+    /**
+     * Collects links and support details, in any order, and puts them into an index.
+     */
+    static class Builder {
+
+        private final LongArrayList firstGenes = new LongArrayList();
+        private final LongArrayList secondGenes = new LongArrayList();
+        private final IntArrayList supports = new IntArrayList();
+        private final ByteArrayList positives = new ByteArrayList();
+        private final LongArrayList linkSupportDetailsIds = new LongArrayList();
+
+        private final Map<Long, byte[]> supportDetailsById = new HashMap<>();
+
+        void addLink( long firstGene, long secondGene, boolean positiveCorrelation, int support,
+                long supportDetailsId ) {
+            firstGenes.add( firstGene );
+            secondGenes.add( secondGene );
+            positives.add( ( byte ) ( positiveCorrelation ? 1 : 0 ) );
+            supports.add( support );
+            linkSupportDetailsIds.add( supportDetailsId );
+        }
+
+        void addSupportDetails( long id, byte[] bytes ) {
+            supportDetailsById.put( id, bytes );
+        }
+
+        /**
+         * @return the index. Links for which the support details are missing are left out.
+         */
+        CoexpressionGraphIndex build() {
+            int n = firstGenes.size();
+
+            // nodes
+            long[] allGenes = new long[2 * n];
+            System.arraycopy( firstGenes.elements(), 0, allGenes, 0, n );
+            System.arraycopy( secondGenes.elements(), 0, allGenes, n, n );
+            long[] geneIds = Builder.unique( allGenes );
+
+            // pool the support details in id order.
+            long[] supportDetailsIds = new long[supportDetailsById.size()];
+            int j = 0;
+            for ( Long id : supportDetailsById.keySet() ) {
+                supportDetailsIds[j++] = id;
+            }
+            Arrays.sort( supportDetailsIds );
+            byte[][] supportDetailsBytes = new byte[supportDetailsIds.length][];
+            for ( j = 0; j < supportDetailsIds.length; j++ ) {
+                supportDetailsBytes[j] = supportDetailsById.get( supportDetailsIds[j] );
+            }
+            supportDetailsById.clear();
+
+            // count links per gene, so we can lay them out.
+            int[] firstIndex = new int[n];
+            int[] sdIndex = new int[n];
+            int[] counts = new int[geneIds.length];
+            int numKept = 0;
+            for ( int k = 0; k < n; k++ ) {
+                sdIndex[k] = Arrays.binarySearch( supportDetailsIds, linkSupportDetailsIds.getQuick( k ) );
+                if ( sdIndex[k] < 0 ) {
+                    firstIndex[k] = -1;
+                    continue;
+                }
+                firstIndex[k] = Arrays.binarySearch( geneIds, firstGenes.getQuick( k ) );
+                counts[firstIndex[k]]++;
+                numKept++;
+            }
+
+            int[] offsets = new int[geneIds.length + 1];
+            for ( int i = 0; i < geneIds.length; i++ ) {
+                offsets[i + 1] = offsets[i] + counts[i];
+            }
+
+            // order of the links: by gene, then decreasing support
+            int[] order = new int[numKept];
+            int[] fill = Arrays.copyOf( offsets, geneIds.length );
+            for ( int k = 0; k < n; k++ ) {
+                if ( firstIndex[k] >= 0 ) {
+                    order[fill[firstIndex[k]]++] = k;
+                }
+            }
+            for ( int i = 0; i < geneIds.length; i++ ) {
+                this.sortBySupport( order, offsets[i], offsets[i + 1] );
+            }
+
+            int[] partners = new int[numKept];
+            int[] support = new int[numKept];
+            BitSet positive = new BitSet( numKept );
+            int[] supportDetails = new int[numKept];
+            for ( int p = 0; p < numKept; p++ ) {
+                int k = order[p];
+                partners[p] = Arrays.binarySearch( geneIds, secondGenes.getQuick( k ) );
+                support[p] = supports.getQuick( k );
+                positive.set( p, positives.getQuick( k ) > 0 );
+                supportDetails[p] = sdIndex[k];
+            }
+
+            return new CoexpressionGraphIndex( geneIds, offsets, partners, support, positive, supportDetails,
+                    supportDetailsIds, supportDetailsBytes );
+        }
+
+        private static long[] unique( long[] values ) {
+            if ( values.length == 0 )
+                return values;
+            Arrays.sort( values );
+            int u = 1;
+            for ( int k = 1; k < values.length; k++ ) {
+                if ( values[k] != values[u - 1] ) {
+                    values[u++] = values[k];
+                }
+            }
+            return Arrays.copyOf( values, u );
+        }
+
+        /**
+         * Sort the given range of link positions by decreasing support; ties are kept in their original order.
+         */
+        private void sortBySupport( int[] order, int from, int to ) {
+            if ( to - from < 2 )
+                return;
+            long[] keys = new long[to - from];
+            for ( int p = from; p < to; p++ ) {
+                // support is non-negative; order positions are < 2^31.
+                keys[p - from] = ( ( long ) ( Integer.MAX_VALUE - supports.getQuick( order[p] ) ) << 32 ) | order[p];
+            }
+            Arrays.sort( keys );
+            for ( int p = from; p < to; p++ ) {
+                order[p] = ( int ) keys[p - from];
+            }
+        }
+    }
+}
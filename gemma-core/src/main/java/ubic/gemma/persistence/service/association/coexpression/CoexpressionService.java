@@ -63,6 +63,62 @@ public interface CoexpressionService {
     void createOrUpdate( BioAssaySet bioAssaySet, List<NonPersistentNonOrderedCoexpLink> links, LinkCreator c,
             Set<Gene> geesTested );
 
+    /**
+     * Maintenance method. Save some of the links for the bioAssaySet, in its own transaction, for when the links are
+     * too many to save in one transaction. Nothing else can be saved for the bioAssaySet in the meantime,
+     * and {@link #updateTestedIn(BioAssaySet, Set)} has to be called once all the links are saved. If a batch fails,
+     * the links from the earlier batches have to be removed with {@link #deleteLinks(BioAssaySet)}.
+     *
+     * @param bioAssaySet the experiment the links are from
+     * @param links       links, which must not be in any other batch for the bioAssaySet
+     * @param c           link creator
+     */
+    @Secured({ "GROUP_USER", "ACL_SECURABLE_EDIT" })
+    void createOrUpdateBatch( BioAssaySet bioAssaySet, List<NonPersistentNonOrderedCoexpLink> links, LinkCreator c );
+
+    /**
+     * Maintenance method. Record the genes as tested in the bioAssaySet; done by createOrUpdate, but not by
+     * createOrUpdateBatch.
+     *
+     * @param bioAssaySet bio assay set
+     * @param genesTested genes which were tested
+     */
+    @Secured({ "GROUP_USER", "ACL_SECURABLE_EDIT" })
+    void updateTestedIn( BioAssaySet bioAssaySet, Set<Gene> genesTested );
+
+    /**
+     * Maintenance method. Keep links for the bioAssaySet aside while its analysis is running, leaving its saved links
+     * as they are; once the analysis is done, they are read back with
+     * {@link #getStagedLinks(BioAssaySet, NonPersistentNonOrderedCoexpLink, int)} and saved with
+     * {@link #createOrUpdateBatch(BioAssaySet, List, LinkCreator)}. A link that is already staged is kept once.
+     *
+     * @param bioAssaySet bio assay set
+     * @param links       links
+     */
+    @Secured({ "GROUP_USER", "ACL_SECURABLE_EDIT" })
+    void stageLinks( BioAssaySet bioAssaySet, Collection<NonPersistentNonOrderedCoexpLink> links );
+
+    /**
+     * Maintenance method.
+     *
+     * @param bioAssaySet bio assay set
+     * @param after       the last link of the previous page, or null for the first page
+     * @param limit       maximum number of links to return
+     * @return the next page of staged links for the bioAssaySet, ordered by genes and sign; empty once they are all
+     *         read
+     */
+    @Secured({ "GROUP_USER", "ACL_SECURABLE_EDIT" })
+    List<NonPersistentNonOrderedCoexpLink> getStagedLinks( BioAssaySet bioAssaySet,
+            NonPersistentNonOrderedCoexpLink after, int limit );
+
+    /**
+     * Maintenance method. Remove the staged links for the bioAssaySet, once they are saved or given up on.
+     *
+     * @param bioAssaySet bio assay set
+     */
+    @Secured({ "GROUP_USER", "ACL_SECURABLE_EDIT" })
+    void deleteStagedLinks( BioAssaySet bioAssaySet );
+
     /**
      * Maintenance method. Remove coexpression information from the database about the experiment in question (this does
      * not remove the analysis object).
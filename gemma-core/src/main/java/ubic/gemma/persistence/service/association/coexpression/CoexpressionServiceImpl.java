@@ -90,6 +90,49 @@ public class CoexpressionServiceImpl implements CoexpressionService {
         this.coexpressionQueryQueue.removeFromQueue( genes );
     }
 
+    @Override
+    @Transactional
+    public void createOrUpdateBatch( BioAssaySet bioAssaySet, List<NonPersistentNonOrderedCoexpLink> links,
+            LinkCreator c ) {
+        assert bioAssaySet != null;
+        this.coexpressionDao.createOrUpdateBatch( bioAssaySet, links, c );
+
+        Collection<Long> genes = new HashSet<>();
+        for ( NonPersistentNonOrderedCoexpLink link : links ) {
+            genes.add( link.getFirstGene() );
+            genes.add( link.getSecondGene() );
+        }
+        this.coexpressionQueryQueue.removeFromQueue( genes );
+    }
+
+    @Override
+    @Transactional
+    public void updateTestedIn( BioAssaySet bioAssaySet, Set<Gene> genesTested ) {
+        assert bioAssaySet != null;
+        assert genesTested != null;
+        this.coexpressionDao.updateTestedIn( bioAssaySet, genesTested );
+    }
+
+    @Override
+    @Transactional
+    public void stageLinks( BioAssaySet bioAssaySet, Collection<NonPersistentNonOrderedCoexpLink> links ) {
+        assert bioAssaySet != null;
+        this.coexpressionDao.stageLinks( bioAssaySet, links );
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<NonPersistentNonOrderedCoexpLink> getStagedLinks( BioAssaySet bioAssaySet,
+            NonPersistentNonOrderedCoexpLink after, int limit ) {
+        return this.coexpressionDao.getStagedLinks( bioAssaySet, after, limit );
+    }
+
+    @Override
+    @Transactional
+    public void deleteStagedLinks( BioAssaySet bioAssaySet ) {
+        this.coexpressionDao.deleteStagedLinks( bioAssaySet );
+    }
+
     @Override
     public void deleteLinks( BioAssaySet experiment ) {
         this.coexpressionDao.deleteLinks( this.experimentDao.getTaxon( experiment ), experiment );
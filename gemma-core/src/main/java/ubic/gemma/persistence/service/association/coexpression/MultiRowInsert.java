@@ -0,0 +1,152 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2021 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.gemma.persistence.service.association.coexpression;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.time.StopWatch;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Inserts rows into a table through plain JDBC, several rows per statement ("insert into ... values (...),(...)").
+ * Rows are buffered and written each time a full statement's worth has accumulated; {@link #close()} writes the rest.
+ * This bypasses Hibernate entirely, so identifiers must be supplied by the caller and any second-level cache regions
+ * for the table have to be evicted afterwards. Progress is logged with the insertion rate.
+ */
+class MultiRowInsert implements AutoCloseable {
+
+    private static final Log log = LogFactory.getLog( MultiRowInsert.class );
+
+    private static final int LOG_INTERVAL = 100000;
+
+    private final Connection connection;
+    private final String table;
+    private final String[] columns;
+    private final int rowsPerStatement;
+    private final boolean ignoreDuplicates;
+
+    private final List<Object[]> buffer;
+    private final StopWatch timer = new StopWatch();
+    private PreparedStatement fullStatement = null;
+    private long rowCount = 0;
+
+    /**
+     * @param connection       the connection to use; the caller is responsible for the transaction.
+     * @param table            table name
+     * @param columns          column names; values must be given in this order
+     * @param rowsPerStatement how many rows to write with each statement
+     */
+    MultiRowInsert( Connection connection, String table, String[] columns, int rowsPerStatement ) {
+        this( connection, table, columns, rowsPerStatement, false );
+    }
+
+    /**
+     * @param connection       the connection to use; the caller is responsible for the transaction.
+     * @param table            table name
+     * @param columns          column names; values must be given in this order
+     * @param rowsPerStatement how many rows to write with each statement
+     * @param ignoreDuplicates if true, rows with the same key as one already in the table are dropped ("insert
+     *                         ignore"; MySQL)
+     */
+    MultiRowInsert( Connection connection, String table, String[] columns, int rowsPerStatement,
+            boolean ignoreDuplicates ) {
+        if ( rowsPerStatement < 1 ) {
+            throw new IllegalArgumentException( "Must insert at least one row per statement" );
+        }
+        this.connection = connection;
+        this.table = table;
+        this.columns = columns;
+        this.rowsPerStatement = rowsPerStatement;
+        this.ignoreDuplicates = ignoreDuplicates;
+        this.buffer = new ArrayList<>( rowsPerStatement );
+        this.timer.start();
+    }
+
+    /**
+     * @param values values for the columns, in order
+     * @throws SQLException if a full batch was written and this failed
+     */
+    void addRow( Object... values ) throws SQLException {
+        if ( values.length != columns.length ) {
+            throw new IllegalArgumentException(
+                    "Expected " + columns.length + " values for " + table + ", got " + values.length );
+        }
+        buffer.add( values );
+        if ( buffer.size() == rowsPerStatement ) {
+            if ( fullStatement == null ) {
+                fullStatement = connection.prepareStatement( this.makeSql( rowsPerStatement ) );
+            }
+            this.write( fullStatement );
+        }
+    }
+
+    /**
+     * Write any buffered rows and release the statement.
+     */
+    @Override
+    public void close() throws SQLException {
+        try {
+            if ( !buffer.isEmpty() ) {
+                try (PreparedStatement remainder = connection.prepareStatement( this.makeSql( buffer.size() ) )) {
+                    this.write( remainder );
+                }
+            }
+        } finally {
+            if ( fullStatement != null ) {
+                fullStatement.close();
+                fullStatement = null;
+            }
+        }
+        if ( rowCount > 0 ) {
+            MultiRowInsert.log.info( "Inserted " + rowCount + " rows into " + table + " in " + timer.getTime() + "ms ("
+                    + this.getRate() + " rows/s)" );
+        }
+    }
+
+    private String makeSql( int numRows ) {
+        String row = "(" + StringUtils.repeat( "?", ",", columns.length ) + ")";
+        return ( ignoreDuplicates ? "insert ignore into " : "insert into " ) + table + " (" + StringUtils
+                .join( columns, "," ) + ") values " + StringUtils.repeat( row, ",", numRows );
+    }
+
+    private void write( PreparedStatement statement ) throws SQLException {
+        int p = 1;
+        for ( Object[] values : buffer ) {
+            for ( Object v : values ) {
+                statement.setObject( p++, v );
+            }
+        }
+        statement.executeUpdate();
+
+        long before = rowCount;
+        rowCount += buffer.size();
+        buffer.clear();
+
+        if ( rowCount / MultiRowInsert.LOG_INTERVAL > before / MultiRowInsert.LOG_INTERVAL ) {
+            MultiRowInsert.log
+                    .info( "Inserted " + rowCount + " rows into " + table + " (" + this.getRate() + " rows/s)" );
+        }
+    }
+
+    private long getRate() {
+        return Math.round( 1000.0 * rowCount / Math.max( 1, timer.getTime() ) );
+    }
+}
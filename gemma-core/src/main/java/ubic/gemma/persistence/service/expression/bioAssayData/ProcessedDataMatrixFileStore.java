@@ -0,0 +1,317 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2021 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.persistence.service.expression.bioAssayData;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stores the processed data of experiments in binary files, one per experiment, so they can be read without loading
+ * the vectors from the database. Each file has a header with the ids of the quantitation type, the bioassay dimension,
+ * the bioassays (columns), the vectors and their design elements (rows), followed by the values in row order. Files
+ * are memory-mapped for reading; as a mapping can't be larger than 2 GB, large files are mapped in several pieces, each
+ * holding whole rows.
+ * The files are only a copy of what is in the database: callers must check that a file still matches the vectors
+ * before using it, and can always fall back to the database.
+ */
+class ProcessedDataMatrixFileStore {
+
+    private static final Log log = LogFactory.getLog( ProcessedDataMatrixFileStore.class );
+
+    private static final int MAGIC = 0x47504d58; // "GPMX"
+    private static final int VERSION = 1;
+
+    /**
+     * magic, version, rows, columns; then quantitation type and dimension ids.
+     */
+    private static final int FIXED_HEADER_BYTES = 4 * Integer.BYTES + 2 * Long.BYTES;
+
+    private final File directory;
+
+    /**
+     * Largest piece of a file to map at once.
+     */
+    private final int maxMappedBytes;
+
+    /**
+     * @param directory where the files are kept; created if necessary.
+     */
+    ProcessedDataMatrixFileStore( File directory ) {
+        this( directory, Integer.MAX_VALUE );
+    }
+
+    /**
+     * For tests.
+     */
+    ProcessedDataMatrixFileStore( File directory, int maxMappedBytes ) {
+        this.directory = directory;
+        this.maxMappedBytes = maxMappedBytes;
+    }
+
+    /**
+     * @param experimentId experiment
+     * @return the stored matrix, or null if there isn't one (or it could not be read, in which case it is removed).
+     */
+    Matrix read( Long experimentId ) {
+        File file = this.getFile( experimentId );
+        if ( !file.canRead() ) {
+            return null;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile( file, "r" ); FileChannel channel = raf.getChannel()) {
+            if ( channel.size() < ProcessedDataMatrixFileStore.FIXED_HEADER_BYTES ) {
+                throw new IOException( "File is too short to be a processed data file" );
+            }
+            ByteBuffer buf = channel
+                    .map( FileChannel.MapMode.READ_ONLY, 0, ProcessedDataMatrixFileStore.FIXED_HEADER_BYTES );
+            if ( buf.getInt() != ProcessedDataMatrixFileStore.MAGIC
+                    || buf.getInt() != ProcessedDataMatrixFileStore.VERSION ) {
+                throw new IOException( "Not a processed data file, or an incompatible version" );
+            }
+            int rows = buf.getInt();
+            int columns = buf.getInt();
+            long quantitationTypeId = buf.getLong();
+            long bioAssayDimensionId = buf.getLong();
+
+            long expectedSize = ProcessedDataMatrixFileStore.getSize( rows, columns );
+            if ( rows < 0 || columns < 0 || channel.size() != expectedSize ) {
+                throw new IOException( "File is " + channel.size() + " bytes, expected " + expectedSize );
+            }
+
+            long headerSize = ProcessedDataMatrixFileStore.getHeaderSize( rows, columns );
+            if ( headerSize > maxMappedBytes ) {
+                throw new IOException( "Header is too large to map: " + headerSize + " bytes" );
+            }
+            buf = channel.map( FileChannel.MapMode.READ_ONLY, ProcessedDataMatrixFileStore.FIXED_HEADER_BYTES,
+                    headerSize - ProcessedDataMatrixFileStore.FIXED_HEADER_BYTES );
+            long[] bioAssayIds = ProcessedDataMatrixFileStore.readLongs( buf, columns );
+            long[] vectorIds = ProcessedDataMatrixFileStore.readLongs( buf, rows );
+            long[] designElementIds = ProcessedDataMatrixFileStore.readLongs( buf, rows );
+
+            // as many whole rows in each piece as will fit
+            long rowBytes = ( long ) columns * Double.BYTES;
+            int rowsPerPiece =
+                    rowBytes == 0 ? Math.max( rows, 1 ) : ( int ) Math.min( rows, maxMappedBytes / rowBytes );
+            if ( rowsPerPiece == 0 ) {
+                throw new IOException( "Rows are too long to map: " + rowBytes + " bytes" );
+            }
+            DoubleBuffer[] pieces = new DoubleBuffer[( int ) ( ( ( long ) rows + rowsPerPiece - 1 ) / rowsPerPiece )];
+            for ( int i = 0; i < pieces.length; i++ ) {
+                long firstRow = ( long ) i * rowsPerPiece;
+                long pieceRows = Math.min( rowsPerPiece, rows - firstRow );
+                pieces[i] = channel.map( FileChannel.MapMode.READ_ONLY, headerSize + firstRow * rowBytes,
+                        pieceRows * rowBytes ).asDoubleBuffer();
+            }
+
+            return new Matrix( quantitationTypeId, bioAssayDimensionId, bioAssayIds, vectorIds, designElementIds,
+                    pieces, rowsPerPiece );
+        } catch ( IOException e ) {
+            ProcessedDataMatrixFileStore.log
+                    .warn( "Could not read processed data file " + file + ", removing it: " + e.getMessage() );
+            this.remove( experimentId );
+            return null;
+        }
+    }
+
+    /**
+     * Write the data for an experiment, replacing any existing file. The file is written under a temporary name first,
+     * so readers never see a partial file.
+     *
+     * @param experimentId        experiment
+     * @param quantitationTypeId  the quantitation type of the vectors
+     * @param bioAssayDimensionId the dimension of the vectors
+     * @param bioAssayIds         the bioassays of the dimension, in order
+     * @param vectorIds           the vectors
+     * @param designElementIds    the design elements of the vectors
+     * @param data                the data of the vectors, in the same order; all must be as long as the dimension
+     * @throws IOException              if the file could not be written
+     * @throws IllegalArgumentException if the data don't match the ids, or there are too many to store in a file
+     */
+    void write( Long experimentId, long quantitationTypeId, long bioAssayDimensionId, long[] bioAssayIds,
+            long[] vectorIds, long[] designElementIds, double[][] data ) throws IOException {
+        int rows = vectorIds.length;
+        int columns = bioAssayIds.length;
+        if ( designElementIds.length != rows || data.length != rows ) {
+            throw new IllegalArgumentException( "Must have the same number of vectors, design elements and data" );
+        }
+
+        if ( !directory.exists() && !directory.mkdirs() && !directory.exists() ) {
+            throw new IOException( "Could not create directory " + directory );
+        }
+
+        File file = this.getFile( experimentId );
+        File tmp = File.createTempFile( file.getName(), ".tmp", directory );
+        try {
+            try (RandomAccessFile raf = new RandomAccessFile( tmp, "rw" ); FileChannel channel = raf.getChannel()) {
+                long headerSize = ProcessedDataMatrixFileStore.getHeaderSize( rows, columns );
+                // a row is always smaller than the header, so it will fit in a mapping too
+                if ( headerSize > maxMappedBytes ) {
+                    throw new IllegalArgumentException( "Too many vectors or bioassays to store in a file" );
+                }
+                ByteBuffer header = ByteBuffer.allocate( ( int ) headerSize );
+                header.putInt( ProcessedDataMatrixFileStore.MAGIC );
+                header.putInt( ProcessedDataMatrixFileStore.VERSION );
+                header.putInt( rows );
+                header.putInt( columns );
+                header.putLong( quantitationTypeId );
+                header.putLong( bioAssayDimensionId );
+                header.asLongBuffer().put( bioAssayIds ).put( vectorIds ).put( designElementIds );
+                header.clear(); // the long view doesn't move the position.
+                ProcessedDataMatrixFileStore.writeFully( channel, header );
+
+                ByteBuffer body = ByteBuffer.allocate( columns * Double.BYTES );
+                for ( int i = 0; i < rows; i++ ) {
+                    if ( data[i].length != columns ) {
+                        throw new IllegalArgumentException(
+                                "Vector has " + data[i].length + " values, expected " + columns );
+                    }
+                    body.clear();
+                    body.asDoubleBuffer().put( data[i] );
+                    ProcessedDataMatrixFileStore.writeFully( channel, body );
+                }
+            }
+            Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE );
+        } finally {
+            if ( tmp.exists() && !tmp.delete() ) {
+                ProcessedDataMatrixFileStore.log.warn( "Could not remove " + tmp );
+            }
+        }
+
+        ProcessedDataMatrixFileStore.log
+                .info( "Wrote processed data file for experiment id=" + experimentId + " (" + rows + " x " + columns
+                        + ")" );
+    }
+
+    /**
+     * @param experimentId experiment whose file, if any, should be removed.
+     */
+    void remove( Long experimentId ) {
+        File file = this.getFile( experimentId );
+        if ( file.exists() && !file.delete() ) {
+            ProcessedDataMatrixFileStore.log.warn( "Could not remove " + file );
+        }
+    }
+
+    private File getFile( Long experimentId ) {
+        return new File( directory, "ee" + experimentId + ".processed.bin" );
+    }
+
+    private static long getHeaderSize( int rows, int columns ) {
+        return ProcessedDataMatrixFileStore.FIXED_HEADER_BYTES + ( ( long ) columns + 2L * rows ) * Long.BYTES;
+    }
+
+    private static long getSize( int rows, int columns ) {
+        return ProcessedDataMatrixFileStore.getHeaderSize( rows, columns ) + ( long ) rows * columns * Double.BYTES;
+    }
+
+    private static void writeFully( FileChannel channel, ByteBuffer buf ) throws IOException {
+        while ( buf.hasRemaining() ) {
+            channel.write( buf );
+        }
+    }
+
+    private static long[] readLongs( ByteBuffer buf, int n ) {
+        long[] result = new long[n];
+        LongBuffer longs = buf.asLongBuffer();
+        longs.get( result );
+        buf.position( buf.position() + n * Long.BYTES );
+        return result;
+    }
+
+    /**
+     * The data for one experiment, backed by the mapped file (in pieces of whole rows).
+     */
+    static class Matrix {
+
+        private final long quantitationTypeId;
+        private final long bioAssayDimensionId;
+        private final long[] bioAssayIds;
+        private final long[] vectorIds;
+        private final long[] designElementIds;
+        private final DoubleBuffer[] pieces;
+        private final int rowsPerPiece;
+
+        private Matrix( long quantitationTypeId, long bioAssayDimensionId, long[] bioAssayIds, long[] vectorIds,
+                long[] designElementIds, DoubleBuffer[] pieces, int rowsPerPiece ) {
+            this.quantitationTypeId = quantitationTypeId;
+            this.bioAssayDimensionId = bioAssayDimensionId;
+            this.bioAssayIds = bioAssayIds;
+            this.vectorIds = vectorIds;
+            this.designElementIds = designElementIds;
+            this.pieces = pieces;
+            this.rowsPerPiece = rowsPerPiece;
+        }
+
+        long getQuantitationTypeId() {
+            return quantitationTypeId;
+        }
+
+        long getBioAssayDimensionId() {
+            return bioAssayDimensionId;
+        }
+
+        long[] getBioAssayIds() {
+            return bioAssayIds;
+        }
+
+        long getDesignElementId( int row ) {
+            return designElementIds[row];
+        }
+
+        int rows() {
+            return vectorIds.length;
+        }
+
+        /**
+         * @return map of vector ids to their rows
+         */
+        Map<Long, Integer> getRowIndex() {
+            Map<Long, Integer> result = new HashMap<>( 2 * vectorIds.length );
+            for ( int i = 0; i < vectorIds.length; i++ ) {
+                result.put( vectorIds[i], i );
+            }
+            return result;
+        }
+
+        /**
+         * @param row row
+         * @return a copy of the data for the row
+         */
+        double[] copyRow( int row ) {
+            double[] result = new double[bioAssayIds.length];
+            DoubleBuffer view = pieces[row / rowsPerPiece].duplicate();
+            view.position( ( row % rowsPerPiece ) * bioAssayIds.length );
+            view.get( result );
+            return result;
+        }
+    }
+}
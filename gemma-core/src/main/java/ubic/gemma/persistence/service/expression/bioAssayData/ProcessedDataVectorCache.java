@@ -40,4 +40,30 @@ public interface ProcessedDataVectorCache {
      */
     int size();
 
+    /**
+     * @param eeId experiment id
+     * @return number of elements currently cached for the experiment. This is cheap, and exact unless entries for the
+     * experiment are being added or removed at the same time, or the cache is clustered, in which case only entries
+     * added by this node are counted.
+     */
+    int size( Long eeId );
+
+    /**
+     * @param eeId experiment id
+     * @return ids of the genes for which vectors are currently cached for the experiment.
+     */
+    Collection<Long> getCachedGeneIds( Long eeId );
+
+    /**
+     * @param eeId experiment id
+     * @return number of times {@link #get(BioAssaySet, Long)} found vectors for the experiment in the cache.
+     */
+    long getHitCount( Long eeId );
+
+    /**
+     * @param eeId experiment id
+     * @return number of times {@link #get(BioAssaySet, Long)} did not find vectors for the experiment in the cache.
+     */
+    long getMissCount( Long eeId );
+
 }
\ No newline at end of file
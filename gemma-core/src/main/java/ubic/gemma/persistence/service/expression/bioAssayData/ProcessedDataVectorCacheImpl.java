@@ -20,7 +20,9 @@ package ubic.gemma.persistence.service.expression.bioAssayData;
 
 import net.sf.ehcache.Cache;
 import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
 import net.sf.ehcache.Element;
+import net.sf.ehcache.event.CacheEventListenerAdapter;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.cache.ehcache.EhCacheManagerFactoryBean;
@@ -31,7 +33,10 @@ import ubic.gemma.persistence.util.CacheUtils;
 import ubic.gemma.persistence.util.Settings;
 
 import java.io.Serializable;
-import java.util.Collection;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Configures the cache for data vectors.
@@ -39,6 +44,10 @@ import java.util.Collection;
  * this is that having complex keys for cached Elements based on expression experiment AND gene makes it difficult to
  * invalidate the cache when an expression experiment's data changes. The drawback is that there are potentially
  * hundreds of caches; I don't know if there are any performance considerations there.
+ * Update: there is actually a single cache, keyed by experiment and gene. To avoid scanning all the keys when clearing
+ * the entries for one experiment, we keep an index of the gene ids cached for each experiment, which is kept up to date
+ * as entries are added, removed, evicted or expire. If the cache is clustered, other nodes can add entries that aren't
+ * in the local index, so in that case we fall back to scanning the keys.
  *
  * @author paul
  */
@@ -54,35 +63,75 @@ public class ProcessedDataVectorCacheImpl implements InitializingBean, Processed
     private static final int VECTOR_CACHE_DEFAULT_TIME_TO_LIVE = 10000;
 
     private Cache cache;
+    private boolean clustered = false;
+
+    /**
+     * Map of experiment id -> ids of genes that have vectors in the cache.
+     */
+    private final ConcurrentMap<Long, Set<Long>> geneIdsByExperiment = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<Long, AtomicLong> hits = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Long, AtomicLong> misses = new ConcurrentHashMap<>();
 
     @Autowired
     private EhCacheManagerFactoryBean cacheManagerFactory;
 
     @Override
     public void addToCache( Long eeId, Long g, Collection<DoubleVectorValueObject> collection ) {
-        cache.put( new Element( new CacheKey( eeId, g ), collection ) );
+        CacheKey key = new CacheKey( eeId, g );
+        Set<Long> geneIds = this.index( eeId, g );
+        cache.put( new Element( key, collection ) );
+
+        /*
+         * The index isn't updated atomically with the cache, so check what happened meanwhile. If the gene ids for the
+         * experiment were dropped (by clearCache, or because the last of them was unindexed), a clear may have missed
+         * the new entry, so remove it rather than leave it out of the index. Otherwise the gene may have been unindexed
+         * because an earlier entry for it was removed, so index it again.
+         */
+        if ( geneIdsByExperiment.get( eeId ) != geneIds ) {
+            cache.remove( key );
+        } else {
+            geneIds.add( g );
+        }
     }
 
     @Override
     public void clearCache() {
         cache.removeAll();
+        geneIdsByExperiment.clear();
+        hits.clear();
+        misses.clear();
     }
 
     @Override
     public void clearCache( Long eeId ) {
-        for ( Object o : cache.getKeys() ) {
-            CacheKey k = ( CacheKey ) o;
-            if ( k.getEeId().equals( eeId ) ) {
-                cache.remove( k );
+        if ( clustered ) {
+            for ( Object o : cache.getKeys() ) {
+                CacheKey k = ( CacheKey ) o;
+                if ( k.getEeId().equals( eeId ) ) {
+                    cache.remove( k );
+                }
             }
+            geneIdsByExperiment.remove( eeId );
+            return;
+        }
+
+        Set<Long> geneIds = geneIdsByExperiment.remove( eeId );
+        if ( geneIds == null )
+            return;
+        for ( Long g : geneIds ) {
+            cache.remove( new CacheKey( eeId, g ) );
         }
     }
 
     @Override
     public Collection<DoubleVectorValueObject> get( BioAssaySet ee, Long g ) {
         Element element = cache.get( new CacheKey( ee.getId(), g ) );
-        if ( element == null )
+        if ( element == null ) {
+            this.increment( misses, ee.getId() );
             return null;
+        }
+        this.increment( hits, ee.getId() );
         @SuppressWarnings("unchecked") Collection<DoubleVectorValueObject> result = ( Collection<DoubleVectorValueObject> ) element
                 .getObjectValue();
 
@@ -100,6 +149,32 @@ public class ProcessedDataVectorCacheImpl implements InitializingBean, Processed
         return this.cache.getSize();
     }
 
+    @Override
+    public int size( Long eeId ) {
+        Set<Long> geneIds = geneIdsByExperiment.get( eeId );
+        return geneIds == null ? 0 : geneIds.size();
+    }
+
+    @Override
+    public Collection<Long> getCachedGeneIds( Long eeId ) {
+        Set<Long> geneIds = geneIdsByExperiment.get( eeId );
+        if ( geneIds == null )
+            return Collections.emptySet();
+        return Collections.unmodifiableSet( new HashSet<>( geneIds ) );
+    }
+
+    @Override
+    public long getHitCount( Long eeId ) {
+        AtomicLong count = hits.get( eeId );
+        return count == null ? 0 : count.get();
+    }
+
+    @Override
+    public long getMissCount( Long eeId ) {
+        AtomicLong count = misses.get( eeId );
+        return count == null ? 0 : count.get();
+    }
+
     @Override
     public void afterPropertiesSet() {
         CacheManager cacheManager = this.cacheManagerFactory.getObject();
@@ -119,7 +194,89 @@ public class ProcessedDataVectorCacheImpl implements InitializingBean, Processed
         this.cache = CacheUtils
                 .createOrLoadCache( cacheManager, ProcessedDataVectorCacheImpl.VECTOR_CACHE_NAME, terracottaEnabled,
                         maxElements, overFlowToDisk, eternal, timeToIdle, timeToLive, diskPersistent );
+        this.clustered = terracottaEnabled;
 
+        /*
+         * Keep the index in sync when ehcache drops entries on its own.
+         */
+        this.cache.getCacheEventNotificationService().registerListener( new CacheEventListenerAdapter() {
+            @Override
+            public void notifyElementRemoved( Ehcache c, Element element ) {
+                ProcessedDataVectorCacheImpl.this.unindex( element );
+            }
+
+            @Override
+            public void notifyElementExpired( Ehcache c, Element element ) {
+                ProcessedDataVectorCacheImpl.this.unindex( element );
+            }
+
+            @Override
+            public void notifyElementEvicted( Ehcache c, Element element ) {
+                ProcessedDataVectorCacheImpl.this.unindex( element );
+            }
+
+            @Override
+            public void notifyRemoveAll( Ehcache c ) {
+                geneIdsByExperiment.clear();
+            }
+        } );
+
+        /*
+         * The cache can be persistent, so index what's already there.
+         */
+        for ( Object o : cache.getKeys() ) {
+            CacheKey k = ( CacheKey ) o;
+            this.index( k.getEeId(), k.getGeneId() );
+        }
+    }
+
+    /**
+     * Add the gene to the ids for the experiment, making sure it went in the set that is in the map rather than one
+     * that was just dropped from it.
+     *
+     * @return the set the gene was added to
+     */
+    private Set<Long> index( Long eeId, Long g ) {
+        while ( true ) {
+            Set<Long> geneIds = geneIdsByExperiment.get( eeId );
+            if ( geneIds == null ) {
+                Set<Long> newGeneIds = Collections.newSetFromMap( new ConcurrentHashMap<Long, Boolean>() );
+                geneIds = geneIdsByExperiment.putIfAbsent( eeId, newGeneIds );
+                if ( geneIds == null ) {
+                    geneIds = newGeneIds;
+                }
+            }
+            geneIds.add( g );
+            if ( geneIdsByExperiment.get( eeId ) == geneIds ) {
+                return geneIds;
+            }
+        }
+    }
+
+    private void increment( ConcurrentMap<Long, AtomicLong> counts, Long eeId ) {
+        counts.computeIfAbsent( eeId, k -> new AtomicLong() ).incrementAndGet();
+    }
+
+    private void unindex( Element element ) {
+        if ( element == null || !( element.getObjectKey() instanceof CacheKey ) )
+            return;
+        CacheKey k = ( CacheKey ) element.getObjectKey();
+        Set<Long> geneIds = geneIdsByExperiment.get( k.getEeId() );
+        if ( geneIds == null ) {
+            return;
+        }
+        geneIds.remove( k.getGeneId() );
+
+        if ( cache.isKeyInCache( k ) ) {
+            // a new entry was put meanwhile, and its check of the index may have come before the removal.
+            geneIds.add( k.getGeneId() );
+        } else if ( geneIds.isEmpty() && geneIdsByExperiment.remove( k.getEeId(), geneIds ) ) {
+            // genes indexed between the check and the removal are put in a new set. Their entries may have been
+            // removed already by addToCache, which is harmless: the index can list genes that aren't cached.
+            for ( Long g : geneIds ) {
+                this.index( k.getEeId(), g );
+            }
+        }
     }
 }
 
@@ -27,6 +27,7 @@ import ubic.gemma.model.expression.experiment.ExpressionExperiment;
 import ubic.gemma.model.genome.Gene;
 
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -63,6 +64,20 @@ public interface ProcessedExpressionDataVectorDao extends DesignElementDataVecto
 
     Collection<DoubleVectorValueObject> getProcessedDataArraysByProbeIds( BioAssaySet ee, Collection<Long> probes );
 
+    /**
+     * Retrieve the processed data of an experiment one batch at a time, in order of vector id. The vectors do not go
+     * through the cache and are evicted from the session once decoded, so a caller can go through all the data of a
+     * large experiment without holding it in memory.
+     *
+     * @param  ee            experiment, which must have all its processed vectors in one bioassay dimension
+     * @param  afterVectorId the id of the last vector of the previous batch, or null to start from the beginning
+     * @param  batchSize     maximum number of vectors to return
+     * @return               the next vectors, or an empty list if there are none left
+     * @throws IllegalStateException if the experiment has vectors in more than one bioassay dimension
+     */
+    List<DoubleVectorValueObject> getProcessedDataArraysBatch( ExpressionExperiment ee, Long afterVectorId,
+            int batchSize );
+
     /**
      * @param expressionExperiment ee
      * @return Processed data for the given experiment. NOTE the vectors are thawed before returning.
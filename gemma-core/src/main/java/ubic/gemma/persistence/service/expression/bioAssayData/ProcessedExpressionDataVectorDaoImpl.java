@@ -23,14 +23,18 @@ import org.hibernate.*;
 import org.hibernate.type.LongType;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import ubic.basecode.dataStructure.matrix.DenseDoubleMatrix;
 import ubic.basecode.dataStructure.matrix.DoubleMatrix;
 import ubic.basecode.util.BatchIterator;
 import ubic.gemma.core.analysis.preprocess.normalize.QuantileNormalizer;
 import ubic.gemma.core.datastructure.matrix.ExpressionDataDoubleMatrix;
 import ubic.gemma.core.datastructure.matrix.ExpressionDataDoubleMatrixUtil;
+import ubic.gemma.model.common.quantitationtype.PrimitiveType;
 import ubic.gemma.model.common.quantitationtype.QuantitationType;
 import ubic.gemma.model.common.quantitationtype.QuantitationTypeImpl;
+import ubic.gemma.model.common.quantitationtype.QuantitationTypeValueObject;
 import ubic.gemma.model.common.quantitationtype.ScaleType;
 import ubic.gemma.model.common.quantitationtype.StandardQuantitationType;
 import ubic.gemma.model.expression.arrayDesign.ArrayDesign;
@@ -48,7 +52,10 @@ import ubic.gemma.model.genome.Gene;
 import ubic.gemma.persistence.service.AbstractDao;
 import ubic.gemma.persistence.util.CommonQueries;
 import ubic.gemma.persistence.util.EntityUtils;
+import ubic.gemma.persistence.util.Settings;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
 
 /**
@@ -64,13 +71,30 @@ public class ProcessedExpressionDataVectorDaoImpl extends DesignElementDataVecto
      */
     private static final int MIN_SIZE_FOR_RENORMALIZATION = 4000;
 
+    /**
+     * If true, a copy of each experiment's processed data is kept in a file, which is used when all the data for the
+     * experiment are requested.
+     */
+    private static final boolean USE_MATRIX_FILES = Settings.getBoolean( "gemma.processeddata.matrixfiles", false );
+
     private final ProcessedDataVectorCache processedDataVectorCache;
 
+    /**
+     * Null if USE_MATRIX_FILES is false.
+     */
+    private final ProcessedDataMatrixFileStore matrixFileStore;
+
     @Autowired
     public ProcessedExpressionDataVectorDaoImpl( SessionFactory sessionFactory,
             ProcessedDataVectorCache processedDataVectorCache ) {
         super( ProcessedExpressionDataVector.class, sessionFactory );
         this.processedDataVectorCache = processedDataVectorCache;
+        if ( ProcessedExpressionDataVectorDaoImpl.USE_MATRIX_FILES ) {
+            this.matrixFileStore = new ProcessedDataMatrixFileStore(
+                    new File( Settings.getString( "gemma.appdata.home" ), "processedDataMatrices" ) );
+        } else {
+            this.matrixFileStore = null;
+        }
     }
 
     @Override
@@ -185,6 +209,10 @@ public class ProcessedExpressionDataVectorDaoImpl extends DesignElementDataVecto
 
         this.processedDataVectorCache.clearCache( expressionExperiment.getId() );
 
+        if ( matrixFileStore != null ) {
+            this.writeMatrixFileAfterCommit( expressionExperiment );
+        }
+
         return expressionExperiment;
 
     }
@@ -205,6 +233,14 @@ public class ProcessedExpressionDataVectorDaoImpl extends DesignElementDataVecto
     @Override
     public Collection<DoubleVectorValueObject> getProcessedDataArrays( BioAssaySet ee, int limit ) {
 
+        boolean useMatrixFile = matrixFileStore != null && limit < 0 && ee instanceof ExpressionExperiment;
+        if ( useMatrixFile ) {
+            Collection<DoubleVectorValueObject> fromFile = this.readMatrixFile( ( ExpressionExperiment ) ee );
+            if ( fromFile != null ) {
+                return fromFile;
+            }
+        }
+
         Collection<ProcessedExpressionDataVector> pedvs = this.getProcessedVectors( this.getExperiment( ee ), limit );
 
         if ( pedvs.isEmpty() ) {
@@ -227,6 +263,13 @@ public class ProcessedExpressionDataVectorDaoImpl extends DesignElementDataVecto
         Collection<BioAssayDimension> bioAssayDimensions = this.getBioAssayDimensions( ee );
 
         if ( bioAssayDimensions.size() == 1 ) {
+            if ( useMatrixFile ) {
+                List<ProcessedExpressionDataVector> vectors = new ArrayList<>( pedvs );
+                double[][] values = this.decode( vectors, null );
+                BioAssayDimension bad = bioAssayDimensions.iterator().next();
+                this.writeMatrixFile( ee.getId(), vectors, bad.getId(), this.getBioAssayIds( bad ), values );
+                return this.unpack( vectors, cs2gene, values ).values();
+            }
             return this.unpack( pedvs, cs2gene ).values();
         }
 
@@ -267,6 +310,42 @@ public class ProcessedExpressionDataVectorDaoImpl extends DesignElementDataVecto
         return this.getProcessedDataArraysByProbeIds( Collections.singleton( ee ), probes );
     }
 
+    @Override
+    public List<DoubleVectorValueObject> getProcessedDataArraysBatch( ExpressionExperiment ee, Long afterVectorId,
+            int batchSize ) {
+        Session session = this.getSessionFactory().getCurrentSession();
+        if ( afterVectorId == null && this.getBioAssayDimensions( ee ).size() > 1 ) {
+            throw new IllegalStateException(
+                    "Experiment id=" + ee.getId() + " has processed vectors in more than one bioassay dimension" );
+        }
+
+        //noinspection unchecked
+        List<ProcessedExpressionDataVector> vectors = session.createQuery(
+                " from ProcessedExpressionDataVector dedv where dedv.expressionExperiment.id = :ee and dedv.id > :after"
+                        + " order by dedv.id" ).setParameter( "ee", ee.getId(), LongType.INSTANCE )
+                .setParameter( "after", afterVectorId == null ? 0L : afterVectorId, LongType.INSTANCE )
+                .setMaxResults( batchSize ).setReadOnly( true ).list();
+
+        List<DoubleVectorValueObject> result = new ArrayList<>( vectors.size() );
+        if ( vectors.isEmpty() ) {
+            return result;
+        }
+
+        double[][] values = this.decode( vectors, null );
+        Map<BioAssayDimension, BioAssayDimensionValueObject> badVos = this.getBioAssayDimensionValueObjects( vectors );
+        int i = 0;
+        for ( ProcessedExpressionDataVector v : vectors ) {
+            result.add( new DoubleVectorValueObject( v, null, badVos.get( v.getBioAssayDimension() ),
+                    values[i++] ) );
+        }
+
+        // the data blobs are the bulk of the session; the caller will not come back to these vectors.
+        for ( ProcessedExpressionDataVector v : vectors ) {
+            session.evict( v );
+        }
+        return result;
+    }
+
     @Override
     public Collection<ProcessedExpressionDataVector> getProcessedVectors( ExpressionExperiment ee ) {
         //language=HQL
@@ -447,6 +526,10 @@ public class ProcessedExpressionDataVectorDaoImpl extends DesignElementDataVecto
         assert expressionExperiment != null;
         assert expressionExperiment.getId() != null;
 
+        if ( matrixFileStore != null ) {
+            matrixFileStore.remove( expressionExperiment.getId() );
+        }
+
         if ( !this.getSessionFactory().getCurrentSession().contains( expressionExperiment ) ) {
             expressionExperiment = ( ExpressionExperiment ) this.getSessionFactory().getCurrentSession()
                     .get( ExpressionExperiment.class, expressionExperiment.getId() );
@@ -483,6 +566,17 @@ public class ProcessedExpressionDataVectorDaoImpl extends DesignElementDataVecto
         }
     }
 
+    /**
+     * Also discards the stored copy of the experiment's data, if any, as it might no longer match.
+     */
+    @Override
+    public void update( ProcessedExpressionDataVector entity ) {
+        super.update( entity );
+        if ( matrixFileStore != null && entity.getExpressionExperiment() != null ) {
+            matrixFileStore.remove( entity.getExpressionExperiment().getId() );
+        }
+    }
+
     /**
      * Make sure the data are on a log2 scale
      *
@@ -809,6 +903,16 @@ public class ProcessedExpressionDataVectorDaoImpl extends DesignElementDataVecto
         return badVos;
     }
 
+    private long[] getBioAssayIds( BioAssayDimension bioAssayDimension ) {
+        List<BioAssay> bioAssays = bioAssayDimension.getBioAssays();
+        long[] result = new long[bioAssays.size()];
+        int i = 0;
+        for ( BioAssay ba : bioAssays ) {
+            result[i++] = ba.getId();
+        }
+        return result;
+    }
+
     private ExpressionExperiment getExperiment( BioAssaySet bas ) {
         ExpressionExperiment e;
         if ( bas instanceof ExpressionExperiment ) {
@@ -1226,6 +1330,83 @@ public class ProcessedExpressionDataVectorDaoImpl extends DesignElementDataVecto
         return isTwoChannel;
     }
 
+    /**
+     * Read all the processed data for an experiment from the stored copy. The vectors are checked against the database
+     * (but their data are not loaded from it).
+     *
+     * @param  ee ee
+     * @return    the vectors, or null if there is no stored copy or it doesn't match the database, in which case it is
+     *            discarded.
+     */
+    private Collection<DoubleVectorValueObject> readMatrixFile( ExpressionExperiment ee ) {
+        ProcessedDataMatrixFileStore.Matrix matrix = matrixFileStore.read( ee.getId() );
+        if ( matrix == null ) {
+            return null;
+        }
+
+        StopWatch timer = new StopWatch();
+        timer.start();
+
+        Collection<BioAssayDimension> bioAssayDimensions = this.getBioAssayDimensions( ee );
+        BioAssayDimension bad = bioAssayDimensions.size() == 1 ? bioAssayDimensions.iterator().next() : null;
+        if ( bad == null || bad.getId() != matrix.getBioAssayDimensionId() || !Arrays
+                .equals( this.getBioAssayIds( bad ), matrix.getBioAssayIds() ) ) {
+            return this.discardMatrixFile( ee, "bioassays have changed" );
+        }
+
+        //noinspection unchecked
+        List<Object[]> rows = this.getSessionFactory().getCurrentSession().createQuery(
+                "select v.id, v.designElement, v.quantitationType, v.rankByMean, v.rankByMax "
+                        + "from ProcessedExpressionDataVector v where v.expressionExperiment.id = :ee" )
+                .setParameter( "ee", ee.getId() ).list();
+        if ( rows.size() != matrix.rows() ) {
+            return this.discardMatrixFile( ee, "number of vectors has changed" );
+        }
+
+        Map<Long, Integer> rowIndex = matrix.getRowIndex();
+        Collection<Long> probes = new ArrayList<>( rows.size() );
+        for ( Object[] row : rows ) {
+            Integer r = rowIndex.get( ( Long ) row[0] );
+            CompositeSequence cs = ( CompositeSequence ) row[1];
+            QuantitationType qt = ( QuantitationType ) row[2];
+            if ( r == null || cs.getId() != matrix.getDesignElementId( r ) || qt.getId() != matrix
+                    .getQuantitationTypeId() ) {
+                return this.discardMatrixFile( ee, "vectors have changed" );
+            }
+            probes.add( cs.getId() );
+        }
+
+        Map<Long, Collection<Long>> cs2gene = CommonQueries
+                .getCs2GeneMapForProbes( probes, this.getSessionFactory().getCurrentSession() );
+
+        // these are the same for all the vectors.
+        BioAssayDimensionValueObject badVo = new BioAssayDimensionValueObject( bad );
+        ExpressionExperimentValueObject eeVo = new ExpressionExperimentValueObject( ee );
+        QuantitationType qt = ( QuantitationType ) rows.get( 0 )[2];
+        QuantitationTypeValueObject qtVo = new QuantitationTypeValueObject( qt );
+
+        Collection<DoubleVectorValueObject> result = new ArrayList<>( rows.size() );
+        for ( Object[] row : rows ) {
+            Long id = ( Long ) row[0];
+            CompositeSequence cs = ( CompositeSequence ) row[1];
+            result.add( new DoubleVectorValueObject( id, new CompositeSequenceValueObject( cs ), eeVo, qt, qtVo, badVo,
+                    cs2gene.get( cs.getId() ), ( Double ) row[3], ( Double ) row[4],
+                    matrix.copyRow( rowIndex.get( id ) ) ) );
+        }
+
+        if ( timer.getTime() > 1000 ) {
+            AbstractDao.log.info( "Read " + result.size() + " vectors for experiment id=" + ee.getId()
+                    + " from stored copy: " + timer.getTime() + "ms" );
+        }
+        return result;
+    }
+
+    private Collection<DoubleVectorValueObject> discardMatrixFile( ExpressionExperiment ee, String reason ) {
+        AbstractDao.log.info( "Discarding stored processed data for experiment id=" + ee.getId() + ": " + reason );
+        matrixFileStore.remove( ee.getId() );
+        return null;
+    }
+
     private Map<Long, Map<Long, Collection<DoubleVectorValueObject>>> makeCacheMap(
             Collection<DoubleVectorValueObject> newResults ) {
         Map<Long, Map<Long, Collection<DoubleVectorValueObject>>> mapForCache = new HashMap<>();
@@ -1254,48 +1435,44 @@ public class ProcessedExpressionDataVectorDaoImpl extends DesignElementDataVecto
      */
     private Map<CompositeSequence, DoubleVectorValueObject> maskAndUnpack(
             Collection<RawExpressionDataVector> preferredData, Collection<RawExpressionDataVector> missingValueData ) {
-        Map<CompositeSequence, DoubleVectorValueObject> unpackedData = this.unpack( preferredData );
 
         if ( missingValueData.size() == 0 ) {
             AbstractDao.log.debug( "There is no separate missing data information, simply using the data as is" );
-            for ( DoubleVectorValueObject rv : unpackedData.values() ) {
-                rv.setMasked( true );
-            }
-            return unpackedData;
         }
 
-        Collection<BooleanVectorValueObject> unpackedMissingValueData = this.unpackBooleans( missingValueData );
-        Map<CompositeSequenceValueObject, BooleanVectorValueObject> missingValueMap = new HashMap<>();
-        for ( BooleanVectorValueObject bv : unpackedMissingValueData ) {
-            missingValueMap.put( bv.getDesignElement(), bv );
+        // the masks are applied as the data are decoded.
+        Map<Long, byte[]> missingValueMap = new HashMap<>();
+        for ( RawExpressionDataVector mv : missingValueData ) {
+            if ( !mv.getQuantitationType().getRepresentation().equals( PrimitiveType.BOOLEAN ) ) {
+                throw new IllegalArgumentException( "Can only use boolean vectors as masks, got " + mv
+                        .getQuantitationType() );
+            }
+            missingValueMap.put( mv.getDesignElement().getId(), mv.getData() );
         }
 
+        List<RawExpressionDataVector> vectors = new ArrayList<>( preferredData );
+        List<byte[]> masks = new ArrayList<>( vectors.size() );
         boolean warned = false;
-        for ( DoubleVectorValueObject rv : unpackedData.values() ) {
-            double[] data = rv.getData();
-            CompositeSequenceValueObject de = rv.getDesignElement();
-            BooleanVectorValueObject mv = missingValueMap.get( de );
-            if ( mv == null ) {
-                if ( !warned && AbstractDao.log.isWarnEnabled() )
-                    AbstractDao.log.warn( "No mask vector for " + de
-                            + ", additional warnings for missing masks for this job will be skipped" );
+        for ( RawExpressionDataVector v : vectors ) {
+            byte[] mask = missingValueMap.get( v.getDesignElement().getId() );
+            if ( mask == null && !missingValueMap.isEmpty() && !warned ) {
                 // we're missing a mask vector for it for some reason, but still flag it as effectively masked.
-                rv.setMasked( true );
+                AbstractDao.log.warn( "No mask vector for " + v.getDesignElement()
+                        + ", additional warnings for missing masks for this job will be skipped" );
                 warned = true;
-                continue;
             }
+            masks.add( mask );
+        }
 
-            boolean[] mvData = mv.getData();
-
-            if ( mvData.length != data.length ) {
-                throw new IllegalStateException( "Missing value data didn't match data length" );
-            }
-            for ( int i = 0; i < data.length; i++ ) {
-                if ( !mvData[i] ) {
-                    data[i] = Double.NaN;
-                }
-            }
+        Map<CompositeSequence, DoubleVectorValueObject> unpackedData = new HashMap<>();
+        Map<BioAssayDimension, BioAssayDimensionValueObject> badVos = this.getBioAssayDimensionValueObjects( vectors );
+        double[][] values = this.decode( vectors, masks );
+        int i = 0;
+        for ( RawExpressionDataVector v : vectors ) {
+            DoubleVectorValueObject rv = new DoubleVectorValueObject( v, null,
+                    badVos.get( v.getBioAssayDimension() ), values[i++] );
             rv.setMasked( true );
+            unpackedData.put( v.getDesignElement(), rv );
         }
 
         return unpackedData;
@@ -1460,21 +1637,35 @@ public class ProcessedExpressionDataVectorDaoImpl extends DesignElementDataVecto
             Collection<? extends DesignElementDataVector> data ) {
         Map<CompositeSequence, DoubleVectorValueObject> result = new HashMap<>();
         Map<BioAssayDimension, BioAssayDimensionValueObject> badVos = this.getBioAssayDimensionValueObjects( data );
-        for ( DesignElementDataVector v : data ) {
+        List<DesignElementDataVector> vectors = new ArrayList<>( data );
+        double[][] values = this.decode( vectors, null );
+        int i = 0;
+        for ( DesignElementDataVector v : vectors ) {
             result.put( v.getDesignElement(),
-                    new DoubleVectorValueObject( v, badVos.get( v.getBioAssayDimension() ) ) );
+                    new DoubleVectorValueObject( v, null, badVos.get( v.getBioAssayDimension() ),
+                            values[i++] ) );
         }
         return result;
     }
 
     private Map<CompositeSequence, DoubleVectorValueObject> unpack( Collection<? extends DesignElementDataVector> data,
             Map<Long, Collection<Long>> cs2GeneMap ) {
+        List<DesignElementDataVector> vectors = new ArrayList<>( data );
+        return this.unpack( vectors, cs2GeneMap, this.decode( vectors, null ) );
+    }
+
+    /**
+     * @param values the decoded data of the vectors, in the same order
+     */
+    private Map<CompositeSequence, DoubleVectorValueObject> unpack( List<? extends DesignElementDataVector> vectors,
+            Map<Long, Collection<Long>> cs2GeneMap, double[][] values ) {
         Map<CompositeSequence, DoubleVectorValueObject> result = new HashMap<>();
-        Map<BioAssayDimension, BioAssayDimensionValueObject> badVos = this.getBioAssayDimensionValueObjects( data );
-        for ( DesignElementDataVector v : data ) {
+        Map<BioAssayDimension, BioAssayDimensionValueObject> badVos = this.getBioAssayDimensionValueObjects( vectors );
+        int i = 0;
+        for ( DesignElementDataVector v : vectors ) {
             result.put( v.getDesignElement(),
                     new DoubleVectorValueObject( v, cs2GeneMap.get( v.getDesignElement().getId() ),
-                            badVos.get( v.getBioAssayDimension() ) ) );
+                            badVos.get( v.getBioAssayDimension() ), values[i++] ) );
         }
         return result;
     }
@@ -1483,9 +1674,12 @@ public class ProcessedExpressionDataVectorDaoImpl extends DesignElementDataVecto
             Map<Long, Collection<Long>> cs2GeneMap, BioAssayDimension longestBad ) {
         Collection<DoubleVectorValueObject> result = new HashSet<>();
         Map<BioAssayDimension, BioAssayDimensionValueObject> badVos = this.getBioAssayDimensionValueObjects( data );
-        for ( DesignElementDataVector v : data ) {
+        List<DesignElementDataVector> vectors = new ArrayList<>( data );
+        double[][] values = this.decode( vectors, null );
+        int i = 0;
+        for ( DesignElementDataVector v : vectors ) {
             result.add( new DoubleVectorValueObject( v, badVos.get( v.getBioAssayDimension() ),
-                    cs2GeneMap.get( v.getDesignElement().getId() ), longestBad ) );
+                    cs2GeneMap.get( v.getDesignElement().getId() ), longestBad, values[i++] ) );
         }
         return result;
     }
@@ -1495,9 +1689,12 @@ public class ProcessedExpressionDataVectorDaoImpl extends DesignElementDataVecto
         Collection<DoubleVectorValueObject> result = new HashSet<>();
         Map<BioAssayDimension, BioAssayDimensionValueObject> badVos = this
                 .getBioAssayDimensionValueObjects( data.keySet() );
-
-        for ( DesignElementDataVector v : data.keySet() ) {
-            result.add( new DoubleVectorValueObject( v, data.get( v ), badVos.get( v.getBioAssayDimension() ) ) );
+        List<DesignElementDataVector> vectors = new ArrayList<>( data.keySet() );
+        double[][] values = this.decode( vectors, null );
+        int i = 0;
+        for ( DesignElementDataVector v : vectors ) {
+            result.add( new DoubleVectorValueObject( v, data.get( v ), badVos.get( v.getBioAssayDimension() ),
+                    values[i++] ) );
         }
         return result;
     }
@@ -1507,21 +1704,95 @@ public class ProcessedExpressionDataVectorDaoImpl extends DesignElementDataVecto
         Collection<DoubleVectorValueObject> result = new HashSet<>();
         Map<BioAssayDimension, BioAssayDimensionValueObject> badVos = this
                 .getBioAssayDimensionValueObjects( data.keySet() );
-        for ( ProcessedExpressionDataVector v : data.keySet() ) {
+        List<ProcessedExpressionDataVector> vectors = new ArrayList<>( data.keySet() );
+        double[][] values = this.decode( vectors, null );
+        int i = 0;
+        for ( ProcessedExpressionDataVector v : vectors ) {
             result.add( new DoubleVectorValueObject( v, badVos.get( v.getBioAssayDimension() ), data.get( v ),
-                    longestBad ) );
+                    longestBad, values[i++] ) );
         }
         return result;
     }
 
-    private Collection<BooleanVectorValueObject> unpackBooleans( Collection<? extends DesignElementDataVector> data ) {
-        Collection<BooleanVectorValueObject> result = new HashSet<>();
+    /**
+     * Decode the data of all the vectors in one pass (rather than vector by vector as the value objects are created).
+     *
+     * @param  vectors vectors, which must be of doubles (the value objects check this)
+     * @param  masks   missing value data for each vector, or null
+     * @return decoded data, in the same order as the vectors
+     */
+    private double[][] decode( List<? extends DesignElementDataVector> vectors, List<byte[]> masks ) {
+        List<byte[]> data = new ArrayList<>( vectors.size() );
+        for ( DesignElementDataVector v : vectors ) {
+            data.add( v.getData() );
+        }
+        return DoubleVectorDecoder.decode( data, masks );
+    }
 
-        Map<BioAssayDimension, BioAssayDimensionValueObject> badVos = this.getBioAssayDimensionValueObjects( data );
+    /**
+     * Store a copy of the processed data of an experiment. This is only a convenience for later reads, so failures are
+     * just logged.
+     *
+     * @param eeId                experiment
+     * @param vectors             all the processed vectors of the experiment, which must all have the same
+     *                            quantitation type and bioassay dimension
+     * @param bioAssayDimensionId the dimension of the vectors
+     * @param bioAssayIds         the bioassays of the dimension, in order
+     * @param values              the decoded data of the vectors, in the same order
+     */
+    private void writeMatrixFile( Long eeId, List<? extends DesignElementDataVector> vectors, Long bioAssayDimensionId,
+            long[] bioAssayIds, double[][] values ) {
+        if ( vectors.isEmpty() ) {
+            return;
+        }
+        Long qtId = vectors.get( 0 ).getQuantitationType().getId();
+        long[] vectorIds = new long[vectors.size()];
+        long[] designElementIds = new long[vectors.size()];
+        int i = 0;
+        for ( DesignElementDataVector v : vectors ) {
+            if ( v.getId() == null || qtId == null || !qtId.equals( v.getQuantitationType().getId() )
+                    || !bioAssayDimensionId.equals( v.getBioAssayDimension().getId() ) ) {
+                AbstractDao.log.info( "Not storing processed data for experiment id=" + eeId
+                        + ": vectors don't all have the same quantitation type and bioassay dimension" );
+                return;
+            }
+            vectorIds[i] = v.getId();
+            designElementIds[i] = v.getDesignElement().getId();
+            i++;
+        }
 
-        for ( DesignElementDataVector v : data ) {
-            result.add( new BooleanVectorValueObject( v, badVos.get( v.getBioAssayDimension() ) ) );
+        try {
+            matrixFileStore.write( eeId, qtId, bioAssayDimensionId, bioAssayIds, vectorIds, designElementIds, values );
+        } catch ( IOException | IllegalArgumentException e ) {
+            AbstractDao.log.warn( "Could not store processed data for experiment id=" + eeId + ": " + e.getMessage() );
+            matrixFileStore.remove( eeId );
         }
-        return result;
+    }
+
+    /**
+     * Store a copy of the newly created processed data once they are committed (so the vectors have their ids).
+     */
+    private void writeMatrixFileAfterCommit( ExpressionExperiment expressionExperiment ) {
+        if ( !TransactionSynchronizationManager.isSynchronizationActive() || expressionExperiment
+                .getProcessedExpressionDataVectors().isEmpty() ) {
+            return; // will be stored the first time they are read.
+        }
+        final Long eeId = expressionExperiment.getId();
+        final List<ProcessedExpressionDataVector> vectors = new ArrayList<>(
+                expressionExperiment.getProcessedExpressionDataVectors() );
+        final BioAssayDimension bad = vectors.get( 0 ).getBioAssayDimension();
+        final long[] bioAssayIds = this.getBioAssayIds( bad );
+        TransactionSynchronizationManager.registerSynchronization( new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                try {
+                    ProcessedExpressionDataVectorDaoImpl.this.writeMatrixFile( eeId, vectors, bad.getId(), bioAssayIds,
+                            ProcessedExpressionDataVectorDaoImpl.this.decode( vectors, null ) );
+                } catch ( RuntimeException e ) {
+                    AbstractDao.log
+                            .warn( "Could not store processed data for experiment id=" + eeId + ": " + e.getMessage() );
+                }
+            }
+        } );
     }
 }
@@ -141,6 +141,18 @@ public interface ProcessedExpressionDataVectorService
     Collection<DoubleVectorValueObject> getProcessedDataArraysByProbeIds( BioAssaySet analyzedSet,
             Collection<Long> probes );
 
+    /**
+     * Retrieve the processed data of an experiment one batch at a time, in order of vector id, bypassing the cache.
+     *
+     * @param  ee            experiment, which must have all its processed vectors in one bioassay dimension
+     * @param  afterVectorId the id of the last vector of the previous batch, or null to start from the beginning
+     * @param  batchSize     maximum number of vectors to return
+     * @return               the next vectors, or an empty list if there are none left
+     */
+    @Secured({ "IS_AUTHENTICATED_ANONYMOUSLY", "ACL_SECURABLE_READ" })
+    List<DoubleVectorValueObject> getProcessedDataArraysBatch( ExpressionExperiment ee, Long afterVectorId,
+            int batchSize );
+
     Collection<ProcessedExpressionDataVector> getProcessedDataVectors( ExpressionExperiment expressionExperiment );
 
     @Secured({ "IS_AUTHENTICATED_ANONYMOUSLY", "ACL_AFTER_MAP_READ", "ACL_SECURABLE_COLLECTION_READ" })
@@ -194,6 +194,13 @@ public class ProcessedExpressionDataVectorServiceImpl
         return this.processedExpressionDataVectorDao.getProcessedDataArraysByProbeIds( ee, probes );
     }
 
+    @Override
+    @Transactional(readOnly = true)
+    public List<DoubleVectorValueObject> getProcessedDataArraysBatch( ExpressionExperiment ee, Long afterVectorId,
+            int batchSize ) {
+        return this.processedExpressionDataVectorDao.getProcessedDataArraysBatch( ee, afterVectorId, batchSize );
+    }
+
     @Override
     @Transactional(readOnly = true)
     public Collection<ProcessedExpressionDataVector> getProcessedDataVectors(
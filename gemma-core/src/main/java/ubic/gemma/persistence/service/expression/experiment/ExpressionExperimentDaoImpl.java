@@ -80,6 +80,11 @@ public class ExpressionExperimentDaoImpl
 
     private static final int BATCH_SIZE = 1000;
     private static final int NON_ADMIN_QUERY_FILTER_COUNT = 2;
+    /**
+     * Query cache region for the counts of experiments matching filters, so they don't compete with other queries.
+     */
+    private static final String COUNT_QUERY_CACHE_REGION = "ubic.gemma.model.expression.experiment.ExpressionExperiment"
+            + ".counts";
 
     @Autowired
     public ExpressionExperimentDaoImpl( SessionFactory sessionFactory ) {
@@ -1077,13 +1082,18 @@ public class ExpressionExperimentDaoImpl
         List<Object[]> list = query.list();
         log.info( "EE details query: " + timer.getTime() + " ms for " + list.size() + " results" );
 
+        Map<Long, Collection<ArrayDesignValueObject>> adVosByEe = CommonQueries
+                .getArrayDesignsUsedVOs( this.getIds( list ), this.getSessionFactory().getCurrentSession() );
+
         List<ExpressionExperimentDetailsValueObject> vos = new ArrayList<>( list.size() );
         for ( Object[] row : list ) {
             ExpressionExperimentDetailsValueObject vo = new ExpressionExperimentDetailsValueObject( row );
 
-            // Add array design info; watch out: this may be a performance drain for long lists  (if so, could batch)
-            Collection<ArrayDesignValueObject> adVos = CommonQueries
-                    .getArrayDesignsUsedVOs( vo.getId(), this.getSessionFactory().getCurrentSession() );
+            // Add array design info
+            Collection<ArrayDesignValueObject> adVos = adVosByEe.get( vo.getId() );
+            if ( adVos == null ) {
+                adVos = new ArrayList<>();
+            }
             vo.setArrayDesigns( adVos ); // also sets taxon name, technology type, and number of ADs.
 
             // watch out: this may be a performance drain for long lists (if so, could batch)
@@ -1207,18 +1217,23 @@ public class ExpressionExperimentDaoImpl
         List<Object[]> list = query.list();
         List<ExpressionExperimentValueObject> vos = new ArrayList<>( list.size() );
 
-        Query queryCnt = this.getCountVosQueryString( filter, orderByProperty, !asc );
-        queryCnt.setCacheable( true );
-        int totalCnt = queryCnt.list().size();
+        int totalCnt;
+        if ( offset <= 0 && limit <= 0 ) {
+            totalCnt = list.size(); // we have all of them.
+        } else {
+            totalCnt = ( ( Long ) this.getCountQuery( filter ).uniqueResult() ).intValue();
+        }
+
+        // Add array design info for the whole page at once
+        Map<Long, Collection<ArrayDesignValueObject>> adVosByEe = CommonQueries
+                .getArrayDesignsUsedVOs( this.getIds( list ), this.getSessionFactory().getCurrentSession() );
 
         for ( Object[] row : list ) {
             ExpressionExperimentValueObject vo = new ExpressionExperimentValueObject( row, totalCnt );
 
-            // Add array design info; watch out: this may be a performance drain for long lists  (if so, could batch)
-            Collection<ArrayDesignValueObject> adVos = CommonQueries
-                    .getArrayDesignsUsedVOs( vo.getId(), this.getSessionFactory().getCurrentSession() );
+            Collection<ArrayDesignValueObject> adVos = adVosByEe.get( vo.getId() );
 
-            if ( adVos.isEmpty() ) {
+            if ( adVos == null || adVos.isEmpty() ) {
                 log.debug( "Missing array design information for " + vo );
                 continue;
             }
@@ -1390,25 +1405,38 @@ public class ExpressionExperimentDaoImpl
     }
 
     /**
-     * ??
-     *
-     * @param  filters         filters
-     * @param  orderByProperty orderByProperty
-     * @param  orderDesc       orderDesc
-     * @return                 ?
+     * @param  filters filters, as for {@link this#getLoadValueObjectsQueryString(List, String, boolean)}
+     * @return         a query for the number of experiments matching the filters, with the same security restrictions
+     *                 as the value object query. The result is cached in its own region, keyed by the query (which
+     *                 reflects the filters and the user's role) and its parameters (filter values and user name).
      */
-    private Query getCountVosQueryString( List<ObjectFilter[]> filters, String orderByProperty, boolean orderDesc ) {
+    private Query getCountQuery( List<ObjectFilter[]> filters ) {
 
         // Restrict to non-troubled EEs for non-administrators
         filters = getObjectFilters( filters );
 
         //noinspection JpaQlInspection // the constants for aliases is messing with the inspector
-        String queryString = "select " + ObjectFilter.DAO_EE_ALIAS + ".id " // 0
+        String queryString = "select count(distinct " + ObjectFilter.DAO_EE_ALIAS + ".id) "
                 + " from ExpressionExperiment as " + ObjectFilter.DAO_EE_ALIAS;
 
         queryString = queryString + getFilterJoins( filters );
 
-        return postProcessVoQuery( filters, orderByProperty, orderDesc, queryString );
+        Query query = postProcessVoQuery( filters, null, false, queryString );
+        query.setCacheable( true );
+        query.setCacheRegion( ExpressionExperimentDaoImpl.COUNT_QUERY_CACHE_REGION );
+        return query;
+    }
+
+    /**
+     * @param  rows results of the value object query
+     * @return      the experiment ids
+     */
+    private Collection<Long> getIds( List<Object[]> rows ) {
+        Collection<Long> ids = new ArrayList<>( rows.size() );
+        for ( Object[] row : rows ) {
+            ids.add( ( Long ) row[0] );
+        }
+        return ids;
     }
 
     private <C extends ExpressionExperimentValueObject> Map<Long, C> getExpressionExperimentValueObjectMap(
@@ -25,6 +25,7 @@ import org.apache.commons.logging.LogFactory;
 import org.hibernate.*;
 import org.hibernate.persister.entity.SingleTableEntityPersister;
 import org.hibernate.type.LongType;
+import ubic.basecode.util.BatchIterator;
 import ubic.gemma.model.expression.arrayDesign.ArrayDesign;
 import ubic.gemma.model.expression.arrayDesign.ArrayDesignValueObject;
 import ubic.gemma.model.expression.designElement.CompositeSequence;
@@ -171,6 +172,51 @@ public class CommonQueries {
         return vos;
     }
 
+    /**
+     * Batched version of {@link #getArrayDesignsUsedVOs(Long, Session)}, for many experiments at once.
+     *
+     * @param eeIds   experiment ids
+     * @param session session
+     * @return map of experiment ids to the array designs used in them. Experiments without any are omitted. Value
+     * objects are shared among experiments that used the same array design.
+     */
+    public static Map<Long, Collection<ArrayDesignValueObject>> getArrayDesignsUsedVOs( Collection<Long> eeIds,
+            Session session ) {
+        Map<Long, Collection<ArrayDesignValueObject>> result = new HashMap<>();
+        if ( eeIds == null || eeIds.isEmpty() )
+            return result;
+
+        // sorted so the query can be cached
+        List<Long> ids = new ArrayList<>( new TreeSet<>( eeIds ) );
+
+        final String eeAdQuery = "select distinct ee.id, ad from ExpressionExperiment as ee inner join "
+                + "ee.bioAssays b inner join b.arrayDesignUsed ad inner join ad.primaryTaxon fetch all properties "
+                + "where ee.id in (:ees)";
+
+        Map<ArrayDesign, ArrayDesignValueObject> vos = new HashMap<>();
+        for ( Collection<Long> batch : BatchIterator.batches( ids, 1000 ) ) {
+            Query queryObject = session.createQuery( eeAdQuery );
+            queryObject.setCacheable( true );
+            queryObject.setParameterList( "ees", batch );
+            queryObject.setReadOnly( true );
+            queryObject.setFlushMode( FlushMode.MANUAL );
+
+            for ( Object o : queryObject.list() ) {
+                Object[] ar = ( Object[] ) o;
+                Long ee = ( Long ) ar[0];
+                ArrayDesign ad = ( ArrayDesign ) ar[1];
+                if ( !vos.containsKey( ad ) ) {
+                    vos.put( ad, new ArrayDesignValueObject( ad ) );
+                }
+                if ( !result.containsKey( ee ) ) {
+                    result.put( ee, new LinkedList<ArrayDesignValueObject>() );
+                }
+                result.get( ee ).add( vos.get( ad ) );
+            }
+        }
+        return result;
+    }
+
     /**
      * @param session session
      * @param eeId    experiment id
@@ -0,0 +1,145 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2021 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.persistence.util;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread pools shared by the code that splits its work into concurrent tasks, so the number of threads is bounded
+ * however many analyses, corrections or searches are running. Much of that code is not managed by Spring (e.g. it is
+ * created with <code>new</code>), so the pools are reached statically; they are created when first used.
+ * <p>
+ * This is a bean only so the pools are shut down when the application context is closed, rather than outliving it
+ * (e.g. when the web application is redeployed). A pool requested after that is created again.
+ * </p>
+ */
+@Component
+public class SharedExecutors implements DisposableBean {
+
+    private static final Log log = LogFactory.getLog( SharedExecutors.class );
+
+    /**
+     * How long to let running tasks finish when shutting down before interrupting them, in seconds.
+     */
+    private static final int SHUTDOWN_WAIT_SECONDS = 10;
+
+    private static ForkJoinPool computePool = null;
+
+    private static final Map<String, ExecutorService> executors = new HashMap<>();
+
+    /**
+     * @return the pool for CPU-bound work (filtering, batch correction, correlations, model fitting), with as many
+     *         threads as set by <code>gemma.compute.threads</code>. Tasks must not block on anything but other tasks
+     *         in this pool. Being a fork-join pool, it can also run {@link java.util.concurrent.ForkJoinTask}s.
+     */
+    public static synchronized ForkJoinPool getComputePool() {
+        if ( SharedExecutors.computePool == null ) {
+            int numThreads = Settings.getInt( "gemma.compute.threads", 0 );
+            if ( numThreads <= 0 ) {
+                numThreads = Runtime.getRuntime().availableProcessors();
+            }
+            SharedExecutors.computePool = new ForkJoinPool( numThreads, new ComputeThreadFactory(), null, false );
+            SharedExecutors.log.info( "Using " + numThreads + " threads for computation" );
+        }
+        return SharedExecutors.computePool;
+    }
+
+    /**
+     * For work that spends its time waiting, e.g. on database queries, and so should neither occupy the compute
+     * threads nor be limited to their number.
+     *
+     * @param  name       name of the pool, also used for its threads
+     * @param  numThreads number of threads, if the pool is not already created
+     * @return the pool with the given name
+     */
+    public static synchronized ExecutorService getExecutor( String name, int numThreads ) {
+        ExecutorService executor = SharedExecutors.executors.get( name );
+        if ( executor == null ) {
+            executor = Executors.newFixedThreadPool( numThreads,
+                    new ThreadFactoryBuilder().setNameFormat( name + "-%d" ).setDaemon( true ).build() );
+            SharedExecutors.executors.put( name, executor );
+            SharedExecutors.log.info( "Using " + numThreads + " threads for " + name );
+        }
+        return executor;
+    }
+
+    /**
+     * Stop all the pools, waiting a little for running tasks and then interrupting them.
+     */
+    public static void shutdown() {
+        Map<String, ExecutorService> all;
+        synchronized ( SharedExecutors.class ) {
+            all = new HashMap<>( SharedExecutors.executors );
+            if ( SharedExecutors.computePool != null ) {
+                all.put( "computation", SharedExecutors.computePool );
+            }
+            SharedExecutors.computePool = null;
+            SharedExecutors.executors.clear();
+        }
+
+        for ( ExecutorService executor : all.values() ) {
+            executor.shutdown();
+        }
+        for ( Map.Entry<String, ExecutorService> e : all.entrySet() ) {
+            try {
+                if ( !e.getValue().awaitTermination( SharedExecutors.SHUTDOWN_WAIT_SECONDS, TimeUnit.SECONDS ) ) {
+                    SharedExecutors.log.warn( "Tasks still running for " + e.getKey() + ", interrupting them" );
+                    e.getValue().shutdownNow();
+                }
+            } catch ( InterruptedException ex ) {
+                e.getValue().shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+        SharedExecutors.shutdown();
+    }
+
+    /**
+     * Names the threads, and makes them daemons so they don't keep the JVM running (as the default factory does).
+     */
+    private static class ComputeThreadFactory implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public ForkJoinWorkerThread newThread( ForkJoinPool pool ) {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread( pool );
+            thread.setName( "compute-" + count.getAndIncrement() );
+            thread.setDaemon( true );
+            return thread;
+        }
+    }
+}
@@ -94,3 +94,13 @@ create table GENE2CS (
 	INDEX gene2cscsindex (CS),
 	INDEX gene2csgeneadindex (AD, GENE)
 );
+
+-- gene-level links of coexpression analyses that are still running; moved to the link tables once an analysis is done.
+drop table if exists GENE_COEX_STAGED_LINKS;
+create table GENE_COEX_STAGED_LINKS (
+	EXPERIMENT_FK BIGINT not null,
+	FIRST_GENE_FK BIGINT not null,
+	SECOND_GENE_FK BIGINT not null,
+	POSITIVE TINYINT not null,
+	primary key (EXPERIMENT_FK, FIRST_GENE_FK, SECOND_GENE_FK, POSITIVE)
+);
@@ -174,6 +174,50 @@ public class LinkAnalysisServiceTest extends BaseSpringContextTest {
 
     }
 
+    @Test
+    public void testLoadAnalyzeSavePipelined() {
+        ee = this.getTestPersistentCompleteExpressionExperimentWithSequences();
+        processedExpressionDataVectorService.computeProcessedExpressionData( ee );
+
+        tableMaintenanceUtil.disableEmail();
+        tableMaintenanceUtil.updateGene2CsEntries();
+        linkAnalysisConfig.setCdfCut( 0.1 );
+        linkAnalysisConfig.setSingularThreshold( SingularThreshold.cdfcut );
+        linkAnalysisConfig.setProbeDegreeThreshold( 25 );
+        linkAnalysisConfig.setCheckCorrelationDistribution( false );
+        linkAnalysisConfig.setCheckForBatchEffect( false );
+        filterConfig.setIgnoreMinimumSampleThreshold( true );
+
+        Collection<BioAssaySet> ees = new HashSet<>();
+        ees.add( ee );
+
+        int numLinks = linkAnalysisService.process( ee, filterConfig, linkAnalysisConfig ).getAnalysisObj()
+                .getNumberOfLinks();
+        this.updateNodeDegree();
+        int totalLinks = this.checkResults( ees, 1 );
+
+        // redo with the links streamed from more than one thread, which has to give the same links
+        linkAnalysisConfig.setPipelined( true );
+        linkAnalysisConfig.setNumThreads( 2 );
+        LinkAnalysis la = linkAnalysisService.process( ee, filterConfig, linkAnalysisConfig );
+
+        CoexpressionAnalysis analysisObj = la.getAnalysisObj();
+        assertNotNull( analysisObj.getId() );
+        assertEquals( 151, analysisObj.getNumberOfElementsAnalyzed().intValue() );
+        assertEquals( numLinks, analysisObj.getNumberOfLinks().intValue() );
+        assertNotNull( analysisObj.getCoexpCorrelationDistribution() );
+
+        // the probe-level links were not kept.
+        assertTrue( la.getKeep().isEmpty() );
+
+        // the staged links were moved to the link tables and removed.
+        assertEquals( 0, new JdbcTemplate( dataSource )
+                .queryForInt( "select count(*) from GENE_COEX_STAGED_LINKS where EXPERIMENT_FK = ?", ee.getId() ) );
+
+        this.updateNodeDegree();
+        assertEquals( totalLinks, this.checkResults( ees, 1 ) );
+    }
+
     private void checkUnsupportedLinksHaveNoSupport() {
         JdbcTemplate jt = new JdbcTemplate( dataSource );
 
@@ -0,0 +1,113 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2021 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.analysis.expression.coexpression.links;
+
+import cern.colt.list.DoubleArrayList;
+import cern.colt.list.ObjectArrayList;
+import org.junit.Before;
+import org.junit.Test;
+import ubic.basecode.dataStructure.Link;
+import ubic.gemma.core.datastructure.matrix.ExpressionDataDoubleMatrix;
+import ubic.gemma.core.datastructure.matrix.ExpressionDataTestMatrix;
+import ubic.gemma.model.expression.designElement.CompositeSequence;
+import ubic.gemma.model.genome.Gene;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the multi-threaded, blocked computation gives the same results as the single-threaded one.
+ */
+public class PearsonMetricsTest {
+
+    private ExpressionDataDoubleMatrix dataMatrix;
+    private Map<CompositeSequence, Set<Gene>> probeToGeneMap;
+
+    @Before
+    public void setUp() throws Exception {
+        dataMatrix = new ExpressionDataTestMatrix();
+        probeToGeneMap = new HashMap<>();
+        long id = 1;
+        for ( CompositeSequence cs : dataMatrix.getRowNames() ) {
+            Gene g = Gene.Factory.newInstance();
+            g.setId( id++ );
+            probeToGeneMap.put( cs, Collections.singleton( g ) );
+        }
+    }
+
+    @Test
+    public void testPearsonBlocked() {
+        this.compare( new PearsonMetrics( dataMatrix, 0.5 ), new PearsonMetrics( dataMatrix, 0.5 ) );
+    }
+
+    @Test
+    public void testSpearmanBlocked() {
+        this.compare( new SpearmanMetrics( dataMatrix, 0.5 ), new SpearmanMetrics( dataMatrix, 0.5 ) );
+    }
+
+    private void compare( AbstractMatrixRowPairAnalysis serial, AbstractMatrixRowPairAnalysis blocked ) {
+        blocked.setNumThreads( 4 );
+        blocked.setBlockSize( 16 ); // so we get several blocks, including a partial one.
+
+        long start = System.currentTimeMillis();
+        this.run( serial );
+        long serialTime = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        this.run( blocked );
+        long blockedTime = System.currentTimeMillis() - start;
+        AbstractMatrixRowPairAnalysis.log
+                .info( "Single-threaded: " + serialTime + "ms; blocked with 4 threads: " + blockedTime + "ms" );
+
+        DoubleArrayList serialHist = serial.getHistogramArrayList();
+        DoubleArrayList blockedHist = blocked.getHistogramArrayList();
+        assertEquals( serialHist.size(), blockedHist.size() );
+        for ( int i = 0; i < serialHist.size(); i++ ) {
+            assertEquals( serialHist.get( i ), blockedHist.get( i ), 0.0 );
+        }
+
+        assertEquals( serial.numCached(), blocked.numCached() );
+        assertEquals( serial.getCrossHybridizationRejections(), blocked.getCrossHybridizationRejections() );
+
+        ObjectArrayList serialKeepers = serial.getKeepers();
+        ObjectArrayList blockedKeepers = blocked.getKeepers();
+        assertTrue( serialKeepers.size() > 0 );
+        assertEquals( serialKeepers.size(), blockedKeepers.size() );
+        for ( int i = 0; i < serialKeepers.size(); i++ ) {
+            Link a = ( Link ) serialKeepers.get( i );
+            Link b = ( Link ) blockedKeepers.get( i );
+            assertEquals( a.getx(), b.getx() );
+            assertEquals( a.gety(), b.gety() );
+            assertEquals( a.getWeight(), b.getWeight(), 1e-12 );
+        }
+    }
+
+    private void run( AbstractMatrixRowPairAnalysis metrics ) {
+        metrics.setDuplicateMap( probeToGeneMap );
+        metrics.setUsePvalueThreshold( false );
+        metrics.setUpperTailThreshold( 0.6 );
+        metrics.setLowerTailThreshold( -0.6 );
+        metrics.calculateMetrics();
+    }
+}
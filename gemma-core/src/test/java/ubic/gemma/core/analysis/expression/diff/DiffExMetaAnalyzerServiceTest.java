@@ -429,7 +429,8 @@ public class DiffExMetaAnalyzerServiceTest extends AbstractGeoServiceTest {
         }
 
         Map<Long, Map<Long, DiffExprGeneSearchResult>> ffResultSets = differentialExpressionResultService
-                .findDiffExAnalysisResultIdsInResultSets( resultSets, Collections.singletonList( g.getId() ) );
+                .findDiffExAnalysisResultIdsInResultSets( resultSets, Collections.singletonList( g.getId() ) )
+                .getResults();
         assertNotNull( ffResultSets );
         assertTrue( !ffResultSets.isEmpty() );
     }
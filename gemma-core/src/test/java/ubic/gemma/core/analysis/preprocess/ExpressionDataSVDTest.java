@@ -177,6 +177,49 @@ public class ExpressionDataSVDTest {
         assertNotNull( svdNormalize );
     }
 
+    /*
+     * Computing only the leading components must agree with the full decomposition, up to the signs of the vectors.
+     */
+    @Test
+    public void testTruncated() {
+        svd = new ExpressionDataSVD( testData, true );
+        ExpressionDataSVD truncated = new ExpressionDataSVD( new ExpressionDataTestMatrix(), true, 5 );
+
+        assertEquals( 5, truncated.getU().columns() );
+        assertEquals( svd.getU().rows(), truncated.getU().rows() );
+        assertEquals( svd.getV().columns(), truncated.getV().columns() );
+
+        double[] expectedSingularValues = svd.getSingularValues();
+        double[] singularValues = truncated.getSingularValues();
+        assertEquals( expectedSingularValues.length, singularValues.length );
+        for ( int i = 0; i < singularValues.length; i++ ) {
+            assertEquals( expectedSingularValues[i], singularValues[i], 1e-5 );
+        }
+
+        Double[] expectedVarianceFractions = svd.getVarianceFractions();
+        Double[] varianceFractions = truncated.getVarianceFractions();
+        for ( int i = 0; i < varianceFractions.length; i++ ) {
+            assertEquals( expectedVarianceFractions[i], varianceFractions[i], 1e-8 );
+        }
+
+        for ( int c = 0; c < 5; c++ ) {
+            double sign = Math.signum( svd.getV().get( 0, c ) * truncated.getV().get( 0, c ) );
+            for ( int i = 0; i < svd.getV().rows(); i++ ) {
+                assertEquals( svd.getV().get( i, c ), sign * truncated.getV().get( i, c ), 1e-6 );
+            }
+            for ( int i = 0; i < svd.getU().rows(); i++ ) {
+                assertEquals( svd.getU().get( i, c ), sign * truncated.getU().get( i, c ), 1e-6 );
+            }
+        }
+
+        try {
+            truncated.removeHighestComponents( 1 );
+            fail( "Should have gotten an exception" );
+        } catch ( IllegalStateException e ) {
+            //
+        }
+    }
+
     @Test
     public void testUMatrixAsExpressionData() {
         svd = new ExpressionDataSVD( testData, true );
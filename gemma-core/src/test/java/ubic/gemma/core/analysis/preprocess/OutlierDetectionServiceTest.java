@@ -26,6 +26,7 @@ import ubic.basecode.dataStructure.matrix.DoubleMatrix;
 import ubic.gemma.core.loader.expression.geo.AbstractGeoServiceTest;
 import ubic.gemma.model.expression.bioAssay.BioAssay;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Random;
 
@@ -72,6 +73,35 @@ public class OutlierDetectionServiceTest extends AbstractGeoServiceTest {
         assertEquals( sampleCorrelationMatrix.getColName( outlierIdx ), output.iterator().next().getBioAssay() );
     }
 
+    @Test
+    public void testSelect() {
+        for ( int t = 0; t < 100; t++ ) {
+            double[] values = new double[1 + random.nextInt( 50 )];
+            for ( int i = 0; i < values.length; i++ ) {
+                values[i] = random.nextInt( 5 ) == 0 ? Double.NaN : random.nextInt( 10 ) / 10.0;
+            }
+            double[] sorted = values.clone();
+            Arrays.sort( sorted );
+            int k = random.nextInt( values.length );
+            assertEquals( sorted[k], OutlierDetectionServiceImpl.select( values, k ), 0.0 );
+        }
+    }
+
+    @Test
+    public void testSelectTies() {
+        double[][] cases = { new double[100000], new double[100000], new double[100000] };
+        Arrays.fill( cases[1], Double.NaN );
+        for ( int i = 0; i < cases[2].length; i++ ) {
+            cases[2][i] = i % 2 == 0 ? Double.NaN : 0.5;
+        }
+        for ( double[] values : cases ) {
+            double[] sorted = values.clone();
+            Arrays.sort( sorted );
+            int k = random.nextInt( values.length );
+            assertEquals( sorted[k], OutlierDetectionServiceImpl.select( values, k ), 0.0 );
+        }
+    }
+
     private DoubleMatrix<BioAssay, BioAssay> createMockMatrix() {
         DoubleMatrix<BioAssay, BioAssay> matrix = new DenseDoubleMatrix<>( OutlierDetectionServiceTest.MATRIX_SIZE,
                 OutlierDetectionServiceTest.MATRIX_SIZE );
@@ -0,0 +1,111 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2021 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.gemma.core.analysis.preprocess;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import ubic.basecode.dataStructure.matrix.DenseDoubleMatrix;
+import ubic.basecode.dataStructure.matrix.DoubleMatrix;
+import ubic.basecode.io.ByteArrayConverter;
+import ubic.basecode.math.MatrixStats;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SampleCorrelationMatrixTest {
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool( 3 );
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * More samples than fit in one block, so blocks on and off the diagonal are both used, and more rows than fit in
+     * one block, so the sums are carried over from one block of rows to the next.
+     */
+    @Test
+    public void testSameAsMatrixStats() {
+        Random random = new Random( 1234 );
+        int n = 150;
+        int m = 2500;
+        double[][] samples = new double[n][m];
+        for ( int i = 0; i < m; i++ ) {
+            double shared = random.nextGaussian();
+            for ( int j = 0; j < n; j++ ) {
+                samples[j][i] = random.nextInt( 10 ) == 0 ? Double.NaN : 8 + shared + random.nextGaussian();
+            }
+        }
+
+        SampleCorrelationMatrix cormat = this.correlate( samples );
+        DoubleMatrix<Integer, Integer> expected = MatrixStats.correlationMatrix( new DenseDoubleMatrix<>( samples ) );
+
+        assertEquals( n, cormat.size() );
+        for ( int a = 0; a < n; a++ ) {
+            assertEquals( 1.0, cormat.get( a, a ), 0.0 );
+            for ( int b = a + 1; b < n; b++ ) {
+                assertEquals( expected.get( a, b ), cormat.get( a, b ), 1e-10 );
+                assertEquals( cormat.get( a, b ), cormat.get( b, a ), 0.0 );
+            }
+        }
+
+        double[][] stored = new ByteArrayConverter().byteArrayToDoubleMatrix( cormat.toBytes(), n );
+        assertEquals( n, stored.length );
+        for ( int a = 0; a < n; a++ ) {
+            for ( int b = 0; b < n; b++ ) {
+                assertEquals( cormat.get( a, b ), stored[a][b], 0.0 );
+            }
+        }
+    }
+
+    @Test
+    public void testTooFewValues() {
+        double nan = Double.NaN;
+        double[][] samples = new double[][] { { 1, 2, nan, nan }, { nan, nan, 3, 4 }, { 1, 1, 1, 1 } };
+        SampleCorrelationMatrix cormat = this.correlate( samples );
+        assertTrue( Double.isNaN( cormat.get( 0, 1 ) ) );
+        assertTrue( Double.isNaN( cormat.get( 0, 2 ) ) ); // no variance
+    }
+
+    /**
+     * @param samples the values for each sample
+     */
+    private SampleCorrelationMatrix correlate( final double[][] samples ) {
+        int n = samples.length;
+        int m = samples[0].length;
+        return new SampleCorrelationMatrix( null, n,
+                SampleCorrelationMatrix.correlate( n, m, new SampleCorrelationMatrix.Rows() {
+                    @Override
+                    public double[] getRow( int i ) {
+                        double[] row = new double[samples.length];
+                        for ( int j = 0; j < samples.length; j++ ) {
+                            row[j] = samples[j][i];
+                        }
+                        return row;
+                    }
+                }, executor ) );
+    }
+}
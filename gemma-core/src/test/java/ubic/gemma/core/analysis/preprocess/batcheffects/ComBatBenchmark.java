@@ -0,0 +1,112 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2021 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.gemma.core.analysis.preprocess.batcheffects;
+
+import cern.colt.matrix.DoubleMatrix2D;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import ubic.basecode.dataStructure.matrix.DenseDoubleMatrix;
+import ubic.basecode.dataStructure.matrix.DoubleMatrix;
+import ubic.basecode.dataStructure.matrix.ObjectMatrix;
+import ubic.basecode.dataStructure.matrix.ObjectMatrixImpl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times parametric ComBat on synthetic data the size of a large RNA-seq series, serially and in parallel. This is not
+ * run as part of the build; run it with the main method (from the IDE, or with the test classpath). The data need a
+ * few GB of heap.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx8g" })
+public class ComBatBenchmark {
+
+    @Param({ "50000" })
+    private int rows;
+
+    @Param({ "500" })
+    private int columns;
+
+    @Param({ "10" })
+    private int numBatches;
+
+    @Param({ "false", "true" })
+    private boolean parallel;
+
+    private DoubleMatrix<String, String> data;
+    private ObjectMatrix<String, String, Object> sampleInfo;
+
+    public static void main( String[] args ) throws RunnerException {
+        Options opt = new OptionsBuilder().include( ComBatBenchmark.class.getSimpleName() ).build();
+        new Runner( opt ).run();
+    }
+
+    /**
+     * Log-scale expression-like values with a shift for each batch and a treatment effect on some of the rows.
+     */
+    @Setup
+    public void setUp() {
+        Random random = new Random( 42 );
+
+        List<String> sampleNames = new ArrayList<>( columns );
+        sampleInfo = new ObjectMatrixImpl<>( columns, 2 );
+        for ( int j = 0; j < columns; j++ ) {
+            String sampleName = "s" + j;
+            sampleNames.add( sampleName );
+            sampleInfo.set( j, 0, "batch" + ( j % numBatches ) );
+            sampleInfo.set( j, 1, j % 2 == 0 ? "control" : "treated" );
+        }
+        sampleInfo.setRowNames( sampleNames );
+        sampleInfo.addColumnName( "batch" );
+        sampleInfo.addColumnName( "treatment" );
+
+        double[] batchShift = new double[numBatches];
+        for ( int b = 0; b < numBatches; b++ ) {
+            batchShift[b] = random.nextGaussian();
+        }
+
+        double[][] values = new double[rows][columns];
+        List<String> rowNames = new ArrayList<>( rows );
+        for ( int i = 0; i < rows; i++ ) {
+            rowNames.add( "g" + i );
+            double mean = 2.0 + 10.0 * random.nextDouble();
+            double effect = i % 10 == 0 ? random.nextGaussian() : 0.0;
+            for ( int j = 0; j < columns; j++ ) {
+                values[i][j] = mean + batchShift[j % numBatches] + ( j % 2 == 0 ? 0.0 : effect ) + random
+                        .nextGaussian();
+            }
+        }
+        data = new DenseDoubleMatrix<>( values );
+        data.setRowNames( rowNames );
+        data.setColumnNames( sampleNames );
+    }
+
+    @Benchmark
+    public DoubleMatrix2D parametric() {
+        ComBat<String, String> comBat = new ComBat<>( data, sampleInfo );
+        comBat.setParallel( parallel );
+        return comBat.run( true );
+    }
+}
@@ -253,4 +253,38 @@ public class ComBatTest {
         assertEquals( 11.635157, finalResult.get( 7, 7 ), 0.01 );
         assertEquals( 12.930425, finalResult.get( 9, 7 ), 0.01 );
     }
+
+    /*
+     * Running in small blocks of rows in parallel must give the same answer as running serially.
+     */
+    @Test
+    public void testParallel() throws Exception {
+        DoubleMatrixReader f = new DoubleMatrixReader();
+        DoubleMatrix<String, String> testMatrix = f.read( this.getClass()
+                .getResourceAsStream( "/data/analysis/preprocess/batcheffects/GSE492.test.dat.txt" ) );
+        StringMatrixReader of = new StringMatrixReader();
+        StringMatrix<String, String> sampleInfo = of.read( this.getClass()
+                .getResourceAsStream( "/data/analysis/preprocess/batcheffects/100_GSE492_expdesign.data.txt" ) );
+
+        for ( boolean parametric : new boolean[] { true, false } ) {
+            @SuppressWarnings({ "unchecked", "rawtypes" }) ComBat<String, String> serial = new ComBat( testMatrix,
+                    sampleInfo );
+            serial.setParallel( false );
+            DoubleMatrix2D expected = serial.run( parametric );
+
+            @SuppressWarnings({ "unchecked", "rawtypes" }) ComBat<String, String> parallel = new ComBat( testMatrix,
+                    sampleInfo );
+            parallel.setParallel( true );
+            parallel.setRowBlockSize( 3 );
+            DoubleMatrix2D actual = parallel.run( parametric );
+
+            assertEquals( expected.rows(), actual.rows() );
+            assertEquals( expected.columns(), actual.columns() );
+            for ( int i = 0; i < expected.rows(); i++ ) {
+                for ( int j = 0; j < expected.columns(); j++ ) {
+                    assertEquals( expected.get( i, j ), actual.get( i, j ), 1e-12 );
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,171 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2021 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+package ubic.gemma.core.analysis.preprocess.filter;
+
+import org.junit.Before;
+import org.junit.Test;
+import ubic.basecode.io.ByteArrayConverter;
+import ubic.gemma.core.datastructure.matrix.ExpressionDataDoubleMatrix;
+import ubic.gemma.model.common.quantitationtype.*;
+import ubic.gemma.model.expression.arrayDesign.ArrayDesign;
+import ubic.gemma.model.expression.arrayDesign.TechnologyType;
+import ubic.gemma.model.expression.bioAssay.BioAssay;
+import ubic.gemma.model.expression.bioAssayData.BioAssayDimension;
+import ubic.gemma.model.expression.bioAssayData.ProcessedExpressionDataVector;
+import ubic.gemma.model.expression.biomaterial.BioMaterial;
+import ubic.gemma.model.expression.designElement.CompositeSequence;
+import ubic.gemma.model.genome.biosequence.BioSequence;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that filtering in one pass by blocks of rows keeps exactly the same rows as applying the filters one after the
+ * other.
+ */
+public class ExpressionExperimentFilterTest {
+
+    private static final int NUM_ROWS = 5000; // more than one block
+    private static final int NUM_SAMPLES = 24;
+
+    private ArrayDesign arrayDesign;
+    private ExpressionDataDoubleMatrix matrix;
+
+    @Before
+    public void setUp() {
+        arrayDesign = ArrayDesign.Factory.newInstance();
+        arrayDesign.setId( 1L );
+        arrayDesign.setName( "Affymetrix test platform" ); // so the control probes are removed too
+        arrayDesign.setTechnologyType( TechnologyType.ONECOLOR );
+
+        List<BioAssay> bioAssays = new ArrayList<>();
+        for ( int j = 0; j < ExpressionExperimentFilterTest.NUM_SAMPLES; j++ ) {
+            BioMaterial bm = BioMaterial.Factory.newInstance();
+            bm.setId( ( long ) j );
+            bm.setName( "bm" + j );
+            BioAssay ba = BioAssay.Factory.newInstance();
+            ba.setId( ( long ) j );
+            ba.setName( "ba" + j );
+            ba.setSampleUsed( bm );
+            ba.setArrayDesignUsed( arrayDesign );
+            bioAssays.add( ba );
+        }
+        BioAssayDimension bad = BioAssayDimension.Factory.newInstance();
+        bad.setId( 1L );
+        bad.setBioAssays( bioAssays );
+
+        QuantitationType qt = QuantitationType.Factory.newInstance();
+        qt.setId( 1L );
+        qt.setName( "test" );
+        qt.setRepresentation( PrimitiveType.DOUBLE );
+        qt.setType( StandardQuantitationType.AMOUNT );
+        qt.setScale( ScaleType.LOG2 );
+        qt.setIsPreferred( true );
+        qt.setIsMaskedPreferred( true );
+        qt.setIsBackground( false );
+        qt.setIsRatio( false );
+        qt.setIsNormalized( true );
+        qt.setIsBackgroundSubtracted( true );
+
+        Random random = new Random( 4567 );
+        ByteArrayConverter bac = new ByteArrayConverter();
+        Collection<ProcessedExpressionDataVector> vectors = new ArrayList<>();
+        for ( int i = 0; i < ExpressionExperimentFilterTest.NUM_ROWS; i++ ) {
+            CompositeSequence cs = CompositeSequence.Factory.newInstance();
+            cs.setId( ( long ) i );
+            cs.setName( ( i % 97 == 0 ? "AFFX-" : "probe" ) + i );
+            cs.setArrayDesign( arrayDesign );
+            if ( i % 41 != 0 ) {
+                cs.setBiologicalCharacteristic( BioSequence.Factory.newInstance() );
+            }
+
+            double mean = 4.0 + 8.0 * random.nextDouble();
+            double sd = random.nextDouble();
+            double[] data = new double[ExpressionExperimentFilterTest.NUM_SAMPLES];
+            for ( int j = 0; j < data.length; j++ ) {
+                if ( i % 50 == 0 ) {
+                    data[j] = mean; // zero variance
+                } else if ( i % 37 == 0 && j % 3 != 0 ) {
+                    data[j] = Double.NaN; // too many missing values
+                } else if ( random.nextInt( 20 ) == 0 ) {
+                    data[j] = Double.NaN;
+                } else {
+                    data[j] = mean + sd * random.nextGaussian();
+                }
+                if ( i % 13 == 0 ) {
+                    data[j] = -Math.abs( data[j] );
+                }
+            }
+
+            ProcessedExpressionDataVector vector = ProcessedExpressionDataVector.Factory.newInstance();
+            vector.setId( ( long ) i );
+            vector.setDesignElement( cs );
+            vector.setBioAssayDimension( bad );
+            vector.setQuantitationType( qt );
+            vector.setData( bac.doubleArrayToBytes( data ) );
+            vector.setRankByMean( random.nextDouble() );
+            vectors.add( vector );
+        }
+        matrix = new ExpressionDataDoubleMatrix( vectors );
+    }
+
+    /**
+     * The default configuration, which uses the min-present, zero variance, low expression (by rank) and low variance
+     * filters.
+     */
+    @Test
+    public void testSameRowsAsFilteringInTurn() {
+        this.checkSameRows( new FilterConfig(), new FilterConfig() );
+    }
+
+    @Test
+    public void testSameRowsWithOtherCuts() {
+        FilterConfig c1 = new FilterConfig();
+        FilterConfig c2 = new FilterConfig();
+        for ( FilterConfig c : Arrays.asList( c1, c2 ) ) {
+            c.setMinPresentFraction( 0.8 );
+            c.setLowExpressionCut( 0.5 );
+            c.setHighExpressionCut( 0.1 );
+            c.setLowVarianceCut( 0.3 );
+            c.setRequireSequences( false );
+        }
+        this.checkSameRows( c1, c2 );
+    }
+
+    private void checkSameRows( FilterConfig config, FilterConfig blockConfig ) {
+        Collection<ArrayDesign> arrayDesigns = Collections.singleton( arrayDesign );
+        ExpressionDataDoubleMatrix expected = new ExpressionExperimentFilter( arrayDesigns, config )
+                .doFilter( matrix );
+        ExpressionDataDoubleMatrix actual = new ExpressionExperimentFilter( arrayDesigns, blockConfig )
+                .doFilterByRowBlocks( matrix );
+
+        assertTrue( expected.rows() > 0 );
+        assertTrue( expected.rows() < config.getAfterZeroVarianceCut() );
+        assertEquals( expected.rows(), actual.rows() );
+        for ( int i = 0; i < expected.rows(); i++ ) {
+            assertEquals( expected.getDesignElementForRow( i ), actual.getDesignElementForRow( i ) );
+            assertEquals( expected.get( i, 0 ), actual.get( i, 0 ), 0.0 );
+        }
+
+        assertEquals( config.getStartingRows(), blockConfig.getStartingRows() );
+        assertEquals( config.getAfterInitialFilter(), blockConfig.getAfterInitialFilter() );
+        assertEquals( config.getAfterMinPresentFilter(), blockConfig.getAfterMinPresentFilter() );
+        assertEquals( config.getAfterZeroVarianceCut(), blockConfig.getAfterZeroVarianceCut() );
+        assertEquals( config.getAfterLowExpressionCut(), blockConfig.getAfterLowExpressionCut() );
+        assertEquals( config.getAfterLowVarianceCut(), blockConfig.getAfterLowVarianceCut() );
+    }
+}
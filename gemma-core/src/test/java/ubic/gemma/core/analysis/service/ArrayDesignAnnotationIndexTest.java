@@ -0,0 +1,108 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2021 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.analysis.service;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+public class ArrayDesignAnnotationIndexTest {
+
+    private File dir;
+    private File annotationFile;
+    private File indexFile;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory( "annotindex" ).toFile();
+        annotationFile = new File( dir, "GPL1.an.txt.gz" );
+        indexFile = new File( new File( dir, "index" ), "GPL1.an.txt.gz.idx" );
+        this.writeAnnotationFile( "# comment line\n" //
+                + "ProbeName\tGeneSymbols\tGeneNames\tGOTerms\tGemmaIDs\tNCBIids\n" //
+                + "p2\tACTB\tactin beta\tGO:0005515\t12\t60\n" //
+                + "p1\tGAPDH|GAPDHP1\tglyceraldehyde-3-phosphate dehydrogenase|pseudo\t\t5|6\t2597|2598\n" //
+                + "\n" //
+                + "p3\n" // no gene columns
+                + "p4\tMYC\tMYC proto-oncogene\n" // old style, no ids
+                + "p2\tACTB\tactin, beta\tGO:0005515\t12\t60\n" ); // repeated; the last one is kept
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory( dir );
+    }
+
+    @Test
+    public void testBuildAndGet() throws IOException {
+        ArrayDesignAnnotationIndex index = ArrayDesignAnnotationIndex.build( annotationFile, indexFile );
+        this.checkIndex( index );
+        assertTrue( index.isCurrent( annotationFile ) );
+
+        // reopening gives the same answers
+        this.checkIndex( ArrayDesignAnnotationIndex.open( indexFile ) );
+    }
+
+    @Test
+    public void testIsCurrent() throws IOException {
+        ArrayDesignAnnotationIndex index = ArrayDesignAnnotationIndex.build( annotationFile, indexFile );
+        this.writeAnnotationFile( "p9\tTP53\ttumor protein p53\t\t7\t7157\n" );
+        assertTrue( annotationFile.setLastModified( annotationFile.lastModified() + 2000 ) );
+        assertFalse( index.isCurrent( annotationFile ) );
+
+        index = ArrayDesignAnnotationIndex.build( annotationFile, indexFile );
+        assertEquals( 1, index.size() );
+        assertEquals( "TP53", index.get( "p9" )[1] );
+        assertNull( index.get( "p1" ) );
+    }
+
+    @Test(expected = IOException.class)
+    public void testOpenNotAnIndex() throws IOException {
+        ArrayDesignAnnotationIndex.open( annotationFile );
+    }
+
+    private void checkIndex( ArrayDesignAnnotationIndex index ) {
+        assertEquals( 3, index.size() );
+
+        assertArrayEquals( new String[] { "p1", "GAPDH|GAPDHP1", "glyceraldehyde-3-phosphate dehydrogenase|pseudo",
+                "5|6", "2597|2598" }, index.get( "p1" ) );
+        assertArrayEquals( new String[] { "p2", "ACTB", "actin, beta", "12", "60" }, index.get( "p2" ) );
+        assertArrayEquals( new String[] { "p4", "MYC", "MYC proto-oncogene", null, null }, index.get( "p4" ) );
+
+        assertNull( index.get( "p3" ) );
+        assertNull( index.get( "ProbeName" ) );
+        assertNull( index.get( "p0" ) );
+        assertNull( index.get( "p5" ) );
+        assertNull( index.get( null ) );
+    }
+
+    private void writeAnnotationFile( String contents ) throws IOException {
+        try (Writer w = new OutputStreamWriter( new GZIPOutputStream( new FileOutputStream( annotationFile ) ),
+                StandardCharsets.UTF_8 )) {
+            w.write( contents );
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2021 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.apps;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import ubic.gemma.model.genome.Taxon;
+import ubic.gemma.model.genome.biosequence.BioSequence;
+import ubic.gemma.model.genome.sequenceAnalysis.BlatResult;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs chunked queries against a script standing in for gfClient.
+ */
+public class ShellDelegatingBlatTest {
+
+    private File dir;
+    private ShellDelegatingBlat blat;
+    private Taxon taxon;
+    private Collection<BioSequence> sequences;
+
+    @Before
+    public void setUp() throws IOException {
+        Assume.assumeTrue( "Needs a Unix shell", new File( "/bin/sh" ).exists() );
+
+        dir = Files.createTempDirectory( "fakegfclient" ).toFile();
+        File script = new File( dir, "fakeGfClient.sh" );
+        try (InputStream is = this.getClass().getResourceAsStream( "/data/loader/genome/blat/fakeGfClient.sh" )) {
+            Files.copy( is, script.toPath() );
+        }
+        assertTrue( script.setExecutable( true ) );
+
+        blat = new ShellDelegatingBlat( "localhost", 17778, "/" );
+        blat.setGfClientExe( script.getAbsolutePath() );
+        blat.setGfClientThreads( 3 );
+        blat.setGfClientChunkSize( 100 );
+
+        taxon = Taxon.Factory.newInstance();
+        taxon.setCommonName( "human" );
+        taxon.setNcbiId( 9606 );
+
+        sequences = new ArrayList<>();
+        for ( int i = 0; i < 12; i++ ) {
+            sequences.add( this.makeSequence( "seq" + i, 20 + 7 * i ) );
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if ( dir != null ) {
+            FileUtils.deleteDirectory( dir );
+        }
+    }
+
+    @Test
+    public void testMakeChunks() {
+        List<List<BioSequence>> chunks = ShellDelegatingBlat.makeChunks( sequences, 3, 100 );
+        Collections.reverse( ( List<BioSequence> ) sequences );
+        assertEquals( this.namesOf( chunks ), this.namesOf( ShellDelegatingBlat.makeChunks( sequences, 3, 100 ) ) );
+
+        sequences.add( this.makeSequence( "seq3", 50 ) ); // repeated identifier
+        sequences.add( this.makeSequence( "blank", 0 ) );
+        chunks = ShellDelegatingBlat.makeChunks( sequences, 3, 100 );
+
+        // 12 distinct sequences with 702 bases in all
+        assertEquals( 8, chunks.size() );
+        Set<String> names = new HashSet<>();
+        int min = Integer.MAX_VALUE;
+        int max = 0;
+        for ( List<BioSequence> chunk : chunks ) {
+            assertFalse( chunk.isEmpty() );
+            int bases = 0;
+            for ( BioSequence b : chunk ) {
+                assertTrue( names.add( b.getName() ) );
+                bases += b.getSequence().length();
+            }
+            min = Math.min( min, bases );
+            max = Math.max( max, bases );
+        }
+        assertEquals( 12, names.size() );
+        assertTrue( max - min <= 97 ); // at most the longest sequence
+    }
+
+    @Test
+    public void testBlatQueryInChunks() throws IOException {
+        Map<BioSequence, Collection<BlatResult>> results = blat.blatQuery( sequences, taxon );
+
+        assertEquals( 12, results.size() );
+        for ( Map.Entry<BioSequence, Collection<BlatResult>> e : results.entrySet() ) {
+            assertEquals( 1, e.getValue().size() );
+            assertTrue( e.getKey().getName().startsWith( "seq" ) );
+            assertNotNull( e.getValue().iterator().next().getSearchedDatabase() );
+        }
+        assertEquals( 8, this.getCalls().size() );
+    }
+
+    @Test
+    public void testResume() throws IOException {
+        sequences.add( this.makeSequence( "fail", 30 ) );
+        assertTrue( new File( dir, "fail" ).createNewFile() );
+
+        try {
+            blat.blatQuery( sequences, taxon );
+            fail( "Expected the chunk with the failing sequence to fail" );
+        } catch ( IOException e ) {
+            // expected
+        }
+        assertEquals( 8, this.getCalls().size() );
+
+        assertTrue( new File( dir, "fail" ).delete() );
+        assertTrue( new File( dir, "calls.txt" ).delete() );
+
+        Map<BioSequence, Collection<BlatResult>> results = blat.blatQuery( sequences, taxon );
+        assertEquals( 13, results.size() );
+        assertEquals( "Only the failed chunk should be run again", 1, this.getCalls().size() );
+    }
+
+    private BioSequence makeSequence( String name, int length ) {
+        BioSequence b = BioSequence.Factory.newInstance();
+        b.setName( name );
+        b.setSequence( StringUtils.repeat( "ACGT", length / 4 + 1 ).substring( 0, length ) );
+        return b;
+    }
+
+    private List<String> getCalls() throws IOException {
+        return Files.readAllLines( new File( dir, "calls.txt" ).toPath(), StandardCharsets.UTF_8 );
+    }
+
+    private List<List<String>> namesOf( List<List<BioSequence>> chunks ) {
+        List<List<String>> names = new ArrayList<>();
+        for ( List<BioSequence> chunk : chunks ) {
+            List<String> chunkNames = new ArrayList<>();
+            for ( BioSequence b : chunk ) {
+                chunkNames.add( b.getName() );
+            }
+            names.add( chunkNames );
+        }
+        return names;
+    }
+}
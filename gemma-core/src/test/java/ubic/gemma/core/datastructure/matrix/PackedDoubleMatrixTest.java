@@ -0,0 +1,84 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2021 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.datastructure.matrix;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PackedDoubleMatrixTest {
+
+    private PackedDoubleMatrix m;
+
+    @Before
+    public void setUp() {
+        m = new PackedDoubleMatrix( 3, 4 );
+        for ( int i = 0; i < 3; i++ ) {
+            for ( int j = 0; j < 4; j++ ) {
+                m.set( i, j, 10 * i + j );
+            }
+        }
+    }
+
+    @Test
+    public void testSelectRows() {
+        PackedDoubleMatrix v = m.selectRows( new int[] { 2, 0 } );
+        assertEquals( 2, v.rows() );
+        assertEquals( 4, v.columns() );
+        assertArrayEquals( new double[] { 20, 21, 22, 23 }, v.getRow( 0 ), 0.0 );
+        assertArrayEquals( new double[] { 23, 3 }, v.getColumn( 3 ), 0.0 );
+    }
+
+    @Test
+    public void testSelectColumnsOfRowView() {
+        PackedDoubleMatrix v = m.selectRows( new int[] { 1, 2 } ).selectColumns( new int[] { 3, 1 } );
+        assertArrayEquals( new double[] { 13, 11 }, v.getRow( 0 ), 0.0 );
+        assertArrayEquals( new double[] { 11, 21 }, v.getColumn( 1 ), 0.0 );
+        assertEquals( 23, v.get( 1, 0 ), 0.0 );
+    }
+
+    @Test
+    public void testCopyOnWrite() {
+        PackedDoubleMatrix v = m.selectColumns( new int[] { 1, 0 } );
+
+        v.set( 0, 0, -1 );
+        assertEquals( -1, v.get( 0, 0 ), 0.0 );
+        assertEquals( 0, v.get( 0, 1 ), 0.0 );
+        assertEquals( 1, m.get( 0, 1 ), 0.0 );
+
+        m.set( 2, 0, -2 );
+        assertEquals( -2, m.get( 2, 0 ), 0.0 );
+        assertEquals( 20, v.get( 2, 1 ), 0.0 );
+    }
+
+    @Test
+    public void testHasNaN() {
+        assertFalse( m.hasNaN() );
+        PackedDoubleMatrix v = m.selectRows( new int[] { 0 } );
+        m.set( 1, 1, Double.NaN );
+        assertTrue( m.hasNaN() );
+        assertFalse( v.hasNaN() );
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testOutOfRange() {
+        m.selectRows( new int[] { 1 } ).get( 1, 0 );
+    }
+}
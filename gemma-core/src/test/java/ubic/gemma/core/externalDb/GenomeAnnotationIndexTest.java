@@ -0,0 +1,94 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2021 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.externalDb;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+public class GenomeAnnotationIndexTest {
+
+    @Test
+    public void testFind() {
+        int[] starts = new int[] { 500, 100, 150, 100, 2000, 1200 };
+        int[] ends = new int[] { 600, 5000, 200, 300, 2100, 1300 };
+        GenomeAnnotationIndex.Features features = this.makeFeatures( starts, ends );
+
+        assertEquals( this.names( "b", "f" ), this.find( features, 1250, 1250, false ) );
+        assertEquals( this.names( "a", "b", "d" ), this.find( features, 250, 500, false ) );
+        assertEquals( this.names( "b", "d" ), this.find( features, 250, 500, true ) );
+        assertEquals( this.names( "b", "d" ), this.find( features, 50, 100, false ) );
+        assertEquals( this.names(), this.find( features, 50, 100, true ) );
+        assertEquals( this.names(), this.find( features, 6000, 7000, false ) );
+    }
+
+    /**
+     * Compare with checking every feature, for random features and regions.
+     */
+    @Test
+    public void testFindRandom() {
+        Random random = new Random( 123 );
+        int n = 2000;
+        int[] starts = new int[n];
+        int[] ends = new int[n];
+        for ( int i = 0; i < n; i++ ) {
+            starts[i] = random.nextInt( 1000000 );
+            ends[i] = starts[i] + ( random.nextInt( 20 ) == 0 ? random.nextInt( 200000 ) : random.nextInt( 5000 ) );
+        }
+        GenomeAnnotationIndex.Features features = this.makeFeatures( starts, ends );
+
+        for ( int q = 0; q < 500; q++ ) {
+            long start = random.nextInt( 1000000 );
+            long end = start + random.nextInt( 3000 );
+            boolean strict = random.nextBoolean();
+            Set<String> expected = new HashSet<>();
+            for ( int i = 0; i < n; i++ ) {
+                if ( GenomeAnnotationIndex.overlaps( starts[i], ends[i], start, end, strict ) ) {
+                    expected.add( String.valueOf( i ) );
+                }
+            }
+            assertEquals( expected, this.find( features, start, end, strict ) );
+        }
+    }
+
+    private GenomeAnnotationIndex.Features makeFeatures( int[] starts, int[] ends ) {
+        String[][] rows = new String[starts.length][];
+        for ( int i = 0; i < starts.length; i++ ) {
+            rows[i] = new String[] { starts.length > 26 ? String.valueOf( i ) : String.valueOf( ( char ) ( 'a' + i ) ) };
+        }
+        return new GenomeAnnotationIndex.Features( starts, ends, rows );
+    }
+
+    private Set<String> find( GenomeAnnotationIndex.Features features, long start, long end, boolean strict ) {
+        Collection<String[]> rows = new ArrayList<>();
+        features.find( start, end, strict, rows );
+        Set<String> names = new HashSet<>();
+        for ( String[] row : rows ) {
+            names.add( row[0] );
+        }
+        assertEquals( "Duplicate rows found", rows.size(), names.size() );
+        return names;
+    }
+
+    private Set<String> names( String... names ) {
+        return new HashSet<>( Arrays.asList( names ) );
+    }
+}
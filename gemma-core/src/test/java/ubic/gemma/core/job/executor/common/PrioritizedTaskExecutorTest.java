@@ -0,0 +1,148 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2021 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.job.executor.common;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.After;
+import org.junit.Test;
+import ubic.gemma.core.job.TaskPriority;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PrioritizedTaskExecutorTest {
+
+    private final CountDownLatch release = new CountDownLatch( 1 );
+    private final List<String> started = Collections.synchronizedList( new ArrayList<String>() );
+    private PrioritizedTaskExecutor executor;
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        if ( executor != null ) {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testPriorityOrder() throws Exception {
+        executor = new PrioritizedTaskExecutor( "test", 1, 0, Long.MAX_VALUE );
+        ListenableFuture<String> blocking = executor.submit( this.task( "blocking" ), TaskPriority.BATCH, 0 );
+        ListenableFuture<String> maintenance = executor.submit( this.task( "m" ), TaskPriority.MAINTENANCE, 0 );
+        ListenableFuture<String> batch = executor.submit( this.task( "b" ), TaskPriority.BATCH, 0 );
+        ListenableFuture<String> interactive = executor.submit( this.task( "i" ), TaskPriority.INTERACTIVE, 0 );
+        assertEquals( 1, executor.getQueueDepth( TaskPriority.INTERACTIVE ) );
+        assertEquals( 1, executor.getQueueDepth( TaskPriority.BATCH ) );
+
+        release.countDown();
+        for ( ListenableFuture<String> f : Arrays.asList( blocking, maintenance, batch, interactive ) ) {
+            f.get( 10, TimeUnit.SECONDS );
+        }
+        assertEquals( "blocking,i,b,m", this.startedTasks() );
+    }
+
+    @Test
+    public void testReservedThreads() throws Exception {
+        executor = new PrioritizedTaskExecutor( "test", 3, 1, Long.MAX_VALUE );
+        executor.submit( this.task( "b1" ), TaskPriority.BATCH, 0 );
+        executor.submit( this.task( "b2" ), TaskPriority.BATCH, 0 );
+        ListenableFuture<String> b3 = executor.submit( this.task( "b3" ), TaskPriority.BATCH, 0 );
+        assertEquals( 2, executor.getRunning( TaskPriority.BATCH ) );
+        assertEquals( 1, executor.getQueueDepth( TaskPriority.BATCH ) );
+
+        executor.submit( this.task( "i" ), TaskPriority.INTERACTIVE, 0 );
+        assertEquals( 1, executor.getRunning( TaskPriority.INTERACTIVE ) );
+
+        release.countDown();
+        assertEquals( "b3", b3.get( 10, TimeUnit.SECONDS ) );
+    }
+
+    @Test
+    public void testMemoryLimit() throws Exception {
+        executor = new PrioritizedTaskExecutor( "test", 4, 0, 100 );
+        executor.submit( this.task( "a" ), TaskPriority.BATCH, 60 );
+        ListenableFuture<String> b = executor.submit( this.task( "b" ), TaskPriority.BATCH, 60 );
+        ListenableFuture<String> c = executor.submit( this.task( "c" ), TaskPriority.BATCH, 10 );
+        assertEquals( 1, executor.getRunning( TaskPriority.BATCH ) );
+        assertEquals( "Tasks behind one that does not fit should wait", 2,
+                executor.getQueueDepth( TaskPriority.BATCH ) );
+
+        release.countDown();
+        assertEquals( "b", b.get( 10, TimeUnit.SECONDS ) );
+        assertEquals( "c", c.get( 10, TimeUnit.SECONDS ) );
+    }
+
+    @Test
+    public void testLargeTaskStartsAlone() throws Exception {
+        executor = new PrioritizedTaskExecutor( "test", 4, 0, 100 );
+        ListenableFuture<String> big = executor.submit( this.task( "big" ), TaskPriority.BATCH, 500 );
+        assertEquals( 1, executor.getRunning( TaskPriority.BATCH ) );
+        ListenableFuture<String> small = executor.submit( this.task( "small" ), TaskPriority.BATCH, 10 );
+        assertEquals( 1, executor.getQueueDepth( TaskPriority.BATCH ) );
+
+        release.countDown();
+        assertEquals( "big", big.get( 10, TimeUnit.SECONDS ) );
+        assertEquals( "small", small.get( 10, TimeUnit.SECONDS ) );
+    }
+
+    @Test
+    public void testCancelQueued() throws Exception {
+        executor = new PrioritizedTaskExecutor( "test", 2, 0, 100 );
+        executor.submit( this.task( "a" ), TaskPriority.BATCH, 60 );
+        ListenableFuture<String> b = executor.submit( this.task( "b" ), TaskPriority.BATCH, 60 );
+        ListenableFuture<String> c = executor.submit( this.task( "c" ), TaskPriority.BATCH, 10 );
+        assertEquals( 2, executor.getQueueDepth( TaskPriority.BATCH ) );
+
+        assertTrue( b.cancel( true ) );
+        assertEquals( 0, executor.getQueueDepth( TaskPriority.BATCH ) );
+        assertEquals( 2, executor.getRunning( TaskPriority.BATCH ) );
+
+        release.countDown();
+        assertEquals( "c", c.get( 10, TimeUnit.SECONDS ) );
+        assertFalse( this.startedTasks().contains( "b" ) );
+    }
+
+    private Callable<String> task( final String name ) {
+        return new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                started.add( name );
+                assertTrue( release.await( 10, TimeUnit.SECONDS ) );
+                return name;
+            }
+        };
+    }
+
+    private String startedTasks() {
+        StringBuilder buf = new StringBuilder();
+        synchronized ( started ) {
+            for ( String name : started ) {
+                buf.append( buf.length() > 0 ? "," : "" ).append( name );
+            }
+        }
+        return buf.toString();
+    }
+}
@@ -26,6 +26,11 @@ import ubic.gemma.core.loader.expression.geo.model.GeoSample;
 import ubic.gemma.core.loader.expression.geo.model.GeoSeries;
 
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.zip.GZIPInputStream;
 
 /**
@@ -58,6 +63,59 @@ public class GeoFamilyParserTest {
         Assert.assertEquals( 12488, p.getColumnData( "GB_ACC" ).size() );
     }
 
+    @Test
+    public void testParseBigSectionListener() throws Exception {
+        is = new GZIPInputStream( this.getClass()
+                .getResourceAsStream( "/data/loader/expression/geo/fullSizeTests/GSE1623_family.soft.txt.gz" ) );
+        final List<String> parsed = new ArrayList<>();
+        parser.setSectionListener( new GeoFamilyParser.SectionListener() {
+            @Override
+            public void seriesParsed( GeoSeries series, Collection<String> platformAccessions ) {
+                Assert.assertEquals( 8, series.getSamples().size() );
+                Assert.assertEquals( Collections.singleton( "GPL81" ), new HashSet<>( platformAccessions ) );
+                parsed.add( series.getGeoAccession() );
+                // the samples come after the series header, so they can still be skipped.
+                parser.setSamplesToSkip( Collections.singleton( "GSM27451" ) );
+            }
+
+            @Override
+            public void platformParsed( GeoPlatform platform ) {
+                Assert.assertEquals( 12488, platform.getColumnData( "GB_ACC" ).size() );
+                parsed.add( platform.getGeoAccession() );
+            }
+
+            @Override
+            public void sampleParsed( GeoSeries series, GeoSample sample ) {
+                Assert.assertEquals( "GSE1623", series.getGeoAccession() );
+                Assert.assertFalse( sample.getColumnNames().isEmpty() );
+                parsed.add( sample.getGeoAccession() );
+            }
+        } );
+        parser.parse( is );
+
+        Assert.assertEquals( 9, parsed.size() );
+        Assert.assertEquals( "GSE1623", parsed.get( 0 ) );
+        Assert.assertEquals( "GPL81", parsed.get( 1 ) );
+        Assert.assertEquals( "GSM27446", parsed.get( 2 ) );
+        Assert.assertFalse( parsed.contains( "GSM27451" ) );
+
+        GeoParseResult result = ( GeoParseResult ) parser.getResults().iterator().next();
+        Assert.assertEquals( 7, result.getSamples().size() );
+        Assert.assertEquals( 7, result.getSeriesMap().get( "GSE1623" ).getSamples().size() );
+    }
+
+    @Test
+    public void testParseBigSkipPlatform() throws Exception {
+        is = new GZIPInputStream( this.getClass()
+                .getResourceAsStream( "/data/loader/expression/geo/fullSizeTests/GSE1623_family.soft.txt.gz" ) );
+        parser.setPlatformsToSkip( Collections.singleton( "GPL81" ) );
+        parser.parse( is );
+        GeoParseResult result = ( GeoParseResult ) parser.getResults().iterator().next();
+        Assert.assertEquals( 0, result.getPlatforms().size() );
+        Assert.assertEquals( 0, result.getSamples().size() );
+        Assert.assertEquals( 0, result.getSeriesMap().get( "GSE1623" ).getSamples().size() );
+    }
+
     @Test
     public void testParseDataset() throws Exception {
         is = new GZIPInputStream(
@@ -0,0 +1,163 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2021 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.loader.expression.geo;
+
+import org.junit.Before;
+import org.junit.Test;
+import ubic.gemma.core.loader.expression.geo.model.GeoDataset;
+import ubic.gemma.core.loader.expression.geo.model.GeoPlatform;
+import ubic.gemma.core.loader.expression.geo.model.GeoSample;
+import ubic.gemma.core.loader.expression.geo.model.GeoValues;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for storage and retrieval of values in GeoValues.
+ */
+public class GeoValuesTest {
+
+    private GeoPlatform platform;
+    private GeoSample s1;
+    private GeoSample s2;
+    private GeoSample s3;
+    private GeoValues values;
+
+    @Before
+    public void setUp() {
+        platform = new GeoPlatform();
+        platform.setGeoAccession( "GPL99999999" );
+        platform.setTechnology( GeoDataset.PlatformType.spottedOligonucleotide );
+
+        s1 = this.makeSample( "GSM1" );
+        s2 = this.makeSample( "GSM2" );
+        s3 = this.makeSample( "GSM3" );
+
+        values = new GeoValues();
+        values.addQuantitationType( platform, "VALUE", 0 );
+        values.addQuantitationType( platform, "ABS_CALL", 1 );
+
+        this.addRow( s1, "probe1", "1.5", "P" );
+        this.addRow( s1, "probe2", "2", "A" );
+        this.addRow( s2, "probe1", " ", "P" );
+        this.addRow( s2, "probe2", "foo", "M" );
+        this.addRow( s2, "probe3", "-3.25", "P" ); // only seen from the second sample on.
+        this.addRow( s3, "probe1", "1e2", "P" );
+        this.addRow( s3, "probe2", "4", "P" );
+    }
+
+    @Test
+    public void testGetDoubleValues() {
+        Integer[] indices = values.getIndices( platform, Arrays.asList( s3, s1, s2 ), 0 );
+        assertArrayEquals( new Integer[] { 2, 0, 1 }, indices );
+
+        double[] d = new double[3];
+        assertEquals( 2, values.getDoubleValues( platform, 0, "probe1", indices, d ) );
+        assertArrayEquals( new double[] { 100.0, 1.5, Double.NaN }, d, 0.0 );
+
+        assertEquals( 2, values.getDoubleValues( platform, 0, "probe2", indices, d ) );
+        assertArrayEquals( new double[] { 4.0, 2.0, Double.NaN }, d, 0.0 );
+
+        assertEquals( 1, values.getDoubleValues( platform, 0, "probe3", indices, d ) );
+        assertArrayEquals( new double[] { Double.NaN, Double.NaN, -3.25 }, d, 0.0 );
+
+        assertEquals( -1, values.getDoubleValues( platform, 0, "nonexistent", indices, d ) );
+    }
+
+    @Test
+    public void testGetValues() {
+        Integer[] indices = values.getIndices( platform, Arrays.asList( s1, s2, s3 ), 1 );
+        assertEquals( Arrays.<Object>asList( "A", "M", "P" ), values.getValues( platform, 1, "probe2", indices ) );
+
+        indices = values.getIndices( platform, Arrays.asList( s1, s2, s3 ), 0 );
+        assertEquals( Arrays.<Object>asList( "2", "foo", "4" ), values.getValues( platform, 0, "probe2", indices ) );
+        assertEquals( Arrays.<Object>asList( null, "-3.25", null ),
+                values.getValues( platform, 0, "probe3", indices ) );
+        assertEquals( "", values.getValues( platform, 0, "probe1", indices ).get( 1 ) );
+        assertNull( values.getValues( platform, 0, "nonexistent", indices ) );
+
+        assertTrue( values.hasValues( platform, 1, "probe3" ) );
+        assertFalse( values.hasValues( platform, 1, "nonexistent" ) );
+        values.validate();
+    }
+
+    @Test
+    public void testValuesKeptAsWritten() {
+        GeoValues v = new GeoValues();
+        v.addQuantitationType( platform, "ID_REF2", 0 );
+        String[] raw = { "007", "1.50", "123456789012", "1f", "1d", "+5", "1e2", "7.1", "42", "-3", "7.850", "0.0001",
+                "10000000.5", "-0.0", "-0.050", ".5", "1.0E-4" };
+        for ( int i = 0; i < raw.length; i++ ) {
+            v.addValue( s1, 0, "probe" + i, raw[i] );
+        }
+
+        Integer[] indices = v.getIndices( platform, Collections.singletonList( s1 ), 0 );
+        double[] d = new double[1];
+        for ( int i = 0; i < raw.length; i++ ) {
+            assertEquals( raw[i], v.getValues( platform, 0, "probe" + i, indices ).get( 0 ) );
+            assertEquals( 1, v.getDoubleValues( platform, 0, "probe" + i, indices, d ) );
+            assertEquals( Double.parseDouble( raw[i] ), d[0], 0.0 );
+        }
+    }
+
+    @Test
+    public void testSubset() {
+        GeoValues subset = values.subset( Arrays.asList( s1, s3 ) );
+        List<GeoSample> samples = Arrays.asList( s1, s3 );
+        Integer[] indices = subset.getIndices( platform, samples, 0 );
+        assertArrayEquals( new Integer[] { 0, 1 }, indices );
+
+        double[] d = new double[2];
+        assertEquals( 2, subset.getDoubleValues( platform, 0, "probe1", indices, d ) );
+        assertArrayEquals( new double[] { 1.5, 100.0 }, d, 0.0 );
+        assertFalse( subset.hasValues( platform, 0, "probe3" ) );
+
+        // the original is unaffected.
+        assertTrue( values.hasValues( platform, 0, "probe3" ) );
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testDuplicateValue() {
+        values.addValue( s1, 0, "probe1", "2.5" );
+    }
+
+    @Test
+    public void testClear() {
+        values.clear( platform, Arrays.asList( s1, s2 ), 0 ); // not all samples, so nothing happens
+        assertTrue( values.hasValues( platform, 0, "probe1" ) );
+        values.clear( platform, Arrays.asList( s1, s2, s3 ), 0 );
+        assertFalse( values.hasValues( platform, 0, "probe1" ) );
+        assertEquals( Collections.singleton( 1 ), values.getQuantitationTypes( platform ) );
+    }
+
+    private GeoSample makeSample( String accession ) {
+        GeoSample s = new GeoSample();
+        s.setGeoAccession( accession );
+        s.addPlatform( platform );
+        return s;
+    }
+
+    private void addRow( GeoSample sample, String designElement, String value, String call ) {
+        values.addValue( sample, 0, designElement, value );
+        values.addValue( sample, 1, designElement, call );
+    }
+}
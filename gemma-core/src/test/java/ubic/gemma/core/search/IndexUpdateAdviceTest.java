@@ -0,0 +1,97 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2021 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.search;
+
+import org.aspectj.lang.JoinPoint;
+import org.aspectj.lang.Signature;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import ubic.gemma.model.expression.experiment.ExpressionExperiment;
+import ubic.gemma.model.genome.Gene;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Mockito.*;
+
+public class IndexUpdateAdviceTest {
+
+    private IndexUpdateJournal journal;
+    private IndexUpdateAdvice advice;
+
+    @Before
+    public void setUp() {
+        journal = mock( IndexUpdateJournal.class );
+        advice = new IndexUpdateAdvice( journal );
+    }
+
+    @Test
+    public void testCollectionRecordedInOneWrite() {
+        Collection<Object> created = Arrays.<Object>asList( this.gene( 1L ), this.gene( 2L ), this.gene( null ),
+                "not indexed" );
+
+        advice.recordChange( this.joinPoint( "create", created ), created );
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Collection<IndexUpdateJournal.Update>> captor = ArgumentCaptor
+                .forClass( ( Class<Collection<IndexUpdateJournal.Update>> ) ( Class<?> ) Collection.class );
+        verify( journal, times( 1 ) ).add( captor.capture() );
+        List<IndexUpdateJournal.Update> updates = new ArrayList<>( captor.getValue() );
+        assertEquals( 2, updates.size() );
+        assertEquals( Long.valueOf( 1L ), updates.get( 0 ).getId() );
+        assertEquals( Long.valueOf( 2L ), updates.get( 1 ).getId() );
+    }
+
+    /**
+     * Update methods return nothing, so the argument is recorded.
+     */
+    @Test
+    public void testUpdateRecordsArgument() {
+        ExpressionExperiment ee = ExpressionExperiment.Factory.newInstance();
+        ee.setId( 3L );
+
+        advice.recordChange( this.joinPoint( "update", ee ), null );
+
+        verify( journal ).add(
+                Collections.singletonList( new IndexUpdateJournal.Update( ExpressionExperiment.class, 3L, 0L ) ) );
+    }
+
+    @Test
+    public void testNothingIndexedNothingWritten() {
+        advice.recordChange( this.joinPoint( "create", "not indexed" ), "not indexed" );
+        verify( journal, never() ).add( anyCollectionOf( IndexUpdateJournal.Update.class ) );
+    }
+
+    private JoinPoint joinPoint( String methodName, Object arg ) {
+        Signature signature = mock( Signature.class );
+        when( signature.getName() ).thenReturn( methodName );
+        JoinPoint pjp = mock( JoinPoint.class );
+        when( pjp.getSignature() ).thenReturn( signature );
+        when( pjp.getArgs() ).thenReturn( new Object[] { arg } );
+        return pjp;
+    }
+
+    private Gene gene( Long id ) {
+        Gene g = Gene.Factory.newInstance();
+        g.setId( id );
+        return g;
+    }
+}
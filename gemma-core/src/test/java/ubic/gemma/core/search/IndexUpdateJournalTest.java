@@ -0,0 +1,141 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2021 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.search;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import ubic.gemma.model.expression.experiment.ExpressionExperiment;
+import ubic.gemma.model.genome.Gene;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class IndexUpdateJournalTest {
+
+    private File dir;
+    private IndexUpdateJournal journal;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory( "indexjournal" ).toFile();
+        journal = new IndexUpdateJournal( new File( new File( dir, "searchIndices" ), "indexUpdates.journal" ) );
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory( dir );
+    }
+
+    @Test
+    public void testAddAndTake() throws IOException {
+        assertTrue( journal.take().isEmpty() );
+
+        journal.add( this.gene( 1L ) );
+        journal.add( this.experiment( 5L ) );
+        journal.add( this.gene( 1L ) );
+        journal.add( this.gene( null ) ); // transient
+        journal.add( "not indexed" );
+
+        List<IndexUpdateJournal.Update> updates = new ArrayList<>( journal.take() );
+        assertEquals( 2, updates.size() );
+        assertEquals( Gene.class, updates.get( 0 ).getEntityClass() );
+        assertEquals( Long.valueOf( 1L ), updates.get( 0 ).getId() );
+        assertEquals( ExpressionExperiment.class, updates.get( 1 ).getEntityClass() );
+        assertEquals( Long.valueOf( 5L ), updates.get( 1 ).getId() );
+        assertTrue( updates.get( 0 ).getTime() <= updates.get( 1 ).getTime() );
+    }
+
+    @Test
+    public void testUpdatesKeptUntilDone() throws IOException {
+        journal.add( Collections.singleton( new IndexUpdateJournal.Update( Gene.class, 1L, 1000L ) ) );
+        assertEquals( 1, journal.take().size() );
+
+        // not done, so taken again, with the new one
+        journal.add( Arrays.asList( new IndexUpdateJournal.Update( Gene.class, 2L, 3000L ),
+                new IndexUpdateJournal.Update( Gene.class, 1L, 2000L ) ) );
+        Collection<IndexUpdateJournal.Update> updates = journal.take();
+        assertEquals( 2, updates.size() );
+        assertEquals( "The first time recorded is kept", 1000L, updates.iterator().next().getTime() );
+
+        journal.done();
+        assertTrue( journal.take().isEmpty() );
+
+        // a journal opened later, e.g. after a restart, sees the same updates
+        journal.add( this.experiment( 7L ) );
+        journal.take();
+        IndexUpdateJournal reopened = new IndexUpdateJournal(
+                new File( new File( dir, "searchIndices" ), "indexUpdates.journal" ) );
+        assertEquals( 1, reopened.take().size() );
+    }
+
+    @Test
+    public void testAttemptsKept() throws IOException {
+        IndexUpdateJournal.Update u = new IndexUpdateJournal.Update( Gene.class, 1L, 1000L );
+        journal.add( Collections.singleton( u.failed().failed() ) );
+        journal.add( Collections.singleton( new IndexUpdateJournal.Update( Gene.class, 1L, 500L ) ) ); // changed again
+
+        Collection<IndexUpdateJournal.Update> updates = journal.take();
+        assertEquals( 1, updates.size() );
+        IndexUpdateJournal.Update taken = updates.iterator().next();
+        assertEquals( 2, taken.getAttempts() );
+        assertEquals( 500L, taken.getTime() );
+    }
+
+    @Test
+    public void testBadLinesSkipped() throws IOException {
+        File f = new File( new File( dir, "searchIndices" ), "indexUpdates.journal" );
+        journal.add( this.gene( 3L ) );
+        Files.write( f.toPath(), ( "java.lang.String\t1\t1000\n" + "ubic.gemma.model.genome.Gene\tx\t1000\n"
+                + "ubic.gemma.model.genome.Gene\t4" ).getBytes( StandardCharsets.UTF_8 ),
+                StandardOpenOption.APPEND );
+
+        Collection<IndexUpdateJournal.Update> updates = journal.take();
+        assertEquals( 1, updates.size() );
+        assertEquals( Long.valueOf( 3L ), updates.iterator().next().getId() );
+    }
+
+    @Test
+    public void testReconciledUntil() throws IOException {
+        assertNull( journal.getReconciledUntil() );
+        journal.add( this.gene( 1L ) ); // makes the directory
+        Date d = new Date( 123456789L );
+        journal.setReconciledUntil( d );
+        assertEquals( d, journal.getReconciledUntil() );
+    }
+
+    private Gene gene( Long id ) {
+        Gene g = Gene.Factory.newInstance();
+        g.setId( id );
+        return g;
+    }
+
+    private ExpressionExperiment experiment( Long id ) {
+        ExpressionExperiment ee = ExpressionExperiment.Factory.newInstance();
+        ee.setId( id );
+        return ee;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2021 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.core.search.indexer;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import ubic.gemma.core.search.IndexUpdateJournal;
+import ubic.gemma.model.common.Auditable;
+import ubic.gemma.model.expression.arrayDesign.ArrayDesign;
+import ubic.gemma.model.expression.experiment.ExpressionExperiment;
+import ubic.gemma.model.genome.Gene;
+import ubic.gemma.persistence.service.common.auditAndSecurity.AuditEventService;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * Applying the journal to the index, with the index itself replaced by a list of the entities put in it.
+ */
+public class IndexServiceImplTest {
+
+    private File dir;
+    private File journalFile;
+    private IndexUpdateJournal journal;
+    private AuditEventService auditEventService;
+    private TestIndexService indexService;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory( "indexservice" ).toFile();
+        journalFile = new File( dir, "indexUpdates.journal" );
+        journal = new IndexUpdateJournal( journalFile );
+        auditEventService = mock( AuditEventService.class );
+        indexService = new TestIndexService( journal, auditEventService );
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory( dir );
+    }
+
+    /**
+     * One entity that fails does not stop the others in its batch, and is tried again on the next run.
+     */
+    @Test
+    public void testFailedEntityRetriedAlone() throws IOException {
+        this.addGenes( 450 ); // several batches
+        indexService.failing.add( 250L );
+
+        indexService.indexPendingUpdates();
+
+        assertEquals( 449, indexService.indexed.size() );
+        assertFalse( indexService.indexed.contains( "Gene:250" ) );
+        Collection<IndexUpdateJournal.Update> left = journal.take();
+        assertEquals( 1, left.size() );
+        IndexUpdateJournal.Update u = left.iterator().next();
+        assertEquals( Long.valueOf( 250L ), u.getId() );
+        assertEquals( 1, u.getAttempts() );
+
+        // fixed by the next run
+        journal.done();
+        journal.add( left );
+        indexService.failing.clear();
+        indexService.indexPendingUpdates();
+        assertTrue( indexService.indexed.contains( "Gene:250" ) );
+        assertTrue( journal.take().isEmpty() );
+    }
+
+    @Test
+    public void testQuarantinedAfterMaxAttempts() throws IOException {
+        this.addGenes( 3 );
+        indexService.failing.add( 1L );
+
+        for ( int i = 1; i < IndexServiceImpl.MAX_UPDATE_ATTEMPTS; i++ ) {
+            indexService.indexPendingUpdates();
+            Collection<IndexUpdateJournal.Update> left = journal.take();
+            assertEquals( 1, left.size() );
+            assertEquals( i, left.iterator().next().getAttempts() );
+            journal.done();
+            journal.add( left );
+        }
+        indexService.indexPendingUpdates();
+
+        assertTrue( journal.take().isEmpty() );
+        File quarantined = new File( journalFile.getPath() + ".failed" );
+        assertTrue( quarantined.exists() );
+        List<String> lines = Files.readAllLines( quarantined.toPath(), StandardCharsets.UTF_8 );
+        assertEquals( 1, lines.size() );
+        assertTrue( lines.get( 0 ).startsWith( Gene.class.getName() + "\t1\t" ) );
+        assertEquals( 2, indexService.indexed.size() );
+    }
+
+    @Test
+    public void testReconcileIndex() {
+        ExpressionExperiment ee = ExpressionExperiment.Factory.newInstance();
+        ee.setId( 5L );
+        ArrayDesign ad = ArrayDesign.Factory.newInstance();
+        ad.setId( 6L );
+        when( auditEventService.getNewSinceDate( any( Date.class ) ) )
+                .thenReturn( Collections.<Auditable>singleton( ee ) );
+        when( auditEventService.getUpdatedSinceDate( any( Date.class ) ) )
+                .thenReturn( Arrays.<Auditable>asList( ee, ad ) );
+
+        indexService.reconcileIndex();
+
+        assertEquals( new HashSet<>( Arrays.asList( "ExpressionExperiment:5", "ArrayDesign:6" ) ),
+                new HashSet<>( indexService.indexed ) );
+        Date reconciledUntil = journal.getReconciledUntil();
+        assertNotNull( reconciledUntil );
+
+        // the next run starts from where this one did
+        indexService.reconcileIndex();
+        verify( auditEventService ).getNewSinceDate( reconciledUntil );
+        verify( auditEventService ).getUpdatedSinceDate( reconciledUntil );
+    }
+
+    private void addGenes( int n ) {
+        Collection<IndexUpdateJournal.Update> updates = new ArrayList<>();
+        for ( long id = 0; id < n; id++ ) {
+            updates.add( new IndexUpdateJournal.Update( Gene.class, id, System.currentTimeMillis() ) );
+        }
+        journal.add( updates );
+    }
+
+    private static class TestIndexService extends IndexServiceImpl {
+
+        private final List<String> indexed = new ArrayList<>();
+        private final Set<Long> failing = new HashSet<>();
+
+        private TestIndexService( IndexUpdateJournal indexUpdateJournal, AuditEventService auditEventService ) {
+            super( indexUpdateJournal, auditEventService );
+        }
+
+        /**
+         * Like a transaction: either all of the batch is indexed or none of it.
+         */
+        @Override
+        void indexBatch( List<IndexUpdateJournal.Update> batch ) {
+            for ( IndexUpdateJournal.Update u : batch ) {
+                if ( failing.contains( u.getId() ) ) {
+                    throw new RuntimeException( "Could not index " + u );
+                }
+            }
+            for ( IndexUpdateJournal.Update u : batch ) {
+                indexed.add( u.toString() );
+            }
+        }
+    }
+}
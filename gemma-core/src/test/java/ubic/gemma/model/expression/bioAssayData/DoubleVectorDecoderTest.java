@@ -0,0 +1,73 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2021 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.model.expression.bioAssayData;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for decoding many vectors at once.
+ */
+public class DoubleVectorDecoderTest {
+
+    @Test
+    public void testDecode() {
+        byte[] a = this.toBytes( 1.0, 2.5, -3.0 );
+        byte[] b = this.toBytes();
+        byte[] c = this.toBytes( Double.NaN, 4.0 );
+
+        double[][] rows = DoubleVectorDecoder.decode( Arrays.asList( a, b, c ), null );
+        assertEquals( 3, rows.length );
+        assertArrayEquals( new double[] { 1.0, 2.5, -3.0 }, rows[0], 0.0 );
+        assertArrayEquals( new double[] {}, rows[1], 0.0 );
+        assertArrayEquals( new double[] { Double.NaN, 4.0 }, rows[2], 0.0 );
+    }
+
+    @Test
+    public void testDecodeWithMasks() {
+        byte[] a = this.toBytes( 1.0, 2.0, 3.0 );
+        byte[] b = this.toBytes( 4.0, 5.0 );
+        double[][] rows = DoubleVectorDecoder
+                .decode( Arrays.asList( a, b ), Arrays.asList( new byte[] { 1, 0, 1 }, null ) );
+        assertArrayEquals( new double[] { 1.0, Double.NaN, 3.0 }, rows[0], 0.0 );
+        assertArrayEquals( new double[] { 4.0, 5.0 }, rows[1], 0.0 );
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testDecodeWithWrongMask() {
+        DoubleVectorDecoder.decode( Arrays.asList( this.toBytes( 1.0, 2.0 ) ),
+                Arrays.asList( new byte[] { 1, 0, 1 } ) );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDecodeBadData() {
+        DoubleVectorDecoder.decode( Arrays.asList( new byte[] { 1, 2, 3 } ), null );
+    }
+
+    private byte[] toBytes( double... values ) {
+        ByteBuffer buf = ByteBuffer.allocate( values.length * Double.BYTES );
+        buf.asDoubleBuffer().put( values );
+        return buf.array();
+    }
+}
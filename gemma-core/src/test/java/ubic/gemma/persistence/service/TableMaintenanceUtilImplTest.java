@@ -0,0 +1,432 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2021 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.persistence.service;
+
+import org.hibernate.HibernateException;
+import org.hibernate.SQLQuery;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import ubic.gemma.model.common.Auditable;
+import ubic.gemma.model.common.auditAndSecurity.AuditEvent;
+import ubic.gemma.model.common.auditAndSecurity.eventType.ArrayDesignGeneMappingEvent;
+import ubic.gemma.model.expression.arrayDesign.ArrayDesign;
+import ubic.gemma.persistence.model.Gene2CsStatus;
+import ubic.gemma.persistence.service.common.auditAndSecurity.AuditEventService;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Updates of GENE2CS, with the database replaced by a map of the probes of each platform and the entries for them, to
+ * check the ranges of probes regenerated and the versions recorded for each platform.
+ */
+public class TableMaintenanceUtilImplTest {
+
+    private static final int BATCH_SIZE = 100;
+
+    /**
+     * The IDs of the probes of each platform; each probe is mapped to one gene.
+     */
+    private final Map<Long, SortedSet<Long>> probes = new HashMap<>();
+
+    /**
+     * The probes that have GENE2CS entries, for each platform.
+     */
+    private final Map<Long, SortedSet<Long>> entries = new HashMap<>();
+
+    /**
+     * Platforms whose entries can't be inserted.
+     */
+    private final Set<Long> failing = new HashSet<>();
+
+    /**
+     * The platforms and ranges of probes whose entries were replaced, e.g. "1:101-200".
+     */
+    private final List<String> batches = new ArrayList<>();
+
+    private final Collection<Auditable> updatedPlatforms = new ArrayList<>();
+    private final Map<Long, List<AuditEvent>> events = new HashMap<>();
+
+    private int commits;
+    private int rollbacks;
+    private int sessionsOpen;
+
+    private File dir;
+    private File infoPath;
+    private AuditEventService auditEventService;
+    private SessionFactory sessionFactory;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory( "gene2cs" ).toFile();
+        infoPath = new File( dir, "gene2cs.info" );
+
+        auditEventService = mock( AuditEventService.class );
+        when( auditEventService.getNewSinceDate( any( Date.class ) ) )
+                .thenReturn( Collections.<Auditable>emptyList() );
+        when( auditEventService.getUpdatedSinceDate( any( Date.class ) ) ).thenReturn( updatedPlatforms );
+        when( auditEventService.getEvents( any( Auditable.class ) ) ).thenAnswer( new Answer<List<AuditEvent>>() {
+            @Override
+            public List<AuditEvent> answer( InvocationOnMock invocation ) {
+                List<AuditEvent> e = events.get( ( ( Auditable ) invocation.getArguments()[0] ).getId() );
+                return e == null ? Collections.<AuditEvent>emptyList() : e;
+            }
+        } );
+
+        final Session session = mock( Session.class );
+        when( session.createSQLQuery( anyString() ) ).thenAnswer( new Answer<SQLQuery>() {
+            @Override
+            public SQLQuery answer( InvocationOnMock invocation ) {
+                return mock( SQLQuery.class, new FakeQuery( ( String ) invocation.getArguments()[0] ) );
+            }
+        } );
+        Transaction tx = mock( Transaction.class, new Answer<Object>() {
+            @Override
+            public Object answer( InvocationOnMock invocation ) {
+                if ( invocation.getMethod().getName().equals( "commit" ) ) {
+                    commits++;
+                } else if ( invocation.getMethod().getName().equals( "rollback" ) ) {
+                    rollbacks++;
+                }
+                return null;
+            }
+        } );
+        when( session.beginTransaction() ).thenReturn( tx );
+        when( session.close() ).thenAnswer( new Answer<Object>() {
+            @Override
+            public Object answer( InvocationOnMock invocation ) {
+                sessionsOpen--;
+                return null;
+            }
+        } );
+
+        sessionFactory = mock( SessionFactory.class );
+        when( sessionFactory.getCurrentSession() ).thenReturn( session );
+        when( sessionFactory.openSession() ).thenAnswer( new Answer<Session>() {
+            @Override
+            public Session answer( InvocationOnMock invocation ) {
+                sessionsOpen++;
+                return session;
+            }
+        } );
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if ( files != null ) {
+            for ( File f : files ) {
+                assertTrue( f.delete() );
+            }
+        }
+        assertTrue( dir.delete() );
+    }
+
+    @Test
+    public void testGenerateGene2CsEntries() {
+        this.addPlatform( 1L, 1, 250 );
+        this.addPlatform( 2L, 251, 300 );
+        // entries for probes that were removed from the platform, beyond its remaining ones
+        for ( long cs = 5; cs <= 320; cs++ ) {
+            entries.get( 1L ).add( cs );
+        }
+        SortedSet<Long> otherEntries = new TreeSet<>( entries.get( 2L ) );
+
+        int inserted = this.util().generateGene2CsEntries( 1L );
+
+        assertEquals( 250, inserted );
+        assertEquals( probes.get( 1L ), entries.get( 1L ) );
+        assertEquals( otherEntries, entries.get( 2L ) );
+        assertEquals( Arrays.asList( "1:1-100", "1:101-200", "1:201-300", "1:301-320" ), batches );
+        assertEquals( 4, commits );
+        assertEquals( 0, sessionsOpen );
+    }
+
+    @Test
+    public void testGenerateGene2CsEntriesRemovedPlatform() {
+        entries.put( 1L, new TreeSet<>( Arrays.asList( 7L, 8L, 9L ) ) );
+
+        assertEquals( 0, this.util().generateGene2CsEntries( 1L ) );
+        assertTrue( entries.get( 1L ).isEmpty() );
+        assertEquals( Collections.singletonList( "1:7-9" ), batches );
+    }
+
+    @Test
+    public void testGenerateGene2CsEntriesNothingToDo() {
+        assertEquals( 0, this.util().generateGene2CsEntries( 1L ) );
+        assertTrue( batches.isEmpty() );
+    }
+
+    @Test
+    public void testGenerateGene2CsEntriesFailure() {
+        this.addPlatform( 1L, 1, 250 );
+        entries.get( 1L ).clear();
+        failing.add( 1L );
+
+        try {
+            this.util().generateGene2CsEntries( 1L );
+            fail( "Expected an exception" );
+        } catch ( HibernateException e ) {
+            // expected
+        }
+        assertEquals( 0, commits );
+        assertEquals( 1, rollbacks );
+        assertEquals( 0, sessionsOpen );
+        assertEquals( Collections.singletonList( "1:1-100" ), batches );
+    }
+
+    @Test
+    public void testFirstIncrementalUpdate() throws Exception {
+        this.addPlatform( 1L, 1, 10 );
+        this.addPlatform( 2L, 11, 20 );
+        entries.clear();
+        Date before = new Date();
+
+        this.util().updateGene2CsEntries();
+
+        Gene2CsStatus status = this.readStatus();
+        assertNull( status.getError() );
+        assertEquals( probes, entries );
+        assertEquals( new HashSet<>( Arrays.asList( 1L, 2L ) ), status.getPlatformVersions().keySet() );
+        for ( Date version : status.getPlatformVersions().values() ) {
+            assertFalse( version.before( before ) );
+        }
+    }
+
+    /**
+     * Platform 1 is unchanged, 2 had its probes mapped again, 3 was removed, 4 was added and 5 had its probes mapped
+     * again but fails to be updated.
+     */
+    @Test
+    public void testIncrementalUpdate() throws Exception {
+        Date lastUpdate = new Date( System.currentTimeMillis() - 100000 );
+        Map<Long, Date> versions = new HashMap<>();
+        for ( long id = 1; id <= 5; id++ ) {
+            this.addPlatform( id, id * 10, id * 10 + 4 );
+            if ( id != 4 ) {
+                versions.put( id, lastUpdate );
+            }
+        }
+        probes.remove( 3L );
+        entries.remove( 4L );
+        this.mapProbes( 2L, new Date( lastUpdate.getTime() + 1000 ) );
+        this.mapProbes( 5L, new Date( lastUpdate.getTime() + 1000 ) );
+        failing.add( 5L );
+        this.writeStatus( lastUpdate, versions );
+        Date started = new Date();
+
+        this.util().updateGene2CsEntries();
+
+        Gene2CsStatus status = this.readStatus();
+        assertNotNull( status.getError() );
+        assertFalse( status.getLastUpdate().before( started ) );
+        Map<Long, Date> updated = status.getPlatformVersions();
+        assertEquals( lastUpdate, updated.get( 1L ) );
+        assertFalse( updated.get( 2L ).before( started ) );
+        assertFalse( updated.containsKey( 3L ) );
+        assertFalse( updated.get( 4L ).before( started ) );
+        assertFalse( "Failed platform should not have a version", updated.containsKey( 5L ) );
+
+        assertTrue( entries.get( 3L ).isEmpty() );
+        assertEquals( probes.get( 4L ), entries.get( 4L ) );
+        for ( String batch : batches ) {
+            assertFalse( "Unchanged platform was regenerated", batch.startsWith( "1:" ) );
+        }
+
+        // the failed platform is done next time, and only it.
+        batches.clear();
+        failing.clear();
+        updatedPlatforms.clear();
+        this.util().updateGene2CsEntries();
+
+        status = this.readStatus();
+        assertNull( status.getError() );
+        assertEquals( Collections.singletonList( "5:50-54" ), batches );
+        assertEquals( probes.get( 5L ), entries.get( 5L ) );
+        assertEquals( updated.get( 2L ), status.getPlatformVersions().get( 2L ) );
+        assertTrue( status.getPlatformVersions().containsKey( 5L ) );
+    }
+
+    @Test
+    public void testIncrementalUpdateNothingChanged() throws Exception {
+        this.addPlatform( 1L, 1, 10 );
+        Date lastUpdate = new Date( System.currentTimeMillis() - 100000 );
+        this.writeStatus( lastUpdate, Collections.singletonMap( 1L, lastUpdate ) );
+        // a mapping done before the last update
+        this.mapProbes( 1L, new Date( lastUpdate.getTime() - 1000 ) );
+
+        this.util().updateGene2CsEntries();
+
+        assertTrue( batches.isEmpty() );
+        assertEquals( lastUpdate, this.readStatus().getLastUpdate() );
+    }
+
+    private TableMaintenanceUtilImpl util() {
+        return new TableMaintenanceUtilImpl( auditEventService, sessionFactory, infoPath, true,
+                TableMaintenanceUtilImplTest.BATCH_SIZE );
+    }
+
+    /**
+     * Add a platform with the given range of probes, all of which have entries.
+     */
+    private void addPlatform( long id, long firstProbe, long lastProbe ) {
+        SortedSet<Long> ids = new TreeSet<>();
+        for ( long cs = firstProbe; cs <= lastProbe; cs++ ) {
+            ids.add( cs );
+        }
+        probes.put( id, ids );
+        entries.put( id, new TreeSet<>( ids ) );
+    }
+
+    private void mapProbes( long platformId, Date date ) {
+        ArrayDesign ad = ArrayDesign.Factory.newInstance();
+        ad.setId( platformId );
+        updatedPlatforms.add( ad );
+        events.put( platformId, Collections.singletonList( AuditEvent.Factory
+                .newInstance( date, null, null, null, null, ArrayDesignGeneMappingEvent.Factory.newInstance() ) ) );
+    }
+
+    private void writeStatus( Date lastUpdate, Map<Long, Date> versions ) throws IOException {
+        Gene2CsStatus status = new Gene2CsStatus();
+        status.setLastUpdate( lastUpdate );
+        status.setPlatformVersions( new HashMap<>( versions ) );
+        try (ObjectOutputStream out = new ObjectOutputStream( new FileOutputStream( infoPath ) )) {
+            out.writeObject( status );
+        }
+    }
+
+    private Gene2CsStatus readStatus() throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream( new FileInputStream( infoPath ) )) {
+            return ( Gene2CsStatus ) in.readObject();
+        }
+    }
+
+    /**
+     * Answers the queries used to update GENE2CS from the probes and entries of the test.
+     */
+    private class FakeQuery implements Answer<Object> {
+
+        private final String sql;
+        private final Map<String, Object> parameters = new HashMap<>();
+
+        private FakeQuery( String sql ) {
+            this.sql = sql;
+        }
+
+        @Override
+        public Object answer( InvocationOnMock invocation ) {
+            String method = invocation.getMethod().getName();
+            Object[] args = invocation.getArguments();
+            if ( method.startsWith( "set" ) && args.length == 2 && args[0] instanceof String ) {
+                parameters.put( ( String ) args[0], args[1] );
+            }
+            switch ( method ) {
+                case "list":
+                    if ( sql.equals( "SELECT ID FROM ARRAY_DESIGN" ) ) {
+                        return new ArrayList<>( probes.keySet() );
+                    }
+                    break;
+                case "uniqueResult":
+                    if ( sql.contains( "FROM COMPOSITE_SEQUENCE" ) ) {
+                        return this.range( probes.get( this.getLong( "ad" ) ) );
+                    }
+                    if ( sql.contains( "FROM GENE2CS" ) ) {
+                        return this.range( entries.get( this.getLong( "ad" ) ) );
+                    }
+                    break;
+                case "executeUpdate":
+                    return this.executeUpdate();
+                default:
+                    return invocation.getMethod().getReturnType().isInstance( invocation.getMock() ) ?
+                            invocation.getMock() :
+                            null;
+            }
+            throw new UnsupportedOperationException( sql );
+        }
+
+        private int executeUpdate() {
+            if ( sql.equals( "DELETE FROM GENE2CS" ) ) {
+                int deleted = 0;
+                for ( SortedSet<Long> e : entries.values() ) {
+                    deleted += e.size();
+                    e.clear();
+                }
+                return deleted;
+            }
+            if ( sql.startsWith( "INSERT INTO GENE2CS" ) && !parameters.containsKey( "ad" ) ) {
+                int inserted = 0;
+                for ( Map.Entry<Long, SortedSet<Long>> p : probes.entrySet() ) {
+                    entries.put( p.getKey(), new TreeSet<>( p.getValue() ) );
+                    inserted += p.getValue().size();
+                }
+                return inserted;
+            }
+
+            Long ad = this.getLong( "ad" );
+            long first = this.getLong( "first" );
+            long last = this.getLong( "last" );
+            if ( !entries.containsKey( ad ) ) {
+                entries.put( ad, new TreeSet<Long>() );
+            }
+            if ( sql.startsWith( "DELETE FROM GENE2CS" ) ) {
+                batches.add( ad + ":" + first + "-" + last );
+                SortedSet<Long> deleted = entries.get( ad ).subSet( first, last + 1 );
+                int size = deleted.size();
+                deleted.clear();
+                return size;
+            }
+            if ( sql.startsWith( "INSERT INTO GENE2CS" ) ) {
+                if ( failing.contains( ad ) ) {
+                    throw new HibernateException( "Insert failed" );
+                }
+                if ( !probes.containsKey( ad ) ) {
+                    return 0;
+                }
+                SortedSet<Long> inserted = probes.get( ad ).subSet( first, last + 1 );
+                entries.get( ad ).addAll( inserted );
+                return inserted.size();
+            }
+            throw new UnsupportedOperationException( sql );
+        }
+
+        private Object[] range( SortedSet<Long> ids ) {
+            if ( ids == null || ids.isEmpty() ) {
+                return new Object[] { null, null };
+            }
+            return new Object[] { ids.first(), ids.last() };
+        }
+
+        private Long getLong( String name ) {
+            return ( ( Number ) parameters.get( name ) ).longValue();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2021 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.persistence.service.analysis.expression.diff;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for storing the per-gene differential expression index in files.
+ */
+public class DiffExGeneIndexFileStoreTest {
+
+    private File dir;
+    private DiffExGeneIndexFileStore store;
+    private Collection<Long> platformIds;
+    private Map<Long, Date> platformVersions;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory( "diffExGeneIndex" ).toFile();
+        store = new DiffExGeneIndexFileStore( dir );
+        platformIds = Arrays.asList( 10L, 11L );
+        platformVersions = new HashMap<>();
+        platformVersions.put( 10L, new Date( 1000L ) );
+        platformVersions.put( 11L, new Date( 2000L ) );
+        platformVersions.put( 12L, new Date( 3000L ) );
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if ( files != null ) {
+            for ( File f : files ) {
+                assertTrue( f.delete() );
+            }
+        }
+        assertTrue( dir.delete() );
+    }
+
+    @Test
+    public void testWriteRead() throws IOException {
+        store.write( 1L, new DiffExGeneIndexFileStore.Index( new long[] { 5L, 7L, 100L }, new long[] { 50L, 70L, 10L },
+                new double[] { 0.001, 0.5, 1e-8 }, new double[] { 0.01, 0.9, 1e-6 }, new int[] { 1, 3, 2 },
+                new int[] { 1, 2, 2 } ), platformIds, platformVersions );
+
+        DiffExGeneIndexFileStore.Index index = store.read( 1L, platformVersions );
+        assertNotNull( index );
+        assertEquals( 3, index.size() );
+
+        assertEquals( -1, index.find( 6L ) );
+        assertEquals( -1, index.find( 1000L ) );
+
+        int i = index.find( 100L );
+        assertEquals( 2, i );
+        assertEquals( 100L, index.getGeneId( i ) );
+        assertEquals( 10L, index.getResultId( i ) );
+        assertEquals( 1e-8, index.getPvalue( i ), 0.0 );
+        assertEquals( 1e-6, index.getCorrectedPvalue( i ), 0.0 );
+        assertEquals( 2, index.getNumberOfProbes( i ) );
+        assertEquals( 2, index.getNumberOfProbesDiffExpressed( i ) );
+
+        i = index.find( 7L );
+        assertEquals( 70L, index.getResultId( i ) );
+        assertEquals( 3, index.getNumberOfProbes( i ) );
+        assertEquals( 2, index.getNumberOfProbesDiffExpressed( i ) );
+
+        assertNull( store.read( 2L, platformVersions ) );
+
+        store.remove( 1L );
+        assertNull( store.read( 1L, platformVersions ) );
+    }
+
+    @Test
+    public void testWriteReadEmpty() throws IOException {
+        store.write( 1L, new DiffExGeneIndexFileStore.Index( new long[0], new long[0], new double[0], new double[0],
+                new int[0], new int[0] ), platformIds, platformVersions );
+        DiffExGeneIndexFileStore.Index index = store.read( 1L, platformVersions );
+        assertNotNull( index );
+        assertEquals( 0, index.size() );
+        assertEquals( -1, index.find( 1L ) );
+    }
+
+    @Test
+    public void testReadOtherPlatformUpdated() throws IOException {
+        this.writeOneGene();
+
+        // not one of the result set's platforms
+        platformVersions.put( 12L, new Date( 4000L ) );
+        assertNotNull( store.read( 1L, platformVersions ) );
+    }
+
+    @Test
+    public void testReadOutOfDate() throws IOException {
+        this.writeOneGene();
+        File file = this.getOnlyFile();
+
+        platformVersions.put( 11L, new Date( 4000L ) );
+        assertNull( store.read( 1L, platformVersions ) );
+        assertFalse( file.exists() );
+    }
+
+    @Test
+    public void testReadVersionNoLongerKnown() throws IOException {
+        this.writeOneGene();
+        File file = this.getOnlyFile();
+
+        platformVersions.remove( 10L );
+        assertNull( store.read( 1L, platformVersions ) );
+        assertFalse( file.exists() );
+    }
+
+    @Test
+    public void testReadVersionNotKnown() throws IOException {
+        platformVersions.clear();
+        this.writeOneGene();
+
+        // built while the versions were not known; out of date once they are.
+        assertNotNull( store.read( 1L, platformVersions ) );
+        platformVersions.put( 10L, new Date( 1000L ) );
+        assertNull( store.read( 1L, platformVersions ) );
+    }
+
+    @Test
+    public void testReadCorrupt() throws IOException {
+        this.writeOneGene();
+        File file = this.getOnlyFile();
+
+        // truncate it
+        try (FileOutputStream out = new FileOutputStream( file, true )) {
+            out.getChannel().truncate( file.length() - 1 );
+        }
+
+        assertNull( store.read( 1L, platformVersions ) );
+        assertFalse( file.exists() );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsortedGenes() {
+        new DiffExGeneIndexFileStore.Index( new long[] { 7L, 5L }, new long[] { 70L, 50L }, new double[] { 0.1, 0.1 },
+                new double[] { 0.1, 0.1 }, new int[] { 1, 1 }, new int[] { 1, 1 } );
+    }
+
+    private void writeOneGene() throws IOException {
+        store.write( 1L, new DiffExGeneIndexFileStore.Index( new long[] { 5L }, new long[] { 50L },
+                new double[] { 0.001 }, new double[] { 0.01 }, new int[] { 1 }, new int[] { 1 } ), platformIds,
+                platformVersions );
+    }
+
+    private File getOnlyFile() {
+        File[] files = dir.listFiles();
+        assertNotNull( files );
+        assertEquals( 1, files.length );
+        return files[0];
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2021 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.persistence.service.analysis.expression.diff;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import ubic.gemma.model.analysis.expression.diff.DiffExResultSetSummaryValueObject;
+import ubic.gemma.model.analysis.expression.diff.DiffExprGeneSearchResult;
+import ubic.gemma.model.analysis.expression.diff.DiffExprGeneSearchResults;
+import ubic.gemma.persistence.util.SharedExecutors;
+
+import java.math.BigInteger;
+import java.util.*;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Searches for genes across result sets, with the database queries replaced by made-up results, so the batching, the
+ * concurrent queries and the deadline can be checked.
+ */
+public class DifferentialExpressionResultDaoImplTest {
+
+    private static final int NUM_RESULT_SETS = 120; // several batches
+    private static final int NUM_GENES = 450; // several batches of probes
+
+    private Collection<DiffExResultSetSummaryValueObject> resultSets;
+    private Collection<Long> geneIds;
+
+    @Before
+    public void setUp() {
+        resultSets = new ArrayList<>();
+        for ( long id = 1; id <= DifferentialExpressionResultDaoImplTest.NUM_RESULT_SETS; id++ ) {
+            DiffExResultSetSummaryValueObject rs = new DiffExResultSetSummaryValueObject();
+            rs.setResultSetId( id );
+            resultSets.add( rs );
+        }
+        geneIds = new ArrayList<>();
+        for ( long id = 1; id <= DifferentialExpressionResultDaoImplTest.NUM_GENES; id++ ) {
+            geneIds.add( id );
+        }
+    }
+
+    @After
+    public void tearDown() {
+        SharedExecutors.shutdown();
+    }
+
+    @Test
+    public void testConcurrentSameAsSequential() {
+        DiffExprGeneSearchResults expected = this.dao( 1, 0, null )
+                .findDiffExAnalysisResultIdsInResultSets( resultSets, geneIds );
+        TestDao concurrent = this.dao( 4, 0, null );
+        DiffExprGeneSearchResults actual = concurrent.findDiffExAnalysisResultIdsInResultSets( resultSets, geneIds );
+
+        assertTrue( "Queries were not run concurrently", concurrent.getMaxRunning() > 1 );
+
+        assertFalse( expected.isPartial() );
+        assertFalse( actual.isPartial() );
+        assertEquals( DifferentialExpressionResultDaoImplTest.NUM_RESULT_SETS, expected.getResults().size() );
+        assertEquals( expected.getResults().keySet(), actual.getResults().keySet() );
+        for ( Long rs : expected.getResults().keySet() ) {
+            Map<Long, DiffExprGeneSearchResult> e = expected.getResults().get( rs );
+            Map<Long, DiffExprGeneSearchResult> a = actual.getResults().get( rs );
+            assertEquals( DifferentialExpressionResultDaoImplTest.NUM_GENES, e.size() );
+            assertEquals( e.keySet(), a.keySet() );
+            for ( Long g : e.keySet() ) {
+                assertEquals( e.get( g ).getResultId(), a.get( g ).getResultId() );
+                assertEquals( e.get( g ).getCorrectedPvalue(), a.get( g ).getCorrectedPvalue() );
+                assertEquals( e.get( g ).getNumberOfProbes(), a.get( g ).getNumberOfProbes() );
+            }
+        }
+    }
+
+    @Test
+    public void testDeadlineSequential() {
+        this.checkDeadline( 1 );
+    }
+
+    @Test
+    public void testDeadlineConcurrent() {
+        this.checkDeadline( 4 );
+    }
+
+    /**
+     * The queries for one result set do not finish before the deadline: it must be reported as not searched, and the
+     * search must not wait for it.
+     */
+    private void checkDeadline( int threads ) {
+        long start = System.currentTimeMillis();
+        DiffExprGeneSearchResults results = this.dao( threads, 1, 75L )
+                .findDiffExAnalysisResultIdsInResultSets( resultSets, geneIds );
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertTrue( "Took " + elapsed + " ms", elapsed < 4000 );
+        assertTrue( results.isPartial() );
+        assertTrue( results.getResultSetsNotSearched().contains( 75L ) );
+        for ( Long rs : results.getResultSetsNotSearched() ) {
+            assertFalse( results.getResults().containsKey( rs ) );
+        }
+        for ( Map<Long, DiffExprGeneSearchResult> found : results.getResults().values() ) {
+            assertEquals( DifferentialExpressionResultDaoImplTest.NUM_GENES, found.size() ); // no partial result sets
+        }
+        assertEquals( DifferentialExpressionResultDaoImplTest.NUM_RESULT_SETS,
+                results.getResults().size() + results.getResultSetsNotSearched().size() );
+    }
+
+    /**
+     * @param slowResultSet result set whose queries run until they time out, or null
+     */
+    private TestDao dao( int threads, int deadlineSeconds, Long slowResultSet ) {
+        SessionFactory sessionFactory = mock( SessionFactory.class );
+        when( sessionFactory.openSession() ).thenReturn( mock( Session.class ) );
+        TestDao dao = new TestDao( sessionFactory, slowResultSet );
+        dao.setSearchThreads( threads );
+        dao.setSearchDeadlineSeconds( deadlineSeconds );
+        return dao;
+    }
+
+    private static class TestDao extends DifferentialExpressionResultDaoImpl {
+
+        private final Long slowResultSet;
+        private int running = 0;
+        private int maxRunning = 0;
+
+        private TestDao( SessionFactory sessionFactory, Long slowResultSet ) {
+            super( sessionFactory, mock( DifferentialExpressionResultCache.class ) );
+            this.slowResultSet = slowResultSet;
+        }
+
+        /**
+         * Each gene has one probe, and the even ones a second.
+         */
+        @Override
+        Map<Long, Collection<Long>> getProbesForGenesInResultSetBatch( Session session, Collection<Long> geneIds,
+                Map<Long, DiffExResultSetSummaryValueObject> resultSetIds, Collection<Long> resultSetIdBatch ) {
+            Map<Long, Collection<Long>> cs2GeneIdMap = new HashMap<>();
+            for ( Long g : geneIds ) {
+                cs2GeneIdMap.put( 10000 + g, Collections.singleton( g ) );
+                if ( g % 2 == 0 ) {
+                    cs2GeneIdMap.put( 20000 + g, Collections.singleton( g ) );
+                }
+            }
+            return cs2GeneIdMap;
+        }
+
+        /**
+         * A result for every probe in every result set; the slow result set's queries run until the deadline and are
+         * then stopped, as the query timeout would.
+         */
+        @Override
+        List<?> queryProbeBatch( Session session, Collection<Long> resultSetIdBatch, List<Long> probeIds,
+                long deadline ) {
+            synchronized ( this ) {
+                running++;
+                maxRunning = Math.max( maxRunning, running );
+            }
+            try {
+                return this.query( resultSetIdBatch, probeIds, deadline );
+            } finally {
+                synchronized ( this ) {
+                    running--;
+                }
+            }
+        }
+
+        private synchronized int getMaxRunning() {
+            return maxRunning;
+        }
+
+        private List<?> query( Collection<Long> resultSetIdBatch, List<Long> probeIds, long deadline ) {
+            if ( slowResultSet != null && resultSetIdBatch.contains( slowResultSet ) ) {
+                try {
+                    Thread.sleep( Math.max( 0, Math.min( 10000, deadline - System.currentTimeMillis() ) ) );
+                } catch ( InterruptedException e ) {
+                    throw new HibernateException( "Query was cancelled" );
+                }
+                throw new HibernateException( "Query timed out" );
+            }
+            List<Object[]> rows = new ArrayList<>();
+            for ( Long rs : resultSetIdBatch ) {
+                for ( Long probe : probeIds ) {
+                    double qvalue = ( ( rs * 31 + probe * 17 ) % 1000 ) / 1000.0;
+                    rows.add( new Object[] { BigInteger.valueOf( probe ), BigInteger.valueOf( rs * 100000 + probe ),
+                            BigInteger.valueOf( rs ), qvalue, qvalue / 2 } );
+                }
+            }
+            try {
+                Thread.sleep( 20 ); // as a query would, so the batches overlap
+            } catch ( InterruptedException e ) {
+                throw new HibernateException( "Query was cancelled" );
+            }
+            return rows;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2021 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.persistence.service.association.coexpression;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.aop.framework.Advised;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import ubic.gemma.core.util.test.BaseSpringContextTest;
+import ubic.gemma.model.analysis.expression.coexpression.IdArrayValueObject;
+import ubic.gemma.model.association.coexpression.MouseGeneCoExpression;
+import ubic.gemma.model.expression.experiment.ExpressionExperiment;
+import ubic.gemma.model.genome.Gene;
+import ubic.gemma.model.genome.Taxon;
+import ubic.gemma.persistence.util.EntityUtils;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Saving links through Hibernate and in bulk must leave the same rows: the same experiments are saved both ways, each
+ * with its own genes, and the rows are compared with the genes and experiments replaced by their positions.
+ */
+public class CoexpressionDaoImplTest extends BaseSpringContextTest {
+
+    private static final int NUM_GENES = 5;
+
+    /**
+     * The gene-level links, in both directions, as "first gene-second gene sign support [supporting experiments]".
+     */
+    private static final List<String> EXPECTED_LINKS = Arrays
+            .asList( "0-1 + 2 [0, 1]", "0-3 + 1 [0]", "1-0 + 2 [0, 1]", "1-2 + 1 [1]", "1-2 - 1 [0]", "2-1 + 1 [1]",
+                    "2-1 - 1 [0]", "2-3 + 1 [1]", "3-0 + 1 [0]", "3-2 + 1 [1]" );
+
+    @Autowired
+    private CoexpressionService coexpressionService;
+
+    @Autowired
+    private CoexpressionDao coexpressionDao;
+
+    private Taxon mouse;
+
+    @Before
+    public void setUp() {
+        mouse = this.getTaxon( "mouse" );
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.getDao().setBulkPersist( false, 500 );
+    }
+
+    @Test
+    public void testBulkSameAsHibernate() throws Exception {
+        this.getDao().setBulkPersist( false, 500 );
+        Map<String, List<String>> expected = this.saveLinks();
+        // a couple of rows per statement, so there are full and partial ones.
+        this.getDao().setBulkPersist( true, 2 );
+        Map<String, List<String>> actual = this.saveLinks();
+
+        assertEquals( CoexpressionDaoImplTest.EXPECTED_LINKS, expected.get( "links" ) );
+        assertEquals( expected, actual );
+    }
+
+    /**
+     * Save the links of two experiments, the second updating some of the links of the first, among new genes.
+     *
+     * @return the rows that refer to the genes, by kind
+     */
+    private Map<String, List<String>> saveLinks() {
+        List<Gene> genes = new ArrayList<>();
+        for ( int i = 0; i < CoexpressionDaoImplTest.NUM_GENES; i++ ) {
+            genes.add( this.getTestPersistentGene( mouse ) );
+        }
+        List<Long> ees = new ArrayList<>();
+        LinkCreator c = new LinkCreator( mouse );
+
+        ExpressionExperiment ee = this.getTestPersistentBasicExpressionExperiment();
+        ees.add( ee.getId() );
+        List<NonPersistentNonOrderedCoexpLink> links = new ArrayList<>();
+        links.add( this.link( genes, 0, 1, true ) );
+        links.add( this.link( genes, 1, 2, false ) );
+        links.add( this.link( genes, 3, 0, true ) );
+        coexpressionService.createOrUpdate( ee, links, c, this.genes( genes, 0, 1, 2, 3, 4 ) );
+
+        // an existing link, a new one between genes that had links, and the other sign of an existing link
+        ee = this.getTestPersistentBasicExpressionExperiment();
+        ees.add( ee.getId() );
+        links = new ArrayList<>();
+        links.add( this.link( genes, 0, 1, true ) );
+        links.add( this.link( genes, 2, 3, true ) );
+        links.add( this.link( genes, 1, 2, true ) );
+        coexpressionService.createOrUpdate( ee, links, c, this.genes( genes, 0, 1, 2, 3 ) );
+
+        return this.getRows( new ArrayList<>( EntityUtils.getIds( genes ) ), ees );
+    }
+
+    private Map<String, List<String>> getRows( List<Long> genes, List<Long> ees ) {
+        String geneIds = StringUtils.join( genes, "," );
+        Map<String, List<String>> rows = new HashMap<>();
+
+        // gene-level links; the flipped versions must share the support details.
+        List<String> links = new ArrayList<>();
+        Map<String, Long> supportDetailsByLink = new HashMap<>();
+        Map<Long, String> linksById = new HashMap<>();
+        for ( Map<String, Object> row : simpleJdbcTemplate.queryForList(
+                "select l.ID, l.FIRST_GENE_FK, l.SECOND_GENE_FK, l.POSITIVE, l.SUPPORT, l.SUPPORT_DETAILS_FK, s.BYTES"
+                        + " from " + CoexpressionQueryUtils.getGeneLinkTableName( mouse ) + " l inner join "
+                        + CoexpressionQueryUtils.getSupportDetailsTableName( mouse )
+                        + " s on s.ID = l.SUPPORT_DETAILS_FK where l.FIRST_GENE_FK in (" + geneIds + ")" ) ) {
+            String link = this.index( genes, row.get( "FIRST_GENE_FK" ) ) + "-" + this
+                    .index( genes, row.get( "SECOND_GENE_FK" ) ) + " " + (
+                    ( ( Number ) row.get( "POSITIVE" ) ).intValue() > 0 ? "+" : "-" );
+            links.add( link + " " + row.get( "SUPPORT" ) + " " + this
+                    .indexes( ees, new IdArrayValueObject( ( byte[] ) row.get( "BYTES" ) ).getIds() ) );
+            supportDetailsByLink.put( link, ( ( Number ) row.get( "SUPPORT_DETAILS_FK" ) ).longValue() );
+            linksById.put( ( ( Number ) row.get( "ID" ) ).longValue(), link );
+        }
+        for ( String link : supportDetailsByLink.keySet() ) {
+            String[] parts = link.split( "[- ]" );
+            String flipped = parts[1] + "-" + parts[0] + " " + link.substring( link.length() - 1 );
+            assertEquals( "Support details of " + link, supportDetailsByLink.get( link ),
+                    supportDetailsByLink.get( flipped ) );
+        }
+        Collections.sort( links );
+        rows.put( "links", links );
+
+        // experiment-level links, with the gene-level link they refer to
+        List<String> eeLinks = new ArrayList<>();
+        for ( Map<String, Object> row : simpleJdbcTemplate.queryForList(
+                "select EXPERIMENT_FK, LINK_FK, GENE1_FK, GENE2_FK from " + CoexpressionQueryUtils
+                        .getExperimentLinkTableName( mouse ) + " where EXPERIMENT_FK in (" + StringUtils
+                        .join( ees, "," ) + ")" ) ) {
+            eeLinks.add( this.index( ees, row.get( "EXPERIMENT_FK" ) ) + " " + this
+                    .index( genes, row.get( "GENE1_FK" ) ) + "-" + this.index( genes, row.get( "GENE2_FK" ) ) + " "
+                    + linksById.get( ( ( Number ) row.get( "LINK_FK" ) ).longValue() ) );
+        }
+        Collections.sort( eeLinks );
+        rows.put( "experimentLinks", eeLinks );
+
+        List<String> testedIn = new ArrayList<>();
+        for ( Map<String, Object> row : simpleJdbcTemplate
+                .queryForList( "select ID, BYTES, NUM_TESTS from GENE_COEX_TESTED_IN where ID in (" + geneIds + ")" ) ) {
+            testedIn.add( this.index( genes, row.get( "ID" ) ) + " " + row.get( "NUM_TESTS" ) + " " + this
+                    .indexes( ees, new IdArrayValueObject( ( byte[] ) row.get( "BYTES" ) ).getIds() ) );
+        }
+        Collections.sort( testedIn );
+        rows.put( "testedIn", testedIn );
+
+        List<String> coexpressedWith = new ArrayList<>();
+        for ( Map<String, Object> row : simpleJdbcTemplate
+                .queryForList( "select ID, BYTES from GENE_COEX_GENES where ID in (" + geneIds + ")" ) ) {
+            coexpressedWith.add( this.index( genes, row.get( "ID" ) ) + " " + this
+                    .indexes( genes, new IdArrayValueObject( ( byte[] ) row.get( "BYTES" ) ).getIds() ) );
+        }
+        Collections.sort( coexpressedWith );
+        rows.put( "coexpressedWith", coexpressedWith );
+
+        return rows;
+    }
+
+    private NonPersistentNonOrderedCoexpLink link( List<Gene> genes, int g1, int g2, boolean positive ) {
+        return new NonPersistentNonOrderedCoexpLink( MouseGeneCoExpression.Factory
+                .newInstance( positive ? 0.9 : -0.9, genes.get( g1 ).getId(), genes.get( g2 ).getId() ) );
+    }
+
+    private Set<Gene> genes( List<Gene> genes, int... indexes ) {
+        Set<Gene> result = new HashSet<>();
+        for ( int i : indexes ) {
+            result.add( genes.get( i ) );
+        }
+        return result;
+    }
+
+    private int index( List<Long> ids, Object id ) {
+        return ids.indexOf( ( ( Number ) id ).longValue() );
+    }
+
+    private List<Integer> indexes( List<Long> ids, Collection<Long> values ) {
+        List<Integer> result = new ArrayList<>();
+        for ( Long v : values ) {
+            result.add( ids.indexOf( v ) );
+        }
+        Collections.sort( result );
+        return result;
+    }
+
+    private CoexpressionDaoImpl getDao() throws Exception {
+        Object dao = coexpressionDao;
+        if ( AopUtils.isAopProxy( dao ) ) {
+            dao = ( ( Advised ) dao ).getTargetSource().getTarget();
+        }
+        return ( CoexpressionDaoImpl ) dao;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2021 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.persistence.service.association.coexpression;
+
+import org.junit.Before;
+import org.junit.Test;
+import ubic.gemma.model.analysis.expression.coexpression.SupportDetails;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for queries of the in-memory coexpression links.
+ */
+public class CoexpressionGraphIndexTest {
+
+    private CoexpressionGraphIndex index;
+
+    @Before
+    public void setUp() {
+        CoexpressionGraphIndex.Builder builder = new CoexpressionGraphIndex.Builder();
+        // links are stored in both directions, sharing the support details; rows come in no particular order.
+        this.addLink( builder, 1L, 2L, true, 100L, 10L, 11L, 12L );
+        this.addLink( builder, 1L, 3L, true, 101L, 10L );
+        this.addLink( builder, 1L, 4L, false, 102L, 10L, 11L );
+        this.addLink( builder, 1L, 2L, false, 103L, 12L ); // same genes, other sign
+        this.addLink( builder, 3L, 4L, true, 104L, 10L, 11L, 12L, 13L );
+        builder.addLink( 5L, 6L, true, 1, 999L ); // no support details, should be dropped.
+        index = builder.build();
+    }
+
+    @Test
+    public void testFind() {
+        assertEquals( 4, index.numGenes() );
+        assertEquals( 10, index.numLinks() );
+
+        Map<Long, List<CoexpressionValueObject>> r = index.find( Collections.singleton( 1L ), 1, false );
+        assertEquals( 1, r.size() );
+        List<CoexpressionValueObject> links = r.get( 1L );
+        assertEquals( 4, links.size() );
+
+        // sorted by support
+        assertEquals( 3, links.get( 0 ).getNumDatasetsSupporting().intValue() );
+        assertEquals( 2L, links.get( 0 ).getCoexGeneId().longValue() );
+        assertTrue( links.get( 0 ).isPositiveCorrelation() );
+        assertEquals( new HashSet<>( Arrays.asList( 10L, 11L, 12L ) ), links.get( 0 ).getSupportingDatasets() );
+        assertEquals( 2, links.get( 1 ).getNumDatasetsSupporting().intValue() );
+        assertEquals( 4L, links.get( 1 ).getCoexGeneId().longValue() );
+        assertFalse( links.get( 1 ).isPositiveCorrelation() );
+        assertEquals( 100L, links.get( 0 ).getSupportDetailsId().longValue() );
+
+        for ( CoexpressionValueObject link : links ) {
+            assertFalse( link.isInterQueryLink() );
+        }
+
+        r = index.find( Collections.singleton( 1L ), 2, false );
+        assertEquals( 2, r.get( 1L ).size() );
+
+        r = index.find( Collections.singleton( 1L ), 4, false );
+        assertTrue( r.isEmpty() );
+
+        r = index.find( Collections.singleton( 5L ), 1, false );
+        assertTrue( r.isEmpty() );
+    }
+
+    @Test
+    public void testFindAmongQueryGenes() {
+        Map<Long, List<CoexpressionValueObject>> r = index.find( Arrays.asList( 1L, 3L, 4L ), 1, true );
+
+        // each link is only returned once
+        int total = 0;
+        for ( List<CoexpressionValueObject> links : r.values() ) {
+            for ( CoexpressionValueObject link : links ) {
+                assertTrue( link.isInterQueryLink() );
+                assertNotEquals( 2L, link.getCoexGeneId().longValue() );
+                total++;
+            }
+        }
+        assertEquals( 3, total );
+
+        r = index.find( Arrays.asList( 1L, 3L ), 1, false );
+        total = 0;
+        int inter = 0;
+        for ( List<CoexpressionValueObject> links : r.values() ) {
+            for ( CoexpressionValueObject link : links ) {
+                if ( link.isInterQueryLink() )
+                    inter++;
+                total++;
+            }
+        }
+        assertEquals( 5, total );
+        assertEquals( 1, inter );
+    }
+
+    private void addLink( CoexpressionGraphIndex.Builder builder, Long g1, Long g2, boolean positive,
+            Long supportDetailsId, Long... datasets ) {
+        SupportDetails sd = new SupportDetails( g1, g2, positive );
+        sd.addEntities( Arrays.asList( datasets ) );
+        builder.addSupportDetails( supportDetailsId, sd.getBytes() );
+        builder.addLink( g2, g1, positive, datasets.length, supportDetailsId );
+        builder.addLink( g1, g2, positive, datasets.length, supportDetailsId );
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2021 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.persistence.service.expression.bioAssayData;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import ubic.basecode.io.ByteArrayConverter;
+import ubic.gemma.model.expression.bioAssayData.DoubleVectorDecoder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for storing processed data in files.
+ */
+public class ProcessedDataMatrixFileStoreTest {
+
+    private File dir;
+    private ProcessedDataMatrixFileStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory( "processedDataMatrices" ).toFile();
+        store = new ProcessedDataMatrixFileStore( dir );
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if ( files != null ) {
+            for ( File f : files ) {
+                assertTrue( f.delete() );
+            }
+        }
+        assertTrue( dir.delete() );
+    }
+
+    @Test
+    public void testWriteRead() throws IOException {
+        ByteArrayConverter bac = new ByteArrayConverter();
+        double[][] data = DoubleVectorDecoder.decode(
+                Arrays.asList( bac.doubleArrayToBytes( new double[] { 1.0, 2.0, Double.NaN } ),
+                        bac.doubleArrayToBytes( new double[] { -4.5, 5.0, 6.0 } ) ), null );
+
+        store.write( 1L, 10L, 20L, new long[] { 100L, 101L, 102L }, new long[] { 31L, 30L }, new long[] { 40L, 41L },
+                data );
+
+        ProcessedDataMatrixFileStore.Matrix m = store.read( 1L );
+        assertNotNull( m );
+        assertEquals( 10L, m.getQuantitationTypeId() );
+        assertEquals( 20L, m.getBioAssayDimensionId() );
+        assertArrayEquals( new long[] { 100L, 101L, 102L }, m.getBioAssayIds() );
+        assertEquals( 2, m.rows() );
+
+        Map<Long, Integer> rowIndex = m.getRowIndex();
+        assertEquals( 1, rowIndex.get( 30L ).intValue() );
+        assertEquals( 41L, m.getDesignElementId( rowIndex.get( 30L ) ) );
+        assertArrayEquals( new double[] { -4.5, 5.0, 6.0 }, m.copyRow( 1 ), 0.0 );
+        assertArrayEquals( new double[] { 1.0, 2.0, Double.NaN }, m.copyRow( 0 ), 0.0 );
+
+        assertNull( store.read( 2L ) );
+
+        store.remove( 1L );
+        assertNull( store.read( 1L ) );
+    }
+
+    @Test
+    public void testWriteReadInPieces() throws IOException {
+        // the header of a 7 x 10 matrix is 224 bytes, and 2 rows fit in that, so the rows are mapped in 4 pieces
+        ProcessedDataMatrixFileStore small = new ProcessedDataMatrixFileStore( dir, 224 );
+        long[] bioAssayIds = new long[10];
+        for ( int j = 0; j < bioAssayIds.length; j++ ) {
+            bioAssayIds[j] = 100L + j;
+        }
+        double[][] data = new double[7][10];
+        long[] vectorIds = new long[7];
+        for ( int i = 0; i < data.length; i++ ) {
+            for ( int j = 0; j < bioAssayIds.length; j++ ) {
+                data[i][j] = i * 10 + j;
+            }
+            vectorIds[i] = i;
+        }
+        small.write( 1L, 10L, 20L, bioAssayIds, vectorIds, vectorIds, data );
+
+        ProcessedDataMatrixFileStore.Matrix m = small.read( 1L );
+        assertNotNull( m );
+        assertEquals( 7, m.rows() );
+        for ( int i = 0; i < data.length; i++ ) {
+            assertArrayEquals( data[i], m.copyRow( i ), 0.0 );
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWriteTooLarge() throws IOException {
+        // the header alone is 72 bytes
+        ProcessedDataMatrixFileStore small = new ProcessedDataMatrixFileStore( dir, 71 );
+        small.write( 1L, 10L, 20L, new long[] { 100L, 101L, 102L }, new long[] { 30L }, new long[] { 40L },
+                new double[][] { { 1.0, 2.0, 3.0 } } );
+    }
+
+    @Test
+    public void testReadCorrupt() throws IOException {
+        ByteArrayConverter bac = new ByteArrayConverter();
+        double[][] data = DoubleVectorDecoder
+                .decode( Arrays.asList( bac.doubleArrayToBytes( new double[] { 1.0, 2.0 } ) ), null );
+        store.write( 1L, 10L, 20L, new long[] { 100L, 101L }, new long[] { 30L }, new long[] { 40L }, data );
+
+        File[] files = dir.listFiles();
+        assertNotNull( files );
+        assertEquals( 1, files.length );
+
+        // truncate it
+        try (FileOutputStream out = new FileOutputStream( files[0], true )) {
+            out.getChannel().truncate( files[0].length() - 1 );
+        }
+
+        assertNull( store.read( 1L ) );
+        assertFalse( files[0].exists() );
+    }
+}
@@ -0,0 +1,29 @@
+#!/bin/sh
+# Stands in for gfClient in tests: writes a PSL line (without header) aligning each query sequence in full to chr1.
+# Takes the same arguments as gfClient, of which only the last two, the input and output files, are used.
+# Each call is recorded in calls.txt next to this script. If a file named 'fail' is next to this script, it fails for
+# input that has a sequence whose name starts with 'fail'.
+
+dir=$(dirname "$0")
+for arg in "$@"; do
+    input=$output
+    output=$arg
+done
+
+echo "$input" >> "$dir/calls.txt"
+
+if [ -f "$dir/fail" ] && grep -q '^>fail' "$input"; then
+    echo "Failing as requested for $input" >&2
+    exit 1
+fi
+
+awk -v OFS='\t' '
+function write(   n, start) {
+    n = length(seq)
+    start = 1000 * count++
+    print n, 0, 0, 0, 0, 0, 0, 0, "+", name, n, 0, n, "chr1", 1000000, start, start + n, 1, n ",", "0,", start ","
+}
+/^>/ { if (name != "") write(); name = substr($0, 2); seq = ""; next }
+{ seq = seq $0 }
+END { if (name != "") write() }
+' "$input" > "$output"
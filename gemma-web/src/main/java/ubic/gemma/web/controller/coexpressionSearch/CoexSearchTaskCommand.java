@@ -21,6 +21,7 @@ package ubic.gemma.web.controller.coexpressionSearch;
 
 import ubic.gemma.core.analysis.expression.coexpression.CoexpressionSearchCommand;
 import ubic.gemma.core.job.TaskCommand;
+import ubic.gemma.core.job.TaskPriority;
 
 /**
  * @author cmcdonald
@@ -35,6 +36,7 @@ public class CoexSearchTaskCommand extends TaskCommand {
         super();
         this.searchOptions = searchOptions;
         this.setPersistJobDetails( false );
+        this.setPriority( TaskPriority.INTERACTIVE );
     }
 
     public CoexpressionSearchCommand getSearchOptions() {
@@ -45,9 +45,13 @@ import javax.ws.rs.*;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
-import java.io.File;
-import java.io.IOException;
-import java.nio.file.Files;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 
 /**
@@ -61,6 +65,12 @@ public class DatasetsWebService extends WebService {
 
     private static final String ERROR_DATA_FILE_NOT_AVAILABLE = "Data file for experiment %s can not be created.";
     private static final String ERROR_DESIGN_FILE_NOT_AVAILABLE = "Design file for experiment %s can not be created.";
+    private static final String ERROR_FILTERED_DATA_NOT_STREAMED = "Filtered data is only available as the data file; "
+            + "request it without asking for tab-separated values or floats.";
+    /**
+     * Processed data as little-endian 32-bit floats with a JSON header.
+     */
+    public static final String FLOAT32_MATRIX_MEDIA_TYPE = "application/vnd.gemma.float32-matrix";
 
     private ExpressionExperimentService service;
     private ExpressionExperimentService expressionExperimentService;
@@ -220,11 +230,14 @@ public class DatasetsWebService extends WebService {
     }
 
     /**
-     * Retrieves the data for the given dataset.
+     * Retrieves the data for the given dataset, as a gzipped data file. Parts of the file can be requested with a
+     * Range header, e.g. to resume an interrupted download.
      *
      * @param datasetArg can either be the ExpressionExperiment ID or its short name (e.g. GSE1234). Retrieval by ID
      *                   is more efficient. Only datasets that user has access to will be available.
      * @param filterData return filtered the expression data.
+     * @param range      the requested byte range, if any.
+     * @param ifRange    only send the requested range if the file still has this entity tag.
      */
     @GET
     @Path("/{dataset}/data")
@@ -233,10 +246,77 @@ public class DatasetsWebService extends WebService {
     public Response datasetData( // Params:
             @PathParam("dataset") DatasetArg<Object> datasetArg, // Required
             @QueryParam("filter") @DefaultValue("false") BoolArg filterData, // Optional, default false
+            @HeaderParam("Range") String range, // Optional
+            @HeaderParam("If-Range") String ifRange, // Optional
             @Context final HttpServletResponse sr // The servlet response, needed for response code setting.
     ) {
         ExpressionExperiment ee = datasetArg.getEntity( expressionExperimentService );
-        return this.outputDataFile( ee, filterData.getValue() );
+        return this.outputDataFile( ee, filterData.getValue(), range, ifRange );
+    }
+
+    /**
+     * Streams the unfiltered processed data for the given dataset as tab-delimited text, as the rows are read from the
+     * database. Unlike the data file, it has no sequence column.
+     *
+     * @param datasetArg can either be the ExpressionExperiment ID or its short name (e.g. GSE1234). Retrieval by ID
+     *                   is more efficient. Only datasets that user has access to will be available.
+     * @param filterData must be false; filtered data is only available as the data file, so asking for it is a bad
+     *                   request.
+     */
+    @GET
+    @Path("/{dataset}/data")
+    @Produces("text/tab-separated-values; qs=0.9")
+    public StreamingOutput datasetDataAsTsv( // Params:
+            @PathParam("dataset") DatasetArg<Object> datasetArg, // Required
+            @QueryParam("filter") @DefaultValue("false") BoolArg filterData, // Optional, default false
+            @Context final HttpServletResponse sr // The servlet response, needed for response code setting.
+    ) {
+        if ( filterData.getValue() ) {
+            throw new GemmaApiException( Response.Status.BAD_REQUEST,
+                    DatasetsWebService.ERROR_FILTERED_DATA_NOT_STREAMED );
+        }
+        final ExpressionExperiment ee = datasetArg.getEntity( expressionExperimentService );
+        return new StreamingOutput() {
+            @Override
+            public void write( OutputStream outputStream ) throws IOException, WebApplicationException {
+                Writer writer = new BufferedWriter( new OutputStreamWriter( outputStream, StandardCharsets.UTF_8 ) );
+                expressionDataFileService.writeTsvToAppendable( ee, writer );
+                writer.flush();
+            }
+        };
+    }
+
+    /**
+     * Streams the unfiltered processed data for the given dataset in a compact binary form, as the rows are read from
+     * the database: a JSON header followed by the rows, with the values as little-endian 32-bit floats.
+     *
+     * @param datasetArg can either be the ExpressionExperiment ID or its short name (e.g. GSE1234). Retrieval by ID
+     *                   is more efficient. Only datasets that user has access to will be available.
+     * @param filterData must be false; filtered data is only available as the data file, so asking for it is a bad
+     *                   request.
+     * @see ExpressionDataFileService#writeProcessedDataAsFloats(ExpressionExperiment, OutputStream)
+     */
+    @GET
+    @Path("/{dataset}/data")
+    @Produces(DatasetsWebService.FLOAT32_MATRIX_MEDIA_TYPE + "; qs=0.8")
+    public StreamingOutput datasetDataAsFloats( // Params:
+            @PathParam("dataset") DatasetArg<Object> datasetArg, // Required
+            @QueryParam("filter") @DefaultValue("false") BoolArg filterData, // Optional, default false
+            @Context final HttpServletResponse sr // The servlet response, needed for response code setting.
+    ) {
+        if ( filterData.getValue() ) {
+            throw new GemmaApiException( Response.Status.BAD_REQUEST,
+                    DatasetsWebService.ERROR_FILTERED_DATA_NOT_STREAMED );
+        }
+        final ExpressionExperiment ee = datasetArg.getEntity( expressionExperimentService );
+        return new StreamingOutput() {
+            @Override
+            public void write( OutputStream outputStream ) throws IOException, WebApplicationException {
+                OutputStream out = new BufferedOutputStream( outputStream );
+                expressionDataFileService.writeProcessedDataAsFloats( ee, out );
+                out.flush();
+            }
+        };
     }
 
     /**
@@ -435,35 +515,53 @@ public class DatasetsWebService extends WebService {
                 sr );
     }
 
-    private Response outputDataFile( ExpressionExperiment ee, boolean filter ) {
+    private Response outputDataFile( ExpressionExperiment ee, boolean filter, String range, String ifRange ) {
         ee = expressionExperimentService.thawLite( ee );
         File file = expressionDataFileService.writeOrLocateDataFile( ee, false, filter );
-        return this.outputFile( file, DatasetsWebService.ERROR_DATA_FILE_NOT_AVAILABLE, ee.getShortName() );
+        return this.outputFile( file, range, ifRange, DatasetsWebService.ERROR_DATA_FILE_NOT_AVAILABLE,
+                ee.getShortName() );
     }
 
     private Response outputDesignFile( ExpressionExperiment ee ) {
         ee = expressionExperimentService.thawLite( ee );
         File file = expressionDataFileService.writeOrLocateDesignFile( ee, false );
-        return this.outputFile( file, DatasetsWebService.ERROR_DESIGN_FILE_NOT_AVAILABLE, ee.getShortName() );
+        return this.outputFile( file, null, null, DatasetsWebService.ERROR_DESIGN_FILE_NOT_AVAILABLE,
+                ee.getShortName() );
     }
 
-    private Response outputFile( File file, String error, String shortName ) {
-        try {
-            if ( file == null || !file.exists() ) {
-                WellComposedErrorBody errorBody = new WellComposedErrorBody( Response.Status.NOT_FOUND,
-                        String.format( error, shortName ) );
-                throw new GemmaApiException( errorBody );
-            }
-
-            return Response.ok( Files.readAllBytes( file.toPath() ) )
-                    .header( "Content-Disposition", "attachment; filename=" + file.getName() ).build();
-        } catch ( IOException e ) {
+    /**
+     * Sends the file, or the requested part of it, without reading it all in memory first.
+     *
+     * @param range   the Range header of the request, or null to send the whole file
+     * @param ifRange the If-Range header of the request; if it is not the current entity tag of the file, the whole
+     *                file is sent
+     */
+    private Response outputFile( File file, String range, String ifRange, String error, String shortName ) {
+        if ( file == null || !file.canRead() ) {
             WellComposedErrorBody errorBody = new WellComposedErrorBody( Response.Status.NOT_FOUND,
                     String.format( error, shortName ) );
-            errorBody.addErrorsField( "error", e.getMessage() );
-
             throw new GemmaApiException( errorBody );
         }
+
+        long length = file.length();
+        String entityTag = "\"" + Long.toHexString( file.lastModified() ) + "-" + Long.toHexString( length ) + "\"";
+        ByteRange byteRange = ifRange == null || ifRange.equals( entityTag ) ? ByteRange.parse( range, length ) : null;
+
+        Response.ResponseBuilder builder;
+        if ( byteRange == null ) {
+            builder = Response.ok( new FileStreamingOutput( file, 0, length ) );
+        } else if ( !byteRange.isSatisfiable() ) {
+            return Response.status( Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE )
+                    .header( "Content-Range", byteRange.toContentRange() ).build();
+        } else {
+            builder = Response.status( Response.Status.PARTIAL_CONTENT )
+                    .entity( new FileStreamingOutput( file, byteRange.getFirst(), byteRange.getCount() ) )
+                    .header( "Content-Range", byteRange.toContentRange() );
+        }
+
+        return builder.header( "Accept-Ranges", "bytes" ).header( "ETag", entityTag )
+                .header( "Content-Length", byteRange == null ? length : byteRange.getCount() )
+                .header( "Content-Disposition", "attachment; filename=" + file.getName() ).build();
     }
 
     private List<DifferentialExpressionAnalysisValueObject> getDiffExVos( Long eeId, int offset, int limit ) {
@@ -507,4 +605,37 @@ public class DatasetsWebService extends WebService {
         }
     }
 
+
+    /**
+     * Copies part of a file to the response as it is written, a buffer at a time.
+     */
+    private static class FileStreamingOutput implements StreamingOutput {
+
+        private final File file;
+        private final long start;
+        private final long count;
+
+        private FileStreamingOutput( File file, long start, long count ) {
+            this.file = file;
+            this.start = start;
+            this.count = count;
+        }
+
+        @Override
+        public void write( OutputStream outputStream ) throws IOException, WebApplicationException {
+            try (FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ )) {
+                WritableByteChannel out = Channels.newChannel( outputStream );
+                long position = start;
+                long end = start + count;
+                while ( position < end ) {
+                    long transferred = channel.transferTo( position, end - position, out );
+                    if ( transferred <= 0 ) {
+                        break; // the file was truncated under us
+                    }
+                    position += transferred;
+                }
+            }
+            outputStream.flush();
+        }
+    }
 }
@@ -0,0 +1,123 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2021 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.web.services.rest.util;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A single byte range from an HTTP Range header, e.g. "bytes=500-999", "bytes=500-" or "bytes=-500", resolved against
+ * the length of the content. Requests for several ranges are not supported; they get the whole content, which the
+ * HTTP specification allows.
+ */
+public class ByteRange {
+
+    private static final Pattern RANGE_PATTERN = Pattern.compile( "^\\s*bytes\\s*=\\s*(\\d*)\\s*-\\s*(\\d*)\\s*$" );
+
+    private final long first;
+    private final long last;
+    private final long length;
+
+    private ByteRange( long first, long last, long length ) {
+        this.first = first;
+        this.last = last;
+        this.length = length;
+    }
+
+    /**
+     * @param  header the value of the Range header, possibly null
+     * @param  length the length of the content
+     * @return the requested range, or null if there is no header or it is not a single byte range, in which case the
+     *                whole content should be sent. The range may not be satisfiable; see {@link #isSatisfiable()}.
+     */
+    public static ByteRange parse( String header, long length ) {
+        if ( header == null ) {
+            return null;
+        }
+        Matcher m = ByteRange.RANGE_PATTERN.matcher( header );
+        if ( !m.matches() ) {
+            return null;
+        }
+        String first = m.group( 1 );
+        String last = m.group( 2 );
+
+        try {
+            if ( first.isEmpty() ) {
+                if ( last.isEmpty() ) {
+                    return null;
+                }
+                // suffix: the last n bytes
+                long suffix = Long.parseLong( last );
+                if ( suffix == 0 ) {
+                    return new ByteRange( length, length - 1, length );
+                }
+                return new ByteRange( Math.max( 0, length - suffix ), length - 1, length );
+            }
+
+            long start = Long.parseLong( first );
+            if ( last.isEmpty() ) {
+                return new ByteRange( start, length - 1, length );
+            }
+            long end = Long.parseLong( last );
+            if ( end < start ) {
+                return null; // syntactically invalid, so ignored
+            }
+            return new ByteRange( start, Math.min( end, length - 1 ), length );
+        } catch ( NumberFormatException e ) {
+            return null; // too large to be a valid position
+        }
+    }
+
+    /**
+     * @return false if the range starts after the end of the content, which calls for a 416 response.
+     */
+    public boolean isSatisfiable() {
+        return first < length && first <= last;
+    }
+
+    public long getFirst() {
+        return first;
+    }
+
+    public long getLast() {
+        return last;
+    }
+
+    /**
+     * @return the number of bytes in the range
+     */
+    public long getCount() {
+        return last - first + 1;
+    }
+
+    /**
+     * @return the value of the Content-Range header of the response
+     */
+    public String toContentRange() {
+        if ( !this.isSatisfiable() ) {
+            return "bytes */" + length;
+        }
+        return "bytes " + first + "-" + last + "/" + length;
+    }
+
+    @Override
+    public String toString() {
+        return this.toContentRange();
+    }
+}
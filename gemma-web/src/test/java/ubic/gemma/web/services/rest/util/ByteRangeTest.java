@@ -0,0 +1,84 @@
+/*
+ * The Gemma project
+ *
+ * Copyright (c) 2021 University of British Columbia
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package ubic.gemma.web.services.rest.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ByteRangeTest {
+
+    @Test
+    public void testNoRange() {
+        assertNull( ByteRange.parse( null, 1000 ) );
+        assertNull( ByteRange.parse( "items=0-10", 1000 ) );
+        assertNull( ByteRange.parse( "bytes=0-10,20-30", 1000 ) );
+        assertNull( ByteRange.parse( "bytes=-", 1000 ) );
+        assertNull( ByteRange.parse( "bytes=20-10", 1000 ) );
+    }
+
+    @Test
+    public void testClosedRange() {
+        ByteRange r = ByteRange.parse( "bytes=500-999", 1000 );
+        assertNotNull( r );
+        assertTrue( r.isSatisfiable() );
+        assertEquals( 500, r.getFirst() );
+        assertEquals( 999, r.getLast() );
+        assertEquals( 500, r.getCount() );
+        assertEquals( "bytes 500-999/1000", r.toContentRange() );
+
+        // end past the content is truncated
+        r = ByteRange.parse( "bytes=900-5000", 1000 );
+        assertNotNull( r );
+        assertEquals( 999, r.getLast() );
+    }
+
+    @Test
+    public void testOpenRange() {
+        ByteRange r = ByteRange.parse( "bytes=100-", 1000 );
+        assertNotNull( r );
+        assertEquals( 100, r.getFirst() );
+        assertEquals( 999, r.getLast() );
+    }
+
+    @Test
+    public void testSuffixRange() {
+        ByteRange r = ByteRange.parse( "bytes=-100", 1000 );
+        assertNotNull( r );
+        assertEquals( 900, r.getFirst() );
+        assertEquals( 100, r.getCount() );
+
+        r = ByteRange.parse( "bytes=-5000", 1000 );
+        assertNotNull( r );
+        assertEquals( 0, r.getFirst() );
+        assertEquals( 1000, r.getCount() );
+    }
+
+    @Test
+    public void testUnsatisfiable() {
+        ByteRange r = ByteRange.parse( "bytes=1000-", 1000 );
+        assertNotNull( r );
+        assertFalse( r.isSatisfiable() );
+        assertEquals( "bytes */1000", r.toContentRange() );
+
+        r = ByteRange.parse( "bytes=-0", 1000 );
+        assertNotNull( r );
+        assertFalse( r.isSatisfiable() );
+    }
+}